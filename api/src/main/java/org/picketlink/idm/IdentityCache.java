@@ -1,10 +1,59 @@
 package org.picketlink.idm;
 
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+
 /**
- * 
- * 
+ * <p>
+ * Cache of identity types loaded from an {@link org.picketlink.idm.spi.IdentityStore}. Implementations are expected to
+ * invalidate their own entries when changes are made through them. The methods defined here allow changes made by other
+ * means (eg.: directly on the underlying store) to be propagated.
+ * </p>
+ *
  * @author Shane Bryzak
  */
 public interface IdentityCache {
 
+    /**
+     * <p>
+     * Removes the given {@link User} from the cache.
+     * </p>
+     *
+     * @param user
+     */
+    void invalidate(User user);
+
+    /**
+     * <p>
+     * Removes the given {@link Group} from the cache.
+     * </p>
+     *
+     * @param group
+     */
+    void invalidate(Group group);
+
+    /**
+     * <p>
+     * Removes the given {@link Role} from the cache.
+     * </p>
+     *
+     * @param role
+     */
+    void invalidate(Role role);
+
+    /**
+     * <p>
+     * Removes all cached memberships.
+     * </p>
+     */
+    void invalidateMemberships();
+
+    /**
+     * <p>
+     * Removes all entries from the cache.
+     * </p>
+     */
+    void clear();
+
 }
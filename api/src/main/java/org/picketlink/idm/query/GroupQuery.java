@@ -79,6 +79,8 @@ public interface GroupQuery {
 
     GroupQuery sort(boolean ascending);
 
+    boolean isSortAscending();
+
     void setRange(Range range);
 
     Range getRange();
@@ -53,7 +53,11 @@ public class Range {
         return limit;
     }
 
-    public Range of(int offset, int limit) {
+    /**
+     * Returns the range of at most <code>limit</code> results, skipping the first <code>offset</code> ones. A negative limit
+     * means no limit.
+     */
+    public static Range of(int offset, int limit) {
         return new Range(offset, limit);
     }
 
@@ -67,6 +67,8 @@ public interface RoleQuery {
 
     RoleQuery sort(boolean ascending);
 
+    boolean isSortAscending();
+
     void setRange(Range range);
 
     Range getRange();
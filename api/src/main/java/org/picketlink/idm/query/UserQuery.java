@@ -94,6 +94,8 @@ public interface UserQuery {
 
     UserQuery sort(boolean ascending);
 
+    boolean isSortAscending();
+
     void setRange(Range range);
 
     Range getRange();
@@ -0,0 +1,61 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.spi;
+
+import java.util.Collection;
+
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * Answers role checks for users and groups without querying the memberships of an {@link IdentityStore} each time. Stores and
+ * caches that keep such an index implement this interface, and the identity manager uses it for
+ * {@link org.picketlink.idm.IdentityManager#hasRole(Role, IdentityType, Group)} and
+ * {@link org.picketlink.idm.IdentityManager#getRoles(IdentityType, Group)}.
+ * </p>
+ * <p>
+ * The roles of a {@link User} are the roles of its memberships. The roles of a {@link Group} are the roles of the memberships
+ * in that group. When a group argument is given, only the memberships in that group are considered, so a group identity only
+ * has roles in itself.
+ * </p>
+ */
+public interface RoleIndex {
+
+    /**
+     * @param role
+     * @param identityType a {@link User} or a {@link Group}.
+     * @param group if not null, only roles granted in this group are considered.
+     * @return true if the role was granted to the given identity.
+     */
+    boolean hasRole(Role role, IdentityType identityType, Group group);
+
+    /**
+     * @param identityType a {@link User} or a {@link Group}.
+     * @param group if not null, only roles granted in this group are returned.
+     * @return the roles granted to the given identity.
+     */
+    Collection<Role> getRoles(IdentityType identityType, Group group);
+
+}
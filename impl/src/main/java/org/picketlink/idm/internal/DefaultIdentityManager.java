@@ -25,12 +25,14 @@ import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 import org.picketlink.idm.IdentityManager;
 import org.picketlink.idm.internal.jpa.DefaultGroupQuery;
 import org.picketlink.idm.internal.jpa.DefaultRoleQuery;
 import org.picketlink.idm.model.Group;
 import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.model.Membership;
 import org.picketlink.idm.model.Role;
 import org.picketlink.idm.model.User;
 import org.picketlink.idm.password.PasswordEncoder;
@@ -40,6 +42,7 @@ import org.picketlink.idm.query.MembershipQuery;
 import org.picketlink.idm.query.RoleQuery;
 import org.picketlink.idm.query.UserQuery;
 import org.picketlink.idm.spi.IdentityStore;
+import org.picketlink.idm.spi.RoleIndex;
 
 /**
  * Default implementation of the IdentityManager interface
@@ -49,6 +52,7 @@ import org.picketlink.idm.spi.IdentityStore;
  */
 public class DefaultIdentityManager implements IdentityManager {
     private IdentityStore store = null;
+    private RoleIndex roleIndex;
     private PasswordEncoder passwordEncoder;
 
     public DefaultIdentityManager() {
@@ -62,6 +66,26 @@ public class DefaultIdentityManager implements IdentityManager {
         this.store = theStore;
     }
 
+    /**
+     * <p>
+     * Sets the {@link RoleIndex} answering role checks, eg.: a cache wrapped by other stores. By default the store is used if
+     * it implements {@link RoleIndex}, otherwise the memberships are queried.
+     * </p>
+     *
+     * @param roleIndex
+     */
+    public void setRoleIndex(RoleIndex roleIndex) {
+        this.roleIndex = roleIndex;
+    }
+
+    private RoleIndex getRoleIndex() {
+        if (this.roleIndex != null) {
+            return this.roleIndex;
+        }
+
+        return this.store instanceof RoleIndex ? (RoleIndex) this.store : null;
+    }
+
     @Override
     public User createUser(String name) {
         ensureStoreExists();
@@ -191,6 +215,12 @@ public class DefaultIdentityManager implements IdentityManager {
     @SuppressWarnings("unchecked")
     @Override
     public Collection<Role> getRoles(IdentityType identityType, Group group) {
+        RoleIndex roleIndex = getRoleIndex();
+
+        if (roleIndex != null) {
+            return roleIndex.getRoles(identityType, group);
+        }
+
         RoleQuery query = createRoleQuery();
 
         // TODO: this should not happen because store impls must provide a valid instance. For now this is ignored and a empty
@@ -207,9 +237,40 @@ public class DefaultIdentityManager implements IdentityManager {
 
     @Override
     public boolean hasRole(Role role, IdentityType identityType, Group group) {
+        RoleIndex roleIndex = getRoleIndex();
+
+        if (roleIndex != null) {
+            return roleIndex.hasRole(role, identityType, group);
+        }
+
         MembershipQuery query = createMembershipQuery();
-        
-        return !query.executeQuery().isEmpty();
+
+        query.setRole(role);
+
+        if (identityType instanceof Group) {
+            // the roles of a group are the ones granted in it, see RoleIndex
+            if (group != null && !getGroupKey(group).equals(getGroupKey((Group) identityType))) {
+                return false;
+            }
+
+            query.setGroup((Group) identityType);
+        } else {
+            if (identityType instanceof User) {
+                query.setUser((User) identityType);
+            }
+
+            if (group != null) {
+                query.setGroup(group);
+            }
+        }
+
+        List<Membership> memberships = query.executeQuery();
+
+        return memberships != null && !memberships.isEmpty();
+    }
+
+    private String getGroupKey(Group group) {
+        return group.getName() != null ? group.getName() : group.getId();
     }
 
     @Override
@@ -26,6 +26,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.picketlink.idm.internal.util.IDMUtil;
 import org.picketlink.idm.model.Group;
 import org.picketlink.idm.model.Role;
 import org.picketlink.idm.model.SimpleGroup;
@@ -55,7 +56,9 @@ public class DefaultUserQuery implements UserQuery {
     private String lastName;
     private String email;
     private boolean enabled = true;
+    private boolean sortAscending = true;
     private Range range;
+    private boolean immutable;
 
     public DefaultUserQuery(IdentityStore store) {
         this.store = store;
@@ -66,9 +69,39 @@ public class DefaultUserQuery implements UserQuery {
         return null;
     }
 
+    /**
+     * <p>
+     * Returns a snapshot of this query that can not be changed any more and whose equals/hashCode are stable, so it can be used
+     * as a key to cache query results.
+     * </p>
+     */
     @Override
     public UserQuery getImmutable() {
-        return null;
+        if (this.immutable) {
+            return this;
+        }
+
+        DefaultUserQuery copy = new DefaultUserQuery(this.store);
+
+        copy.name = this.name;
+        copy.relatedGroup = this.relatedGroup;
+        copy.relatedGroupID = this.relatedGroupID;
+        copy.role = this.role;
+        copy.roleName = this.roleName;
+        copy.filters = IDMUtil.copyAttributeFilters(this.filters);
+        copy.firstName = this.firstName;
+        copy.lastName = this.lastName;
+        copy.email = this.email;
+        copy.enabled = this.enabled;
+        copy.sortAscending = this.sortAscending;
+        copy.range = this.range != null ? Range.of(this.range.getOffset(), this.range.getLimit()) : null;
+        copy.immutable = true;
+
+        return copy;
+    }
+
+    public boolean isImmutable() {
+        return this.immutable;
     }
 
     @Override
@@ -78,6 +111,7 @@ public class DefaultUserQuery implements UserQuery {
 
     @Override
     public UserQuery setName(String name) {
+        checkMutable();
         this.name = name;
         return this;
     }
@@ -89,12 +123,14 @@ public class DefaultUserQuery implements UserQuery {
 
     @Override
     public UserQuery setRelatedGroup(Group group) {
+        checkMutable();
         this.relatedGroup = group;
         return this;
     }
 
     @Override
     public UserQuery setRelatedGroup(String groupId) {
+        checkMutable();
         this.relatedGroupID = groupId;
         return this;
     }
@@ -114,12 +150,14 @@ public class DefaultUserQuery implements UserQuery {
 
     @Override
     public UserQuery setRole(Role role) {
+        checkMutable();
         this.role = role;
         return this;
     }
 
     @Override
     public UserQuery setRole(String name) {
+        checkMutable();
         this.roleName = name;
         return this;
     }
@@ -139,6 +177,7 @@ public class DefaultUserQuery implements UserQuery {
 
     @Override
     public UserQuery setAttributeFilter(String name, String[] values) {
+        checkMutable();
         filters.put(name, values);
         return this;
     }
@@ -150,6 +189,7 @@ public class DefaultUserQuery implements UserQuery {
 
     @Override
     public UserQuery setFirstName(String firstName) {
+        checkMutable();
         this.firstName = firstName;
         return this;
     }
@@ -161,6 +201,7 @@ public class DefaultUserQuery implements UserQuery {
 
     @Override
     public UserQuery setLastName(String lastName) {
+        checkMutable();
         this.lastName = lastName;
         return this;
     }
@@ -172,6 +213,7 @@ public class DefaultUserQuery implements UserQuery {
 
     @Override
     public UserQuery setEmail(String email) {
+        checkMutable();
         this.email = email;
         return this;
     }
@@ -183,6 +225,7 @@ public class DefaultUserQuery implements UserQuery {
 
     @Override
     public UserQuery setEnabled(boolean enabled) {
+        checkMutable();
         this.enabled = enabled;
         return this;
     }
@@ -194,11 +237,19 @@ public class DefaultUserQuery implements UserQuery {
 
     @Override
     public UserQuery sort(boolean ascending) {
-        return null;
+        checkMutable();
+        this.sortAscending = ascending;
+        return this;
+    }
+
+    @Override
+    public boolean isSortAscending() {
+        return this.sortAscending;
     }
 
     @Override
     public void setRange(Range range) {
+        checkMutable();
         this.range = range;
     }
 
@@ -211,4 +262,62 @@ public class DefaultUserQuery implements UserQuery {
     public List<User> executeQuery() {
         return store.executeQuery(this, null);
     }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof DefaultUserQuery)) {
+            return false;
+        }
+
+        DefaultUserQuery other = (DefaultUserQuery) obj;
+
+        return IDMUtil.equal(this.name, other.name)
+                && IDMUtil.equal(IDMUtil.identityKey(this.relatedGroup), IDMUtil.identityKey(other.relatedGroup))
+                && IDMUtil.equal(this.relatedGroupID, other.relatedGroupID)
+                && IDMUtil.equal(IDMUtil.identityKey(this.role), IDMUtil.identityKey(other.role))
+                && IDMUtil.equal(this.roleName, other.roleName) && IDMUtil.attributeFiltersEqual(this.filters, other.filters)
+                && IDMUtil.equal(this.firstName, other.firstName) && IDMUtil.equal(this.lastName, other.lastName)
+                && IDMUtil.equal(this.email, other.email) && this.enabled == other.enabled
+                && this.sortAscending == other.sortAscending && getOffset(this.range) == getOffset(other.range)
+                && getLimit(this.range) == getLimit(other.range);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 17;
+
+        hash = 31 * hash + (this.name != null ? this.name.hashCode() : 0);
+        hash = 31 * hash + (this.relatedGroup != null ? IDMUtil.identityKey(this.relatedGroup).hashCode() : 0);
+        hash = 31 * hash + (this.relatedGroupID != null ? this.relatedGroupID.hashCode() : 0);
+        hash = 31 * hash + (this.role != null ? IDMUtil.identityKey(this.role).hashCode() : 0);
+        hash = 31 * hash + (this.roleName != null ? this.roleName.hashCode() : 0);
+        hash = 31 * hash + IDMUtil.attributeFiltersHashCode(this.filters);
+        hash = 31 * hash + (this.firstName != null ? this.firstName.hashCode() : 0);
+        hash = 31 * hash + (this.lastName != null ? this.lastName.hashCode() : 0);
+        hash = 31 * hash + (this.email != null ? this.email.hashCode() : 0);
+        hash = 31 * hash + (this.enabled ? 1 : 0);
+        hash = 31 * hash + (this.sortAscending ? 1 : 0);
+        hash = 31 * hash + getOffset(this.range);
+        hash = 31 * hash + getLimit(this.range);
+
+        return hash;
+    }
+
+    private void checkMutable() {
+        if (this.immutable) {
+            throw new IllegalStateException("Immutable queries can not be changed.");
+        }
+    }
+
+    private static int getOffset(Range range) {
+        return range != null ? range.getOffset() : 0;
+    }
+
+    private static int getLimit(Range range) {
+        return range != null ? range.getLimit() : -1;
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A Bloom filter of strings. {@link #mightContain(String)} never returns false for a key that was added, but may return true
+ * for a key that was not, with a probability close to the false positive rate the filter was sized for.
+ * </p>
+ * <p>
+ * Keys can be added and tested concurrently without locking.
+ * </p>
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions number of keys the filter is expected to hold.
+     * @param falsePositiveRate the desired false positive rate once the expected number of keys were added.
+     */
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        long n = Math.max(1, expectedInsertions);
+        double p = Math.min(Math.max(falsePositiveRate, Double.MIN_VALUE), 0.5);
+        long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+
+        m = Math.max(64, m);
+
+        this.bits = new AtomicLongArray((int) ((m + 63) / 64));
+        this.bitCount = this.bits.length() * 64L;
+        this.hashCount = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    /**
+     * <p>
+     * Adds the given key to the filter.
+     * </p>
+     *
+     * @param key
+     */
+    public void put(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 1; i <= this.hashCount; i++) {
+            long bit = indexOf(h1 + i * h2);
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+
+            for (;;) {
+                long current = this.bits.get(index);
+
+                if ((current & mask) != 0 || this.bits.compareAndSet(index, current, current | mask)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param key
+     * @return false if the key was definitely never added to this filter.
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 1; i <= this.hashCount; i++) {
+            long bit = indexOf(h1 + i * h2);
+
+            if ((this.bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private long indexOf(int combinedHash) {
+        return (combinedHash & 0x7FFFFFFFL) % this.bitCount;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the characters of the key, with a final avalanche step.
+     */
+    private static long hash(String key) {
+        long hash = 0xCBF29CE484222325L;
+
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+}
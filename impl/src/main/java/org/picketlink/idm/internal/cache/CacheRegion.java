@@ -0,0 +1,467 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.picketlink.idm.internal.config.CacheConfiguration;
+
+/**
+ * <p>
+ * A bounded, thread safe cache region. Entries are spread across a number of segments, each one guarded by its own lock and
+ * holding its own share of the region capacity, so concurrent lookups of different keys seldom contend. Within a segment
+ * entries are kept in access order and evicted according to the configured {@link EvictionPolicy}.
+ * </p>
+ * <p>
+ * Loads should obtain a stamp with {@link #getStamp(Object)} before going to the store and pass it back to
+ * {@link #put(Object, Object, long)}. If the key's segment was invalidated in the meantime the loaded value is discarded, so a
+ * slow load can never resurrect an entry that was invalidated while it was running.
+ * </p>
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+public class CacheRegion<K, V> {
+
+    private final String name;
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final long timeToLiveNanos;
+    private final Weigher weigher;
+    private final EvictionPolicy evictionPolicy;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter loads = new StripedCounter();
+    private final StripedCounter loadTime = new StripedCounter();
+    private final StripedCounter missTime = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    @SuppressWarnings("unchecked")
+    public CacheRegion(String name, CacheConfiguration configuration) {
+        this.name = name;
+        this.evictionPolicy = configuration.getEvictionPolicy();
+        this.timeToLiveNanos = configuration.getTimeToLive() > 0 ? configuration.getTimeToLive() * 1000000L : 0;
+
+        boolean weighted = configuration.getMaxWeight() > 0;
+        long capacity = weighted ? configuration.getMaxWeight() : Math.max(1, configuration.getMaxEntries());
+
+        if (weighted) {
+            this.weigher = configuration.getWeigher() != null ? configuration.getWeigher() : new IdentityTypeWeigher();
+        } else {
+            this.weigher = null;
+        }
+
+        int segmentCount = 1;
+        long maxSegments = Math.min(Math.max(1, configuration.getConcurrencyLevel()), weighted ? Integer.MAX_VALUE : capacity);
+
+        while (segmentCount * 2 <= maxSegments) {
+            segmentCount <<= 1;
+        }
+
+        this.segments = newSegments(segmentCount);
+        this.segmentMask = segmentCount - 1;
+
+        long segmentCapacity = (capacity + segmentCount - 1) / segmentCount;
+
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment<K, V>(segmentCapacity, this.evictionPolicy == EvictionPolicy.TINY_LFU);
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <K, V> Segment<K, V>[] newSegments(int count) {
+        return new Segment[count];
+    }
+
+    /**
+     * @param key
+     * @return the cached value or null if there is no valid entry for the given key.
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+
+        synchronized (segment) {
+            if (segment.sketch != null) {
+                segment.sketch.increment(key);
+            }
+
+            CacheEntry<V> entry = segment.entries.get(key);
+
+            if (entry == null) {
+                this.misses.increment();
+                return null;
+            }
+
+            if (entry.isExpired(System.nanoTime())) {
+                segment.remove(key);
+                this.misses.increment();
+                return null;
+            }
+
+            this.hits.increment();
+
+            return entry.value;
+        }
+    }
+
+    /**
+     * <p>
+     * Removes an entry that the caller found to be stale after getting it, without invalidating its key. The lookup that
+     * returned the entry is counted as a miss instead of a hit.
+     * </p>
+     *
+     * @param key
+     * @param value the value returned by the lookup. The entry is only removed if it still holds this value.
+     */
+    public void discard(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+
+        synchronized (segment) {
+            CacheEntry<V> entry = segment.entries.get(key);
+
+            if (entry != null && entry.value == value) {
+                segment.remove(key);
+            }
+        }
+
+        this.hits.add(-1);
+        this.misses.increment();
+    }
+
+    /**
+     * <p>
+     * Records a call made to the store to load a missing value.
+     * </p>
+     *
+     * @param elapsedNanos how long the call took.
+     */
+    public void recordLoad(long elapsedNanos) {
+        this.loads.increment();
+        this.loadTime.add(elapsedNanos);
+    }
+
+    /**
+     * <p>
+     * Records how long a caller waited for a missing value, including the time spent waiting for a call started by another
+     * caller.
+     * </p>
+     *
+     * @param elapsedNanos
+     */
+    public void recordMissLatency(long elapsedNanos) {
+        this.missTime.add(elapsedNanos);
+    }
+
+    /**
+     * @param key
+     * @return a stamp that must be passed to {@link #put(Object, Object, long)} when caching a value loaded for the given key.
+     */
+    public long getStamp(K key) {
+        Segment<K, V> segment = segmentFor(key);
+
+        synchronized (segment) {
+            return segment.stamp;
+        }
+    }
+
+    /**
+     * <p>
+     * Caches the given value, unless the key was invalidated after the stamp was taken or the entry was not admitted by the
+     * eviction policy.
+     * </p>
+     *
+     * @param key
+     * @param value
+     * @param stamp
+     * @return true if the value was cached.
+     */
+    public boolean put(K key, V value, long stamp) {
+        if (key == null || value == null) {
+            return false;
+        }
+
+        int weight = this.weigher != null ? Math.max(1, this.weigher.weigh(key, value)) : 1;
+        Segment<K, V> segment = segmentFor(key);
+
+        synchronized (segment) {
+            if (segment.stamp != stamp || weight > segment.maxWeight) {
+                return false;
+            }
+
+            boolean replacing = segment.remove(key) != null;
+
+            if (segment.weight + weight > segment.maxWeight && !replacing && segment.sketch != null) {
+                K victim = segment.entries.keySet().iterator().next();
+
+                if (segment.sketch.frequency(key) <= segment.sketch.frequency(victim)) {
+                    return false;
+                }
+            }
+
+            this.evictions.add(segment.add(key, value, weight, this.timeToLiveNanos));
+
+            return true;
+        }
+    }
+
+    /**
+     * @return the stamps of all segments, to be passed to {@link #preload(Object, Object, long[])} when bulk loading values.
+     */
+    public long[] getStamps() {
+        long[] stamps = new long[this.segments.length];
+
+        for (int i = 0; i < this.segments.length; i++) {
+            synchronized (this.segments[i]) {
+                stamps[i] = this.segments[i].stamp;
+            }
+        }
+
+        return stamps;
+    }
+
+    /**
+     * <p>
+     * Caches a value obtained by a bulk load, unless there is already an entry for the key, its segment was invalidated after
+     * the stamps were taken or its segment is full. Preloading never evicts entries.
+     * </p>
+     *
+     * @param key
+     * @param value
+     * @param stamps obtained with {@link #getStamps()} before the load.
+     * @return true if the value was cached.
+     */
+    public boolean preload(K key, V value, long[] stamps) {
+        if (key == null || value == null) {
+            return false;
+        }
+
+        int weight = this.weigher != null ? Math.max(1, this.weigher.weigh(key, value)) : 1;
+        int index = segmentIndex(key);
+        Segment<K, V> segment = this.segments[index];
+
+        synchronized (segment) {
+            if (segment.stamp != stamps[index] || segment.weight + weight > segment.maxWeight
+                    || segment.entries.containsKey(key)) {
+                return false;
+            }
+
+            this.evictions.add(segment.add(key, value, weight, this.timeToLiveNanos));
+
+            return true;
+        }
+    }
+
+    /**
+     * <p>
+     * Removes the entry for the given key, if any.
+     * </p>
+     *
+     * @param key
+     */
+    public void invalidate(K key) {
+        if (key == null) {
+            return;
+        }
+
+        Segment<K, V> segment = segmentFor(key);
+
+        synchronized (segment) {
+            segment.remove(key);
+            segment.stamp++;
+        }
+    }
+
+    /**
+     * <p>
+     * Removes all entries.
+     * </p>
+     */
+    public void clear() {
+        for (Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                segment.entries.clear();
+                segment.weight = 0;
+                segment.stamp++;
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries in this region, including the ones that expired but were not removed yet.
+     */
+    public int size() {
+        int size = 0;
+
+        for (Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the total weight of the entries in this region. Equals to {@link #size()} when the region is bounded by entry
+     *         count.
+     */
+    public long getWeight() {
+        long weight = 0;
+
+        for (Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+
+        return weight;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    public long getLoadCount() {
+        return this.loads.sum();
+    }
+
+    /**
+     * @return the time spent loading values from the store, in nanoseconds.
+     */
+    public long getTotalLoadTime() {
+        return this.loadTime.sum();
+    }
+
+    /**
+     * @return the time callers waited for missing values, in nanoseconds.
+     */
+    public long getTotalMissLatency() {
+        return this.missTime.sum();
+    }
+
+    /**
+     * @return the number of entries evicted to make room for others. Expired and invalidated entries are not counted.
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * <p>
+     * Resets the hit, miss, load and eviction statistics.
+     * </p>
+     */
+    public void resetStatistics() {
+        this.hits.reset();
+        this.misses.reset();
+        this.loads.reset();
+        this.loadTime.reset();
+        this.missTime.reset();
+        this.evictions.reset();
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        return this.segments[segmentIndex(key)];
+    }
+
+    private int segmentIndex(K key) {
+        int hash = key.hashCode();
+
+        hash ^= (hash >>> 16);
+
+        return hash & this.segmentMask;
+    }
+
+    private static final class Segment<K, V> {
+
+        private final LinkedHashMap<K, CacheEntry<V>> entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+        private final long maxWeight;
+        private final FrequencySketch sketch;
+        private long weight;
+        private long stamp;
+
+        private Segment(long maxWeight, boolean trackFrequency) {
+            this.maxWeight = maxWeight;
+            this.sketch = trackFrequency ? new FrequencySketch((int) Math.min(maxWeight, 1 << 16)) : null;
+        }
+
+        /**
+         * Adds an entry, evicting the eldest ones until it fits. Returns the number of evicted entries.
+         */
+        private int add(K key, V value, int entryWeight, long timeToLiveNanos) {
+            Iterator<Map.Entry<K, CacheEntry<V>>> iterator = this.entries.entrySet().iterator();
+            int evicted = 0;
+
+            while (this.weight + entryWeight > this.maxWeight && iterator.hasNext()) {
+                CacheEntry<V> eldest = iterator.next().getValue();
+
+                iterator.remove();
+                this.weight -= eldest.weight;
+                evicted++;
+            }
+
+            long expiresAt = timeToLiveNanos > 0 ? System.nanoTime() + timeToLiveNanos : 0;
+
+            this.entries.put(key, new CacheEntry<V>(value, entryWeight, expiresAt));
+            this.weight += entryWeight;
+
+            return evicted;
+        }
+
+        private CacheEntry<V> remove(K key) {
+            CacheEntry<V> entry = this.entries.remove(key);
+
+            if (entry != null) {
+                this.weight -= entry.weight;
+            }
+
+            return entry;
+        }
+    }
+
+    private static final class CacheEntry<V> {
+
+        private final V value;
+        private final int weight;
+        private final long expiresAt;
+
+        private CacheEntry(V value, int weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return this.expiresAt != 0 && now - this.expiresAt >= 0;
+        }
+    }
+}
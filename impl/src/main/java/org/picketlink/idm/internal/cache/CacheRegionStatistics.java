@@ -0,0 +1,123 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+/**
+ * <p>
+ * Statistics of a single {@link CacheRegion}: hits and misses, time spent loading from the store, evictions and current size.
+ * Values are read from the region when requested.
+ * </p>
+ */
+public class CacheRegionStatistics implements CacheRegionStatisticsMBean {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final CacheRegion<?, ?> region;
+
+    public CacheRegionStatistics(CacheRegion<?, ?> region) {
+        this.region = region;
+    }
+
+    @Override
+    public String getName() {
+        return this.region.getName();
+    }
+
+    @Override
+    public long getHitCount() {
+        return this.region.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return this.region.getMissCount();
+    }
+
+    /**
+     * @return the fraction of lookups that were served from the region, or 0 if there were no lookups.
+     */
+    @Override
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long lookups = hits + getMissCount();
+
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    @Override
+    public long getLoadCount() {
+        return this.region.getLoadCount();
+    }
+
+    @Override
+    public double getTotalLoadTime() {
+        return this.region.getTotalLoadTime() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getAverageLoadTime() {
+        long loads = getLoadCount();
+
+        return loads > 0 ? getTotalLoadTime() / loads : 0;
+    }
+
+    /**
+     * @return the average time a lookup that missed waited for its value, including the time waiting for a call shared with
+     *         other lookups.
+     */
+    @Override
+    public double getAverageMissLatency() {
+        long misses = getMissCount();
+
+        return misses > 0 ? this.region.getTotalMissLatency() / NANOS_PER_MILLI / misses : 0;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return this.region.getEvictionCount();
+    }
+
+    @Override
+    public int getSize() {
+        return this.region.size();
+    }
+
+    /**
+     * @return the estimated size of the entries in bytes when the region is bounded by weight, the number of entries otherwise.
+     */
+    @Override
+    public long getWeight() {
+        return this.region.getWeight();
+    }
+
+    @Override
+    public void reset() {
+        this.region.resetStatistics();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[hits=%d, misses=%d, hitRatio=%.3f, loads=%d, avgLoad=%.3fms, evictions=%d, size=%d, weight=%d]",
+                getName(), getHitCount(), getMissCount(), getHitRatio(), getLoadCount(), getAverageLoadTime(),
+                getEvictionCount(), getSize(), getWeight());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Preloads a {@link CachingIdentityStore} in the background, so that the lookups made right after startup do not all go to the
+ * store. Users, groups, roles and memberships are each loaded with a single bulk scan of the store, running up to the given
+ * number of scans at the same time.
+ * </p>
+ * <p>
+ * Warming up never replaces cached entries and stops filling a region once it is full, so lookups served while it runs are
+ * not affected. The cache is usable at any time; {@link #isReady()} and {@link #awaitReady(long, TimeUnit)} only tell whether
+ * the preload finished, eg.: to delay a readiness probe.
+ * </p>
+ *
+ * <pre>
+ * CacheWarmer warmer = store.warmUp();
+ *
+ * warmer.awaitReady(30, TimeUnit.SECONDS);
+ * </pre>
+ */
+public class CacheWarmer {
+
+    private static final Logger LOGGER = Logger.getLogger(CacheWarmer.class.getName());
+
+    private final CachingIdentityStore store;
+    private final int parallelism;
+    private final CountDownLatch ready = new CountDownLatch(4);
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final List<Throwable> failures = new ArrayList<Throwable>();
+
+    private ExecutorService executor;
+
+    public CacheWarmer(CachingIdentityStore store, int parallelism) {
+        this.store = store;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * <p>
+     * Starts the scans in the background. Can only be called once.
+     * </p>
+     */
+    public synchronized void start() {
+        if (this.executor != null) {
+            throw new IllegalStateException("Cache warm up already started.");
+        }
+
+        this.executor = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "picketlink-cache-warmer-" + this.count.incrementAndGet());
+
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        submit("users", new Preload() {
+            @Override
+            public int run() {
+                return store.preloadUsers();
+            }
+        });
+        submit("groups", new Preload() {
+            @Override
+            public int run() {
+                return store.preloadGroups();
+            }
+        });
+        submit("roles", new Preload() {
+            @Override
+            public int run() {
+                return store.preloadRoles();
+            }
+        });
+        submit("memberships", new Preload() {
+            @Override
+            public int run() {
+                return store.preloadMemberships();
+            }
+        });
+
+        this.executor.shutdown();
+    }
+
+    /**
+     * @return true if all scans finished, successfully or not.
+     */
+    public boolean isReady() {
+        return this.ready.getCount() == 0;
+    }
+
+    /**
+     * <p>
+     * Waits for all scans to finish.
+     * </p>
+     *
+     * @param timeout
+     * @param unit
+     * @return true if all scans finished, false if the timeout elapsed before.
+     * @throws InterruptedException
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.ready.await(timeout, unit);
+    }
+
+    /**
+     * @return the number of entries preloaded so far.
+     */
+    public int getLoadedCount() {
+        return this.loaded.get();
+    }
+
+    /**
+     * @return the failures of the scans that did not complete.
+     */
+    public List<Throwable> getFailures() {
+        synchronized (this.failures) {
+            return new ArrayList<Throwable>(this.failures);
+        }
+    }
+
+    private void submit(final String type, final Preload preload) {
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loaded.addAndGet(preload.run());
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Could not preload " + type + ".", e);
+
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                } finally {
+                    ready.countDown();
+                }
+            }
+        });
+    }
+
+    private interface Preload {
+
+        int run();
+
+    }
+}
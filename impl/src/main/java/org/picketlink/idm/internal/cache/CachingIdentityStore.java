@@ -0,0 +1,1266 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.lang.management.ManagementFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.picketlink.idm.IdentityCache;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.config.CacheConfiguration;
+import org.picketlink.idm.internal.jpa.DefaultGroupQuery;
+import org.picketlink.idm.internal.jpa.DefaultMembershipQuery;
+import org.picketlink.idm.internal.jpa.DefaultRoleQuery;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.model.Membership;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.password.PasswordValidator;
+import org.picketlink.idm.query.GroupQuery;
+import org.picketlink.idm.query.MembershipQuery;
+import org.picketlink.idm.query.Range;
+import org.picketlink.idm.query.RoleQuery;
+import org.picketlink.idm.query.UserQuery;
+import org.picketlink.idm.spi.IdentityStore;
+import org.picketlink.idm.spi.RoleIndex;
+
+/**
+ * <p>
+ * {@link IdentityStore} decorator that caches users, groups, roles and memberships loaded from the underlying store. Lookups
+ * are read-through: a miss goes to the delegate and the result is cached in the region of its type. Every change made through
+ * this store invalidates the affected entries, so the cache never returns data older than the last change made through it.
+ * </p>
+ * <p>
+ * Changes made by other means (eg.: directly on the delegate or on another node) are only seen after the entries expire or
+ * after being explicitly invalidated using the {@link IdentityCache} methods. When several nodes share the same backend, an
+ * {@link InvalidationTransport} can be configured to propagate the invalidations made on one node to the others.
+ * </p>
+ * <p>
+ * Lookups that find nothing are remembered for a short time by a {@link NegativeLookupCache}. After
+ * {@link #rebuildKnownKeys()} is called, lookups for keys that are not known to exist are rejected without a store round
+ * trip. Concurrent misses for the same key share a single store call (see {@link RequestCoalescer}).
+ * </p>
+ * <p>
+ * Hits, misses, load times and evictions are recorded per region and exposed by {@link #getStatistics()} and, optionally, as
+ * MBeans (see {@link #registerMBeans(String)}).
+ * </p>
+ * <p>
+ * Query results are cached by a {@link QueryResultCache}, keyed by an immutable snapshot of the query. Any change to users,
+ * groups, roles or memberships made through this store invalidates the results that depend on that type.
+ * </p>
+ * <p>
+ * Usage:
+ * </p>
+ *
+ * <pre>
+ * IdentityManager identityManager = new DefaultIdentityManager(new CachingIdentityStore(store, new CacheConfiguration()));
+ * </pre>
+ */
+public class CachingIdentityStore implements IdentityStore, IdentityCache, RoleIndex, InvalidationListener {
+
+    private final IdentityStore delegate;
+    private final CacheRegion<String, User> users;
+    private final CacheRegion<String, Group> groups;
+    private final CacheRegion<String, Role> roles;
+    private final CacheRegion<String, Membership> memberships;
+    private final NegativeLookupCache missingUsers;
+    private final NegativeLookupCache missingGroups;
+    private final NegativeLookupCache missingRoles;
+    private final EffectiveRoleIndex roleIndex;
+    private final QueryResultCache queryResults;
+    private final InvalidationTransport transport;
+    private final InvalidationBatcher batcher;
+    private final RequestCoalescer coalescer;
+    private final int warmUpParallelism;
+    private final List<ObjectName> registeredMBeans = new ArrayList<ObjectName>();
+
+    public CachingIdentityStore(IdentityStore delegate) {
+        this(delegate, new CacheConfiguration());
+    }
+
+    public CachingIdentityStore(IdentityStore delegate, CacheConfiguration configuration) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("No delegate IdentityStore provided.");
+        }
+
+        this.delegate = delegate;
+        this.users = new CacheRegion<String, User>("users", configuration);
+        this.groups = new CacheRegion<String, Group>("groups", configuration);
+        this.roles = new CacheRegion<String, Role>("roles", configuration);
+        this.memberships = new CacheRegion<String, Membership>("memberships", configuration);
+        this.missingUsers = new NegativeLookupCache("missingUsers", configuration);
+        this.missingGroups = new NegativeLookupCache("missingGroups", configuration);
+        this.missingRoles = new NegativeLookupCache("missingRoles", configuration);
+        this.roleIndex = new EffectiveRoleIndex(delegate, configuration);
+        this.queryResults = new QueryResultCache(configuration);
+        this.coalescer = configuration.isRequestCoalescing() ? new RequestCoalescer() : null;
+        this.warmUpParallelism = configuration.getWarmUpParallelism();
+        this.transport = configuration.getInvalidationTransport();
+
+        if (this.transport != null) {
+            this.batcher = new InvalidationBatcher(this.transport, configuration.getInvalidationBatchSize(),
+                    configuration.getInvalidationMaxDelay());
+            this.transport.start(this);
+        } else {
+            this.batcher = null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#validatePassword(org.picketlink.idm.model.User, java.lang.String)
+     */
+    @Override
+    public boolean validatePassword(User user, String password) {
+        return this.delegate.validatePassword(user, password);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#updatePassword(org.picketlink.idm.model.User, java.lang.String)
+     */
+    @Override
+    public void updatePassword(User user, String password) {
+        try {
+            this.delegate.updatePassword(user, password);
+        } finally {
+            invalidate(user);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#validateCertificate(org.picketlink.idm.model.User,
+     * java.security.cert.X509Certificate)
+     */
+    @Override
+    public boolean validateCertificate(User user, X509Certificate certificate) {
+        return this.delegate.validateCertificate(user, certificate);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#updateCertificate(org.picketlink.idm.model.User,
+     * java.security.cert.X509Certificate)
+     */
+    @Override
+    public boolean updateCertificate(User user, X509Certificate certificate) {
+        try {
+            return this.delegate.updateCertificate(user, certificate);
+        } finally {
+            invalidate(user);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#createUser(java.lang.String)
+     */
+    @Override
+    public User createUser(String name) {
+        try {
+            return this.delegate.createUser(name);
+        } finally {
+            evictUsers(name);
+            publish(InvalidationMessage.Type.USER, name);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#createUser(org.picketlink.idm.model.User)
+     */
+    @Override
+    public User createUser(User user) {
+        try {
+            return this.delegate.createUser(user);
+        } finally {
+            invalidate(user);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#removeUser(org.picketlink.idm.model.User)
+     */
+    @Override
+    public void removeUser(User user) {
+        try {
+            this.delegate.removeUser(user);
+        } finally {
+            invalidate(user);
+            membershipsChanged();
+            this.roleIndex.invalidate(user);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#getUser(java.lang.String)
+     */
+    @Override
+    public User getUser(final String name) {
+        if (name == null) {
+            return this.delegate.getUser(name);
+        }
+
+        User user = this.users.get(name);
+
+        if (user == null) {
+            if (this.missingUsers.isMissing(name)) {
+                return null;
+            }
+
+            long stamp = this.users.getStamp(name);
+            long missStamp = this.missingUsers.getStamp(name);
+
+            user = load(this.users, "getUser\n" + name + "\n" + stamp + "\n" + missStamp, new Callable<User>() {
+                @Override
+                public User call() {
+                    return delegate.getUser(name);
+                }
+            });
+
+            if (user != null) {
+                this.users.put(name, user, stamp);
+            } else {
+                this.missingUsers.recordMiss(name, missStamp);
+            }
+        }
+
+        return user;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#createGroup(java.lang.String, org.picketlink.idm.model.Group)
+     */
+    @Override
+    public Group createGroup(String name, Group parent) {
+        try {
+            return this.delegate.createGroup(name, parent);
+        } finally {
+            evictGroups(name);
+            publish(InvalidationMessage.Type.GROUP, name);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#removeGroup(org.picketlink.idm.model.Group)
+     */
+    @Override
+    public void removeGroup(Group group) {
+        try {
+            this.delegate.removeGroup(group);
+        } finally {
+            invalidate(group);
+            invalidateMemberships();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#getGroup(java.lang.String)
+     */
+    @Override
+    public Group getGroup(final String name) {
+        if (name == null) {
+            return this.delegate.getGroup(name);
+        }
+
+        Group group = this.groups.get(name);
+
+        if (group == null) {
+            if (this.missingGroups.isMissing(name)) {
+                return null;
+            }
+
+            long stamp = this.groups.getStamp(name);
+            long missStamp = this.missingGroups.getStamp(name);
+
+            group = load(this.groups, "getGroup\n" + name + "\n" + stamp + "\n" + missStamp, new Callable<Group>() {
+                @Override
+                public Group call() {
+                    return delegate.getGroup(name);
+                }
+            });
+
+            if (group != null) {
+                this.groups.put(name, group, stamp);
+            } else {
+                this.missingGroups.recordMiss(name, missStamp);
+            }
+        }
+
+        return group;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#createRole(java.lang.String)
+     */
+    @Override
+    public Role createRole(String name) {
+        try {
+            return this.delegate.createRole(name);
+        } finally {
+            evictRoles(name);
+            publish(InvalidationMessage.Type.ROLE, name);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#removeRole(org.picketlink.idm.model.Role)
+     */
+    @Override
+    public void removeRole(Role role) {
+        try {
+            this.delegate.removeRole(role);
+        } finally {
+            invalidate(role);
+            invalidateMemberships();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#getRole(java.lang.String)
+     */
+    @Override
+    public Role getRole(final String name) {
+        if (name == null) {
+            return this.delegate.getRole(name);
+        }
+
+        Role role = this.roles.get(name);
+
+        if (role == null) {
+            if (this.missingRoles.isMissing(name)) {
+                return null;
+            }
+
+            long stamp = this.roles.getStamp(name);
+            long missStamp = this.missingRoles.getStamp(name);
+
+            role = load(this.roles, "getRole\n" + name + "\n" + stamp + "\n" + missStamp, new Callable<Role>() {
+                @Override
+                public Role call() {
+                    return delegate.getRole(name);
+                }
+            });
+
+            if (role != null) {
+                this.roles.put(name, role, stamp);
+            } else {
+                this.missingRoles.recordMiss(name, missStamp);
+            }
+        }
+
+        return role;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#createMembership(org.picketlink.idm.model.Role, org.picketlink.idm.model.User,
+     * org.picketlink.idm.model.Group)
+     */
+    @Override
+    public Membership createMembership(Role role, User user, Group group) {
+        Membership membership = null;
+
+        try {
+            membership = this.delegate.createMembership(role, user, group);
+        } finally {
+            membershipsChanged();
+
+            if (membership != null) {
+                this.roleIndex.membershipCreated(role, user, group);
+            } else {
+                this.roleIndex.invalidate(user);
+                this.roleIndex.invalidate(group);
+            }
+        }
+
+        return membership;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#removeMembership(org.picketlink.idm.model.Role, org.picketlink.idm.model.User,
+     * org.picketlink.idm.model.Group)
+     */
+    @Override
+    public void removeMembership(Role role, User user, Group group) {
+        try {
+            this.delegate.removeMembership(role, user, group);
+        } finally {
+            membershipsChanged();
+            this.roleIndex.membershipRemoved(role, user, group);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#getMembership(org.picketlink.idm.model.Role, org.picketlink.idm.model.User,
+     * org.picketlink.idm.model.Group)
+     */
+    @Override
+    public Membership getMembership(final Role role, final User user, final Group group) {
+        String key = getMembershipKey(role, user, group);
+        Membership membership = this.memberships.get(key);
+
+        if (membership == null) {
+            long stamp = this.memberships.getStamp(key);
+
+            membership = load(this.memberships, "getMembership\n" + key + "\n" + stamp, new Callable<Membership>() {
+                @Override
+                public Membership call() {
+                    return delegate.getMembership(role, user, group);
+                }
+            });
+
+            this.memberships.put(key, membership, stamp);
+        }
+
+        return membership;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#executeQuery(org.picketlink.idm.query.UserQuery,
+     * org.picketlink.idm.query.Range)
+     */
+    @Override
+    public List<User> executeQuery(UserQuery query, Range range) {
+        if (!(query instanceof DefaultUserQuery)) {
+            return this.delegate.executeQuery(query, range);
+        }
+
+        final UserQuery snapshot = query.getImmutable();
+        final Range snapshotRange = copyOf(range);
+
+        return this.queryResults.execute(snapshot, snapshotRange, QueryResultCache.USERS | QueryResultCache.MEMBERSHIPS,
+                new QueryResultCache.Loader<User>() {
+                    @Override
+                    public List<User> load() {
+                        return delegate.executeQuery(snapshot, snapshotRange);
+                    }
+                });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#executeQuery(org.picketlink.idm.query.GroupQuery,
+     * org.picketlink.idm.query.Range)
+     */
+    @Override
+    public List<Group> executeQuery(GroupQuery query, Range range) {
+        if (!(query instanceof DefaultGroupQuery)) {
+            return this.delegate.executeQuery(query, range);
+        }
+
+        final GroupQuery snapshot = query.immutable();
+        final Range snapshotRange = copyOf(range);
+
+        return this.queryResults.execute(snapshot, snapshotRange, QueryResultCache.GROUPS | QueryResultCache.MEMBERSHIPS,
+                new QueryResultCache.Loader<Group>() {
+                    @Override
+                    public List<Group> load() {
+                        return delegate.executeQuery(snapshot, snapshotRange);
+                    }
+                });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#executeQuery(org.picketlink.idm.query.RoleQuery,
+     * org.picketlink.idm.query.Range)
+     */
+    @Override
+    public List<Role> executeQuery(RoleQuery query, Range range) {
+        if (!(query instanceof DefaultRoleQuery)) {
+            return this.delegate.executeQuery(query, range);
+        }
+
+        final RoleQuery snapshot = query.getImmutable();
+        final Range snapshotRange = copyOf(range);
+
+        return this.queryResults.execute(snapshot, snapshotRange, QueryResultCache.ROLES | QueryResultCache.MEMBERSHIPS,
+                new QueryResultCache.Loader<Role>() {
+                    @Override
+                    public List<Role> load() {
+                        return delegate.executeQuery(snapshot, snapshotRange);
+                    }
+                });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#executeQuery(org.picketlink.idm.query.MembershipQuery,
+     * org.picketlink.idm.query.Range)
+     */
+    @Override
+    public List<Membership> executeQuery(MembershipQuery query, Range range) {
+        if (!(query instanceof DefaultMembershipQuery)) {
+            return this.delegate.executeQuery(query, range);
+        }
+
+        final MembershipQuery snapshot = query.immutable();
+        final Range snapshotRange = copyOf(range);
+
+        return this.queryResults.execute(snapshot, snapshotRange, QueryResultCache.USERS | QueryResultCache.GROUPS
+                | QueryResultCache.ROLES | QueryResultCache.MEMBERSHIPS, new QueryResultCache.Loader<Membership>() {
+            @Override
+            public List<Membership> load() {
+                return delegate.executeQuery(snapshot, snapshotRange);
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#setAttribute(org.picketlink.idm.model.User, java.lang.String,
+     * java.lang.String[])
+     */
+    @Override
+    public void setAttribute(User user, String name, String[] values) {
+        try {
+            this.delegate.setAttribute(user, name, values);
+        } finally {
+            invalidate(user);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#removeAttribute(org.picketlink.idm.model.User, java.lang.String)
+     */
+    @Override
+    public void removeAttribute(User user, String name) {
+        try {
+            this.delegate.removeAttribute(user, name);
+        } finally {
+            invalidate(user);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#getAttributeValues(org.picketlink.idm.model.User, java.lang.String)
+     */
+    @Override
+    public String[] getAttributeValues(User user, String name) {
+        return this.delegate.getAttributeValues(user, name);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#getAttributes(org.picketlink.idm.model.User)
+     */
+    @Override
+    public Map<String, String[]> getAttributes(User user) {
+        return this.delegate.getAttributes(user);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#setAttribute(org.picketlink.idm.model.Group, java.lang.String,
+     * java.lang.String[])
+     */
+    @Override
+    public void setAttribute(Group group, String name, String[] values) {
+        try {
+            this.delegate.setAttribute(group, name, values);
+        } finally {
+            invalidate(group);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#removeAttribute(org.picketlink.idm.model.Group, java.lang.String)
+     */
+    @Override
+    public void removeAttribute(Group group, String name) {
+        try {
+            this.delegate.removeAttribute(group, name);
+        } finally {
+            invalidate(group);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#getAttributeValues(org.picketlink.idm.model.Group, java.lang.String)
+     */
+    @Override
+    public String[] getAttributeValues(Group group, String name) {
+        return this.delegate.getAttributeValues(group, name);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#getAttributes(org.picketlink.idm.model.Group)
+     */
+    @Override
+    public Map<String, String[]> getAttributes(Group group) {
+        return this.delegate.getAttributes(group);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#setAttribute(org.picketlink.idm.model.Role, java.lang.String,
+     * java.lang.String[])
+     */
+    @Override
+    public void setAttribute(Role role, String name, String[] values) {
+        try {
+            this.delegate.setAttribute(role, name, values);
+        } finally {
+            invalidate(role);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#removeAttribute(org.picketlink.idm.model.Role, java.lang.String)
+     */
+    @Override
+    public void removeAttribute(Role role, String name) {
+        try {
+            this.delegate.removeAttribute(role, name);
+        } finally {
+            invalidate(role);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#getAttributeValues(org.picketlink.idm.model.Role, java.lang.String)
+     */
+    @Override
+    public String[] getAttributeValues(Role role, String name) {
+        return this.delegate.getAttributeValues(role, name);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#getAttributes(org.picketlink.idm.model.Role)
+     */
+    @Override
+    public Map<String, String[]> getAttributes(Role role) {
+        return this.delegate.getAttributes(role);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#createMembershipQuery()
+     */
+    @Override
+    public MembershipQuery createMembershipQuery() {
+        return new DefaultMembershipQuery(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.spi.IdentityStore#validatePassword(org.picketlink.idm.model.User,
+     * org.picketlink.idm.password.PasswordValidator)
+     */
+    @Override
+    public boolean validatePassword(User user, PasswordValidator passwordValidator) {
+        return this.delegate.validatePassword(user, passwordValidator);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.IdentityCache#invalidate(org.picketlink.idm.model.User)
+     */
+    @Override
+    public void invalidate(User user) {
+        if (user != null) {
+            evictUsers(user.getId(), user.getKey());
+            publish(InvalidationMessage.Type.USER, user.getId(), user.getKey());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.IdentityCache#invalidate(org.picketlink.idm.model.Group)
+     */
+    @Override
+    public void invalidate(Group group) {
+        if (group != null) {
+            evictGroups(group.getName(), group.getId(), group.getKey());
+            publish(InvalidationMessage.Type.GROUP, group.getName(), group.getId(), group.getKey());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.IdentityCache#invalidate(org.picketlink.idm.model.Role)
+     */
+    @Override
+    public void invalidate(Role role) {
+        if (role != null) {
+            evictRoles(role.getName(), role.getKey());
+            publish(InvalidationMessage.Type.ROLE, role.getName(), role.getKey());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.IdentityCache#invalidateMemberships()
+     */
+    @Override
+    public void invalidateMemberships() {
+        membershipsChanged();
+        this.roleIndex.clear();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.IdentityCache#clear()
+     */
+    @Override
+    public void clear() {
+        evictAll();
+        publish(InvalidationMessage.Type.ALL);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.internal.cache.InvalidationListener#onInvalidation(java.util.List)
+     */
+    @Override
+    public void onInvalidation(List<InvalidationMessage> messages) {
+        for (InvalidationMessage message : messages) {
+            switch (message.getType()) {
+                case USER:
+                    evictUsers(message.getKeys());
+                    break;
+                case GROUP:
+                    evictGroups(message.getKeys());
+                    break;
+                case ROLE:
+                    evictRoles(message.getKeys());
+                    break;
+                case MEMBERSHIPS:
+                    evictMemberships();
+                    this.roleIndex.clear();
+                    break;
+                default:
+                    evictAll();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Unregisters the statistics MBeans, publishes the pending invalidations and stops the {@link InvalidationTransport}, if
+     * any.
+     * </p>
+     */
+    public void close() {
+        unregisterMBeans();
+
+        if (this.transport != null) {
+            this.batcher.close();
+            this.transport.stop();
+        }
+    }
+
+    private synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        for (ObjectName objectName : this.registeredMBeans) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already unregistered
+            }
+        }
+
+        this.registeredMBeans.clear();
+    }
+
+    private void evictAll() {
+        this.users.clear();
+        this.groups.clear();
+        this.roles.clear();
+        this.memberships.clear();
+        this.missingUsers.clear();
+        this.missingGroups.clear();
+        this.missingRoles.clear();
+        this.roleIndex.clear();
+        this.queryResults.clear();
+    }
+
+    /**
+     * <p>
+     * Checks if a role was granted to a user or group using the {@link EffectiveRoleIndex}. Only the first check for a given
+     * identity goes to the store.
+     * </p>
+     *
+     * @param role
+     * @param identityType
+     * @param group if not null, only roles granted in this group are considered.
+     * @return
+     */
+    @Override
+    public boolean hasRole(Role role, IdentityType identityType, Group group) {
+        if (role == null || !(identityType instanceof User || identityType instanceof Group)) {
+            RoleQuery query = new DefaultRoleQuery(this.delegate).setOwner(identityType).setGroup(group);
+
+            if (role != null) {
+                query.setName(role.getName());
+            }
+
+            return !this.delegate.executeQuery(query, null).isEmpty();
+        }
+
+        return this.roleIndex.hasRole(role, identityType, group);
+    }
+
+    /**
+     * <p>
+     * Returns the roles granted to a user or group using the {@link EffectiveRoleIndex}.
+     * </p>
+     *
+     * @param identityType
+     * @param group if not null, only roles granted in this group are returned.
+     * @return
+     */
+    @Override
+    public Collection<Role> getRoles(IdentityType identityType, Group group) {
+        Set<String> names = null;
+
+        if (identityType instanceof User || identityType instanceof Group) {
+            names = this.roleIndex.getRoleNames(identityType, group);
+        }
+
+        if (names == null) {
+            return this.delegate.executeQuery(new DefaultRoleQuery(this.delegate).setOwner(identityType).setGroup(group), null);
+        }
+
+        List<Role> result = new ArrayList<Role>(names.size());
+
+        for (String name : names) {
+            Role role = getRole(name);
+
+            if (role != null) {
+                result.add(role);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>
+     * Rebuilds the filters of known users, groups and roles by scanning the delegate. From then on, lookups for keys that are
+     * not in the filters are answered without going to the store. Identities created through this store are added to the
+     * filters as they are created; identities created by other means are only seen after they are invalidated or the filters
+     * are rebuilt again.
+     * </p>
+     */
+    public void rebuildKnownKeys() {
+        this.missingUsers.rebuild(new Callable<Collection<String>>() {
+            @Override
+            public Collection<String> call() {
+                Set<String> keys = new HashSet<String>();
+
+                for (User user : scanUsers()) {
+                    keys.add(user.getId());
+                }
+
+                return keys;
+            }
+        });
+
+        this.missingGroups.rebuild(new Callable<Collection<String>>() {
+            @Override
+            public Collection<String> call() {
+                Set<String> keys = new HashSet<String>();
+
+                for (Group group : delegate.executeQuery(new DefaultGroupQuery(delegate), null)) {
+                    keys.add(group.getName());
+                    keys.add(group.getId());
+                }
+
+                return keys;
+            }
+        });
+
+        this.missingRoles.rebuild(new Callable<Collection<String>>() {
+            @Override
+            public Collection<String> call() {
+                Set<String> keys = new HashSet<String>();
+
+                for (Role role : delegate.executeQuery(new DefaultRoleQuery(delegate), null)) {
+                    keys.add(role.getName());
+                }
+
+                return keys;
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Starts preloading this cache in the background with a {@link CacheWarmer}, using the parallelism set in the
+     * configuration.
+     * </p>
+     *
+     * @return the warmer, which tells when the cache is ready.
+     */
+    public CacheWarmer warmUp() {
+        CacheWarmer warmer = new CacheWarmer(this, this.warmUpParallelism);
+
+        warmer.start();
+
+        return warmer;
+    }
+
+    /**
+     * <p>
+     * Loads all users from the delegate with a single scan and caches them under their id, as {@link #getUser(String)} looks
+     * them up, without replacing cached entries.
+     * </p>
+     *
+     * @return the number of users cached.
+     */
+    public int preloadUsers() {
+        long[] stamps = this.users.getStamps();
+        int count = 0;
+
+        for (User user : scanUsers()) {
+            if (this.users.preload(user.getId(), user, stamps)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * <p>
+     * Loads all groups from the delegate with a single scan and caches them under their name, as {@link #getGroup(String)}
+     * looks them up, without replacing cached entries.
+     * </p>
+     *
+     * @return the number of groups cached.
+     */
+    public int preloadGroups() {
+        long[] stamps = this.groups.getStamps();
+        int count = 0;
+
+        for (Group group : this.delegate.executeQuery(new DefaultGroupQuery(this.delegate), null)) {
+            if (this.groups.preload(group.getName(), group, stamps)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * <p>
+     * Loads all roles from the delegate with a single scan and caches them under their name, as {@link #getRole(String)}
+     * looks them up, without replacing cached entries.
+     * </p>
+     *
+     * @return the number of roles cached.
+     */
+    public int preloadRoles() {
+        long[] stamps = this.roles.getStamps();
+        int count = 0;
+
+        for (Role role : this.delegate.executeQuery(new DefaultRoleQuery(this.delegate), null)) {
+            if (this.roles.preload(role.getName(), role, stamps)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * <p>
+     * Loads all memberships from the delegate with a single scan and caches them, without replacing cached entries. Does
+     * nothing if the delegate does not support membership queries.
+     * </p>
+     *
+     * @return the number of memberships cached.
+     */
+    public int preloadMemberships() {
+        long[] stamps = this.memberships.getStamps();
+        List<Membership> result = this.delegate.executeQuery(new DefaultMembershipQuery(this.delegate), null);
+        int count = 0;
+
+        if (result == null) {
+            return count;
+        }
+
+        for (Membership membership : result) {
+            String key = getMembershipKey(membership.getRole(), membership.getUser(), membership.getGroup());
+
+            if (this.memberships.preload(key, membership, stamps)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the statistics of each region of this cache.
+     */
+    public List<CacheRegionStatistics> getStatistics() {
+        List<CacheRegionStatistics> statistics = new ArrayList<CacheRegionStatistics>();
+
+        statistics.add(new CacheRegionStatistics(this.users));
+        statistics.add(new CacheRegionStatistics(this.groups));
+        statistics.add(new CacheRegionStatistics(this.roles));
+        statistics.add(new CacheRegionStatistics(this.memberships));
+        statistics.add(new CacheRegionStatistics(this.roleIndex.getRegion()));
+
+        if (this.queryResults.getRegion() != null) {
+            statistics.add(new CacheRegionStatistics(this.queryResults.getRegion()));
+        }
+
+        return statistics;
+    }
+
+    /**
+     * <p>
+     * Registers the statistics of each region with the platform MBean server, under
+     * <code>org.picketlink.idm:type=IdentityCache,name=&lt;name&gt;,region=&lt;region&gt;</code>. They are unregistered by
+     * {@link #close()}.
+     * </p>
+     *
+     * @param name distinguishes this cache from others registered in the same JVM.
+     */
+    public synchronized void registerMBeans(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            for (CacheRegionStatistics statistics : getStatistics()) {
+                ObjectName objectName = new ObjectName("org.picketlink.idm:type=IdentityCache,name=" + ObjectName.quote(name)
+                        + ",region=" + statistics.getName());
+
+                server.registerMBean(statistics, objectName);
+                this.registeredMBeans.add(objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the cache statistics MBeans.", e);
+        }
+    }
+
+    /**
+     * @return the underlying {@link IdentityStore}.
+     */
+    public IdentityStore getDelegate() {
+        return this.delegate;
+    }
+
+    /**
+     * <p>
+     * Returns all users from the delegate. User queries always filter by the enabled flag, so both enabled and disabled users
+     * are queried.
+     * </p>
+     *
+     * @return
+     */
+    private List<User> scanUsers() {
+        List<User> users = new ArrayList<User>();
+
+        users.addAll(this.delegate.executeQuery(new DefaultUserQuery(this.delegate).setEnabled(true), null));
+        users.addAll(this.delegate.executeQuery(new DefaultUserQuery(this.delegate).setEnabled(false), null));
+
+        return users;
+    }
+
+    /**
+     * <p>
+     * Runs a store lookup made on a cache miss. Concurrent lookups with the same key share a single store call.
+     * </p>
+     *
+     * @param region the region the value is loaded for, whose statistics are updated.
+     * @param key identifies the lookup and the cache stamps taken before it.
+     * @param call
+     * @return
+     */
+    private <V> V load(final CacheRegion<String, ?> region, String key, final Callable<V> call) {
+        Callable<V> timedCall = new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                long start = System.nanoTime();
+
+                try {
+                    return call.call();
+                } finally {
+                    region.recordLoad(System.nanoTime() - start);
+                }
+            }
+        };
+
+        long start = System.nanoTime();
+
+        try {
+            if (this.coalescer != null) {
+                return this.coalescer.execute(key, timedCall);
+            }
+
+            return timedCall.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Store call failed.", e);
+        } finally {
+            region.recordMissLatency(System.nanoTime() - start);
+        }
+    }
+
+    private void membershipsChanged() {
+        evictMemberships();
+        publish(InvalidationMessage.Type.MEMBERSHIPS);
+    }
+
+    private void evictUsers(String... keys) {
+        for (String key : keys) {
+            this.users.invalidate(key);
+            this.missingUsers.invalidate(key);
+        }
+
+        this.queryResults.changed(QueryResultCache.USERS);
+    }
+
+    private void evictGroups(String... keys) {
+        for (String key : keys) {
+            this.groups.invalidate(key);
+            this.missingGroups.invalidate(key);
+        }
+
+        this.queryResults.changed(QueryResultCache.GROUPS);
+    }
+
+    private void evictRoles(String... keys) {
+        for (String key : keys) {
+            this.roles.invalidate(key);
+            this.missingRoles.invalidate(key);
+        }
+
+        this.queryResults.changed(QueryResultCache.ROLES);
+    }
+
+    private void evictMemberships() {
+        this.memberships.clear();
+        this.queryResults.changed(QueryResultCache.MEMBERSHIPS);
+    }
+
+    private void publish(InvalidationMessage.Type type, String... keys) {
+        if (this.batcher != null) {
+            this.batcher.add(new InvalidationMessage(type, keys));
+        }
+    }
+
+    private Range copyOf(Range range) {
+        return range != null ? Range.of(range.getOffset(), range.getLimit()) : null;
+    }
+
+    private String getMembershipKey(Role role, User user, Group group) {
+        StringBuilder key = new StringBuilder();
+
+        if (role != null) {
+            key.append(role.getName());
+        }
+
+        key.append('\n');
+
+        if (user != null) {
+            key.append(user.getId());
+        }
+
+        key.append('\n');
+
+        if (group != null) {
+            key.append(group.getName() != null ? group.getName() : group.getId());
+        }
+
+        return key.toString();
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.picketlink.idm.internal.config.CacheConfiguration;
+import org.picketlink.idm.internal.jpa.DefaultMembershipQuery;
+import org.picketlink.idm.internal.jpa.DefaultRoleQuery;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.model.Membership;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.MembershipQuery;
+import org.picketlink.idm.query.RoleQuery;
+import org.picketlink.idm.spi.IdentityStore;
+
+/**
+ * <p>
+ * Index of the roles granted to each user and group, used to answer role checks from memory.
+ * </p>
+ * <p>
+ * The roles of an identity are loaded from the store with a single query the first time they are needed. From then on the
+ * entry is kept up to date by {@link #membershipCreated(Role, User, Group)} and {@link #membershipRemoved(Role, User, Group)},
+ * and checking or listing the roles of an identity does not touch the store. Entries are held in a {@link CacheRegion}, so
+ * they are bounded and expire like any other cached data.
+ * </p>
+ * <p>
+ * For a user, the index records the groups each role was granted in. For a group, it records the roles granted in that group,
+ * which are its roles in itself only, see {@link org.picketlink.idm.spi.RoleIndex}.
+ * </p>
+ */
+public class EffectiveRoleIndex {
+
+    private static final String NO_GROUP = "";
+
+    private final IdentityStore store;
+    private final CacheRegion<String, IdentityRoles> entries;
+
+    public EffectiveRoleIndex(IdentityStore store, CacheConfiguration configuration) {
+        this.store = store;
+        this.entries = new CacheRegion<String, IdentityRoles>("roleIndex", configuration);
+    }
+
+    /**
+     * @param role
+     * @param identityType a {@link User} or a {@link Group}.
+     * @param group if not null, only roles granted in this group are considered.
+     * @return true if the role was granted to the given identity.
+     */
+    public boolean hasRole(Role role, IdentityType identityType, Group group) {
+        if (identityType instanceof Group && group != null) {
+            if (!getGroupKey(group).equals(getGroupKey((Group) identityType))) {
+                return false;
+            }
+
+            group = null;
+        }
+
+        IdentityRoles roles = getEntry(identityType);
+
+        if (roles.isGroupsResolved() || group == null) {
+            return roles.contains(role.getName(), group != null ? getGroupKey(group) : null);
+        }
+
+        RoleQuery query = new DefaultRoleQuery(this.store).setName(role.getName()).setOwner(identityType).setGroup(group);
+
+        return !this.store.executeQuery(query, null).isEmpty();
+    }
+
+    /**
+     * @param identityType a {@link User} or a {@link Group}.
+     * @param group if not null, only roles granted in this group are returned.
+     * @return the names of the roles granted to the given identity or null if the index can not tell.
+     */
+    public Set<String> getRoleNames(IdentityType identityType, Group group) {
+        if (identityType instanceof Group && group != null) {
+            if (!getGroupKey(group).equals(getGroupKey((Group) identityType))) {
+                return Collections.emptySet();
+            }
+
+            group = null;
+        }
+
+        IdentityRoles roles = getEntry(identityType);
+
+        if (group != null && !roles.isGroupsResolved()) {
+            return null;
+        }
+
+        return roles.getRoles(group != null ? getGroupKey(group) : null);
+    }
+
+    /**
+     * <p>
+     * Updates the entries affected by a new membership.
+     * </p>
+     *
+     * @param role
+     * @param user
+     * @param group
+     */
+    public void membershipCreated(Role role, User user, Group group) {
+        if (role == null) {
+            return;
+        }
+
+        if (user != null) {
+            String key = getKey(user);
+            IdentityRoles roles = this.entries.get(key);
+
+            if (roles != null) {
+                roles.add(role.getName(), group != null ? getGroupKey(group) : NO_GROUP);
+            } else {
+                this.entries.invalidate(key);
+            }
+        }
+
+        if (group != null) {
+            String key = getKey(group);
+            IdentityRoles roles = this.entries.get(key);
+
+            if (roles != null) {
+                roles.add(role.getName(), NO_GROUP);
+            } else {
+                this.entries.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Updates the entries affected by the removal of memberships. Null arguments match any value, in which case the affected
+     * entries are dropped and loaded again when needed.
+     * </p>
+     *
+     * @param role
+     * @param user
+     * @param group
+     */
+    public void membershipRemoved(Role role, User user, Group group) {
+        if (user == null) {
+            clear();
+            return;
+        }
+
+        String key = getKey(user);
+        IdentityRoles roles = this.entries.get(key);
+
+        if (roles != null && role != null && group != null) {
+            roles.remove(role.getName(), getGroupKey(group));
+        } else {
+            this.entries.invalidate(key);
+        }
+
+        if (group != null) {
+            this.entries.invalidate(getKey(group));
+        }
+    }
+
+    /**
+     * <p>
+     * Drops the entry of the given identity.
+     * </p>
+     *
+     * @param identityType
+     */
+    public void invalidate(IdentityType identityType) {
+        if (identityType instanceof User || identityType instanceof Group) {
+            this.entries.invalidate(getKey(identityType));
+        }
+    }
+
+    /**
+     * <p>
+     * Drops all entries.
+     * </p>
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    CacheRegion<String, ?> getRegion() {
+        return this.entries;
+    }
+
+    private IdentityRoles getEntry(IdentityType identityType) {
+        String key = getKey(identityType);
+        IdentityRoles roles = this.entries.get(key);
+
+        if (roles == null) {
+            long stamp = this.entries.getStamp(key);
+            long start = System.nanoTime();
+
+            try {
+                roles = load(identityType);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+
+                this.entries.recordLoad(elapsed);
+                this.entries.recordMissLatency(elapsed);
+            }
+
+            this.entries.put(key, roles, stamp);
+        }
+
+        return roles;
+    }
+
+    private IdentityRoles load(IdentityType identityType) {
+        MembershipQuery query = new DefaultMembershipQuery(this.store);
+
+        if (identityType instanceof User) {
+            query.setUser((User) identityType);
+        } else {
+            query.setGroup((Group) identityType);
+        }
+
+        List<Membership> memberships = this.store.executeQuery(query, null);
+
+        if (memberships == null) {
+            // the store does not support membership queries, only the roles can be resolved.
+            IdentityRoles roles = new IdentityRoles(false);
+            RoleQuery roleQuery = new DefaultRoleQuery(this.store);
+
+            if (identityType instanceof User) {
+                roleQuery.setOwner(identityType);
+            } else {
+                roleQuery.setGroup((Group) identityType);
+            }
+
+            for (Role role : this.store.executeQuery(roleQuery, null)) {
+                roles.add(role.getName(), NO_GROUP);
+            }
+
+            return roles;
+        }
+
+        IdentityRoles roles = new IdentityRoles(true);
+
+        for (Membership membership : memberships) {
+            if (membership.getRole() == null) {
+                continue;
+            }
+
+            if (identityType instanceof User && membership.getGroup() != null) {
+                roles.add(membership.getRole().getName(), getGroupKey(membership.getGroup()));
+            } else {
+                roles.add(membership.getRole().getName(), NO_GROUP);
+            }
+        }
+
+        return roles;
+    }
+
+    private String getKey(IdentityType identityType) {
+        if (identityType instanceof User) {
+            return User.KEY_PREFIX + ((User) identityType).getId();
+        }
+
+        if (identityType instanceof Group) {
+            return Group.KEY_PREFIX + getGroupKey((Group) identityType);
+        }
+
+        throw new IllegalArgumentException("Roles can only be indexed for users and groups. Got: " + identityType);
+    }
+
+    private String getGroupKey(Group group) {
+        return group.getName() != null ? group.getName() : group.getId();
+    }
+
+    /**
+     * <p>
+     * Roles granted to a single identity, by group. Roles granted without a group are stored under an empty group name.
+     * </p>
+     */
+    private static final class IdentityRoles {
+
+        private final Map<String, Set<String>> rolesByGroup = new HashMap<String, Set<String>>();
+        private final Map<String, Integer> groupCountByRole = new HashMap<String, Integer>();
+        private final boolean groupsResolved;
+
+        private IdentityRoles(boolean groupsResolved) {
+            this.groupsResolved = groupsResolved;
+        }
+
+        private boolean isGroupsResolved() {
+            return this.groupsResolved;
+        }
+
+        private synchronized void add(String role, String group) {
+            Set<String> roles = this.rolesByGroup.get(group);
+
+            if (roles == null) {
+                roles = new HashSet<String>();
+                this.rolesByGroup.put(group, roles);
+            }
+
+            if (roles.add(role)) {
+                Integer count = this.groupCountByRole.get(role);
+                this.groupCountByRole.put(role, count == null ? 1 : count + 1);
+            }
+        }
+
+        private synchronized void remove(String role, String group) {
+            Set<String> roles = this.rolesByGroup.get(group);
+
+            if (roles == null || !roles.remove(role)) {
+                return;
+            }
+
+            if (roles.isEmpty()) {
+                this.rolesByGroup.remove(group);
+            }
+
+            int count = this.groupCountByRole.get(role);
+
+            if (count == 1) {
+                this.groupCountByRole.remove(role);
+            } else {
+                this.groupCountByRole.put(role, count - 1);
+            }
+        }
+
+        private synchronized boolean contains(String role, String group) {
+            if (group == null) {
+                return this.groupCountByRole.containsKey(role);
+            }
+
+            Set<String> roles = this.rolesByGroup.get(group);
+
+            return roles != null && roles.contains(role);
+        }
+
+        private synchronized Set<String> getRoles(String group) {
+            if (group == null) {
+                return new HashSet<String>(this.groupCountByRole.keySet());
+            }
+
+            Set<String> roles = this.rolesByGroup.get(group);
+
+            if (roles == null) {
+                return Collections.emptySet();
+            }
+
+            return new HashSet<String>(roles);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+/**
+ * <p>
+ * Count-min sketch used to estimate how often a key was requested. Counters saturate at 15 and are periodically halved, so
+ * the estimates favour recent history. This class is not thread safe, callers must provide their own synchronization.
+ * </p>
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = new int[] { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    private final int[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries the number of distinct entries expected to be tracked.
+     */
+    public FrequencySketch(int expectedEntries) {
+        int width = 16;
+
+        while (width < expectedEntries) {
+            width <<= 1;
+        }
+
+        this.table = new int[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * <p>
+     * Records one more occurrence of the given key.
+     * </p>
+     *
+     * @param key
+     */
+    public void increment(Object key) {
+        int hash = key.hashCode();
+        boolean added = false;
+
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+
+            if (this.table[i][index] < MAX_COUNT) {
+                this.table[i][index]++;
+                added = true;
+            }
+        }
+
+        if (added && ++this.additions >= this.sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @param key
+     * @return the estimated number of occurrences of the given key.
+     */
+    public int frequency(Object key) {
+        int hash = key.hashCode();
+        int frequency = MAX_COUNT;
+
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, this.table[i][indexOf(hash, i)]);
+        }
+
+        return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B1;
+
+        h ^= h >>> 16;
+
+        return h & this.mask;
+    }
+
+    private void reset() {
+        for (int[] row : this.table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+
+        this.additions /= 2;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.model.Membership;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * {@link Weigher} that estimates the heap size in bytes of {@link IdentityType} and {@link Membership} instances, based on
+ * their built in fields and attributes. The estimate does not need to be exact, only proportional to the real footprint.
+ * </p>
+ */
+public class IdentityTypeWeigher implements Weigher {
+
+    private static final int OBJECT_OVERHEAD = 16;
+    private static final int REFERENCE_SIZE = 8;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    @Override
+    public int weigh(Object key, Object value) {
+        int weight = ENTRY_OVERHEAD + (key instanceof String ? sizeOf((String) key) : OBJECT_OVERHEAD);
+
+        if (value instanceof Membership) {
+            Membership membership = (Membership) value;
+
+            weight += OBJECT_OVERHEAD + 3 * REFERENCE_SIZE;
+            weight += sizeOf(membership.getUser());
+            weight += sizeOf(membership.getRole());
+            weight += sizeOf(membership.getGroup());
+        } else if (value instanceof IdentityType) {
+            weight += sizeOf((IdentityType) value);
+        }
+
+        return weight;
+    }
+
+    private int sizeOf(IdentityType identityType) {
+        if (identityType == null) {
+            return 0;
+        }
+
+        int size = OBJECT_OVERHEAD + sizeOf(identityType.getKey());
+
+        if (identityType instanceof User) {
+            User user = (User) identityType;
+
+            size += sizeOf(user.getFirstName()) + sizeOf(user.getLastName()) + sizeOf(user.getEmail());
+        }
+
+        Map<String, String[]> attributes = identityType.getAttributes();
+
+        if (attributes != null) {
+            for (Entry<String, String[]> entry : attributes.entrySet()) {
+                size += ENTRY_OVERHEAD + sizeOf(entry.getKey());
+
+                String[] values = entry.getValue();
+
+                if (values != null) {
+                    size += OBJECT_OVERHEAD;
+
+                    for (String value : values) {
+                        size += REFERENCE_SIZE + sizeOf(value);
+                    }
+                }
+            }
+        }
+
+        return size;
+    }
+
+    private int sizeOf(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        return 2 * OBJECT_OVERHEAD + 2 * value.length();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Collects invalidation messages and hands them to an {@link InvalidationTransport} in batches. A batch is published when it
+ * reaches the maximum size or when the oldest pending message has waited for the maximum delay, whichever comes first.
+ * </p>
+ * <p>
+ * Pending messages are coalesced: duplicates are sent once, and a pending {@link InvalidationMessage.Type#ALL} message
+ * replaces all others.
+ * </p>
+ */
+public class InvalidationBatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(InvalidationBatcher.class.getName());
+
+    private static final InvalidationMessage INVALIDATE_ALL = new InvalidationMessage(InvalidationMessage.Type.ALL);
+
+    private final InvalidationTransport transport;
+    private final int maxBatchSize;
+    private final long maxDelay;
+    private final ScheduledExecutorService executor;
+    private final Object lock = new Object();
+
+    private Set<InvalidationMessage> pending = new LinkedHashSet<InvalidationMessage>();
+    private boolean flushScheduled;
+
+    /**
+     * @param transport
+     * @param maxBatchSize
+     * @param maxDelay in milliseconds. If zero, messages are published as soon as they are added.
+     */
+    public InvalidationBatcher(InvalidationTransport transport, int maxBatchSize, long maxDelay) {
+        this.transport = transport;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelay = maxDelay;
+
+        if (maxDelay > 0) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "picketlink-invalidation-batcher");
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * <p>
+     * Queues a message to be published.
+     * </p>
+     *
+     * @param message
+     */
+    public void add(InvalidationMessage message) {
+        List<InvalidationMessage> batch = null;
+
+        synchronized (this.lock) {
+            if (message.getType() == InvalidationMessage.Type.ALL) {
+                this.pending.clear();
+                this.pending.add(INVALIDATE_ALL);
+            } else if (!this.pending.contains(INVALIDATE_ALL)) {
+                this.pending.add(message);
+            }
+
+            if (this.executor == null || this.pending.size() >= this.maxBatchSize) {
+                batch = drain();
+            } else if (!this.flushScheduled) {
+                this.flushScheduled = true;
+                this.executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, this.maxDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        publish(batch);
+    }
+
+    /**
+     * <p>
+     * Publishes all pending messages.
+     * </p>
+     */
+    public void flush() {
+        List<InvalidationMessage> batch;
+
+        synchronized (this.lock) {
+            batch = drain();
+        }
+
+        publish(batch);
+    }
+
+    /**
+     * <p>
+     * Publishes all pending messages and stops the background flushes.
+     * </p>
+     */
+    public void close() {
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+
+        flush();
+    }
+
+    private List<InvalidationMessage> drain() {
+        this.flushScheduled = false;
+
+        if (this.pending.isEmpty()) {
+            return null;
+        }
+
+        List<InvalidationMessage> batch = new ArrayList<InvalidationMessage>(this.pending);
+
+        this.pending = new LinkedHashSet<InvalidationMessage>();
+
+        return batch;
+    }
+
+    private void publish(List<InvalidationMessage> batch) {
+        if (batch == null) {
+            return;
+        }
+
+        try {
+            this.transport.publish(batch);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not publish " + batch.size() + " invalidation messages.", e);
+        }
+    }
+}
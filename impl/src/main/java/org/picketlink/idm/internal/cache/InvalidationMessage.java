@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Tells other nodes which cache entries must be evicted. Messages are values: two messages for the same type and keys are
+ * equal, which allows the {@link InvalidationBatcher} to coalesce them.
+ * </p>
+ */
+public final class InvalidationMessage {
+
+    /**
+     * <p>
+     * What a message invalidates.
+     * </p>
+     */
+    public enum Type {
+
+        /**
+         * The users with the given keys.
+         */
+        USER,
+
+        /**
+         * The groups with the given keys.
+         */
+        GROUP,
+
+        /**
+         * The roles with the given keys.
+         */
+        ROLE,
+
+        /**
+         * All memberships. Has no keys.
+         */
+        MEMBERSHIPS,
+
+        /**
+         * The whole cache. Has no keys.
+         */
+        ALL
+
+    }
+
+    private final Type type;
+    private final String[] keys;
+
+    /**
+     * @param type
+     * @param keys null keys are ignored.
+     */
+    public InvalidationMessage(Type type, String... keys) {
+        if (type == null) {
+            throw new IllegalArgumentException("No invalidation type provided.");
+        }
+
+        List<String> nonNullKeys = new ArrayList<String>();
+
+        for (String key : keys) {
+            if (key != null && !nonNullKeys.contains(key)) {
+                nonNullKeys.add(key);
+            }
+        }
+
+        this.type = type;
+        this.keys = nonNullKeys.toArray(new String[nonNullKeys.size()]);
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public String[] getKeys() {
+        return this.keys.clone();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof InvalidationMessage)) {
+            return false;
+        }
+
+        InvalidationMessage other = (InvalidationMessage) obj;
+
+        return this.type == other.type && Arrays.equals(this.keys, other.keys);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.type.hashCode() + Arrays.hashCode(this.keys);
+    }
+
+    @Override
+    public String toString() {
+        return this.type + Arrays.toString(this.keys);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.List;
+
+/**
+ * <p>
+ * SPI used by the {@link CachingIdentityStore} to propagate invalidations to the other nodes sharing the same backend.
+ * </p>
+ * <p>
+ * Delivery is best effort: messages that can not be delivered are dropped, and the entries they refer to are only refreshed on
+ * the other nodes when they expire. Implementations must not deliver messages back to the node that published them.
+ * </p>
+ */
+public interface InvalidationTransport {
+
+    /**
+     * <p>
+     * Starts receiving messages from other nodes.
+     * </p>
+     *
+     * @param listener
+     */
+    void start(InvalidationListener listener);
+
+    /**
+     * <p>
+     * Sends a batch of messages to all other nodes.
+     * </p>
+     *
+     * @param messages
+     */
+    void publish(List<InvalidationMessage> messages);
+
+    /**
+     * <p>
+     * Stops sending and receiving messages and releases the resources held by this transport.
+     * </p>
+     */
+    void stop();
+
+}
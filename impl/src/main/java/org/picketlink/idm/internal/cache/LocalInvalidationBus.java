@@ -0,0 +1,52 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>
+ * Connects the {@link LocalInvalidationTransport}s of the caches running in the same JVM. Each bus is an independent group of
+ * nodes.
+ * </p>
+ */
+public class LocalInvalidationBus {
+
+    private final List<LocalInvalidationTransport> members = new CopyOnWriteArrayList<LocalInvalidationTransport>();
+
+    void join(LocalInvalidationTransport transport) {
+        this.members.add(transport);
+    }
+
+    void leave(LocalInvalidationTransport transport) {
+        this.members.remove(transport);
+    }
+
+    void publish(LocalInvalidationTransport sender, List<InvalidationMessage> messages) {
+        for (LocalInvalidationTransport member : this.members) {
+            if (member != sender) {
+                member.deliver(messages);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * {@link InvalidationTransport} for caches running in the same JVM, eg.: several deployments sharing a backend. Messages are
+ * delivered synchronously to all other transports joined to the same {@link LocalInvalidationBus}.
+ * </p>
+ */
+public class LocalInvalidationTransport implements InvalidationTransport {
+
+    private final LocalInvalidationBus bus;
+    private volatile InvalidationListener listener;
+
+    public LocalInvalidationTransport(LocalInvalidationBus bus) {
+        this.bus = bus;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.internal.cache.InvalidationTransport#start(org.picketlink.idm.internal.cache.InvalidationListener)
+     */
+    @Override
+    public void start(InvalidationListener listener) {
+        this.listener = listener;
+        this.bus.join(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.internal.cache.InvalidationTransport#publish(java.util.List)
+     */
+    @Override
+    public void publish(List<InvalidationMessage> messages) {
+        this.bus.publish(this, Collections.unmodifiableList(messages));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.internal.cache.InvalidationTransport#stop()
+     */
+    @Override
+    public void stop() {
+        this.bus.leave(this);
+        this.listener = null;
+    }
+
+    void deliver(List<InvalidationMessage> messages) {
+        InvalidationListener listener = this.listener;
+
+        if (listener != null) {
+            listener.onInvalidation(messages);
+        }
+    }
+}
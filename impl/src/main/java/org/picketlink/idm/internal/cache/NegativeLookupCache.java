@@ -0,0 +1,200 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.picketlink.idm.internal.config.CacheConfiguration;
+
+/**
+ * <p>
+ * Remembers keys that were not found in the store, so repeated lookups for identities that do not exist are answered without
+ * a store round trip.
+ * </p>
+ * <p>
+ * Misses are kept for a short time to live. Once {@link #rebuild(Callable)} has been called, the cache also holds a
+ * {@link BloomFilter} of every key known to exist and any key that is not in the filter is rejected straight away. Keys are
+ * compared exactly, unless {@link CacheConfiguration#setCaseInsensitiveKeys(boolean)} is set for stores that match
+ * identities ignoring case (eg.: LDAP).
+ * </p>
+ */
+public class NegativeLookupCache {
+
+    private static final Boolean MISSING = Boolean.TRUE;
+
+    private final CacheRegion<String, Boolean> misses;
+    private final int expectedKeys;
+    private final double falsePositiveRate;
+    private final boolean caseInsensitiveKeys;
+    private final Object lock = new Object();
+
+    private volatile BloomFilter knownKeys;
+    private Set<String> keysAddedDuringRebuild;
+
+    public NegativeLookupCache(String name, CacheConfiguration configuration) {
+        if (configuration.getNegativeLookupTimeToLive() > 0) {
+            this.misses = new CacheRegion<String, Boolean>(name, new CacheConfiguration()
+                    .setMaxEntries(configuration.getNegativeLookupMaxEntries())
+                    .setTimeToLive(configuration.getNegativeLookupTimeToLive())
+                    .setConcurrencyLevel(configuration.getConcurrencyLevel()));
+        } else {
+            this.misses = null;
+        }
+
+        this.expectedKeys = configuration.getKnownKeysExpectedEntries();
+        this.falsePositiveRate = configuration.getKnownKeysFalsePositiveRate();
+        this.caseInsensitiveKeys = configuration.isCaseInsensitiveKeys();
+    }
+
+    /**
+     * @param key
+     * @return true if the given key is known not to exist in the store.
+     */
+    public boolean isMissing(String key) {
+        String normalizedKey = normalize(key);
+
+        if (this.misses != null && this.misses.get(normalizedKey) != null) {
+            return true;
+        }
+
+        BloomFilter filter = this.knownKeys;
+
+        return filter != null && !filter.mightContain(normalizedKey);
+    }
+
+    /**
+     * @param key
+     * @return a stamp that must be passed to {@link #recordMiss(String, long)}.
+     */
+    public long getStamp(String key) {
+        return this.misses != null ? this.misses.getStamp(normalize(key)) : 0;
+    }
+
+    /**
+     * <p>
+     * Records that the given key was not found in the store.
+     * </p>
+     *
+     * @param key
+     * @param stamp obtained with {@link #getStamp(String)} before going to the store.
+     */
+    public void recordMiss(String key, long stamp) {
+        if (this.misses != null) {
+            this.misses.put(normalize(key), MISSING, stamp);
+        }
+    }
+
+    /**
+     * <p>
+     * Records that the given key may exist from now on, eg.: because an identity with that key was created.
+     * </p>
+     *
+     * @param key
+     */
+    public void invalidate(String key) {
+        if (key == null) {
+            return;
+        }
+
+        String normalizedKey = normalize(key);
+
+        if (this.misses != null) {
+            this.misses.invalidate(normalizedKey);
+        }
+
+        synchronized (this.lock) {
+            BloomFilter filter = this.knownKeys;
+
+            if (filter != null) {
+                filter.put(normalizedKey);
+            }
+
+            if (this.keysAddedDuringRebuild != null) {
+                this.keysAddedDuringRebuild.add(normalizedKey);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Replaces the filter of known keys with one built from the keys returned by the given scan. Keys invalidated while the
+     * scan is running are added to the new filter as well.
+     * </p>
+     *
+     * @param scan returns every key that exists in the store.
+     */
+    public void rebuild(Callable<Collection<String>> scan) {
+        synchronized (this.lock) {
+            this.keysAddedDuringRebuild = new HashSet<String>();
+        }
+
+        try {
+            Collection<String> keys = scan.call();
+            BloomFilter filter = new BloomFilter(Math.max(this.expectedKeys, keys.size() * 2), this.falsePositiveRate);
+
+            for (String key : keys) {
+                if (key != null) {
+                    filter.put(normalize(key));
+                }
+            }
+
+            synchronized (this.lock) {
+                for (String key : this.keysAddedDuringRebuild) {
+                    filter.put(key);
+                }
+
+                this.knownKeys = filter;
+            }
+
+            if (this.misses != null) {
+                this.misses.clear();
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Error rebuilding the known keys filter.", e);
+        } finally {
+            synchronized (this.lock) {
+                this.keysAddedDuringRebuild = null;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Removes all recorded misses. The filter of known keys, if any, is kept.
+     * </p>
+     */
+    public void clear() {
+        if (this.misses != null) {
+            this.misses.clear();
+        }
+    }
+
+    private String normalize(String key) {
+        return this.caseInsensitiveKeys ? key.toLowerCase(Locale.ENGLISH) : key;
+    }
+}
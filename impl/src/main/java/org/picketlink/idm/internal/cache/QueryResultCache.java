@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.picketlink.idm.internal.config.CacheConfiguration;
+import org.picketlink.idm.query.Range;
+
+/**
+ * <p>
+ * Cache of query results, keyed by an immutable query snapshot and the requested range.
+ * </p>
+ * <p>
+ * Instead of tracking which results a change affects, a generation counter is kept per identity type and bumped by
+ * {@link #changed(int)} after every change of that type. Each result records the generations of the types it depends on when
+ * the query was started, and is discarded on lookup if any of them moved since. A change therefore invalidates all dependent
+ * results at once, at the cost of a counter increment.
+ * </p>
+ * <p>
+ * Only the changes reported to {@link #changed(int)} are seen, so this cache is disabled unless enabled through
+ * {@link CacheConfiguration#setQueryResultMaxEntries(int)}. See there for the changes it misses.
+ * </p>
+ */
+public class QueryResultCache {
+
+    public static final int USERS = 1;
+    public static final int GROUPS = 1 << 1;
+    public static final int ROLES = 1 << 2;
+    public static final int MEMBERSHIPS = 1 << 3;
+
+    private static final int TYPE_COUNT = 4;
+
+    private final AtomicLongArray generations = new AtomicLongArray(TYPE_COUNT);
+    private final CacheRegion<QueryKey, CachedResult> results;
+
+    public QueryResultCache(CacheConfiguration configuration) {
+        if (configuration.getQueryResultMaxEntries() > 0) {
+            this.results = new CacheRegion<QueryKey, CachedResult>("queryResults", new CacheConfiguration()
+                    .setMaxEntries(configuration.getQueryResultMaxEntries())
+                    .setTimeToLive(configuration.getTimeToLive())
+                    .setEvictionPolicy(configuration.getEvictionPolicy())
+                    .setConcurrencyLevel(configuration.getConcurrencyLevel()));
+        } else {
+            this.results = null;
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the cached result of the given query, or executes it using the given loader.
+     * </p>
+     *
+     * @param query an immutable query. Must implement equals/hashCode.
+     * @param range
+     * @param dependencies the identity types the result depends on, eg.: <code>USERS | MEMBERSHIPS</code>.
+     * @param loader executes the query when there is no valid cached result.
+     * @return a copy of the result, which the caller is free to change.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> execute(Object query, Range range, int dependencies, Loader<T> loader) {
+        if (this.results == null) {
+            return loader.load();
+        }
+
+        QueryKey key = new QueryKey(query, range);
+        CachedResult cached = this.results.get(key);
+
+        if (cached != null) {
+            if (cached.isValid(this.generations)) {
+                return new ArrayList<T>((List<T>) cached.result);
+            }
+
+            this.results.discard(key, cached);
+        }
+
+        long stamp = this.results.getStamp(key);
+        long[] loadGenerations = currentGenerations(dependencies);
+        long start = System.nanoTime();
+        List<T> result;
+
+        try {
+            result = loader.load();
+        } finally {
+            long elapsed = System.nanoTime() - start;
+
+            this.results.recordLoad(elapsed);
+            this.results.recordMissLatency(elapsed);
+        }
+
+        if (result != null) {
+            this.results.put(key, new CachedResult(Collections.unmodifiableList(new ArrayList<T>(result)), dependencies,
+                    loadGenerations), stamp);
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>
+     * Invalidates all results that depend on the given identity types.
+     * </p>
+     *
+     * @param types eg.: <code>USERS | MEMBERSHIPS</code>.
+     */
+    public void changed(int types) {
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            if ((types & (1 << i)) != 0) {
+                this.generations.incrementAndGet(i);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Removes all cached results.
+     * </p>
+     */
+    public void clear() {
+        changed(USERS | GROUPS | ROLES | MEMBERSHIPS);
+
+        if (this.results != null) {
+            this.results.clear();
+        }
+    }
+
+    /**
+     * @return the number of cached results, including the ones that are no longer valid but were not removed yet.
+     */
+    public int size() {
+        return this.results != null ? this.results.size() : 0;
+    }
+
+    /**
+     * @return the region holding the results, or null if caching of query results is disabled.
+     */
+    CacheRegion<?, ?> getRegion() {
+        return this.results;
+    }
+
+    private long[] currentGenerations(int dependencies) {
+        long[] current = new long[TYPE_COUNT];
+
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            if ((dependencies & (1 << i)) != 0) {
+                current[i] = this.generations.get(i);
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * <p>
+     * Executes a query against the store.
+     * </p>
+     *
+     * @param <T> type of the query results
+     */
+    public interface Loader<T> {
+
+        List<T> load();
+
+    }
+
+    private static final class QueryKey {
+
+        private final Object query;
+        private final int offset;
+        private final int limit;
+        private final int hash;
+
+        private QueryKey(Object query, Range range) {
+            this.query = query;
+            this.offset = range != null ? range.getOffset() : 0;
+            this.limit = range != null ? range.getLimit() : -1;
+            this.hash = 31 * (31 * query.hashCode() + this.offset) + this.limit;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof QueryKey)) {
+                return false;
+            }
+
+            QueryKey other = (QueryKey) obj;
+
+            return this.hash == other.hash && this.offset == other.offset && this.limit == other.limit
+                    && this.query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    private static final class CachedResult {
+
+        private final List<?> result;
+        private final int dependencies;
+        private final long[] generations;
+
+        private CachedResult(List<?> result, int dependencies, long[] generations) {
+            this.result = result;
+            this.dependencies = dependencies;
+            this.generations = generations;
+        }
+
+        private boolean isValid(AtomicLongArray current) {
+            for (int i = 0; i < TYPE_COUNT; i++) {
+                if ((this.dependencies & (1 << i)) != 0 && this.generations[i] != current.get(i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
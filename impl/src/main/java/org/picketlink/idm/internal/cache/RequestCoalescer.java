@@ -0,0 +1,105 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>
+ * Lets concurrent identical requests share a single call to the store. The first thread to request a key runs the call, the
+ * others arriving while it is in flight wait for it and get the same result, or the same exception. Once the call completes
+ * the key is released, so later requests run a new call.
+ * </p>
+ * <p>
+ * Keys should identify both the operation and its arguments. When the result is to be cached, they should also include the
+ * cache stamp taken before the call, so that a request made after an invalidation never joins a call that started before it.
+ * </p>
+ */
+public class RequestCoalescer {
+
+    private final ConcurrentMap<String, FutureTask<?>> inFlight = new ConcurrentHashMap<String, FutureTask<?>>();
+
+    /**
+     * @param key
+     * @param call
+     * @return the result of the call in flight for the given key, or of the given call if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V execute(String key, Callable<V> call) {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> existing = (FutureTask<V>) this.inFlight.putIfAbsent(key, task);
+
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                this.inFlight.remove(key, task);
+            }
+
+            existing = task;
+        }
+
+        return getResult(existing);
+    }
+
+    /**
+     * @return the number of calls in flight.
+     */
+    public int size() {
+        return this.inFlight.size();
+    }
+
+    private <V> V getResult(FutureTask<V> task) {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // the call is shared with other threads, so it is waited for anyway
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IllegalStateException("Store call failed.", cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
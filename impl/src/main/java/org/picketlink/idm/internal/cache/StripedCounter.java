@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A counter for statistics updated from many threads. Updates are spread over several cells, each on its own cache line, and
+ * each thread always updates the same cell, so threads seldom contend on the same memory. Reading sums all cells and is
+ * not atomic with respect to concurrent updates.
+ * </p>
+ */
+public class StripedCounter {
+
+    /**
+     * Number of longs between two cells, so that each cell is on its own 64 byte cache line.
+     */
+    private static final int PADDING = 8;
+
+    private static final int MAX_CELLS = 64;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        int count = 1;
+
+        while (count < Runtime.getRuntime().availableProcessors() * 2 && count < MAX_CELLS) {
+            count <<= 1;
+        }
+
+        this.cells = new AtomicLongArray(count * PADDING);
+        this.mask = count - 1;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long value) {
+        this.cells.getAndAdd(cellIndex(), value);
+    }
+
+    /**
+     * @return the sum of all updates made since the counter was created or reset.
+     */
+    public long sum() {
+        long sum = 0;
+
+        for (int i = 0; i < this.cells.length(); i += PADDING) {
+            sum += this.cells.get(i);
+        }
+
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < this.cells.length(); i += PADDING) {
+            this.cells.set(i, 0);
+        }
+    }
+
+    private int cellIndex() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+
+        return ((hash >>> 16) & this.mask) * PADDING;
+    }
+}
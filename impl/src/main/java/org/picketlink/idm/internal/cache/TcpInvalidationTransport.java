@@ -0,0 +1,507 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>
+ * {@link InvalidationTransport} that sends messages to a fixed list of peers over plain TCP connections. Each node listens on
+ * its own address and keeps one outbound connection per peer, which is opened on the first publish and reopened after a
+ * failure.
+ * </p>
+ * <p>
+ * Each batch is sent as one frame: a magic number, the number of messages and, for each message, its type and keys. Nodes
+ * running on the same host just need different ports:
+ * </p>
+ *
+ * <pre>
+ * TcpInvalidationTransport transport = new TcpInvalidationTransport(7701);
+ *
+ * transport.addPeer(new InetSocketAddress(&quot;localhost&quot;, 7702));
+ * </pre>
+ * <p>
+ * When a shared secret is set, a node accepts frames only from connections that answered a random challenge with its
+ * HMAC-SHA256 under that secret, so all nodes must use the same secret. Listening on an address other than the loopback
+ * requires a secret. At most {@link #setMaxConnections(int)} inbound connections are served at the same time, each by its
+ * own thread; further connections are closed right away.
+ * </p>
+ */
+public class TcpInvalidationTransport implements InvalidationTransport {
+
+    private static final Logger LOGGER = Logger.getLogger(TcpInvalidationTransport.class.getName());
+
+    private static final int MAGIC = 0x504C4956;
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final int CHALLENGE_LENGTH = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final InetSocketAddress bindAddress;
+    private final List<Peer> peers = new CopyOnWriteArrayList<Peer>();
+    private final Set<Socket> inbound = Collections.synchronizedSet(new HashSet<Socket>());
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile byte[] sharedSecret;
+    private volatile int maxConnections = 16;
+    private volatile ServerSocket serverSocket;
+    private volatile InvalidationListener listener;
+
+    /**
+     * <p>
+     * Listens on the loopback address, which only lets nodes on the same host connect.
+     * </p>
+     *
+     * @param port the port this node listens on. Use 0 to pick any free port.
+     */
+    public TcpInvalidationTransport(int port) {
+        this(new InetSocketAddress(loopbackAddress(), port));
+    }
+
+    /**
+     * @param bindAddress the address this node listens on. Use port 0 to pick any free port. A shared secret must be set
+     *        unless it is a loopback address.
+     */
+    public TcpInvalidationTransport(InetSocketAddress bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * <p>
+     * Sets the secret used to authenticate connections between nodes. Must be called before the transport is started.
+     * </p>
+     *
+     * @param sharedSecret
+     */
+    public void setSharedSecret(String sharedSecret) {
+        try {
+            this.sharedSecret = sharedSecret != null ? sharedSecret.getBytes("UTF-8") : null;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * <p>
+     * Sets how many inbound connections are served at the same time. Defaults to 16.
+     * </p>
+     *
+     * @param maxConnections
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * <p>
+     * Adds a node to which messages are sent.
+     * </p>
+     *
+     * @param address
+     */
+    public void addPeer(InetSocketAddress address) {
+        this.peers.add(new Peer(address));
+    }
+
+    /**
+     * @return the port this node listens on, or -1 if it was not started.
+     */
+    public int getLocalPort() {
+        ServerSocket socket = this.serverSocket;
+
+        return socket != null ? socket.getLocalPort() : -1;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.internal.cache.InvalidationTransport#start(org.picketlink.idm.internal.cache.InvalidationListener)
+     */
+    @Override
+    public void start(InvalidationListener listener) {
+        InetAddress address = this.bindAddress.getAddress();
+
+        if (this.sharedSecret == null && (address == null || !address.isLoopbackAddress())) {
+            throw new IllegalStateException("A shared secret is required to listen for invalidations on " + this.bindAddress);
+        }
+
+        this.listener = listener;
+
+        try {
+            ServerSocket socket = new ServerSocket();
+
+            socket.setReuseAddress(true);
+            socket.bind(this.bindAddress);
+
+            this.serverSocket = socket;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not listen for invalidations on " + this.bindAddress, e);
+        }
+
+        startThread("picketlink-invalidation-acceptor", new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.internal.cache.InvalidationTransport#publish(java.util.List)
+     */
+    @Override
+    public void publish(List<InvalidationMessage> messages) {
+        if (messages.isEmpty() || this.peers.isEmpty()) {
+            return;
+        }
+
+        byte[] frame = encode(messages);
+
+        for (Peer peer : this.peers) {
+            peer.send(frame);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketlink.idm.internal.cache.InvalidationTransport#stop()
+     */
+    @Override
+    public void stop() {
+        this.listener = null;
+
+        closeQuietly(this.serverSocket);
+
+        for (Peer peer : this.peers) {
+            peer.close();
+        }
+
+        synchronized (this.inbound) {
+            for (Socket socket : this.inbound) {
+                closeQuietly(socket);
+            }
+
+            this.inbound.clear();
+        }
+    }
+
+    private void accept() {
+        ServerSocket server = this.serverSocket;
+
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+
+                synchronized (this.inbound) {
+                    if (this.inbound.size() >= this.maxConnections) {
+                        LOGGER.warning("Too many invalidation connections, closing the one from "
+                                + socket.getRemoteSocketAddress());
+                        closeQuietly(socket);
+                        continue;
+                    }
+
+                    this.inbound.add(socket);
+                }
+
+                startThread("picketlink-invalidation-reader-" + socket.getRemoteSocketAddress(), new Runnable() {
+                    @Override
+                    public void run() {
+                        read(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    LOGGER.log(Level.WARNING, "Could not accept invalidation connection.", e);
+                }
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            if (!authenticate(socket, input)) {
+                LOGGER.warning("Rejected invalidation connection from " + socket.getRemoteSocketAddress());
+                return;
+            }
+
+            while (true) {
+                List<InvalidationMessage> messages = decode(input);
+                InvalidationListener currentListener = this.listener;
+
+                if (currentListener != null) {
+                    currentListener.onInvalidation(messages);
+                }
+            }
+        } catch (EOFException e) {
+            // peer closed the connection
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                LOGGER.log(Level.WARNING, "Could not read invalidations from " + socket.getRemoteSocketAddress(), e);
+            }
+        } finally {
+            this.inbound.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * <p>
+     * Sends a random challenge to the connected node and checks its answer.
+     * </p>
+     */
+    private boolean authenticate(Socket socket, DataInputStream input) throws IOException {
+        byte[] secret = this.sharedSecret;
+
+        if (secret == null) {
+            return true;
+        }
+
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+
+        this.random.nextBytes(challenge);
+
+        OutputStream output = socket.getOutputStream();
+
+        output.write(challenge);
+        output.flush();
+
+        byte[] expected = sign(secret, challenge);
+        byte[] response = new byte[expected.length];
+
+        socket.setSoTimeout(CONNECT_TIMEOUT);
+        input.readFully(response);
+        socket.setSoTimeout(0);
+
+        return MessageDigest.isEqual(expected, response);
+    }
+
+    private byte[] encode(List<InvalidationMessage> messages) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+
+            output.writeInt(MAGIC);
+            output.writeInt(messages.size());
+
+            for (InvalidationMessage message : messages) {
+                String[] keys = message.getKeys();
+
+                output.writeByte(message.getType().ordinal());
+                output.writeShort(keys.length);
+
+                for (String key : keys) {
+                    output.writeUTF(key);
+                }
+            }
+
+            output.flush();
+
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode invalidation messages.", e);
+        }
+    }
+
+    private List<InvalidationMessage> decode(DataInputStream input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Unexpected data in invalidation stream.");
+        }
+
+        int count = input.readInt();
+
+        if (count < 0) {
+            throw new IOException("Invalid number of invalidation messages: " + count);
+        }
+
+        List<InvalidationMessage> messages = new ArrayList<InvalidationMessage>();
+        InvalidationMessage.Type[] types = InvalidationMessage.Type.values();
+
+        for (int i = 0; i < count; i++) {
+            int type = input.readUnsignedByte();
+
+            if (type >= types.length) {
+                throw new IOException("Unknown invalidation type: " + type);
+            }
+
+            String[] keys = new String[input.readUnsignedShort()];
+
+            for (int j = 0; j < keys.length; j++) {
+                keys[j] = input.readUTF();
+            }
+
+            messages.add(new InvalidationMessage(types[type], keys));
+        }
+
+        return messages;
+    }
+
+    private void startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static byte[] sign(byte[] secret, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign invalidation challenge.", e);
+        }
+    }
+
+    private static InetAddress loopbackAddress() {
+        try {
+            return InetAddress.getByName(null);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        if (socket == null) {
+            return;
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * <p>
+     * Outbound connection to another node.
+     * </p>
+     */
+    private final class Peer {
+
+        private final InetSocketAddress address;
+        private Socket socket;
+        private OutputStream output;
+
+        private Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        private synchronized void send(byte[] frame) {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try {
+                    if (this.socket == null) {
+                        Socket newSocket = new Socket();
+
+                        newSocket.setTcpNoDelay(true);
+                        newSocket.connect(this.address, CONNECT_TIMEOUT);
+
+                        this.socket = newSocket;
+
+                        answerChallenge(newSocket);
+
+                        this.output = new BufferedOutputStream(newSocket.getOutputStream());
+                    }
+
+                    this.output.write(frame);
+                    this.output.flush();
+
+                    return;
+                } catch (IOException e) {
+                    close();
+
+                    if (attempt > 0) {
+                        LOGGER.log(Level.WARNING, "Could not send invalidations to " + this.address, e);
+                    }
+                }
+            }
+        }
+
+        private void answerChallenge(Socket newSocket) throws IOException {
+            byte[] secret = TcpInvalidationTransport.this.sharedSecret;
+
+            if (secret == null) {
+                return;
+            }
+
+            byte[] challenge = new byte[CHALLENGE_LENGTH];
+
+            newSocket.setSoTimeout(CONNECT_TIMEOUT);
+            new DataInputStream(newSocket.getInputStream()).readFully(challenge);
+            newSocket.setSoTimeout(0);
+
+            OutputStream newOutput = newSocket.getOutputStream();
+
+            newOutput.write(sign(secret, challenge));
+            newOutput.flush();
+        }
+
+        private synchronized void close() {
+            closeQuietly(this.socket);
+            this.socket = null;
+            this.output = null;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.idm.internal.config;
+
+import org.picketlink.idm.internal.cache.EvictionPolicy;
+import org.picketlink.idm.internal.cache.InvalidationTransport;
+import org.picketlink.idm.internal.cache.Weigher;
+
+/**
+ * <p>
+ * Configuration for the {@link org.picketlink.idm.internal.cache.CachingIdentityStore}. Each identity type (users, groups,
+ * roles and memberships) is cached in its own region, and the limits defined here apply to each region individually.
+ * </p>
+ * <p>
+ * Regions are bounded by entry count unless a maximum weight is set, in which case the configured {@link Weigher} is used to
+ * estimate the size in bytes of each entry.
+ * </p>
+ */
+public class CacheConfiguration {
+
+    private int maxEntries = 10000;
+    private long maxWeight = 0;
+    private Weigher weigher;
+    private long timeToLive = 5 * 60 * 1000;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    private int concurrencyLevel = 16;
+    private long negativeLookupTimeToLive = 10 * 1000;
+    private int negativeLookupMaxEntries = 10000;
+    private int knownKeysExpectedEntries = 100000;
+    private double knownKeysFalsePositiveRate = 0.01;
+    private boolean caseInsensitiveKeys;
+    private int queryResultMaxEntries;
+    private InvalidationTransport invalidationTransport;
+    private int invalidationBatchSize = 256;
+    private long invalidationMaxDelay = 10;
+    private boolean requestCoalescing = true;
+    private int warmUpParallelism = 2;
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of entries per region. Ignored when a maximum weight is set.
+     * </p>
+     *
+     * @param maxEntries
+     * @return
+     */
+    public CacheConfiguration setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    public long getMaxWeight() {
+        return this.maxWeight;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum weight (in bytes, as estimated by the {@link Weigher}) per region. A value less than or equal to zero
+     * means the regions are bounded by entry count.
+     * </p>
+     *
+     * @param maxWeight
+     * @return
+     */
+    public CacheConfiguration setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        return this;
+    }
+
+    public Weigher getWeigher() {
+        return this.weigher;
+    }
+
+    public CacheConfiguration setWeigher(Weigher weigher) {
+        this.weigher = weigher;
+        return this;
+    }
+
+    public long getTimeToLive() {
+        return this.timeToLive;
+    }
+
+    /**
+     * <p>
+     * Sets how long, in milliseconds, an entry is kept after being loaded. A value less than or equal to zero disables
+     * expiration.
+     * </p>
+     *
+     * @param timeToLive
+     * @return
+     */
+    public CacheConfiguration setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return this.evictionPolicy;
+    }
+
+    public CacheConfiguration setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        return this;
+    }
+
+    public int getConcurrencyLevel() {
+        return this.concurrencyLevel;
+    }
+
+    /**
+     * <p>
+     * Sets the number of independently locked segments of each region.
+     * </p>
+     *
+     * @param concurrencyLevel
+     * @return
+     */
+    public CacheConfiguration setConcurrencyLevel(int concurrencyLevel) {
+        this.concurrencyLevel = concurrencyLevel;
+        return this;
+    }
+
+    public long getNegativeLookupTimeToLive() {
+        return this.negativeLookupTimeToLive;
+    }
+
+    /**
+     * <p>
+     * Sets how long, in milliseconds, a lookup that found nothing is remembered. A value less than or equal to zero disables
+     * the caching of misses.
+     * </p>
+     *
+     * @param negativeLookupTimeToLive
+     * @return
+     */
+    public CacheConfiguration setNegativeLookupTimeToLive(long negativeLookupTimeToLive) {
+        this.negativeLookupTimeToLive = negativeLookupTimeToLive;
+        return this;
+    }
+
+    public int getNegativeLookupMaxEntries() {
+        return this.negativeLookupMaxEntries;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of misses remembered per identity type.
+     * </p>
+     *
+     * @param negativeLookupMaxEntries
+     * @return
+     */
+    public CacheConfiguration setNegativeLookupMaxEntries(int negativeLookupMaxEntries) {
+        this.negativeLookupMaxEntries = negativeLookupMaxEntries;
+        return this;
+    }
+
+    public int getKnownKeysExpectedEntries() {
+        return this.knownKeysExpectedEntries;
+    }
+
+    /**
+     * <p>
+     * Sets the number of keys per identity type the known keys filter is sized for when it is rebuilt.
+     * </p>
+     *
+     * @param knownKeysExpectedEntries
+     * @return
+     */
+    public CacheConfiguration setKnownKeysExpectedEntries(int knownKeysExpectedEntries) {
+        this.knownKeysExpectedEntries = knownKeysExpectedEntries;
+        return this;
+    }
+
+    public double getKnownKeysFalsePositiveRate() {
+        return this.knownKeysFalsePositiveRate;
+    }
+
+    /**
+     * <p>
+     * Sets the false positive rate of the known keys filter, that is, the fraction of lookups for missing keys that still
+     * reach the store.
+     * </p>
+     *
+     * @param knownKeysFalsePositiveRate
+     * @return
+     */
+    public CacheConfiguration setKnownKeysFalsePositiveRate(double knownKeysFalsePositiveRate) {
+        this.knownKeysFalsePositiveRate = knownKeysFalsePositiveRate;
+        return this;
+    }
+
+    public boolean isCaseInsensitiveKeys() {
+        return this.caseInsensitiveKeys;
+    }
+
+    /**
+     * <p>
+     * Sets whether the misses and the known keys filter ignore the case of the keys. Only stores that match identities
+     * ignoring case (eg.: LDAP) should enable it, otherwise a miss for a case variant of an existing key hides it.
+     * </p>
+     *
+     * @param caseInsensitiveKeys
+     * @return
+     */
+    public CacheConfiguration setCaseInsensitiveKeys(boolean caseInsensitiveKeys) {
+        this.caseInsensitiveKeys = caseInsensitiveKeys;
+        return this;
+    }
+
+    public int getQueryResultMaxEntries() {
+        return this.queryResultMaxEntries;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of cached query results. Zero, the default, disables the caching of query results.
+     * </p>
+     * <p>
+     * Cached results are only invalidated by the changes made through the
+     * {@link org.picketlink.idm.internal.cache.CachingIdentityStore}. Changes made through the setters of a user, group or
+     * role are persisted by the store that created it without going through the cache, so callers enabling query results
+     * must invalidate the identity through {@link org.picketlink.idm.IdentityCache#invalidate(org.picketlink.idm.model.User)}
+     * and its overloads after changing it.
+     * </p>
+     *
+     * @param queryResultMaxEntries
+     * @return
+     */
+    public CacheConfiguration setQueryResultMaxEntries(int queryResultMaxEntries) {
+        this.queryResultMaxEntries = queryResultMaxEntries;
+        return this;
+    }
+
+    public InvalidationTransport getInvalidationTransport() {
+        return this.invalidationTransport;
+    }
+
+    /**
+     * <p>
+     * Sets the transport used to propagate invalidations to other nodes. If not set, invalidations are local.
+     * </p>
+     *
+     * @param invalidationTransport
+     * @return
+     */
+    public CacheConfiguration setInvalidationTransport(InvalidationTransport invalidationTransport) {
+        this.invalidationTransport = invalidationTransport;
+        return this;
+    }
+
+    public int getInvalidationBatchSize() {
+        return this.invalidationBatchSize;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of invalidation messages sent to other nodes at once.
+     * </p>
+     *
+     * @param invalidationBatchSize
+     * @return
+     */
+    public CacheConfiguration setInvalidationBatchSize(int invalidationBatchSize) {
+        this.invalidationBatchSize = invalidationBatchSize;
+        return this;
+    }
+
+    public long getInvalidationMaxDelay() {
+        return this.invalidationMaxDelay;
+    }
+
+    /**
+     * <p>
+     * Sets how long, in milliseconds, an invalidation may wait to be batched with others before being sent. Zero sends each
+     * invalidation as soon as it happens.
+     * </p>
+     *
+     * @param invalidationMaxDelay
+     * @return
+     */
+    public CacheConfiguration setInvalidationMaxDelay(long invalidationMaxDelay) {
+        this.invalidationMaxDelay = invalidationMaxDelay;
+        return this;
+    }
+
+    public boolean isRequestCoalescing() {
+        return this.requestCoalescing;
+    }
+
+    /**
+     * <p>
+     * Enables or disables the sharing of a single store call between concurrent lookups of the same key.
+     * </p>
+     *
+     * @param requestCoalescing
+     * @return
+     */
+    public CacheConfiguration setRequestCoalescing(boolean requestCoalescing) {
+        this.requestCoalescing = requestCoalescing;
+        return this;
+    }
+
+    public int getWarmUpParallelism() {
+        return this.warmUpParallelism;
+    }
+
+    /**
+     * <p>
+     * Sets how many identity types are preloaded at the same time when the cache is warmed up.
+     * </p>
+     *
+     * @param warmUpParallelism
+     * @return
+     */
+    public CacheConfiguration setWarmUpParallelism(int warmUpParallelism) {
+        this.warmUpParallelism = warmUpParallelism;
+        return this;
+    }
+}
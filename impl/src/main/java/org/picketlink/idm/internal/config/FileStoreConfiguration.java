@@ -0,0 +1,323 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.config;
+
+import org.picketlink.idm.internal.file.FileBlockCodec;
+import org.picketlink.idm.internal.file.FileDurability;
+
+/**
+ * <p>
+ * Configuration for the {@link org.picketlink.idm.internal.file.FileBasedIdentityStore}.
+ * </p>
+ * <p>
+ * A store created with this configuration keeps its journals open, runs the flusher, compactor and watcher threads and holds
+ * the locks of its files until {@link org.picketlink.idm.internal.file.FileBasedIdentityStore#close()} is called. Neither the
+ * {@link org.picketlink.idm.spi.IdentityStore} contract nor the identity manager close it, so the caller that creates the
+ * store must close it once done, before another store can use the same working directory without waiting for the locks.
+ * </p>
+ */
+public class FileStoreConfiguration {
+
+    private String workingDir;
+    private boolean alwaysCreateFiles = true;
+    private int compactionThreshold = 1000;
+    private FileDurability durability = FileDurability.GROUP_COMMIT;
+    private long commitLatency = 10;
+    private long syncInterval = 1000;
+    private boolean mappedUsers = false;
+    private int userRetention = 1000;
+    private boolean offHeapUsers = false;
+    private int slabSize = 1 << 20;
+    private FileBlockCodec blockCodec;
+    private int shards = 1;
+    private int ioThreads;
+    private long watchInterval;
+
+    public String getWorkingDir() {
+        return this.workingDir;
+    }
+
+    /**
+     * <p>
+     * Sets the base directory which will be used to store informations. Defaults to the <code>java.io.tmpdir</code> system
+     * property.
+     * </p>
+     *
+     * @param workingDir
+     * @return
+     */
+    public FileStoreConfiguration setWorkingDir(String workingDir) {
+        this.workingDir = workingDir;
+        return this;
+    }
+
+    public boolean isAlwaysCreateFiles() {
+        return this.alwaysCreateFiles;
+    }
+
+    /**
+     * <p>
+     * Indicates that the files must be always recreated during the initialization.
+     * </p>
+     *
+     * @param alwaysCreateFiles
+     * @return
+     */
+    public FileStoreConfiguration setAlwaysCreateFiles(boolean alwaysCreateFiles) {
+        this.alwaysCreateFiles = alwaysCreateFiles;
+        return this;
+    }
+
+    public int getCompactionThreshold() {
+        return this.compactionThreshold;
+    }
+
+    /**
+     * <p>
+     * Sets the number of records a journal can hold before it is compacted into a new snapshot. Zero or less disables the
+     * background compaction.
+     * </p>
+     *
+     * @param compactionThreshold
+     * @return
+     */
+    public FileStoreConfiguration setCompactionThreshold(int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+        return this;
+    }
+
+    public FileDurability getDurability() {
+        return this.durability;
+    }
+
+    /**
+     * <p>
+     * Sets when changes are written and synced to disk.
+     * </p>
+     *
+     * @param durability
+     * @return
+     */
+    public FileStoreConfiguration setDurability(FileDurability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    public long getCommitLatency() {
+        return this.commitLatency;
+    }
+
+    /**
+     * <p>
+     * Sets how long, in milliseconds, changes can be buffered before being written. Only used by the
+     * {@link FileDurability#GROUP_COMMIT} and {@link FileDurability#ASYNC} modes.
+     * </p>
+     *
+     * @param commitLatency
+     * @return
+     */
+    public FileStoreConfiguration setCommitLatency(long commitLatency) {
+        this.commitLatency = commitLatency;
+        return this;
+    }
+
+    public long getSyncInterval() {
+        return this.syncInterval;
+    }
+
+    /**
+     * <p>
+     * Sets how often, in milliseconds, written changes are synced to disk in the {@link FileDurability#ASYNC} mode.
+     * </p>
+     *
+     * @param syncInterval
+     * @return
+     */
+    public FileStoreConfiguration setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+        return this;
+    }
+
+    public boolean isMappedUsers() {
+        return this.mappedUsers;
+    }
+
+    /**
+     * <p>
+     * Sets whether users are read on demand from a memory-mapped snapshot instead of being all loaded on the heap. See
+     * {@link org.picketlink.idm.internal.file.MappedUserMap}.
+     * </p>
+     *
+     * @param mappedUsers
+     * @return
+     */
+    public FileStoreConfiguration setMappedUsers(boolean mappedUsers) {
+        this.mappedUsers = mappedUsers;
+        return this;
+    }
+
+    public int getUserRetention() {
+        return this.userRetention;
+    }
+
+    /**
+     * <p>
+     * Sets how many of the most recently used users are kept decoded when users are memory-mapped. Zero decodes users on every
+     * lookup.
+     * </p>
+     *
+     * @param userRetention
+     * @return
+     */
+    public FileStoreConfiguration setUserRetention(int userRetention) {
+        this.userRetention = userRetention;
+        return this;
+    }
+
+    public boolean isOffHeapUsers() {
+        return this.offHeapUsers;
+    }
+
+    /**
+     * <p>
+     * Sets whether users are kept encoded in direct buffers outside of the heap instead of as heap objects. Ignored if users
+     * are memory-mapped. See {@link org.picketlink.idm.internal.file.OffHeapUserMap}.
+     * </p>
+     *
+     * @param offHeapUsers
+     * @return
+     */
+    public FileStoreConfiguration setOffHeapUsers(boolean offHeapUsers) {
+        this.offHeapUsers = offHeapUsers;
+        return this;
+    }
+
+    public int getSlabSize() {
+        return this.slabSize;
+    }
+
+    /**
+     * <p>
+     * Sets the size of the direct buffers allocated for users kept outside of the heap. Defaults to 1 MiB.
+     * </p>
+     *
+     * @param slabSize
+     * @return
+     */
+    public FileStoreConfiguration setSlabSize(int slabSize) {
+        this.slabSize = slabSize;
+        return this;
+    }
+
+    public FileBlockCodec getBlockCodec() {
+        return this.blockCodec;
+    }
+
+    /**
+     * <p>
+     * Sets the codec compressing the snapshots and the journal writes, eg.: a {@link org.picketlink.idm.internal.file.DeflateBlockCodec}. Defaults to none.
+     * Compression pays off when the entities carry many repeated attribute names and values and disk I/O costs more than
+     * CPU. Memory-mapped users snapshots are never compressed.
+     * </p>
+     *
+     * @param blockCodec
+     * @return
+     */
+    public FileStoreConfiguration setBlockCodec(FileBlockCodec blockCodec) {
+        this.blockCodec = blockCodec;
+        return this;
+    }
+
+    public int getShards() {
+        return this.shards;
+    }
+
+    /**
+     * <p>
+     * Sets the number of shards each kind of entity is partitioned into by the hash of its key. Each shard has its own
+     * snapshot and journal files and its own lock, and shards are loaded, written and compacted in parallel. Defaults to one,
+     * which keeps a single pair of files per kind of entity. Changing the number of shards of an existing working directory
+     * moves the entities to the new shards on the next startup.
+     * </p>
+     *
+     * @param shards
+     * @return
+     */
+    public FileStoreConfiguration setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("The number of shards must be positive.");
+        }
+
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Returns the number of threads loading, writing and compacting the shards. Unless configured, one thread per shard up to
+     * the number of available processors.
+     * </p>
+     *
+     * @return
+     */
+    public int getIoThreads() {
+        if (this.ioThreads > 0) {
+            return this.ioThreads;
+        }
+
+        return Math.max(1, Math.min(this.shards, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * <p>
+     * Sets the number of threads loading, writing and compacting the shards.
+     * </p>
+     *
+     * @param ioThreads
+     * @return
+     */
+    public FileStoreConfiguration setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    public long getWatchInterval() {
+        return this.watchInterval;
+    }
+
+    /**
+     * <p>
+     * Sets how often, in milliseconds, the files are checked for changes made by other processes sharing the working
+     * directory, which are then applied to the entities and indexes in memory. Defaults to zero, which disables watching; the
+     * changes can still be applied on demand with
+     * {@link org.picketlink.idm.internal.file.FileBasedIdentityStore#refresh()}.
+     * </p>
+     *
+     * @param watchInterval
+     * @return
+     */
+    public FileStoreConfiguration setWatchInterval(long watchInterval) {
+        this.watchInterval = watchInterval;
+        return this;
+    }
+}
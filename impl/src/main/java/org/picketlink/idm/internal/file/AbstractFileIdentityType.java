@@ -36,10 +36,17 @@ import org.picketlink.idm.model.IdentityType;
 public abstract class AbstractFileIdentityType implements IdentityType, Serializable {
 
     private String key;
-    private boolean enabled = true;
-    private Date creationDate = null;
-    private Date expirationDate = null;
-    private Map<String, String[]> attributes = new HashMap<String, String[]>();
+    private volatile boolean enabled = true;
+    private volatile Date creationDate = null;
+    private volatile Date expirationDate = null;
+
+    /**
+     * <p>
+     * Replaced by a changed copy on each change, so that the attributes can be read and written to the journals without
+     * locking while other threads change them.
+     * </p>
+     */
+    private volatile Map<String, String[]> attributes = new HashMap<String, String[]>();
 
     protected transient FileChangeListener changeListener;
 
@@ -99,19 +106,32 @@ public abstract class AbstractFileIdentityType implements IdentityType, Serializ
 
     @Override
     public void setAttribute(String name, String value) {
-        this.attributes.put(name, new String[] { value });
-        update();
+        setAttribute(name, new String[] { value });
     }
 
     @Override
     public void setAttribute(String name, String[] values) {
-        this.attributes.put(name, values);
+        synchronized (this) {
+            Map<String, String[]> attributes = new HashMap<String, String[]>(this.attributes);
+
+            attributes.put(name, values);
+
+            this.attributes = attributes;
+        }
+
         update();
     }
 
     @Override
     public void removeAttribute(String name) {
-        this.attributes.remove(name);
+        synchronized (this) {
+            Map<String, String[]> attributes = new HashMap<String, String[]>(this.attributes);
+
+            attributes.remove(name);
+
+            this.attributes = attributes;
+        }
+
         update();
     }
 
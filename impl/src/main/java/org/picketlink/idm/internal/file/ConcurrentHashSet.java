@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * {@link java.util.Set} backed by a {@link ConcurrentHashMap}, used by the indexes of the {@link FileBasedIdentityStore} so
+ * that queries can iterate them while a writer changes them. Iterators are weakly consistent and never throw
+ * {@link java.util.ConcurrentModificationException}.
+ * </p>
+ * <p>
+ * The writers of each index are serialized by the index, so the backing map is created with a concurrency level of one.
+ * </p>
+ */
+class ConcurrentHashSet<E> extends AbstractSet<E> {
+
+    private final ConcurrentMap<E, Boolean> map;
+
+    ConcurrentHashSet() {
+        this(16);
+    }
+
+    ConcurrentHashSet(int initialCapacity) {
+        this.map = new ConcurrentHashMap<E, Boolean>(initialCapacity, 0.75f, 1);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractCollection#add(java.lang.Object)
+     */
+    @Override
+    public boolean add(E element) {
+        return this.map.put(element, Boolean.TRUE) == null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractCollection#remove(java.lang.Object)
+     */
+    @Override
+    public boolean remove(Object element) {
+        return this.map.remove(element) != null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractCollection#contains(java.lang.Object)
+     */
+    @Override
+    public boolean contains(Object element) {
+        return element != null && this.map.containsKey(element);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractCollection#iterator()
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return this.map.keySet().iterator();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+        return this.map.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractCollection#isEmpty()
+     */
+    @Override
+    public boolean isEmpty() {
+        return this.map.isEmpty();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractCollection#clear()
+     */
+    @Override
+    public void clear() {
+        this.map.clear();
+    }
+}
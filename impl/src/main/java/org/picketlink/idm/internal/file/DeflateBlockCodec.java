@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * {@link FileBlockCodec} compressing blocks with {@link Deflater}. The level trades the time to write the files for their
+ * size: {@link Deflater#BEST_SPEED} already removes most of the repeated attribute names and values, higher levels mostly
+ * cost more time.
+ * </p>
+ */
+public class DeflateBlockCodec implements FileBlockCodec {
+
+    public static final byte ID = 1;
+
+    private final int level;
+
+    public DeflateBlockCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level the compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     */
+    public DeflateBlockCodec(int level) {
+        this.level = level;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.picketlink.idm.internal.file.FileBlockCodec#getId()
+     */
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.picketlink.idm.internal.file.FileBlockCodec#compress(byte[], int, int)
+     */
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) throws IOException {
+        Deflater deflater = new Deflater(this.level, true);
+
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[Math.min(Math.max(length, 64), 65536)];
+
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.picketlink.idm.internal.file.FileBlockCodec#decompress(byte[], int, int, int)
+     */
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException {
+        Inflater inflater = new Inflater(true);
+
+        try {
+            // raw deflate streams need an extra byte of input to detect their end
+            byte[] input = new byte[length + 1];
+
+            System.arraycopy(data, offset, input, 0, length);
+            inflater.setInput(input);
+
+            byte[] raw = new byte[rawLength];
+            int inflated = 0;
+
+            while (inflated < rawLength) {
+                int count = inflater.inflate(raw, inflated, rawLength - inflated);
+
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                inflated += count;
+            }
+
+            if (inflated != rawLength) {
+                throw new IOException("Corrupted block: expected " + rawLength + " bytes, inflated " + inflated + ".");
+            }
+
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
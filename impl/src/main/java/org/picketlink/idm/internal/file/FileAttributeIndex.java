@@ -0,0 +1,318 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * <p>
+ * Inverted index of the attributes of one type of {@link IdentityType} stored by the {@link FileBasedIdentityStore}, mapping
+ * each attribute name and value to the keys of the identity types having it.
+ * </p>
+ * <p>
+ * The index is built on the first query filtering by attributes and is kept up to date afterwards by
+ * {@link #update(IdentityType)} and {@link #remove(String)}, called by the store whenever an identity type changes.
+ * </p>
+ * <p>
+ * Changes are serialized by the lock of this instance, while queries read the posting lists without locking.
+ * </p>
+ */
+class FileAttributeIndex {
+
+    private final Map<String, Map<String, Set<String>>> postings = new ConcurrentHashMap<String, Map<String, Set<String>>>(16,
+            0.75f, 1);
+
+    /**
+     * <p>
+     * Attribute values indexed for each key, needed to unindex an identity type after its attributes were changed in place.
+     * </p>
+     */
+    private final Map<String, Map<String, String[]>> indexed = new HashMap<String, Map<String, String[]>>();
+
+    private volatile boolean built;
+
+    boolean isBuilt() {
+        return this.built;
+    }
+
+    /**
+     * <p>
+     * Indexes the attributes of all the given identity types, unless the index was already built.
+     * </p>
+     *
+     * @param identityTypes
+     */
+    synchronized void build(Collection<? extends IdentityType> identityTypes) {
+        if (this.built) {
+            return;
+        }
+
+        clear();
+
+        for (IdentityType identityType : identityTypes) {
+            add(identityType.getKey(), identityType.getAttributes());
+        }
+
+        this.built = true;
+    }
+
+    /**
+     * <p>
+     * Indexes the current attributes of the given identity type, unindexing only the values it no longer has.
+     * </p>
+     *
+     * @param identityType
+     */
+    synchronized void update(IdentityType identityType) {
+        String key = identityType.getKey();
+
+        if (!this.built || key == null) {
+            return;
+        }
+
+        Map<String, String[]> previous = this.indexed.get(key);
+        Map<String, String[]> current = identityType.getAttributes();
+
+        if (previous == null) {
+            add(key, current);
+            return;
+        }
+
+        for (Entry<String, String[]> entry : new ArrayList<Entry<String, String[]>>(previous.entrySet())) {
+            String[] values = current == null ? null : current.get(entry.getKey());
+
+            if (!Arrays.equals(values, entry.getValue())) {
+                unindex(key, entry.getKey(), entry.getValue());
+                previous.remove(entry.getKey());
+            }
+        }
+
+        if (current != null) {
+            for (Entry<String, String[]> entry : current.entrySet()) {
+                if (!previous.containsKey(entry.getKey())) {
+                    index(key, entry.getKey(), entry.getValue());
+                    previous.put(entry.getKey(), copy(entry.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Removes the identity type with the given key from the index.
+     * </p>
+     *
+     * @param key
+     */
+    synchronized void remove(String key) {
+        if (!this.built) {
+            return;
+        }
+
+        Map<String, String[]> previous = this.indexed.remove(key);
+
+        if (previous != null) {
+            for (Entry<String, String[]> entry : previous.entrySet()) {
+                unindex(key, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    synchronized void clear() {
+        this.postings.clear();
+        this.indexed.clear();
+        this.built = false;
+    }
+
+    /**
+     * <p>
+     * Returns the keys of the identity types having, for every given attribute, at least one of the given values. The
+     * posting lists of the values of each attribute are merged, and the resulting sets are intersected starting from the
+     * smallest one.
+     * </p>
+     *
+     * @param filters
+     * @return
+     */
+    Set<String> find(Map<String, String[]> filters) {
+        List<Set<String>> candidates = new ArrayList<Set<String>>(filters.size());
+
+        for (Entry<String, String[]> filter : filters.entrySet()) {
+            Set<String> keys = find(filter.getKey(), filter.getValue());
+
+            if (keys.isEmpty()) {
+                return Collections.emptySet();
+            }
+
+            candidates.add(keys);
+        }
+
+        if (candidates.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Set<String> smallest = candidates.get(0);
+
+        for (Set<String> candidate : candidates) {
+            if (candidate.size() < smallest.size()) {
+                smallest = candidate;
+            }
+        }
+
+        Set<String> result = new HashSet<String>();
+
+        for (String key : smallest) {
+            boolean match = true;
+
+            for (Set<String> candidate : candidates) {
+                if (candidate != smallest && !candidate.contains(key)) {
+                    match = false;
+                    break;
+                }
+            }
+
+            if (match) {
+                result.add(key);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>
+     * Returns the keys of the identity types having any of the given values for the given attribute.
+     * </p>
+     */
+    private Set<String> find(String name, String[] values) {
+        Map<String, Set<String>> postings = this.postings.get(name);
+
+        if (postings == null || values == null) {
+            return Collections.emptySet();
+        }
+
+        if (values.length == 1) {
+            Set<String> keys = postings.get(values[0]);
+
+            return keys == null ? Collections.<String> emptySet() : keys;
+        }
+
+        Set<String> result = new HashSet<String>();
+
+        for (String value : values) {
+            Set<String> keys = postings.get(value);
+
+            if (keys != null) {
+                result.addAll(keys);
+            }
+        }
+
+        return result;
+    }
+
+    private void add(String key, Map<String, String[]> attributes) {
+        if (key == null) {
+            return;
+        }
+
+        Map<String, String[]> indexedAttributes = new HashMap<String, String[]>();
+
+        if (attributes != null) {
+            for (Entry<String, String[]> entry : attributes.entrySet()) {
+                index(key, entry.getKey(), entry.getValue());
+                indexedAttributes.put(entry.getKey(), copy(entry.getValue()));
+            }
+        }
+
+        this.indexed.put(key, indexedAttributes);
+    }
+
+    /**
+     * <p>
+     * Values arrays are set by callers and could be changed in place, the indexed ones are copied.
+     * </p>
+     */
+    private String[] copy(String[] values) {
+        return values == null ? null : values.clone();
+    }
+
+    private void index(String key, String name, String[] values) {
+        if (values == null) {
+            return;
+        }
+
+        Map<String, Set<String>> postings = this.postings.get(name);
+
+        if (postings == null) {
+            postings = new ConcurrentHashMap<String, Set<String>>(16, 0.75f, 1);
+            this.postings.put(name, postings);
+        }
+
+        for (String value : values) {
+            Set<String> keys = postings.get(value);
+
+            if (keys == null) {
+                keys = new ConcurrentHashSet<String>(4);
+                postings.put(value, keys);
+            }
+
+            keys.add(key);
+        }
+    }
+
+    private void unindex(String key, String name, String[] values) {
+        Map<String, Set<String>> postings = this.postings.get(name);
+
+        if (postings == null || values == null) {
+            return;
+        }
+
+        for (String value : values) {
+            Set<String> keys = postings.get(value);
+
+            if (keys != null) {
+                keys.remove(key);
+
+                if (keys.isEmpty()) {
+                    postings.remove(value);
+                }
+            }
+        }
+
+        if (postings.isEmpty()) {
+            this.postings.remove(name);
+        }
+    }
+}
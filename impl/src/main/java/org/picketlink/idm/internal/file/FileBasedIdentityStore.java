@@ -23,23 +23,38 @@
 package org.picketlink.idm.internal.file;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableSet;
 import java.util.Set;
-
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.picketlink.idm.internal.config.FileStoreConfiguration;
 import org.picketlink.idm.internal.jpa.DefaultMembershipQuery;
 import org.picketlink.idm.internal.util.Base64;
 import org.picketlink.idm.model.Group;
@@ -60,6 +75,51 @@ import org.picketlink.idm.spi.IdentityStore;
  * File based {@link IdentityStore} implementation. By default, each new instance recreate the data files. This behaviour can be
  * changed by configuring the <code>alwaysCreateFiles</code> property to false.
  * </p>
+ * <p>
+ * Changes are appended to a {@link FileJournal} per kind of entity instead of rewriting the whole data file, and the journals
+ * are compacted into new snapshots in the background. See {@link #setCompactionThreshold(int)}.
+ * </p>
+ * <p>
+ * By default changes are written in the background by a {@link FileJournalFlusher}, which commits the changes made by all
+ * threads together. See {@link #setDurability(FileDurability)} and {@link #sync()}.
+ * </p>
+ * <p>
+ * Users can be read on demand from a memory-mapped snapshot instead of being all kept on the heap, see
+ * {@link FileStoreConfiguration#setMappedUsers(boolean)} and {@link MappedUserMap}, or kept encoded outside of the heap, see
+ * {@link FileStoreConfiguration#setOffHeapUsers(boolean)} and {@link OffHeapUserMap}.
+ * </p>
+ * <p>
+ * Instances are thread-safe. Lookups and queries read concurrent maps and indexes without locking. Changes to each kind of
+ * entity are serialized by the lock of its journal, so that the journal records the changes in the order they were applied
+ * and a compaction copies a state matching the journal position it marks. Changes to different kinds of entities do not
+ * contend with each other.
+ * </p>
+ * <p>
+ * Each kind of entity can be partitioned by the hash of its key into several shards, each one with its own files and
+ * journal lock, see {@link FileStoreConfiguration#setShards(int)}. Shards are loaded, flushed and compacted in parallel on
+ * {@link FileStoreConfiguration#setIoThreads(int)} threads. Changing the number of shards of an existing store moves the
+ * entities to the new shards the next time it is loaded.
+ * </p>
+ * <p>
+ * Query results are ordered by the keys of the entities, ascending unless the query is sorted otherwise, and only the
+ * entities up to the end of the requested {@link Range} are visited.
+ * </p>
+ * <p>
+ * Several processes can share the same working directory. The changes made by the others are applied to the entities and
+ * indexes in memory by {@link #refresh()}, which only reads the records appended to the journals since the previous call,
+ * and is called periodically when {@link FileStoreConfiguration#setWatchInterval(long)} is set. Writes are coordinated by
+ * file locks, see {@link FileStoreLock}, and {@link #getLockStatistics()} tells how long they were waited for. Unless the
+ * files are recreated by this instance, the changes made by the others are applied before writing or compacting, so that
+ * the records of a journal are in the order the changes were applied in.
+ * </p>
+ * <p>
+ * Memberships and the parents of groups are persisted as the keys of the entities they refer to, which are resolved against
+ * the loaded roles, users and groups. Users kept outside of the heap are resolved when a membership is looked up instead.
+ * </p>
+ * <p>
+ * Consistent copies of the files, full or holding only the changes since the previous one, are taken while the store keeps
+ * running with {@link #snapshot(File, FileStoreSnapshot)}.
+ * </p>
  * 
  * @author <a href="mailto:psilva@redhat.com">Pedro Silva</a>
  * 
@@ -68,28 +128,49 @@ public class FileBasedIdentityStore implements IdentityStore {
 
     private static final String USER_PASSWORD_ATTRIBUTE = "userPassword";
     private static final String USER_CERTIFICATE_ATTRIBUTE_NAME = "userCertificate";
-    
-    private File usersFile;
-    private File rolesFile = new File("/tmp/pl-idm-work/pl-idm-roles.db");
-    private File groupsFile = new File("/tmp/pl-idm-work/pl-idm-groups.db");
-    private File membershipsFile = new File("/tmp/pl-idm-work/pl-idm-memberships.db");
 
-    private Map<String, FileUser> users = new HashMap<String, FileUser>();
-    private Map<String, Role> roles = new HashMap<String, Role>();
-    private Map<String, FileGroup> groups = new HashMap<String, FileGroup>();
-    private List<FileMembership> memberships = new ArrayList<FileMembership>();
+    private static final Logger LOGGER = Logger.getLogger(FileBasedIdentityStore.class.getName());
+    
+    private FileJournal[] usersJournals;
+    private FileJournal[] rolesJournals;
+    private FileJournal[] groupsJournals;
+    private FileJournal[] membershipsJournals;
+
+    private ShardedMap<FileUser> users;
+    private ShardedMap<Role> roles;
+    private ShardedMap<FileGroup> groups;
+    private final FileMembershipIndex memberships = new FileMembershipIndex();
+    private final FileUserIndex userIndex = new FileUserIndex();
+    private final FileAttributeIndex userAttributes = new FileAttributeIndex();
+    private final FileAttributeIndex groupAttributes = new FileAttributeIndex();
+    private final FileAttributeIndex roleAttributes = new FileAttributeIndex();
 
     private FileChangeListener changeListener = new FileChangeListener(this);
-    private String workingDir;
-    private boolean alwaysCreateFiles = true;
+    private final FileStoreConfiguration configuration;
+    private FileJournalFlusher flusher;
+    private FileStoreWatcher watcher;
+
+    private final ConcurrentMap<FileJournal, Boolean> compacting = new ConcurrentHashMap<FileJournal, Boolean>();
+    private final FileLockStatistics lockStatistics = new FileLockStatistics();
+
+    private final FileJournal.Tailer tailer = new FileJournal.Tailer() {
+        @Override
+        public void tail(FileJournal journal) {
+            FileBasedIdentityStore.this.tail(journal);
+        }
+    };
+    private ExecutorService compactor;
 
     public FileBasedIdentityStore() {
-        initialize();
+        this(new FileStoreConfiguration());
     }
 
     public FileBasedIdentityStore(String workingDir, boolean alwaysCreateFiles) {
-        this.workingDir = workingDir;
-        this.alwaysCreateFiles = alwaysCreateFiles;
+        this(new FileStoreConfiguration().setWorkingDir(workingDir).setAlwaysCreateFiles(alwaysCreateFiles));
+    }
+
+    public FileBasedIdentityStore(FileStoreConfiguration configuration) {
+        this.configuration = configuration;
         initialize();
     }
 
@@ -97,26 +178,166 @@ public class FileBasedIdentityStore implements IdentityStore {
      * <p>Initializes the store.</p>
      */
     private void initialize() {
-        initDataFiles();
+        File workingDirectoryFile = initWorkingDirectory();
+
+        initDataFiles(workingDirectoryFile);
+        load(workingDirectoryFile);
 
-        loadUsers();
-        loadRoles();
-        loadGroups();
-        loadMemberships();
+        for (FileJournal journal : getJournals()) {
+            if (journal.isLegacySnapshot()) {
+                compact(journal);
+            }
+
+            if (isShared()) {
+                journal.setTailer(this.tailer);
+            }
+        }
+
+        this.flusher = new FileJournalFlusher(getJournals(), this.configuration.getDurability(),
+                this.configuration.getCommitLatency(), this.configuration.getSyncInterval());
+
+        this.flusher.setParallelism(this.configuration.getIoThreads());
+
+        applyDurability();
+
+        if (this.configuration.getWatchInterval() > 0) {
+            this.watcher = new FileStoreWatcher(this, this.configuration.getWatchInterval());
+            this.watcher.start();
+        }
     }
 
     /**
      * <p>
-     * Initializes the files used to store the informations.
+     * Tells if the files are shared with other processes, which is assumed unless they are recreated by this instance.
      * </p>
      */
-    private void initDataFiles() {
-        File workingDirectoryFile = initWorkingDirectory();
+    private boolean isShared() {
+        return !this.configuration.isAlwaysCreateFiles();
+    }
+
+    private FileJournal[] getJournals() {
+        List<FileJournal> journals = new ArrayList<FileJournal>();
+
+        journals.addAll(Arrays.asList(this.usersJournals));
+        journals.addAll(Arrays.asList(this.rolesJournals));
+        journals.addAll(Arrays.asList(this.groupsJournals));
+        journals.addAll(Arrays.asList(this.membershipsJournals));
+
+        return journals.toArray(new FileJournal[journals.size()]);
+    }
+
+    /**
+     * <p>
+     * Returns the journal of the shard the given key belongs to.
+     * </p>
+     */
+    private FileJournal getJournal(FileJournal[] journals, String key) {
+        return journals[ShardedMap.shard(key, journals.length)];
+    }
+
+    private void applyDurability() {
+        for (FileJournal journal : getJournals()) {
+            try {
+                journal.setWriteBehind(this.configuration.getDurability() != FileDurability.SYNC);
+            } catch (IOException e) {
+                throw new RuntimeException("Error writing journal " + journal.getJournalFile() + ".", e);
+            }
+        }
+
+        this.flusher.setDurability(this.configuration.getDurability());
+    }
+
+    /**
+     * <p>
+     * Initializes the files used to store the informations. Each kind of entity has, for each shard, a snapshot file and a
+     * journal with the changes made after the snapshot was written. With a single shard the files are named after the kind
+     * of entity only, eg.: <code>pl-idm-users.db</code>, otherwise the index of the shard is appended, eg.:
+     * <code>pl-idm-users-0.db</code>.
+     * </p>
+     */
+    private void initDataFiles(File workingDirectoryFile) {
+        int shards = this.configuration.getShards();
+
+        this.usersJournals = createJournals(workingDirectoryFile, "pl-idm-users", FileStoreCodec.USERS, shards);
+        this.rolesJournals = createJournals(workingDirectoryFile, "pl-idm-roles", FileStoreCodec.ROLES, shards);
+        this.groupsJournals = createJournals(workingDirectoryFile, "pl-idm-groups", FileStoreCodec.GROUPS, shards);
+        this.membershipsJournals = createJournals(workingDirectoryFile, "pl-idm-memberships", FileStoreCodec.MEMBERSHIPS,
+                shards);
+    }
+
+    private FileJournal[] createJournals(File workingDirectoryFile, String name, byte type, int shards) {
+        FileJournal[] journals = new FileJournal[shards];
+
+        for (int i = 0; i < shards; i++) {
+            journals[i] = createJournal(workingDirectoryFile, getShardName(name, i, shards), type);
+        }
+
+        return journals;
+    }
+
+    private String getShardName(String name, int shard, int shards) {
+        return shards == 1 ? name : name + "-" + shard;
+    }
+
+    private FileJournal createJournal(File workingDirectoryFile, String name, byte type) {
+        FileJournal journal = new FileJournal(checkAndCreateFile(new File(workingDirectoryFile.getPath() + "/" + name + ".db")),
+                checkAndCreateFile(new File(workingDirectoryFile.getPath() + "/" + name + ".journal")), type);
+
+        journal.setBlockCodec(this.configuration.getBlockCodec());
+        journal.setLockStatistics(this.lockStatistics);
+
+        // memory-mapped users are read from the records in place
+        journal.setSnapshotCompressed(type != FileStoreCodec.USERS || !this.configuration.isMappedUsers());
+
+        return journal;
+    }
+
+    /**
+     * <p>
+     * Returns the journals of the given kind of entity left by a store configured with a different number of shards. They are
+     * deleted if the files are always recreated.
+     * </p>
+     */
+    private List<FileJournal> findStrayJournals(File workingDirectoryFile, String name, byte type) {
+        Pattern pattern = Pattern.compile(Pattern.quote(name) + "(-\\d+)?\\.(db|journal)");
+        Set<String> current = new HashSet<String>();
+        Set<String> strays = new TreeSet<String>();
+        int shards = this.configuration.getShards();
+
+        for (int i = 0; i < shards; i++) {
+            current.add(getShardName(name, i, shards));
+        }
+
+        String[] files = workingDirectoryFile.list();
+
+        if (files != null) {
+            for (String file : files) {
+                if (pattern.matcher(file).matches()) {
+                    String base = file.substring(0, file.lastIndexOf('.'));
+
+                    if (!current.contains(base)) {
+                        strays.add(base);
+                    }
+                }
+            }
+        }
+
+        List<FileJournal> journals = new ArrayList<FileJournal>();
+
+        for (String base : strays) {
+            FileJournal journal = new FileJournal(new File(workingDirectoryFile, base + ".db"), new File(workingDirectoryFile,
+                    base + ".journal"), type);
+
+            journal.setBlockCodec(this.configuration.getBlockCodec());
+
+            if (this.configuration.isAlwaysCreateFiles()) {
+                journal.delete();
+            } else {
+                journals.add(journal);
+            }
+        }
 
-        this.usersFile = checkAndCreateFile(new File(workingDirectoryFile.getPath() + "/pl-idm-users.db"));
-        this.rolesFile = checkAndCreateFile(new File(workingDirectoryFile.getPath() + "/pl-idm-roles.db"));
-        this.groupsFile = checkAndCreateFile(new File(workingDirectoryFile.getPath() + "/pl-idm-groups.db"));
-        this.membershipsFile = checkAndCreateFile(new File(workingDirectoryFile.getPath() + "/pl-idm-memberships.db"));
+        return journals;
     }
 
     /**
@@ -149,7 +370,7 @@ public class FileBasedIdentityStore implements IdentityStore {
      * @return
      */
     private File checkAndCreateFile(File file) {
-        if (this.alwaysCreateFiles && file.exists()) {
+        if (this.configuration.isAlwaysCreateFiles() && file.exists()) {
             file.delete();
         }
 
@@ -164,145 +385,962 @@ public class FileBasedIdentityStore implements IdentityStore {
     }
 
     /**
-     * <p>Load all persisted groups from the filesystem.</p>
+     * <p>
+     * Loads all persisted entities from the filesystem. Each shard of each kind of entity is loaded by its own task, and the
+     * tasks run on the configured number of I/O threads.
+     * </p>
+     * <p>
+     * Entities found in the files of a different number of shards are moved to the current shards, which are then compacted
+     * before the stray files are deleted.
+     * </p>
+     */
+    private void load(File workingDirectoryFile) {
+        final int shards = this.configuration.getShards();
+        final Map<String, FileUser>[] userShards = newShardTables(shards);
+        final Map<String, Role>[] roleShards = newShardTables(shards);
+        final Map<String, FileGroup>[] groupShards = newShardTables(shards);
+        final Map<String, FileMembership>[] membershipShards = newShardTables(shards);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (int i = 0; i < shards; i++) {
+            final int shard = i;
+
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    userShards[shard] = loadUsers(usersJournals[shard]);
+                    return null;
+                }
+            });
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    roleShards[shard] = loadShard(rolesJournals[shard], new ConcurrentHashMap<String, Role>(), true);
+                    return null;
+                }
+            });
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    groupShards[shard] = loadShard(groupsJournals[shard], new ConcurrentHashMap<String, FileGroup>(), true);
+                    return null;
+                }
+            });
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    // memberships are journaled by the keys of their role, user and group, so replaying a membership
+                    // already in the snapshot does not add it twice
+                    membershipShards[shard] = loadShard(membershipsJournals[shard],
+                            new LinkedHashMap<String, FileMembership>(), true);
+                    return null;
+                }
+            });
+        }
+
+        runAll(tasks, "picketlink-file-loader");
+
+        this.users = new ShardedMap<FileUser>(Arrays.asList(userShards));
+        this.roles = new ShardedMap<Role>(Arrays.asList(roleShards));
+        this.groups = new ShardedMap<FileGroup>(Arrays.asList(groupShards));
+
+        ShardedMap<FileMembership> loadedMemberships = new ShardedMap<FileMembership>(Arrays.asList(membershipShards));
+
+        migrate(findStrayJournals(workingDirectoryFile, "pl-idm-users", FileStoreCodec.USERS), this.users,
+                this.usersJournals);
+        migrate(findStrayJournals(workingDirectoryFile, "pl-idm-roles", FileStoreCodec.ROLES), this.roles,
+                this.rolesJournals);
+        migrate(findStrayJournals(workingDirectoryFile, "pl-idm-groups", FileStoreCodec.GROUPS), this.groups,
+                this.groupsJournals);
+
+        List<FileJournal> strayMemberships = findStrayJournals(workingDirectoryFile, "pl-idm-memberships",
+                FileStoreCodec.MEMBERSHIPS);
+
+        loadStrays(strayMemberships, loadedMemberships);
+
+        for (FileGroup group : this.groups.values()) {
+            resolveParent(group);
+        }
+
+        for (FileMembership membership : loadedMemberships.values()) {
+            this.memberships.add(resolve(membership));
+        }
+
+        finishMigration(strayMemberships, this.membershipsJournals);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <V> Map<String, V>[] newShardTables(int shards) {
+        return new Map[shards];
+    }
+
+    private Map<String, FileUser> loadUsers(FileJournal journal) {
+        if (!this.configuration.isMappedUsers()) {
+            if (this.configuration.isOffHeapUsers()) {
+                return loadShard(journal, new OffHeapUserMap(this.configuration.getSlabSize()), true);
+            }
+
+            return loadShard(journal, new ConcurrentHashMap<String, FileUser>(), true);
+        }
+
+        File snapshotFile = journal.getSnapshotFile();
+        int shards = this.configuration.getShards();
+
+        lock(journal, false);
+
+        try {
+            MappedUserMap users;
+
+            try {
+                FileStoreConverter.convert(snapshotFile, FileStoreCodec.USERS);
+                FileStoreConverter.uncompress(snapshotFile, FileStoreCodec.USERS, this.configuration.getBlockCodec());
+
+                users = new MappedUserMap(snapshotFile, (this.configuration.getUserRetention() + shards - 1) / shards);
+            } catch (IOException e) {
+                throw new RuntimeException("Error loading snapshot " + snapshotFile + ".", e);
+            }
+
+            return loadShard(journal, users, false);
+        } finally {
+            unlock(journal, false);
+        }
+    }
+
+    /**
+     * <p>
+     * Loads the snapshot, unless it is memory-mapped, and replays the journal of a shard into the given map. The exclusive
+     * lock of the shard is held meanwhile, so that the snapshot and the journal read were written by the same compaction.
+     * </p>
+     */
+    @SuppressWarnings("unchecked")
+    private <V> Map<String, V> loadShard(FileJournal journal, final Map<String, V> shard, boolean readSnapshot) {
+        lock(journal, false);
+
+        try {
+            if (readSnapshot) {
+                List<Object> snapshot = readSnapshot(journal);
+
+                if (snapshot != null) {
+                    for (Object entity : snapshot) {
+                        shard.put(getKey(entity), (V) entity);
+                    }
+                }
+            }
+
+            openJournal(journal, new FileJournal.Replayer() {
+                @Override
+                public void put(String key, Object value) {
+                    shard.put(key, (V) value);
+                }
+
+                @Override
+                public void remove(String key) {
+                    shard.remove(key);
+                }
+            });
+        } finally {
+            unlock(journal, false);
+        }
+
+        return shard;
+    }
+
+    private void lock(FileJournal journal, boolean shared) {
+        try {
+            journal.lock(shared);
+        } catch (IOException e) {
+            throw new RuntimeException("Error locking journal " + journal.getJournalFile() + ".", e);
+        }
+    }
+
+    private void unlock(FileJournal journal, boolean shared) {
+        try {
+            journal.unlock(shared);
+        } catch (IOException e) {
+            throw new RuntimeException("Error unlocking journal " + journal.getJournalFile() + ".", e);
+        }
+    }
+
+    private String getKey(Object entity) {
+        if (entity instanceof FileMembership) {
+            return getMembershipKey((FileMembership) entity);
+        }
+
+        return ((IdentityType) entity).getKey();
+    }
+
+    /**
+     * <p>
+     * Moves the entities of the given stray journals to the current shards.
+     * </p>
+     */
+    private <V> void migrate(List<FileJournal> strays, ShardedMap<V> shards, FileJournal[] journals) {
+        loadStrays(strays, shards);
+        finishMigration(strays, journals);
+    }
+
+    private <V> void loadStrays(List<FileJournal> strays, ShardedMap<V> shards) {
+        if (strays.isEmpty()) {
+            return;
+        }
+
+        // the current files were written with a different number of shards too, move their entities to their shard
+        for (int i = 0; i < shards.getShardCount(); i++) {
+            Map<String, V> shard = shards.getShard(i);
+
+            for (String key : new ArrayList<String>(shard.keySet())) {
+                if (ShardedMap.shard(key, shards.getShardCount()) != i) {
+                    // memory-mapped users are not returned by remove unless they are on the heap
+                    V value = shard.get(key);
+
+                    shard.remove(key);
+                    shards.put(key, value);
+                }
+            }
+        }
+
+        for (FileJournal stray : strays) {
+            Map<String, V> loaded = loadShard(stray, new LinkedHashMap<String, V>(), true);
+
+            stray.close();
+
+            // the current shards are newer if a previous migration stopped before deleting the stray files
+            for (Entry<String, V> entry : loaded.entrySet()) {
+                if (!shards.containsKey(entry.getKey())) {
+                    shards.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private void finishMigration(List<FileJournal> strays, FileJournal[] journals) {
+        if (strays.isEmpty()) {
+            return;
+        }
+
+        for (FileJournal journal : journals) {
+            compact(journal);
+        }
+
+        for (FileJournal stray : strays) {
+            stray.delete();
+        }
+    }
+
+    /**
+     * <p>
+     * Runs the given tasks on a temporary pool of the configured number of I/O threads, or on the caller's thread if only one
+     * is configured, and rethrows the first failure.
+     * </p>
      */
-    private void loadGroups() {
-        ObjectInputStream ois = null;
+    private void runAll(List<Callable<Void>> tasks, final String threadName) {
+        int threads = Math.min(this.configuration.getIoThreads(), tasks.size());
+
+        if (threads <= 1) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
 
         try {
-            FileInputStream fis = new FileInputStream(groupsFile);
-            ois = new ObjectInputStream(fis);
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
 
-            this.groups = (Map<String, FileGroup>) ois.readObject();
-        } catch (Exception e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading the store.", e);
         } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Object> readSnapshot(FileJournal journal) {
+        try {
+            return journal.readSnapshot();
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading snapshot " + journal.getSnapshotFile() + ".", e);
+        }
+    }
+
+    private void openJournal(FileJournal journal, FileJournal.Replayer replayer) {
+        try {
+            journal.open(replayer);
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading journal " + journal.getJournalFile() + ".", e);
+        }
+    }
+
+    /**
+     * <p>Records the current state of the given user.</p>
+     * 
+     * @param user
+     */
+    void userChanged(FileUser user) {
+        FileJournal journal = getJournal(this.usersJournals, user.getId());
+
+        synchronized (journal) {
+            if (this.configuration.isMappedUsers() || this.configuration.isOffHeapUsers()) {
+                // instances that are not retained are only reachable from the caller, keep the changed one
+                this.users.put(user.getId(), user);
+            }
+
+            this.userIndex.update(user);
+            this.userAttributes.update(user);
+
+            append(journal, user.getId(), user);
+        }
+    }
+
+    /**
+     * <p>Records the current state of the given role.</p>
+     * 
+     * @param role
+     */
+    void roleChanged(FileRole role) {
+        FileJournal journal = getJournal(this.rolesJournals, role.getName());
+
+        synchronized (journal) {
+            this.roleAttributes.update(role);
+
+            append(journal, role.getName(), role);
+        }
+    }
+
+    /**
+     * <p>Records the current state of the given group.</p>
+     * 
+     * @param group
+     */
+    void groupChanged(FileGroup group) {
+        FileJournal journal = getJournal(this.groupsJournals, group.getName());
+
+        synchronized (journal) {
+            this.groupAttributes.update(group);
+
+            append(journal, group.getName(), group);
+        }
+    }
+
+    private void append(FileJournal journal, String key, Object value) {
+        journal.put(key, value);
+        this.flusher.changed();
+        compactIfNeeded(journal);
+    }
+
+    private void appendRemove(FileJournal journal, String key) {
+        journal.remove(key);
+        this.flusher.changed();
+        compactIfNeeded(journal);
+    }
+
+    /**
+     * <p>
+     * Requests all changes made so far to be written and synced to disk. Depending on the {@link FileDurability}, changes are
+     * only buffered when the call making them returns; callers that need them on disk wait on the returned {@link Future}.
+     * </p>
+     * 
+     * <pre>
+     * store.createUser(&quot;asaldhana&quot;);
+     * store.sync().get();
+     * </pre>
+     * 
+     * @return
+     */
+    public Future<Void> sync() {
+        return this.flusher.sync();
+    }
+
+    /**
+     * <p>
+     * Schedules the compaction of the given journal once it holds more than the configured number of records. The state is
+     * copied on the caller's thread, which costs one pass over the collection every <code>compactionThreshold</code> writes,
+     * and is written to disk in the background.
+     * </p>
+     * 
+     * @param journal
+     */
+    private void compactIfNeeded(final FileJournal journal) {
+        int compactionThreshold = this.configuration.getCompactionThreshold();
+
+        if (compactionThreshold <= 0 || journal.getRecordCount() < compactionThreshold) {
+            return;
+        }
+
+        if (this.compacting.putIfAbsent(journal, Boolean.TRUE) != null) {
+            return;
+        }
+
+        final long mark;
+        final Collection<?> snapshot;
+
+        synchronized (journal) {
+            // no other process appends between the records applied and the mark
+            lock(journal, false);
+
             try {
-                if (ois != null) {
-                    ois.close();
+                if (isShared()) {
+                    tail(journal);
                 }
-            } catch (IOException e) {
+
+                mark = journal.mark();
+                snapshot = copyState(journal);
+            } finally {
+                unlock(journal, false);
+            }
+        }
+
+        try {
+            getCompactor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (journal.compact(snapshot, mark)) {
+                            snapshotWritten(journal, snapshot);
+                        }
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Error compacting journal " + journal.getJournalFile() + ".", e);
+                    } finally {
+                        compacting.remove(journal);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.compacting.remove(journal);
+        }
+    }
+
+    /**
+     * <p>
+     * Copies the entities stored by the shard the given journal belongs to.
+     * </p>
+     */
+    private Collection<?> copyState(FileJournal journal) {
+        int shard = indexOf(this.usersJournals, journal);
+
+        if (shard >= 0) {
+            if (this.configuration.isMappedUsers()) {
+                return ((MappedUserMap) this.users.getShard(shard)).snapshot();
+            }
+
+            return new ArrayList<FileUser>(this.users.getShard(shard).values());
+        }
+
+        shard = indexOf(this.rolesJournals, journal);
+
+        if (shard >= 0) {
+            return new ArrayList<Role>(this.roles.getShard(shard).values());
+        }
+
+        shard = indexOf(this.groupsJournals, journal);
+
+        if (shard >= 0) {
+            return new ArrayList<FileGroup>(this.groups.getShard(shard).values());
+        }
+
+        shard = indexOf(this.membershipsJournals, journal);
+
+        List<FileMembership> memberships = new ArrayList<FileMembership>();
+
+        for (FileMembership membership : this.memberships.all()) {
+            if (ShardedMap.shard(getMembershipKey(membership), this.membershipsJournals.length) == shard) {
+                memberships.add(membership);
+            }
+        }
+
+        return memberships;
+    }
+
+    private int indexOf(FileJournal[] journals, FileJournal journal) {
+        for (int i = 0; i < journals.length; i++) {
+            if (journals[i] == journal) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private synchronized ExecutorService getCompactor() {
+        if (this.compactor == null) {
+            this.compactor = Executors.newFixedThreadPool(this.configuration.getIoThreads(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "picketlink-file-compactor");
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+        }
+
+        return this.compactor;
+    }
+
+    /**
+     * <p>
+     * Writes new snapshots for all entities and truncates the journals, on the caller's thread.
+     * </p>
+     */
+    public void compact() {
+        for (FileJournal journal : getJournals()) {
+            compact(journal);
+        }
+    }
+
+    private void compact(FileJournal journal) {
+        long mark;
+        Collection<?> snapshot;
+
+        synchronized (journal) {
+            // no other process appends between the records applied and the mark
+            lock(journal, false);
+
+            try {
+                if (isShared()) {
+                    tail(journal);
+                }
+
+                mark = journal.mark();
+                snapshot = copyState(journal);
+            } finally {
+                unlock(journal, false);
+            }
+        }
+
+        try {
+            if (journal.compact(snapshot, mark)) {
+                snapshotWritten(journal, snapshot);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error compacting journal " + journal.getJournalFile() + ".", e);
+        }
+    }
+
+    /**
+     * <p>
+     * Switches the memory-mapped users to the snapshot just written, releasing the changes it includes from the heap.
+     * </p>
+     */
+    @SuppressWarnings("unchecked")
+    private void snapshotWritten(FileJournal journal, Collection<?> snapshot) throws IOException {
+        int shard = indexOf(this.usersJournals, journal);
+
+        if (shard >= 0 && this.configuration.isMappedUsers()) {
+            ((MappedUserMap) this.users.getShard(shard)).reload((Collection<FileUser>) snapshot);
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the buffered changes, stops the background compaction and closes the journals. Changes already made are kept in
+     * the journals and replayed the next time the store is created with <code>alwaysCreateFiles</code> set to false.
+     * </p>
+     * <p>
+     * Also releases the locks of the files. Must be called by whoever created the store, as it is not part of the
+     * {@link IdentityStore} contract.
+     * </p>
+     */
+    public void close() {
+        if (this.watcher != null) {
+            this.watcher.close();
+        }
+
+        this.flusher.close();
+
+        synchronized (this) {
+            if (this.compactor != null) {
+                this.compactor.shutdown();
+            }
+        }
+
+        try {
+            if (this.compactor != null) {
+                this.compactor.awaitTermination(30, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (FileJournal journal : getJournals()) {
+            journal.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Copies the files of the store, as they are at the time of the call, to the given directory. See
+     * {@link #snapshot(File, FileStoreSnapshot)}.
+     * </p>
+     *
+     * @param directory
+     * @return
+     */
+    public FileStoreSnapshot snapshot(File directory) {
+        return snapshot(directory, null);
+    }
+
+    /**
+     * <p>
+     * Copies the files of the store, as they are at the time of the call, to the given directory while the store keeps
+     * running. Changes are only blocked while the buffered changes are written and the files are opened, not while they are
+     * copied.
+     * </p>
+     * <p>
+     * Given a previous snapshot, only the records appended to the journals since then are copied, except for the shards
+     * compacted in between. The snapshots are restored with {@link FileStoreSnapshot#restore(File, File...)}.
+     * </p>
+     *
+     * <pre>
+     * FileStoreSnapshot full = store.snapshot(new File(&quot;backup-0&quot;));
+     * FileStoreSnapshot incremental = store.snapshot(new File(&quot;backup-1&quot;), full);
+     * </pre>
+     *
+     * @param directory
+     * @param previous the previous snapshot, or null to copy all the files
+     * @return
+     */
+    public FileStoreSnapshot snapshot(File directory, FileStoreSnapshot previous) {
+        FileStoreSnapshot snapshot = new FileStoreSnapshot(directory, previous);
+
+        try {
+            try {
+                capture(snapshot, getJournals(), 0);
+                snapshot.write();
+            } finally {
+                snapshot.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing snapshot to " + directory + ".", e);
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * <p>
+     * Captures the given journal and the ones after it while holding the locks of all of them, so that the snapshot matches a
+     * single point in time across the shards.
+     * </p>
+     */
+    private void capture(FileStoreSnapshot snapshot, FileJournal[] journals, int index) throws IOException {
+        if (index == journals.length) {
+            return;
+        }
+
+        synchronized (journals[index]) {
+            snapshot.capture(journals[index]);
+            capture(snapshot, journals, index + 1);
+        }
+    }
+
+    /**
+     * <p>
+     * Applies the changes made by other processes sharing the working directory since the files were last read. Only the
+     * records appended to the journals meanwhile are read, and the entities and indexes in memory are updated in place. A
+     * shard compacted by another process is read again, and only the entities that differ from the ones in memory are
+     * applied. Changes made by this instance and not written yet take precedence.
+     * </p>
+     */
+    public void refresh() {
+        for (FileJournal journal : getJournals()) {
+            synchronized (journal) {
+                tail(journal);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Applies the changes made by other processes to the shard of the given journal, whose lock must be held.
+     * </p>
+     */
+    private void tail(FileJournal journal) {
+        FileJournal.Replayer replayer = new ExternalChangeReplayer(journal.getType());
+
+        try {
+            if (!journal.tail(replayer)) {
+                reload(journal, replayer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading journal " + journal.getJournalFile() + ".", e);
+        }
+    }
+
+    /**
+     * <p>
+     * Reads the files of a shard compacted by another process, and applies the entities that differ from the ones in memory.
+     * </p>
+     */
+    private void reload(FileJournal journal, FileJournal.Replayer replayer) throws IOException {
+        final Map<String, Object> state = new LinkedHashMap<String, Object>();
+        boolean complete;
+
+        journal.lock(true);
+
+        try {
+            journal.reopen();
+
+            List<Object> snapshot = journal.readSnapshot();
+
+            if (snapshot != null) {
+                for (Object entity : snapshot) {
+                    state.put(getKey(entity), entity);
+                }
+            }
+
+            complete = journal.tail(new FileJournal.Replayer() {
+                @Override
+                public void put(String key, Object value) {
+                    state.put(key, value);
+                }
+
+                @Override
+                public void remove(String key) {
+                    state.remove(key);
+                }
+            });
+        } finally {
+            journal.unlock(true);
+        }
+
+        if (!complete) {
+            // compacted again meanwhile, read by the next refresh
+            return;
+        }
+
+        for (Entry<String, Object> entry : state.entrySet()) {
+            if (!journal.isDirty(entry.getKey()) && !isCurrent(journal, entry.getKey(), entry.getValue())) {
+                replayer.put(entry.getKey(), entry.getValue());
             }
         }
+
+        for (String key : getKeys(journal)) {
+            if (!state.containsKey(key) && !journal.isDirty(key)) {
+                replayer.remove(key);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Tells if the given entity read from the files has the same state as the one in memory.
+     * </p>
+     */
+    private boolean isCurrent(FileJournal journal, String key, Object entity) throws IOException {
+        if (journal.getType() == FileStoreCodec.MEMBERSHIPS) {
+            return !this.memberships.get(key).isEmpty();
+        }
+
+        Object current = getShard(journal).get(key);
+
+        return current != null && Arrays.equals(FileStoreCodec.encode(current), FileStoreCodec.encode(entity));
+    }
+
+    /**
+     * <p>
+     * Returns the keys of the entities in memory stored by the shard the given journal belongs to.
+     * </p>
+     */
+    private List<String> getKeys(FileJournal journal) {
+        if (journal.getType() != FileStoreCodec.MEMBERSHIPS) {
+            return new ArrayList<String>(getShard(journal).keySet());
+        }
+
+        int shard = indexOf(this.membershipsJournals, journal);
+        List<String> keys = new ArrayList<String>();
+
+        for (String key : this.memberships.navigableKeySet()) {
+            if (ShardedMap.shard(key, this.membershipsJournals.length) == shard) {
+                keys.add(key);
+            }
+        }
+
+        return keys;
+    }
+
+    private Map<String, ?> getShard(FileJournal journal) {
+        if (journal.getType() == FileStoreCodec.USERS) {
+            return this.users.getShard(indexOf(this.usersJournals, journal));
+        }
+
+        if (journal.getType() == FileStoreCodec.ROLES) {
+            return this.roles.getShard(indexOf(this.rolesJournals, journal));
+        }
+
+        return this.groups.getShard(indexOf(this.groupsJournals, journal));
     }
 
     /**
-     * <p>Load all persisted memberships from the filesystem.</p>
+     * <p>
+     * Applies the changes read from a journal written by another process to the entities and indexes in memory. Called with
+     * the lock of the journal held.
+     * </p>
      */
-    private void loadMemberships() {
-        ObjectInputStream ois = null;
+    private class ExternalChangeReplayer implements FileJournal.Replayer {
 
-        try {
-            FileInputStream fis = new FileInputStream(membershipsFile);
-            ois = new ObjectInputStream(fis);
+        private final byte type;
 
-            this.memberships = (List<FileMembership>) ois.readObject();
-        } catch (Exception e) {
-        } finally {
-            try {
-                if (ois != null) {
-                    ois.close();
-                }
-            } catch (IOException e) {
-            }
+        ExternalChangeReplayer(byte type) {
+            this.type = type;
         }
-    }
 
-    /**
-     * <p>Load all persisted roles from the filesystem.</p>
-     */
-    private void loadRoles() {
-        ObjectInputStream ois = null;
+        @Override
+        public void put(String key, Object value) {
+            if (this.type == FileStoreCodec.USERS) {
+                FileUser user = (FileUser) value;
+
+                users.put(key, user);
+                userIndex.update(user);
+                userAttributes.update(user);
+            } else if (this.type == FileStoreCodec.ROLES) {
+                Role role = (Role) value;
+
+                roles.put(key, role);
+                roleAttributes.update(role);
+            } else if (this.type == FileStoreCodec.GROUPS) {
+                FileGroup group = (FileGroup) value;
+
+                resolveParent(group);
+                groups.put(key, group);
+                groupAttributes.update(group);
+            } else {
+                removeMemberships(key);
+                memberships.add(resolve((FileMembership) value));
+            }
+        }
 
-        try {
-            FileInputStream fis = new FileInputStream(rolesFile);
-            ois = new ObjectInputStream(fis);
+        @Override
+        public void remove(String key) {
+            if (this.type == FileStoreCodec.USERS) {
+                users.remove(key);
+                userIndex.remove(key);
+                userAttributes.remove(key);
+            } else if (this.type == FileStoreCodec.ROLES) {
+                roles.remove(key);
+                roleAttributes.remove(key);
+            } else if (this.type == FileStoreCodec.GROUPS) {
+                groups.remove(key);
+                groupAttributes.remove(key);
+            } else {
+                removeMemberships(key);
+            }
+        }
 
-            this.roles = (Map<String, Role>) ois.readObject();
-        } catch (Exception e) {
-        } finally {
-            try {
-                if (ois != null) {
-                    ois.close();
-                }
-            } catch (IOException e) {
+        private void removeMemberships(String key) {
+            for (FileMembership membership : memberships.get(key)) {
+                memberships.remove(membership);
             }
         }
     }
 
     /**
-     * <p>Load all persisted users from the filesystem.</p>
+     * <p>
+     * Returns the statistics of the locks coordinating the processes sharing the files, which can be registered as an MBean.
+     * </p>
+     *
+     * @return
      */
-    private void loadUsers() {
-        ObjectInputStream ois = null;
-
-        try {
-            FileInputStream fis = new FileInputStream(usersFile);
-            ois = new ObjectInputStream(fis);
+    public FileLockStatistics getLockStatistics() {
+        return this.lockStatistics;
+    }
 
-            this.users = (Map<String, FileUser>) ois.readObject();
-        } catch (Exception e) {
-        } finally {
-            try {
-                if (ois != null) {
-                    ois.close();
-                }
-            } catch (IOException e) {
-            }
-        }
+    private String getMembershipKey(Membership membership) {
+        return FileMembershipIndex.tripleKey(membership);
     }
 
     /**
-     * <p>Flush all changes made to users to the filesystem.</p>
+     * <p>
+     * Replaces the parent read from the files, which only holds its name, by the loaded group with this name.
+     * </p>
      */
-    synchronized void flushUsers() {
-        try {
-            FileOutputStream fos = new FileOutputStream(this.usersFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(this.users);
-            oos.close();
-        } catch (Exception e) {
+    private void resolveParent(FileGroup group) {
+        if (group.getParentGroup() != null) {
+            FileGroup parent = this.groups.get(FileMembershipIndex.key(group.getParentGroup()));
+
+            if (parent != null) {
+                group.setParentGroup(parent);
+            }
         }
     }
 
     /**
-     * <p>Flush all changes made to roles to the filesystem.</p>
+     * <p>
+     * Returns the given membership read from the files with its role, user and group replaced by the loaded entities with the
+     * same keys. Users not kept on the heap are only referred to by their key, see {@link #resolveUser(FileMembership)}.
+     * </p>
      */
-    synchronized void flushRoles() {
-        try {
-            FileOutputStream fos = new FileOutputStream(this.rolesFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(this.roles);
-            oos.close();
-        } catch (Exception e) {
+    private FileMembership resolve(FileMembership membership) {
+        Role role = membership.getRole();
+        User user = membership.getUser();
+        Group group = membership.getGroup();
+
+        if (role != null && this.roles.get(FileMembershipIndex.key(role)) != null) {
+            role = this.roles.get(FileMembershipIndex.key(role));
         }
-    }
 
-    /**
-     * <p>Flush all changes made to groups to the filesystem.</p>
-     */
-    synchronized void flushGroups() {
-        try {
-            FileOutputStream fos = new FileOutputStream(this.groupsFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(this.groups);
-            oos.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (user != null && !isUsersOnHeap()) {
+            user = new FileUser(FileMembershipIndex.key(user));
+        } else if (user != null && this.users.get(FileMembershipIndex.key(user)) != null) {
+            user = this.users.get(FileMembershipIndex.key(user));
         }
+
+        if (group != null && this.groups.get(FileMembershipIndex.key(group)) != null) {
+            group = this.groups.get(FileMembershipIndex.key(group));
+        }
+
+        return new FileMembership(role, user, group);
     }
 
     /**
-     * <p>Flush all changes made to memberships to the filesystem.</p>
+     * <p>
+     * Returns the given membership with its user read from the users map, when the users are not kept on the heap and the
+     * membership only holds the key of its user.
+     * </p>
      */
-    synchronized void flushMemberships() {
-        try {
-            FileOutputStream fos = new FileOutputStream(this.membershipsFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(this.memberships);
-            oos.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+    private Membership resolveUser(FileMembership membership) {
+        if (isUsersOnHeap() || membership.getUser() == null) {
+            return membership;
+        }
+
+        User user = getUser(FileMembershipIndex.key(membership.getUser()));
+
+        if (user == null) {
+            return membership;
         }
+
+        return new FileMembership(membership.getRole(), user, membership.getGroup());
+    }
+
+    private boolean isUsersOnHeap() {
+        return !this.configuration.isMappedUsers() && !this.configuration.isOffHeapUsers();
     }
 
     /*
@@ -378,9 +1416,11 @@ public class FileBasedIdentityStore implements IdentityStore {
 
         user.setChangeListener(this.changeListener);
 
-        this.users.put(user.getId(), user);
+        synchronized (getJournal(this.usersJournals, user.getId())) {
+            this.users.put(user.getId(), user);
 
-        flushUsers();
+            userChanged(user);
+        }
 
         return user;
     }
@@ -392,9 +1432,15 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public User createUser(User user) {
-        this.users.put(user.getId(), (FileUser) user);
+        FileUser fileUser = (FileUser) user;
+
+        fileUser.setChangeListener(this.changeListener);
 
-        flushUsers();
+        synchronized (getJournal(this.usersJournals, fileUser.getId())) {
+            this.users.put(fileUser.getId(), fileUser);
+
+            userChanged(fileUser);
+        }
 
         return user;
     }
@@ -406,9 +1452,15 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public void removeUser(User user) {
-        this.users.remove(user.getId());
+        FileJournal journal = getJournal(this.usersJournals, user.getId());
 
-        flushUsers();
+        synchronized (journal) {
+            this.users.remove(user.getId());
+            this.userIndex.remove(user.getId());
+            this.userAttributes.remove(user.getId());
+
+            appendRemove(journal, user.getId());
+        }
     }
 
     /*
@@ -418,6 +1470,10 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public User getUser(String name) {
+        if (name == null) {
+            return null;
+        }
+
         FileUser user = this.users.get(name);
 
         if (user != null) {
@@ -436,11 +1492,13 @@ public class FileBasedIdentityStore implements IdentityStore {
     public Group createGroup(String name, Group parent) {
         FileGroup group = new FileGroup(name, parent);
 
-        this.groups.put(group.getName(), group);
+        synchronized (getJournal(this.groupsJournals, group.getName())) {
+            this.groups.put(group.getName(), group);
 
-        group.setChangeListener(this.changeListener);
+            group.setChangeListener(this.changeListener);
 
-        flushGroups();
+            groupChanged(group);
+        }
 
         return group;
     }
@@ -452,8 +1510,13 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public void removeGroup(Group group) {
-        this.groups.remove(group.getName());
-        flushGroups();
+        FileJournal journal = getJournal(this.groupsJournals, group.getName());
+
+        synchronized (journal) {
+            this.groups.remove(group.getName());
+            this.groupAttributes.remove(group.getName());
+            appendRemove(journal, group.getName());
+        }
     }
 
     /*
@@ -463,6 +1526,10 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public Group getGroup(String name) {
+        if (name == null) {
+            return null;
+        }
+
         FileGroup group = this.groups.get(name);
 
         if (group != null) {
@@ -481,11 +1548,13 @@ public class FileBasedIdentityStore implements IdentityStore {
     public Role createRole(String name) {
         FileRole role = new FileRole(name);
 
-        this.roles.put(role.getName(), role);
+        synchronized (getJournal(this.rolesJournals, role.getName())) {
+            this.roles.put(role.getName(), role);
 
-        role.setChangeListener(this.changeListener);
+            role.setChangeListener(this.changeListener);
 
-        flushRoles();
+            roleChanged(role);
+        }
 
         return role;
     }
@@ -497,8 +1566,13 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public void removeRole(Role role) {
-        this.roles.remove(role.getName());
-        flushRoles();
+        FileJournal journal = getJournal(this.rolesJournals, role.getName());
+
+        synchronized (journal) {
+            this.roles.remove(role.getName());
+            this.roleAttributes.remove(role.getName());
+            appendRemove(journal, role.getName());
+        }
     }
 
     /*
@@ -508,6 +1582,10 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public Role getRole(String role) {
+        if (role == null) {
+            return null;
+        }
+
         FileRole fileRole = (FileRole) this.roles.get(role);
 
         if (fileRole != null) {
@@ -527,71 +1605,45 @@ public class FileBasedIdentityStore implements IdentityStore {
     public Membership createMembership(Role role, User user, Group group) {
         FileMembership membership = new FileMembership(role, user, group);
 
-        this.memberships.add(membership);
+        String key = getMembershipKey(membership);
+        FileJournal journal = getJournal(this.membershipsJournals, key);
+
+        synchronized (journal) {
+            this.memberships.add(resolve(membership));
 
-        flushMemberships();
+            append(journal, key, membership);
+        }
 
         return membership;
     }
 
     @Override
     public void removeMembership(Role role, User user, Group group) {
-        for (Membership membership : new ArrayList<FileMembership>(this.memberships)) {
-            boolean match = false;
-
-            if (role != null) {
-                match = membership.getRole() != null && role.equals(membership.getRole());
-            } else {
-                match = true;
-            }
+        String key = FileMembershipIndex.tripleKey(FileMembershipIndex.key(role), FileMembershipIndex.key(user),
+                FileMembershipIndex.key(group));
+        FileJournal journal = getJournal(this.membershipsJournals, key);
 
-            if (user != null) {
-                match = membership.getUser() != null && user.equals(membership.getUser());
-            } else {
-                match = true;
-            }
+        // all memberships of the same role, user and group share the key, and thus the shard
+        synchronized (journal) {
+            for (FileMembership membership : this.memberships.get(FileMembershipIndex.key(role), FileMembershipIndex.key(user),
+                    FileMembershipIndex.key(group))) {
+                this.memberships.remove(membership);
 
-            if (group != null) {
-                match = membership.getGroup() != null && group.equals(membership.getGroup());
-            } else {
-                match = true;
+                appendRemove(journal, getMembershipKey(membership));
             }
-
-            this.memberships.remove(membership);
         }
-
-        flushMemberships();
     }
 
     @Override
     public Membership getMembership(Role role, User user, Group group) {
-        for (Membership membership : new ArrayList<FileMembership>(this.memberships)) {
-            boolean match = false;
-
-            if (role != null) {
-                match = membership.getRole() != null && role.equals(membership.getRole());
-            } else {
-                match = true;
-            }
-
-            if (user != null) {
-                match = membership.getUser() != null && user.equals(membership.getUser());
-            } else {
-                match = true;
-            }
-
-            if (group != null) {
-                match = membership.getGroup() != null && group.equals(membership.getGroup());
-            } else {
-                match = true;
-            }
+        List<FileMembership> memberships = this.memberships.get(FileMembershipIndex.key(role), FileMembershipIndex.key(user),
+                FileMembershipIndex.key(group));
 
-            if (match) {
-                return membership;
-            }
+        if (memberships.isEmpty()) {
+            return null;
         }
 
-        return null;
+        return resolveUser(memberships.get(0));
     }
 
     /*
@@ -602,111 +1654,129 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public List<User> executeQuery(UserQuery query, Range range) {
-        List<User> users = new ArrayList<User>();
+        Set<String> attributeKeys = findByAttributes(query.getAttributeFilters(), this.userAttributes, this.users.values());
+        Iterator<String> keys;
 
-        for (Entry<String, FileUser> entry : this.users.entrySet()) {
-            FileUser fileUser = entry.getValue();
+        if (query.getRole() != null || query.getRelatedGroup() != null) {
+            keys = ordered(findRelated(query.getRole(), null, query.getRelatedGroup(), false), query.isSortAscending());
+        } else if (query.getName() != null) {
+            keys = Collections.singleton(query.getName()).iterator();
+        } else if (query.getEmail() != null || query.getFirstName() != null || query.getLastName() != null) {
+            keys = ordered(findUsers(query), query.isSortAscending());
+        } else if (attributeKeys != null) {
+            keys = ordered(attributeKeys, query.isSortAscending());
+        } else {
+            keys = ordered(this.users.navigableKeySet(), query.isSortAscending());
+        }
 
-            if (query.getName() != null) {
-                if (!fileUser.getKey().equals(query.getName())) {
-                    continue;
-                }
-            }
+        FileResultPage<User> page = new FileResultPage<User>(range != null ? range : query.getRange());
 
-            if (query.getEnabled() != fileUser.isEnabled()) {
-                continue;
-            }
+        while (keys.hasNext() && !page.isFull()) {
+            String key = keys.next();
+            FileUser user = this.users.get(key);
 
-            if (query.getEmail() != null) {
-                if (!query.getEmail().equals(fileUser.getEmail())) {
-                    continue;
-                }
+            if (user != null && matches(user, query) && (attributeKeys == null || attributeKeys.contains(key))) {
+                page.offer(user);
             }
+        }
 
-            if (query.getFirstName() != null) {
-                if (!query.getFirstName().equals(fileUser.getFirstName())) {
-                    continue;
-                }
-            }
+        return page.getResults();
+    }
 
-            if (query.getLastName() != null) {
-                if (!query.getLastName().equals(fileUser.getLastName())) {
-                    continue;
-                }
-            }
+    /**
+     * <p>
+     * Returns the keys of the users having the email, first name and last name of the given query, which are the intersection
+     * of the {@link FileUserIndex} sets of the values the query filters on.
+     * </p>
+     * 
+     * @param query
+     * @return
+     */
+    private Set<String> findUsers(UserQuery query) {
+        if (!this.userIndex.isBuilt()) {
+            this.userIndex.build(this.users.values());
+        }
+
+        return this.userIndex.find(query.getEmail(), query.getFirstName(), query.getLastName(), query.getEnabled());
+    }
+
+    private boolean matches(FileUser fileUser, UserQuery query) {
+        if (query.getName() != null && !query.getName().equals(fileUser.getKey())) {
+            return false;
+        }
 
-            users.add(fileUser);
+        if (query.getEnabled() != fileUser.isEnabled()) {
+            return false;
         }
 
-        Collection<? extends User> selectedUsers = users;
+        if (query.getEmail() != null && !query.getEmail().equals(fileUser.getEmail())) {
+            return false;
+        }
 
-        if (users.isEmpty()) {
-            selectedUsers = this.users.values();
+        if (query.getFirstName() != null && !query.getFirstName().equals(fileUser.getFirstName())) {
+            return false;
         }
 
-        if (query.getRole() != null || query.getRelatedGroup() != null) {
-            List<User> fileteredUsers = new ArrayList<User>();
-
-            for (User fileUser : new ArrayList<User>(selectedUsers)) {
-                for (Membership membership : this.memberships) {
-                    if ((query.getRole() != null && membership.getRole() == null)
-                            || (query.getRelatedGroup() != null && membership.getGroup() == null)
-                            || membership.getUser() == null) {
-                        continue;
-                    }
+        if (query.getLastName() != null && !query.getLastName().equals(fileUser.getLastName())) {
+            return false;
+        }
 
-                    if (!membership.getUser().equals(fileUser)) {
-                        continue;
-                    }
+        return true;
+    }
 
-                    if (query.getRole() != null) {
-                        if (!membership.getRole().equals(query.getRole())) {
-                            continue;
-                        }
-                    }
+    /**
+     * <p>
+     * Returns the distinct keys of the users or groups of the memberships matching the given role, user and group. Only the
+     * memberships of the most selective of them are visited.
+     * </p>
+     */
+    private Set<String> findRelated(Role role, User user, Group group, boolean groupKeys) {
+        Set<String> keys = new LinkedHashSet<String>();
 
-                    if (query.getRelatedGroup() != null) {
-                        if (!membership.getGroup().equals(query.getRelatedGroup())) {
-                            continue;
-                        }
-                    }
+        for (FileMembership membership : this.memberships.find(FileMembershipIndex.key(role), FileMembershipIndex.key(user),
+                FileMembershipIndex.key(group))) {
+            String related = groupKeys ? FileMembershipIndex.key(membership.getGroup()) : FileMembershipIndex.key(membership
+                    .getUser());
 
-                    fileteredUsers.add(fileUser);
-                }
+            if (related != null) {
+                keys.add(related);
             }
-
-            users.retainAll(fileteredUsers);
         }
 
-        Map<String, String[]> queryAttributes = query.getAttributeFilters();
-        
-        searchForIdentityTypeAttributes(users, queryAttributes);
-
-        return users;
+        return keys;
     }
 
-    private void searchForIdentityTypeAttributes(List<? extends IdentityType> users, Map<String, String[]> queryAttributes) {
-        if (queryAttributes != null) {
-            Set<Entry<String, String[]>> entrySet = queryAttributes.entrySet();
+    /**
+     * <p>
+     * Returns the keys of the identity types having, for every given attribute, at least one of the given values, or null if
+     * no attribute is given. The matching keys are the intersection of the posting lists of the given
+     * {@link FileAttributeIndex}, built from all the identity types of the same type on the first query filtering by
+     * attributes.
+     * </p>
+     */
+    private Set<String> findByAttributes(Map<String, String[]> queryAttributes, FileAttributeIndex index,
+            Collection<? extends IdentityType> all) {
+        if (queryAttributes == null || queryAttributes.isEmpty()) {
+            return null;
+        }
 
-            for (IdentityType fileUser : new ArrayList<IdentityType>(users)) {
-                for (Entry<String, String[]> entry : entrySet) {
-                    String searchAttributeKey = entry.getKey();
-                    String[] searchAttributeValue = entry.getValue();
+        if (!index.isBuilt()) {
+            index.build(all);
+        }
 
-                    String[] userAttributes = fileUser.getAttributeValues(searchAttributeKey);
+        return index.find(queryAttributes);
+    }
 
-                    if (userAttributes == null) {
-                        users.remove(fileUser);
-                        continue;
-                    }
+    /**
+     * <p>
+     * Returns an iterator over the given keys in ascending or descending order. Keys that are not already kept in order are
+     * sorted first, which only costs the number of keys the query selected.
+     * </p>
+     */
+    private Iterator<String> ordered(Set<String> keys, boolean ascending) {
+        NavigableSet<String> sorted = keys instanceof NavigableSet ? (NavigableSet<String>) keys : new TreeSet<String>(keys);
 
-                    if (Collections.indexOfSubList(Arrays.asList(userAttributes), Arrays.asList(searchAttributeValue)) > 0) {
-                        users.remove(fileUser);
-                    }
-                }
-            }
-        }
+        return ascending ? sorted.iterator() : sorted.descendingIterator();
     }
 
     /*
@@ -717,10 +1787,31 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public List<Group> executeQuery(GroupQuery query, Range range) {
-        List<Group> groups = new ArrayList<Group>();
+        Set<String> attributeKeys = findByAttributes(query.getAttributeFilters(), this.groupAttributes, this.groups.values());
+        Iterator<String> keys;
+
+        // groups are keyed by their name, which is also their id
+        if (query.getRole() != null || query.getRelatedUser() != null) {
+            keys = ordered(findRelated(query.getRole(), query.getRelatedUser(), null, true), query.isSortAscending());
+        } else if (query.getName() != null) {
+            keys = Collections.singleton(query.getName()).iterator();
+        } else if (query.getId() != null) {
+            keys = Collections.singleton(query.getId()).iterator();
+        } else if (attributeKeys != null) {
+            keys = ordered(attributeKeys, query.isSortAscending());
+        } else {
+            keys = ordered(this.groups.navigableKeySet(), query.isSortAscending());
+        }
 
-        for (Entry<String, FileGroup> entry : this.groups.entrySet()) {
-            FileGroup fileGroup = entry.getValue();
+        FileResultPage<Group> page = new FileResultPage<Group>(range != null ? range : query.getRange());
+
+        while (keys.hasNext() && !page.isFull()) {
+            String key = keys.next();
+            FileGroup fileGroup = this.groups.get(key);
+
+            if (fileGroup == null || (attributeKeys != null && !attributeKeys.contains(key))) {
+                continue;
+            }
 
             if (query.getName() != null) {
                 if (!fileGroup.getKey().equals(query.getName())) {
@@ -740,54 +1831,10 @@ public class FileBasedIdentityStore implements IdentityStore {
                 }
             }
 
-            groups.add(fileGroup);
-        }
-
-        Collection<? extends Group> selectedGroups = groups;
-
-        if (groups.isEmpty()) {
-            selectedGroups = this.groups.values();
-        }
-
-        if (query.getRole() != null || query.getRelatedUser() != null) {
-            List<Group> fileteredGroups = new ArrayList<Group>();
-
-            for (Group fileGroup : new ArrayList<Group>(selectedGroups)) {
-                for (Membership membership : this.memberships) {
-                    if ((query.getRole() != null && membership.getRole() == null)
-                            || (query.getRelatedUser() != null && membership.getUser() == null)
-                            || membership.getGroup() == null) {
-                        continue;
-                    }
-
-                    if (!membership.getGroup().equals(fileGroup)) {
-                        continue;
-                    }
-
-                    if (query.getRole() != null) {
-                        if (!membership.getRole().equals(query.getRole())) {
-                            continue;
-                        }
-                    }
-
-                    if (query.getRelatedUser() != null) {
-                        if (!membership.getUser().equals(query.getRelatedUser())) {
-                            continue;
-                        }
-                    }
-
-                    fileteredGroups.add(fileGroup);
-                }
-            }
-
-            groups.retainAll(fileteredGroups);
-        }
-
-        if (query.getAttributeFilters() != null && !query.getAttributeFilters().isEmpty()) {
-            searchForIdentityTypeAttributes(groups, query.getAttributeFilters());
+            page.offer(fileGroup);
         }
 
-        return groups;
+        return page.getResults();
     }
 
     /*
@@ -798,43 +1845,50 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public List<Role> executeQuery(RoleQuery query, Range range) {
-        List<Role> roles = new ArrayList<Role>();
+        Set<String> attributeKeys = findByAttributes(query.getAttributeFilters(), this.roleAttributes, this.roles.values());
+        Iterator<String> keys;
 
-        if (query.getName() != null) {
-            Role role = getRole(query.getName());
+        if (query.getName() == null && query.getOwner() == null && query.getGroup() == null) {
+            keys = ordered(attributeKeys != null ? attributeKeys : this.roles.navigableKeySet(), query.isSortAscending());
+        } else {
+            Set<String> roleKeys = new HashSet<String>();
 
-            if (role != null) {
-                roles.add(role);
+            if (query.getName() != null) {
+                roleKeys.add(query.getName());
             }
-        }
 
-        if (query.getOwner() != null || query.getGroup() != null) {
-            for (Membership membership : this.memberships) {
-                if (membership.getRole() == null) {
-                    continue;
-                }
+            if (query.getOwner() != null || query.getGroup() != null) {
+                String ownerKey = null;
 
-                if (query.getOwner() != null) {
-                    if (!(membership.getUser() != null && membership.getUser().getKey().equals(query.getOwner().getKey()))) {
-                        continue;
-                    }
+                if (query.getOwner() instanceof User) {
+                    ownerKey = FileMembershipIndex.key((User) query.getOwner());
+                } else if (query.getOwner() != null) {
+                    ownerKey = query.getOwner().getKey();
                 }
 
-                if (query.getGroup() != null) {
-                    if (!(membership.getGroup() != null && membership.getGroup().getKey().equals(query.getGroup().getKey()))) {
-                        continue;
+                for (FileMembership membership : this.memberships.find(null, ownerKey,
+                        FileMembershipIndex.key(query.getGroup()))) {
+                    if (membership.getRole() != null) {
+                        roleKeys.add(FileMembershipIndex.key(membership.getRole()));
                     }
                 }
-
-                roles.add(membership.getRole());
             }
+
+            keys = ordered(roleKeys, query.isSortAscending());
         }
-        
-        if (query.getAttributeFilters() != null && !query.getAttributeFilters().isEmpty()) {
-            searchForIdentityTypeAttributes(roles, query.getAttributeFilters());
+
+        FileResultPage<Role> page = new FileResultPage<Role>(range != null ? range : query.getRange());
+
+        while (keys.hasNext() && !page.isFull()) {
+            String key = keys.next();
+            Role role = getRole(key);
+
+            if (role != null && (attributeKeys == null || attributeKeys.contains(key))) {
+                page.offer(role);
+            }
         }
 
-        return roles;
+        return page.getResults();
     }
 
     /*
@@ -845,37 +1899,30 @@ public class FileBasedIdentityStore implements IdentityStore {
      */
     @Override
     public List<Membership> executeQuery(MembershipQuery query, Range range) {
-        List<Membership> memberships = new ArrayList<Membership>();
-
-        for (Membership membership : this.memberships) {
-            if ((query.getRole() != null && membership.getRole() == null)
-                    || (query.getGroup() != null && membership.getGroup() == null)
-                    || (query.getUser() != null && membership.getUser() == null)) {
-                continue;
-            }
-
-            if (query.getRole() != null) {
-                if (!membership.getRole().equals(query.getRole())) {
-                    continue;
+        String roleKey = FileMembershipIndex.key(query.getRole());
+        String userKey = FileMembershipIndex.key(query.getUser());
+        String groupKey = FileMembershipIndex.key(query.getGroup());
+        FileResultPage<Membership> page = new FileResultPage<Membership>(range != null ? range : query.getRange());
+
+        if (roleKey == null && userKey == null && groupKey == null) {
+            for (Iterator<String> keys = this.memberships.navigableKeySet().iterator(); keys.hasNext() && !page.isFull();) {
+                for (FileMembership membership : this.memberships.get(keys.next())) {
+                    page.offer(membership);
                 }
             }
-
-            if (query.getGroup() != null) {
-                if (!membership.getGroup().equals(query.getGroup())) {
-                    continue;
-                }
+        } else {
+            for (FileMembership membership : this.memberships.find(roleKey, userKey, groupKey)) {
+                page.offer(membership);
             }
+        }
 
-            if (query.getUser() != null) {
-                if (!membership.getUser().equals(query.getUser())) {
-                    continue;
-                }
-            }
+        List<Membership> results = page.getResults();
 
-            memberships.add(membership);
+        for (int i = 0; i < results.size(); i++) {
+            results.set(i, resolveUser((FileMembership) results.get(i)));
         }
 
-        return memberships;
+        return results;
     }
 
     /*
@@ -889,8 +1936,6 @@ public class FileBasedIdentityStore implements IdentityStore {
         FileUser fileUser = (FileUser) getUser(user.getId());
 
         fileUser.setAttribute(name, values);
-
-        flushUsers();
     }
 
     /*
@@ -903,10 +1948,8 @@ public class FileBasedIdentityStore implements IdentityStore {
         FileUser fileUser = (FileUser) getUser(user.getId());
 
         if (fileUser != null) {
-            this.users.remove(fileUser.getId());
+            fileUser.removeAttribute(name);
         }
-
-        flushUsers();
     }
 
     /*
@@ -954,8 +1997,6 @@ public class FileBasedIdentityStore implements IdentityStore {
         if (fileGroup != null) {
             fileGroup.setAttribute(name, values);
         }
-
-        flushGroups();
     }
 
     /*
@@ -970,8 +2011,6 @@ public class FileBasedIdentityStore implements IdentityStore {
         if (fileGroup != null) {
             fileGroup.removeAttribute(name);
         }
-
-        flushGroups();
     }
 
     /* (non-Javadoc)
@@ -1012,8 +2051,6 @@ public class FileBasedIdentityStore implements IdentityStore {
         if (fileRole != null) {
             fileRole.setAttribute(name, values);
         }
-
-        flushRoles();
     }
 
     /* (non-Javadoc)
@@ -1026,8 +2063,6 @@ public class FileBasedIdentityStore implements IdentityStore {
         if (fileRole != null) {
             fileRole.removeAttribute(name);
         }
-
-        flushRoles();
     }
 
     /* (non-Javadoc)
@@ -1077,7 +2112,7 @@ public class FileBasedIdentityStore implements IdentityStore {
     }
 
     public String getWorkingDir() {
-        return this.workingDir;
+        return this.configuration.getWorkingDir();
     }
 
     /**
@@ -1086,7 +2121,7 @@ public class FileBasedIdentityStore implements IdentityStore {
      * @param workingDir
      */
     public void setWorkingDir(String workingDir) {
-        this.workingDir = workingDir;
+        this.configuration.setWorkingDir(workingDir);
     }
 
     /**
@@ -1095,6 +2130,55 @@ public class FileBasedIdentityStore implements IdentityStore {
      * @param alwaysCreateFiles
      */
     public void setAlwaysCreateFiles(boolean alwaysCreateFiles) {
-        this.alwaysCreateFiles = alwaysCreateFiles;
+        this.configuration.setAlwaysCreateFiles(alwaysCreateFiles);
+    }
+
+    /**
+     * <p>
+     * Sets the number of records a journal can hold before it is compacted into a new snapshot. Zero or less disables the
+     * background compaction.
+     * </p>
+     * 
+     * @param compactionThreshold
+     */
+    public void setCompactionThreshold(int compactionThreshold) {
+        this.configuration.setCompactionThreshold(compactionThreshold);
+    }
+
+    /**
+     * <p>
+     * Sets when changes are written and synced to disk. Defaults to {@link FileDurability#GROUP_COMMIT}.
+     * </p>
+     * 
+     * @param durability
+     */
+    public void setDurability(FileDurability durability) {
+        this.configuration.setDurability(durability);
+        applyDurability();
+    }
+
+    /**
+     * <p>
+     * Sets how long, in milliseconds, changes can be buffered before being written. Only used by the
+     * {@link FileDurability#GROUP_COMMIT} and {@link FileDurability#ASYNC} modes.
+     * </p>
+     * 
+     * @param commitLatency
+     */
+    public void setCommitLatency(long commitLatency) {
+        this.configuration.setCommitLatency(commitLatency);
+        this.flusher.setCommitLatency(commitLatency);
+    }
+
+    /**
+     * <p>
+     * Sets how often, in milliseconds, written changes are synced to disk in the {@link FileDurability#ASYNC} mode.
+     * </p>
+     * 
+     * @param syncInterval
+     */
+    public void setSyncInterval(long syncInterval) {
+        this.configuration.setSyncInterval(syncInterval);
+        this.flusher.setSyncInterval(syncInterval);
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Compresses the blocks of the snapshots and journals written by the {@link FileBasedIdentityStore}. See
+ * {@link org.picketlink.idm.internal.config.FileStoreConfiguration#setBlockCodec(FileBlockCodec)}.
+ * </p>
+ * <p>
+ * The id of the codec is written with every compressed block, so that files stay readable when the store is later
+ * configured with another codec, or with none. Ids up to 15 are reserved for the codecs provided with the store, such as
+ * {@link DeflateBlockCodec}; other codecs must use a higher id, and must be configured to read the files they wrote.
+ * </p>
+ */
+public interface FileBlockCodec {
+
+    /**
+     * <p>
+     * Returns the id written with the blocks compressed by this codec.
+     * </p>
+     *
+     * @return
+     */
+    byte getId();
+
+    /**
+     * <p>
+     * Compresses the given region of the array.
+     * </p>
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * <p>
+     * Decompresses a block compressed by {@link #compress(byte[], int, int)}.
+     * </p>
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @param rawLength the length of the block before it was compressed
+     * @return
+     * @throws IOException if the block is corrupted
+     */
+    byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException;
+
+}
@@ -0,0 +1,55 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+/**
+ * <p>
+ * When the changes made to a {@link FileBasedIdentityStore} are written and synced to disk.
+ * </p>
+ */
+public enum FileDurability {
+
+    /**
+     * <p>
+     * Each change is written and synced to disk before the call making it returns.
+     * </p>
+     */
+    SYNC,
+
+    /**
+     * <p>
+     * Changes are buffered and written and synced together, at most the configured commit latency after they were made. Up to
+     * that latency of changes can be lost if the process stops.
+     * </p>
+     */
+    GROUP_COMMIT,
+
+    /**
+     * <p>
+     * Changes are buffered and written together like {@link #GROUP_COMMIT}, but only synced to disk once per sync interval.
+     * Changes are not lost if the process stops, but can be if the operating system does.
+     * </p>
+     */
+    ASYNC
+
+}
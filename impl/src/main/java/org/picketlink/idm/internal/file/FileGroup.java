@@ -89,7 +89,9 @@ public class FileGroup extends AbstractFileIdentityType implements Group {
      */
     @Override
     protected void update() {
-        super.changeListener.updateGroups();
+        if (super.changeListener != null) {
+            super.changeListener.updateGroup(this);
+        }
     }
 
     @Override
@@ -0,0 +1,1344 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Append-only log of the changes made to one kind of entity of the {@link FileBasedIdentityStore}, backed by a snapshot file.
+ * </p>
+ * <p>
+ * Each change is appended as a single record, prefixed by its length: a <code>PUT</code> carrying the full state of the
+ * entity or a <code>REMOVE</code> carrying only its key. Replaying the records over the snapshot always gives the latest
+ * state, whatever the state of the snapshot, so it is safe to write the snapshot from a copy that is newer than the point from
+ * where the log is truncated.
+ * </p>
+ * <p>
+ * Each record is followed by the CRC32 of its content. A process that stops while writing can leave a partial record, or
+ * bytes that were never written at the end of the file: replay stops at the first record whose length goes past the end of
+ * the file or whose checksum does not match, and the rest of the file is dropped.
+ * </p>
+ * <p>
+ * With write-behind enabled, changes are not encoded when they are made: the journal only tracks the dirty keys with their
+ * latest entity, or a tombstone once removed, and encodes one record per dirty key when the changes are written. Several
+ * changes to the same entity within a commit cost a single record, and a write costs the size of the changed entities only.
+ * </p>
+ * <p>
+ * Both files use the {@link FileStoreCodec} format. Snapshots written with Java serialization by previous versions of the
+ * store are still read, see {@link #isLegacySnapshot()}.
+ * </p>
+ * <p>
+ * With a {@link FileBlockCodec}, the snapshots are compressed, and so are the records written together in write-behind mode,
+ * as a single <code>BLOCK</code> record holding the compressed records.
+ * </p>
+ * <p>
+ * Records are always appended at the current end of the file, so that several processes can share the same files. The
+ * records appended by the others are read with {@link #tail(Replayer)}, which skips the ones written by this instance.
+ * </p>
+ * <p>
+ * The processes sharing the files are coordinated by a {@link FileStoreLock} on a lock file named after the snapshot, eg.:
+ * <code>pl-idm-users.lock</code>. Reads take the shared lock, while writing records and replacing the files on compaction
+ * take the exclusive lock, held only for the duration of the write. Before writing, the records appended by the others are
+ * applied through the {@link Tailer}, so that the order of the records matches the order the changes were applied in.
+ * </p>
+ */
+public class FileJournal {
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte BLOCK = 3;
+
+    /**
+     * <p>
+     * Smallest write compressed into a block, below which the codec saves too little to pay for itself.
+     * </p>
+     */
+    private static final int MIN_BLOCK_SIZE = 512;
+
+    /**
+     * <p>
+     * Version of the journals whose header ends with the id of the journal, a random number written when the journal is
+     * created or replaced by a compaction, and whose records end with the CRC32 of their content. Journals of
+     * {@link FileStoreCodec#VERSION} have no id, and journals of {@link #UNCHECKED_VERSION} have no checksums: both are
+     * rewritten in this version when opened.
+     * </p>
+     */
+    public static final byte VERSION = 3;
+
+    /**
+     * <p>
+     * Version of the journals with an id whose records have no checksum.
+     * </p>
+     */
+    public static final byte UNCHECKED_VERSION = 2;
+
+    private static final int LEGACY_HEADER_LENGTH = FileStoreCodec.HEADER_LENGTH;
+    private static final int HEADER_LENGTH = LEGACY_HEADER_LENGTH + 8;
+    private static final int CHECKSUM_LENGTH = 4;
+
+    private static final SecureRandom IDS = new SecureRandom();
+
+    private static final Object REMOVED = new Object();
+
+    /**
+     * <p>
+     * Receives the records read from the journal.
+     * </p>
+     */
+    public interface Replayer {
+
+        void put(String key, Object value);
+
+        void remove(String key);
+
+    }
+
+    /**
+     * <p>
+     * Applies the records appended by other processes, see {@link FileJournal#tail(Replayer)}. Called with the lock of the
+     * journal held.
+     * </p>
+     */
+    public interface Tailer {
+
+        void tail(FileJournal journal);
+
+    }
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File lockFile;
+    private final byte type;
+
+    private FileStoreLock fileLock;
+    private FileLockStatistics lockStatistics;
+    private Tailer tailer;
+
+    private RandomAccessFile journal;
+    private int recordCount;
+
+    private boolean writeBehind;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /**
+     * <p>
+     * Latest entity, or {@link #REMOVED}, for each key changed since the records were last written in write-behind mode.
+     * </p>
+     */
+    private final Map<String, Object> dirty = new LinkedHashMap<String, Object>();
+
+    /**
+     * <p>
+     * Key of the record being appended in write-through mode, changed in memory but not written yet like the dirty keys.
+     * </p>
+     */
+    private String appendingKey;
+    private boolean legacySnapshot;
+
+    private FileBlockCodec codec;
+    private boolean snapshotCompressed = true;
+
+    /**
+     * <p>
+     * Position up to which the records of the journal were read or written by this instance, and the ranges written by this
+     * instance after records of other processes not read yet.
+     * </p>
+     */
+    private long tailPosition;
+    private final LinkedList<long[]> ownWrites = new LinkedList<long[]>();
+    private boolean tailing;
+
+    /**
+     * <p>
+     * Id in the header of the open journal, to tell when the files were compacted by another process. Zero until the header
+     * is written.
+     * </p>
+     */
+    private long journalId;
+
+    /**
+     * <p>
+     * Incremented each time a different journal file is opened, to tell if a position marked for compaction still refers to
+     * the current file.
+     * </p>
+     */
+    private long generation;
+    private long markedGeneration = -1;
+
+    /**
+     * @param snapshotFile
+     * @param journalFile
+     * @param type the kind of entity, one of the {@link FileStoreCodec} types
+     */
+    public FileJournal(File snapshotFile, File journalFile, byte type) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+        this.type = type;
+
+        String name = snapshotFile.getName();
+        int extension = name.lastIndexOf('.');
+
+        this.lockFile = new File(snapshotFile.getParentFile(), (extension > 0 ? name.substring(0, extension) : name) + ".lock");
+    }
+
+    /**
+     * <p>
+     * Takes the shared lock, to read the files, or the exclusive one, to change them. The methods of this class take the lock
+     * they need; callers only take it to make several calls atomic with regard to other processes.
+     * </p>
+     *
+     * @param shared
+     * @throws IOException
+     */
+    public void lock(boolean shared) throws IOException {
+        long waitTime = getFileLock().lock(shared);
+
+        if (this.lockStatistics != null) {
+            this.lockStatistics.record(shared, waitTime);
+        }
+    }
+
+    public void unlock(boolean shared) throws IOException {
+        getFileLock().unlock(shared);
+    }
+
+    private synchronized FileStoreLock getFileLock() throws IOException {
+        if (this.fileLock == null) {
+            this.fileLock = FileStoreLock.acquire(this.lockFile);
+        }
+
+        return this.fileLock;
+    }
+
+    /**
+     * <p>
+     * Sets the statistics recording the locks taken by this journal.
+     * </p>
+     *
+     * @param lockStatistics
+     */
+    public void setLockStatistics(FileLockStatistics lockStatistics) {
+        this.lockStatistics = lockStatistics;
+    }
+
+    /**
+     * <p>
+     * Sets the {@link Tailer} applying the records appended by other processes before this instance writes its own.
+     * </p>
+     *
+     * @param tailer
+     */
+    public synchronized void setTailer(Tailer tailer) {
+        this.tailer = tailer;
+    }
+
+    /**
+     * <p>
+     * Reads the entities in the snapshot, returning null if it is empty.
+     * </p>
+     *
+     * @return
+     * @throws IOException
+     */
+    public List<Object> readSnapshot() throws IOException {
+        this.legacySnapshot = false;
+
+        if (this.snapshotFile.length() == 0) {
+            return null;
+        }
+
+        if (FileStoreConverter.isLegacyFile(this.snapshotFile)) {
+            this.legacySnapshot = true;
+
+            return FileStoreConverter.readLegacyFile(this.snapshotFile);
+        }
+
+        lock(true);
+
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(this.snapshotFile), 65536);
+
+            try {
+                return FileStoreCodec.readSnapshot(in, this.type, getBlockCodec());
+            } finally {
+                in.close();
+            }
+        } finally {
+            unlock(true);
+        }
+    }
+
+    /**
+     * <p>
+     * Indicates if the last snapshot read was written with Java serialization, in which case it should be compacted to
+     * rewrite it in the current format.
+     * </p>
+     *
+     * @return
+     */
+    public boolean isLegacySnapshot() {
+        return this.legacySnapshot;
+    }
+
+    /**
+     * <p>
+     * Replays all records in the journal and opens it for appending. A record partially written when the process stopped is
+     * discarded, any other error reading the journal is thrown. The exclusive lock is held meanwhile, as no other process
+     * can be writing a record that is discarded.
+     * </p>
+     *
+     * @param replayer
+     * @throws IOException
+     */
+    public synchronized void open(Replayer replayer) throws IOException {
+        lock(false);
+
+        try {
+            replayAll(replayer);
+        } finally {
+            unlock(false);
+        }
+    }
+
+    private void replayAll(Replayer replayer) throws IOException {
+        this.journal = new RandomAccessFile(this.journalFile, "rw");
+        this.recordCount = 0;
+        this.ownWrites.clear();
+        this.generation++;
+
+        if (this.journal.length() < LEGACY_HEADER_LENGTH) {
+            this.journal.setLength(0);
+            writeHeader(this.journal);
+            this.tailPosition = HEADER_LENGTH;
+
+            return;
+        }
+
+        long fileLength = this.journal.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.journalFile), 65536));
+        long validLength = 0;
+        FileStoreCodec.Output upgraded = null;
+
+        try {
+            byte version = readHeader(in);
+            boolean checked = version == VERSION;
+
+            validLength = version == FileStoreCodec.VERSION ? LEGACY_HEADER_LENGTH : HEADER_LENGTH;
+
+            if (!checked) {
+                upgraded = new FileStoreCodec.Output((int) Math.min(fileLength, 1 << 20));
+            }
+
+            byte[] record = new byte[256];
+
+            while (true) {
+                int length = readLength(in);
+                long end = validLength + FileStoreCodec.varIntLength(length) + length + (checked ? CHECKSUM_LENGTH : 0);
+
+                // a malformed or empty record, or one going past the end of the file, is garbage or was not completely
+                // written
+                if (length <= 0 || end > fileLength) {
+                    break;
+                }
+
+                if (record.length < length) {
+                    record = new byte[Math.max(length, record.length * 2)];
+                }
+
+                in.readFully(record, 0, length);
+
+                if (checked && in.readInt() != checksum(record, 0, length)) {
+                    break;
+                }
+
+                if (record[0] == BLOCK) {
+                    for (byte[] inner : unpackBlock(record, length, checked)) {
+                        replay(inner, inner.length, replayer);
+
+                        if (upgraded != null) {
+                            frame(upgraded, inner, inner.length);
+                        }
+                    }
+                } else {
+                    replay(record, length, replayer);
+
+                    if (upgraded != null) {
+                        frame(upgraded, record, length);
+                    }
+                }
+
+                validLength = end;
+            }
+        } catch (EOFException e) {
+            // the last record was not completely written
+        } finally {
+            in.close();
+        }
+
+        if (validLength == 0) {
+            // the header was not completely written
+            this.journal.setLength(0);
+            writeHeader(this.journal);
+            this.tailPosition = HEADER_LENGTH;
+
+            return;
+        }
+
+        this.journal.setLength(validLength);
+        this.journal.seek(validLength);
+        this.tailPosition = validLength;
+
+        if (upgraded != null) {
+            upgrade(upgraded);
+        }
+    }
+
+    /**
+     * <p>
+     * Rewrites a journal of {@link FileStoreCodec#VERSION} or {@link #UNCHECKED_VERSION} in {@link #VERSION}, with the given
+     * records read from it.
+     * </p>
+     */
+    private void upgrade(FileStoreCodec.Output records) throws IOException {
+        File upgraded = new File(this.journalFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(upgraded, "rw");
+
+        try {
+            out.setLength(0);
+            writeHeader(out);
+            out.write(records.toByteArray());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        this.journal.close();
+
+        replace(upgraded, this.journalFile);
+
+        this.journal = new RandomAccessFile(this.journalFile, "rw");
+        this.journal.seek(this.journal.length());
+        this.tailPosition = this.journal.length();
+    }
+
+    private void copy(RandomAccessFile in, long position, RandomAccessFile out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+
+        in.seek(position);
+
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * <p>
+     * Replays the records appended by other processes since the journal was last read, skipping the keys changed by this
+     * instance and not written yet, as their records will come after. A record still being written is left for the next
+     * call.
+     * </p>
+     *
+     * @param replayer
+     * @return false if the files were compacted by another process, in which case the journal must be read again from the
+     *         start, see {@link #reopen()}
+     * @throws IOException
+     */
+    public synchronized boolean tail(Replayer replayer) throws IOException {
+        if (this.journal == null) {
+            return true;
+        }
+
+        this.tailing = true;
+
+        lock(true);
+
+        try {
+            return tailRecords(replayer);
+        } finally {
+            unlock(true);
+        }
+    }
+
+    private boolean tailRecords(Replayer replayer) throws IOException {
+
+        if (isReplaced()) {
+            return false;
+        }
+
+        long end = this.journal.length();
+
+        if (end <= this.tailPosition) {
+            return true;
+        }
+
+        byte[] tail = new byte[(int) (end - this.tailPosition)];
+
+        this.journal.seek(this.tailPosition);
+        this.journal.readFully(tail);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(tail));
+        Replayer external = skipDirty(replayer);
+        byte[] record = new byte[256];
+
+        try {
+            while (in.available() > 0) {
+                long[] own = this.ownWrites.peek();
+
+                if (own != null && own[0] == this.tailPosition) {
+                    in.skipBytes((int) (own[1] - own[0]));
+                    this.tailPosition = own[1];
+                    this.ownWrites.poll();
+
+                    continue;
+                }
+
+                int length = readLength(in);
+
+                // not completely written yet, or garbage left by a process that stopped while writing, which the next
+                // writer drops
+                if (length <= 0 || length > in.available() - CHECKSUM_LENGTH) {
+                    break;
+                }
+
+                if (record.length < length) {
+                    record = new byte[Math.max(length, record.length * 2)];
+                }
+
+                in.readFully(record, 0, length);
+
+                if (in.readInt() != checksum(record, 0, length)) {
+                    break;
+                }
+
+                if (record[0] == BLOCK) {
+                    for (byte[] inner : unpackBlock(record, length, true)) {
+                        replay(inner, inner.length, external);
+                    }
+                } else {
+                    replay(record, length, external);
+                }
+
+                this.tailPosition += FileStoreCodec.varIntLength(length) + length + CHECKSUM_LENGTH;
+            }
+        } catch (EOFException e) {
+            // the length of the last record is not completely written yet
+        }
+
+        return true;
+    }
+
+    /**
+     * <p>
+     * Tells if the snapshot and the journal were replaced since they were opened, which only happens when they are compacted:
+     * the journal at its path then has another id.
+     * </p>
+     */
+    private boolean isReplaced() throws IOException {
+        return readJournalId(this.journalFile) != this.journalId;
+    }
+
+    /**
+     * <p>
+     * Returns the id in the header of the given journal, or zero if it has no header or a header without id.
+     * </p>
+     */
+    static long readJournalId(File journalFile) throws IOException {
+        if (journalFile.length() < HEADER_LENGTH) {
+            return 0;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+
+        try {
+            in.skipBytes(4);
+
+            byte version = in.readByte();
+
+            if (version != VERSION && version != UNCHECKED_VERSION) {
+                return 0;
+            }
+
+            in.skipBytes(1);
+
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private Replayer skipDirty(final Replayer replayer) {
+        if (this.dirty.isEmpty() && this.appendingKey == null) {
+            return replayer;
+        }
+
+        return new Replayer() {
+            @Override
+            public void put(String key, Object value) {
+                if (!isDirty(key)) {
+                    replayer.put(key, value);
+                }
+            }
+
+            @Override
+            public void remove(String key) {
+                if (!isDirty(key)) {
+                    replayer.remove(key);
+                }
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Opens the journal currently at its path, after it was compacted by another process. The caller is expected to read the
+     * snapshot again and then all records with {@link #tail(Replayer)}, holding the lock of this instance and the shared lock
+     * throughout.
+     * </p>
+     *
+     * @throws IOException
+     */
+    public synchronized void reopen() throws IOException {
+        if (this.journal != null) {
+            this.journal.close();
+        }
+
+        this.journal = new RandomAccessFile(this.journalFile, "rw");
+        this.journalId = 0;
+
+        // the id is read from the file opened, so that a compaction while reading is seen by the next call to tail
+        if (this.journal.length() >= HEADER_LENGTH) {
+            this.journal.seek(LEGACY_HEADER_LENGTH);
+            this.journalId = this.journal.readLong();
+        }
+
+        this.tailPosition = HEADER_LENGTH;
+        this.ownWrites.clear();
+        this.recordCount = 0;
+        this.generation++;
+    }
+
+    /**
+     * <p>
+     * Tells if the entity with the given key was changed and the change was not written yet.
+     * </p>
+     *
+     * @param key
+     * @return
+     */
+    public synchronized boolean isDirty(String key) {
+        return this.dirty.containsKey(key) || key.equals(this.appendingKey);
+    }
+
+    private void replay(byte[] record, int length, Replayer replayer) throws IOException {
+        FileStoreCodec.Input input = new FileStoreCodec.Input(record, 0, length, null);
+        byte op = input.readByte();
+        String key = input.readString();
+
+        if (op == PUT) {
+            replayer.put(key, FileStoreCodec.decode(record, input.position(), length - input.position()));
+        } else if (op == REMOVE) {
+            replayer.remove(key);
+        } else {
+            throw new IOException("Unknown record type " + op + " in journal " + this.journalFile + ".");
+        }
+
+        this.recordCount++;
+    }
+
+    /**
+     * <p>
+     * Returns the records compressed in a <code>BLOCK</code> record: the codec id, the length of the records and the
+     * compressed records, framed as they are in the journal.
+     * </p>
+     */
+    private List<byte[]> unpackBlock(byte[] record, int length, boolean checked) throws IOException {
+        FileStoreCodec.Input input = new FileStoreCodec.Input(record, 1, length, null);
+        FileBlockCodec codec = FileStoreCodec.getBlockCodec(input.readByte(), getBlockCodec());
+        int rawLength = input.readVarInt();
+        byte[] records = codec.decompress(record, input.position(), length - input.position(), rawLength);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        List<byte[]> unpacked = new ArrayList<byte[]>();
+
+        while (in.available() > 0) {
+            byte[] inner = new byte[FileStoreCodec.readVarInt(in)];
+
+            in.readFully(inner);
+
+            if (checked && in.readInt() != checksum(inner, 0, inner.length)) {
+                throw new IOException("Corrupted block in journal " + this.journalFile + ".");
+            }
+
+            unpacked.add(inner);
+        }
+
+        return unpacked;
+    }
+
+    /**
+     * <p>
+     * Reads the length of the next record, or returns -1 if it is malformed.
+     * </p>
+     */
+    private static int readLength(DataInput in) throws IOException {
+        try {
+            return FileStoreCodec.readVarInt(in);
+        } catch (EOFException e) {
+            throw e;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+
+        crc.update(bytes, offset, length);
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * <p>
+     * Writes the header of a new journal, with a new id.
+     * </p>
+     */
+    private void writeHeader(RandomAccessFile file) throws IOException {
+        long id;
+
+        do {
+            id = IDS.nextLong();
+        } while (id == 0);
+
+        file.writeInt(FileStoreCodec.MAGIC);
+        file.writeByte(VERSION);
+        file.writeByte(this.type);
+        file.writeLong(id);
+
+        this.journalId = id;
+    }
+
+    /**
+     * <p>
+     * Reads the header of the journal and its id, zero for a journal of {@link FileStoreCodec#VERSION}, and returns its
+     * version.
+     * </p>
+     */
+    private byte readHeader(DataInput in) throws IOException {
+        int magic = in.readInt();
+        byte version = in.readByte();
+
+        if (magic != FileStoreCodec.MAGIC
+                || (version != VERSION && version != UNCHECKED_VERSION && version != FileStoreCodec.VERSION)
+                || in.readByte() != this.type) {
+            throw new IOException("Journal " + this.journalFile + " is not in the expected format.");
+        }
+
+        this.journalId = version != FileStoreCodec.VERSION ? in.readLong() : 0;
+
+        return version;
+    }
+
+    /**
+     * <p>
+     * Appends a record with the current state of the entity with the given key.
+     * </p>
+     *
+     * @param key
+     * @param value
+     */
+    public void put(String key, Object value) {
+        if (markDirty(key, value)) {
+            return;
+        }
+
+        try {
+            append(key, encodePut(key, value));
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing to journal " + this.journalFile + ".", e);
+        }
+    }
+
+    /**
+     * <p>
+     * Appends a record removing the entity with the given key.
+     * </p>
+     *
+     * @param key
+     */
+    public void remove(String key) {
+        if (markDirty(key, REMOVED)) {
+            return;
+        }
+
+        try {
+            append(key, encodeRemove(key));
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing to journal " + this.journalFile + ".", e);
+        }
+    }
+
+    /**
+     * <p>
+     * Records the given key as dirty if write-behind is enabled, replacing any change not written yet.
+     * </p>
+     *
+     * @return false if write-behind is disabled and the record must be appended right away
+     */
+    private synchronized boolean markDirty(String key, Object value) {
+        if (!this.writeBehind) {
+            return false;
+        }
+
+        if (this.dirty.put(key, value) == null) {
+            this.recordCount++;
+        }
+
+        return true;
+    }
+
+    private byte[] encodePut(String key, Object value) throws IOException {
+        FileStoreCodec.Output record = new FileStoreCodec.Output(128);
+
+        record.writeByte(PUT);
+        record.writeString(key);
+        FileStoreCodec.writeEntity(record, value, null);
+
+        return frame(record);
+    }
+
+    private byte[] encodeRemove(String key) throws IOException {
+        FileStoreCodec.Output record = new FileStoreCodec.Output(key.length() + 8);
+
+        record.writeByte(REMOVE);
+        record.writeString(key);
+
+        return frame(record);
+    }
+
+    private byte[] frame(FileStoreCodec.Output record) throws IOException {
+        byte[] bytes = record.toByteArray();
+        FileStoreCodec.Output frame = new FileStoreCodec.Output(bytes.length + 5 + CHECKSUM_LENGTH);
+
+        frame(frame, bytes, bytes.length);
+
+        return frame.toByteArray();
+    }
+
+    /**
+     * <p>
+     * Writes a record as it is framed in the journal: its length, its content and the CRC32 of its content.
+     * </p>
+     */
+    private static void frame(FileStoreCodec.Output out, byte[] record, int length) {
+        int checksum = checksum(record, 0, length);
+
+        out.writeVarInt(length);
+        out.write(record, 0, length);
+        out.writeByte(checksum >>> 24);
+        out.writeByte(checksum >>> 16);
+        out.writeByte(checksum >>> 8);
+        out.writeByte(checksum);
+    }
+
+    private synchronized void append(String key, byte[] record) throws IOException {
+        if (this.journal == null) {
+            throw new IllegalStateException("Journal " + this.journalFile + " is not open.");
+        }
+
+        if (this.writeBehind) {
+            this.pending.write(record);
+        } else {
+            lock(false);
+
+            try {
+                this.appendingKey = key;
+
+                catchUp();
+            } finally {
+                this.appendingKey = null;
+            }
+
+            try {
+                write(record);
+            } finally {
+                unlock(false);
+            }
+
+            this.journal.getChannel().force(false);
+        }
+
+        this.recordCount++;
+    }
+
+    /**
+     * <p>
+     * Sets whether appended records are only buffered in memory until {@link #writePending()} and {@link #force()} are
+     * called, or written and synced to disk before returning. Switching off write-behind writes the buffered records.
+     * </p>
+     *
+     * @param writeBehind
+     * @throws IOException
+     */
+    public synchronized void setWriteBehind(boolean writeBehind) throws IOException {
+        if (!writeBehind && this.journal != null) {
+            writePending();
+            this.journal.getChannel().force(false);
+        }
+
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * <p>
+     * Encodes a record for each dirty key and writes the records buffered since the last call, without syncing them to disk.
+     * </p>
+     *
+     * @return true if there were buffered records
+     * @throws IOException
+     */
+    public synchronized boolean writePending() throws IOException {
+        if (this.journal == null || (this.dirty.isEmpty() && this.pending.size() == 0)) {
+            return false;
+        }
+
+        lock(false);
+
+        try {
+            catchUp();
+
+            for (Entry<String, Object> entry : this.dirty.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    this.pending.write(encodeRemove(entry.getKey()));
+                } else {
+                    this.pending.write(encodePut(entry.getKey(), entry.getValue()));
+                }
+            }
+
+            this.dirty.clear();
+
+            if (this.pending.size() == 0) {
+                return false;
+            }
+
+            write(compressPending());
+            this.pending.reset();
+
+            return true;
+        } finally {
+            unlock(false);
+        }
+    }
+
+    /**
+     * <p>
+     * Applies the records appended by other processes before writing, while the keys about to be written are still skipped,
+     * so that the records of this instance come after them as its changes were applied after them. With no other writer
+     * left, the bytes after the last complete record were left by a process that stopped while writing, and are dropped.
+     * Called with the exclusive lock held.
+     * </p>
+     */
+    private void catchUp() throws IOException {
+        if (this.tailer == null) {
+            return;
+        }
+
+        this.tailer.tail(this);
+
+        if (this.ownWrites.isEmpty() && this.journal.length() > this.tailPosition) {
+            this.journal.setLength(this.tailPosition);
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the given records at the end of the journal, which other processes may have appended to meanwhile. Called with
+     * the exclusive lock held.
+     * </p>
+     */
+    private void write(byte[] records) throws IOException {
+        if (this.journal.length() < HEADER_LENGTH) {
+            // created empty by another process
+            this.journal.setLength(0);
+            writeHeader(this.journal);
+            this.tailPosition = HEADER_LENGTH;
+        }
+
+        long start = this.journal.length();
+
+        this.journal.seek(start);
+        this.journal.write(records);
+
+        if (!this.tailing || start == this.tailPosition) {
+            this.tailPosition = start + records.length;
+        } else {
+            this.ownWrites.add(new long[] { start, start + records.length });
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the buffered records, compressed as a single <code>BLOCK</code> record if a codec is set and compressing them
+     * saves space.
+     * </p>
+     */
+    private byte[] compressPending() throws IOException {
+        byte[] records = this.pending.toByteArray();
+
+        if (this.codec == null || records.length < MIN_BLOCK_SIZE) {
+            return records;
+        }
+
+        byte[] compressed = this.codec.compress(records, 0, records.length);
+        FileStoreCodec.Output block = new FileStoreCodec.Output(compressed.length + 8);
+
+        block.writeByte(BLOCK);
+        block.writeByte(this.codec.getId());
+        block.writeVarInt(records.length);
+        block.write(compressed, 0, compressed.length);
+
+        byte[] framed = frame(block);
+
+        return framed.length < records.length ? framed : records;
+    }
+
+    /**
+     * <p>
+     * Sets the codec compressing the snapshots and the records written in write-behind mode, or null to write them
+     * uncompressed. The codec is also needed to read the files it compressed, unless it is one of the provided codecs.
+     * </p>
+     *
+     * @param codec
+     */
+    public synchronized void setBlockCodec(FileBlockCodec codec) {
+        this.codec = codec;
+    }
+
+    public synchronized FileBlockCodec getBlockCodec() {
+        return this.codec;
+    }
+
+    /**
+     * <p>
+     * Sets whether snapshots are compressed when a codec is set. Defaults to true.
+     * </p>
+     *
+     * @param snapshotCompressed
+     */
+    public synchronized void setSnapshotCompressed(boolean snapshotCompressed) {
+        this.snapshotCompressed = snapshotCompressed;
+    }
+
+    /**
+     * <p>
+     * Syncs the records written so far to disk. The lock of this instance is not held while syncing, so records can still be
+     * appended meanwhile.
+     * </p>
+     *
+     * @throws IOException
+     */
+    public void force() throws IOException {
+        for (int attempt = 0;; attempt++) {
+            FileChannel channel;
+
+            synchronized (this) {
+                if (this.journal == null) {
+                    return;
+                }
+
+                channel = this.journal.getChannel();
+            }
+
+            try {
+                channel.force(false);
+                return;
+            } catch (ClosedChannelException e) {
+                // replaced by a compaction, sync the new file instead
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the number of records appended since the journal was last compacted.
+     * </p>
+     *
+     * @return
+     */
+    public synchronized int getRecordCount() {
+        return this.recordCount;
+    }
+
+    /**
+     * <p>
+     * Writes the buffered records and returns the current length of the journal. Callers must hold the lock of this instance
+     * and the exclusive lock while copying the state to be passed to {@link #compact(Collection, long)}, so that the copy
+     * includes at least every record before the returned position.
+     * </p>
+     *
+     * @return
+     */
+    public synchronized long mark() {
+        try {
+            writePending();
+
+            this.markedGeneration = this.generation;
+
+            return this.journal.length();
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading journal " + this.journalFile + ".", e);
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the given state as the new snapshot and drops the records before <code>mark</code>. The snapshot is written
+     * without holding the lock of this instance nor the exclusive lock, so records can still be appended meanwhile, and the
+     * files are only replaced with the exclusive lock held.
+     * </p>
+     * <p>
+     * The compaction is given up if the files were compacted by another process since the mark, as its snapshot includes
+     * every record before the mark.
+     * </p>
+     *
+     * @param snapshot
+     * @param mark
+     * @return false if the compaction was given up
+     * @throws IOException
+     */
+    public boolean compact(Collection<?> snapshot, long mark) throws IOException {
+        FileBlockCodec codec;
+
+        synchronized (this) {
+            codec = this.snapshotCompressed ? this.codec : null;
+        }
+
+        // other processes may be compacting the same files
+        File tmp = File.createTempFile(this.snapshotFile.getName() + ".", ".tmp", this.snapshotFile.getAbsoluteFile()
+                .getParentFile());
+        FileOutputStream fos = new FileOutputStream(tmp);
+        BufferedOutputStream stream = new BufferedOutputStream(fos, 65536);
+
+        try {
+            FileStoreCodec.writeSnapshot(stream, this.type, snapshot, codec);
+            stream.flush();
+            fos.getFD().sync();
+        } finally {
+            stream.close();
+        }
+
+        synchronized (this) {
+            lock(false);
+
+            try {
+                if (this.journal == null || this.markedGeneration != this.generation || isReplaced()) {
+                    tmp.delete();
+
+                    return false;
+                }
+
+                replace(tmp, this.snapshotFile);
+                replaceJournal(mark);
+            } finally {
+                unlock(false);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * <p>
+     * Replaces the journal by a copy of its records after the given mark.
+     * </p>
+     */
+    private void replaceJournal(long mark) throws IOException {
+        File tail = new File(this.journalFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tail, "rw");
+        int remaining = 0;
+
+        try {
+            out.setLength(0);
+            writeHeader(out);
+
+            copy(this.journal, Math.max(mark, HEADER_LENGTH), out);
+            out.getFD().sync();
+            out.seek(HEADER_LENGTH);
+
+            remaining = countRecords(out);
+        } finally {
+            out.close();
+        }
+
+        this.journal.close();
+
+        replace(tail, this.journalFile);
+
+        this.journal = new RandomAccessFile(this.journalFile, "rw");
+        this.journal.seek(this.journal.length());
+        this.recordCount = remaining;
+
+        moveTail(Math.max(mark, HEADER_LENGTH) - HEADER_LENGTH);
+        this.generation++;
+        this.markedGeneration = -1;
+    }
+
+    /**
+     * <p>
+     * Moves the positions read and written back by the given number of bytes dropped from the start of the journal.
+     * </p>
+     */
+    private void moveTail(long dropped) {
+        this.tailPosition = Math.max(HEADER_LENGTH, this.tailPosition - dropped);
+
+        for (Iterator<long[]> i = this.ownWrites.iterator(); i.hasNext();) {
+            long[] own = i.next();
+
+            if (own[0] - dropped < HEADER_LENGTH) {
+                i.remove();
+            } else {
+                own[0] -= dropped;
+                own[1] -= dropped;
+            }
+        }
+    }
+
+    private int countRecords(RandomAccessFile file) throws IOException {
+        int count = 0;
+
+        try {
+            while (true) {
+                int length = FileStoreCodec.readVarInt(file) + CHECKSUM_LENGTH;
+
+                if (file.skipBytes(length) < length) {
+                    break;
+                }
+
+                count++;
+            }
+        } catch (EOFException e) {
+        }
+
+        return count;
+    }
+
+    /**
+     * <p>
+     * Closes the journal. Records appended so far are written and synced to disk.
+     * </p>
+     */
+    public synchronized void close() {
+        if (this.journal != null) {
+            try {
+                writePending();
+                this.journal.getChannel().force(false);
+            } catch (IOException e) {
+            }
+
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+            }
+
+            this.journal = null;
+        }
+
+        if (this.fileLock != null) {
+            this.fileLock.release();
+            this.fileLock = null;
+        }
+    }
+
+    /**
+     * <p>
+     * Closes the journal and deletes both the journal and the snapshot files.
+     * </p>
+     */
+    public synchronized void delete() {
+        this.pending.reset();
+        this.dirty.clear();
+
+        close();
+
+        this.journalFile.delete();
+        this.snapshotFile.delete();
+    }
+
+    public File getSnapshotFile() {
+        return this.snapshotFile;
+    }
+
+    public File getJournalFile() {
+        return this.journalFile;
+    }
+
+    /**
+     * <p>
+     * Returns the kind of entity, one of the {@link FileStoreCodec} types.
+     * </p>
+     *
+     * @return
+     */
+    public byte getType() {
+        return this.type;
+    }
+
+    static void replace(File source, File target) throws IOException {
+        if (!source.renameTo(target)) {
+            target.delete();
+
+            if (!source.renameTo(target)) {
+                throw new IOException("Could not replace " + target + ".");
+            }
+        }
+    }
+
+}
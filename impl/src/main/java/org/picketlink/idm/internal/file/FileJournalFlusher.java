@@ -0,0 +1,428 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Writes the records buffered by a set of {@link FileJournal}s in the background, so that the threads making changes do not
+ * pay for the disk writes. All journals are committed together: records are written once the oldest of them is
+ * <code>commitLatency</code> old, and synced to disk right away ({@link FileDurability#GROUP_COMMIT}) or once per
+ * <code>syncInterval</code> ({@link FileDurability#ASYNC}).
+ * </p>
+ * <p>
+ * Callers that need their changes on disk wait on the {@link Future} returned by {@link #sync()}. Requests made while a
+ * commit is running are served together by the next one, so concurrent callers share a single sync.
+ * </p>
+ * <p>
+ * With a parallelism greater than one, the journals are written and synced concurrently, each on its own thread, so that a
+ * commit of several shards costs about as much as the slowest of them.
+ * </p>
+ */
+public class FileJournalFlusher implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(FileJournalFlusher.class.getName());
+
+    private final FileJournal[] journals;
+    private final Object lock = new Object();
+
+    private volatile FileDurability durability;
+    private volatile long commitLatency;
+    private volatile long syncInterval;
+    private volatile int parallelism = 1;
+    private ExecutorService executor;
+
+    private long firstPendingTime = -1;
+    private long lastSyncTime = System.nanoTime();
+    private boolean unsynced;
+    private List<CommitFuture> waiters = new ArrayList<CommitFuture>();
+    private boolean closed;
+    private Thread thread;
+
+    public FileJournalFlusher(FileJournal[] journals, FileDurability durability, long commitLatency, long syncInterval) {
+        this.journals = journals;
+        this.durability = durability;
+        this.commitLatency = commitLatency;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * <p>
+     * Notifies that records were appended to one of the journals.
+     * </p>
+     */
+    public void changed() {
+        if (this.durability == FileDurability.SYNC) {
+            return;
+        }
+
+        synchronized (this.lock) {
+            if (this.firstPendingTime < 0) {
+                this.firstPendingTime = System.nanoTime();
+                ensureStarted();
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Requests a commit of all records appended so far, including syncing them to disk.
+     * </p>
+     *
+     * @return a {@link Future} completed once the records are on disk
+     */
+    public Future<Void> sync() {
+        CommitFuture future = new CommitFuture();
+
+        synchronized (this.lock) {
+            if (!this.closed && this.durability != FileDurability.SYNC) {
+                this.waiters.add(future);
+                ensureStarted();
+                this.lock.notifyAll();
+
+                return future;
+            }
+        }
+
+        future.complete(null);
+
+        return future;
+    }
+
+    /**
+     * <p>
+     * Commits the pending records and stops the background thread.
+     * </p>
+     */
+    public void close() {
+        Thread thread;
+
+        synchronized (this.lock) {
+            this.closed = true;
+            this.lock.notifyAll();
+            thread = this.thread;
+        }
+
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            try {
+                commit(true);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error committing journals.", e);
+            }
+        }
+
+        synchronized (this) {
+            if (this.executor != null) {
+                this.executor.shutdown();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        boolean last = false;
+
+        while (!last) {
+            List<CommitFuture> batch;
+            boolean force;
+
+            synchronized (this.lock) {
+                try {
+                    awaitCommit();
+                } catch (InterruptedException e) {
+                    this.closed = true;
+                }
+
+                last = this.closed;
+                batch = this.waiters;
+                this.waiters = new ArrayList<CommitFuture>();
+                this.firstPendingTime = -1;
+                force = last || !batch.isEmpty() || this.durability != FileDurability.ASYNC
+                        || System.nanoTime() - this.lastSyncTime >= TimeUnit.MILLISECONDS.toNanos(this.syncInterval);
+            }
+
+            Throwable failure = null;
+
+            try {
+                commit(force);
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Error committing journals.", t);
+                failure = t;
+            }
+
+            for (CommitFuture future : batch) {
+                future.complete(failure);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Waits until a commit is due. Must be called holding the lock.
+     * </p>
+     */
+    private void awaitCommit() throws InterruptedException {
+        while (!this.closed && this.waiters.isEmpty()) {
+            long now = System.nanoTime();
+            long wait = 0;
+
+            if (this.firstPendingTime >= 0) {
+                wait = TimeUnit.MILLISECONDS.toNanos(this.commitLatency) - (now - this.firstPendingTime);
+            } else if (this.unsynced) {
+                wait = TimeUnit.MILLISECONDS.toNanos(this.syncInterval) - (now - this.lastSyncTime);
+            } else {
+                this.lock.wait();
+                continue;
+            }
+
+            if (wait <= 0) {
+                return;
+            }
+
+            this.lock.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+        }
+    }
+
+    private void commit(boolean force) throws IOException {
+        boolean written = false;
+
+        if (this.parallelism > 1 && this.journals.length > 1) {
+            written = commitInParallel(force);
+        } else {
+            for (FileJournal journal : this.journals) {
+                written |= journal.writePending();
+            }
+
+            if (force) {
+                for (FileJournal journal : this.journals) {
+                    journal.force();
+                }
+            }
+        }
+
+        synchronized (this.lock) {
+            if (force) {
+                this.lastSyncTime = System.nanoTime();
+                this.unsynced = false;
+            } else if (written) {
+                this.unsynced = true;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Writes, and syncs if requested, each journal on a thread of the executor, waiting for all of them.
+     * </p>
+     */
+    private boolean commitInParallel(final boolean force) throws IOException {
+        ExecutorService executor = getExecutor();
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(this.journals.length);
+
+        for (final FileJournal journal : this.journals) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    boolean written = journal.writePending();
+
+                    if (force) {
+                        journal.force();
+                    }
+
+                    return written;
+                }
+            }));
+        }
+
+        boolean written = false;
+        Throwable failure = null;
+
+        for (Future<Boolean> result : results) {
+            try {
+                written |= result.get().booleanValue();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while committing journals.");
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            }
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new IOException("Error committing journals: " + failure);
+        }
+
+        return written;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (this.executor == null) {
+            this.executor = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "picketlink-file-flusher-io");
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+        }
+
+        return this.executor;
+    }
+
+    private void ensureStarted() {
+        if (this.thread == null && !this.closed) {
+            this.thread = new Thread(this, "picketlink-file-flusher");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    public FileDurability getDurability() {
+        return this.durability;
+    }
+
+    /**
+     * <p>
+     * Changes the durability mode. Records buffered while switching to {@link FileDurability#SYNC} are written by the journals
+     * themselves.
+     * </p>
+     *
+     * @param durability
+     */
+    public void setDurability(FileDurability durability) {
+        this.durability = durability;
+
+        synchronized (this.lock) {
+            this.lock.notifyAll();
+        }
+    }
+
+    public void setCommitLatency(long commitLatency) {
+        this.commitLatency = commitLatency;
+    }
+
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * <p>
+     * Sets the number of threads writing and syncing the journals of a commit concurrently. Must be set before the first
+     * commit.
+     * </p>
+     *
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * <p>
+     * {@link Future} completed by the commit serving a call to {@link FileJournalFlusher#sync()}.
+     * </p>
+     */
+    private static class CommitFuture implements Future<Void> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable failure;
+
+        void complete(Throwable failure) {
+            this.failure = failure;
+            this.done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return this.done.getCount() == 0;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            this.done.await();
+
+            return result();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!this.done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+
+            return result();
+        }
+
+        private Void result() throws ExecutionException {
+            if (this.failure != null) {
+                throw new ExecutionException(this.failure);
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Statistics of the file locks taken by the journals of a {@link FileBasedIdentityStore}: how many shared and exclusive locks
+ * were taken, and how long they were waited for, including the time other processes sharing the files held them.
+ * </p>
+ */
+public class FileLockStatistics implements FileLockStatisticsMBean {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final AtomicLong sharedLockCount = new AtomicLong();
+    private final AtomicLong exclusiveLockCount = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /**
+     * <p>
+     * Records a lock taken after waiting for the given time, in nanoseconds.
+     * </p>
+     *
+     * @param shared
+     * @param waitTime
+     */
+    void record(boolean shared, long waitTime) {
+        if (shared) {
+            this.sharedLockCount.incrementAndGet();
+        } else {
+            this.exclusiveLockCount.incrementAndGet();
+        }
+
+        this.totalWaitTime.addAndGet(waitTime);
+
+        long max = this.maxWaitTime.get();
+
+        while (waitTime > max && !this.maxWaitTime.compareAndSet(max, waitTime)) {
+            max = this.maxWaitTime.get();
+        }
+    }
+
+    @Override
+    public long getSharedLockCount() {
+        return this.sharedLockCount.get();
+    }
+
+    @Override
+    public long getExclusiveLockCount() {
+        return this.exclusiveLockCount.get();
+    }
+
+    @Override
+    public double getTotalWaitTime() {
+        return this.totalWaitTime.get() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getAverageWaitTime() {
+        long locks = getSharedLockCount() + getExclusiveLockCount();
+
+        return locks > 0 ? getTotalWaitTime() / locks : 0;
+    }
+
+    @Override
+    public double getMaxWaitTime() {
+        return this.maxWaitTime.get() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public void reset() {
+        this.sharedLockCount.set(0);
+        this.exclusiveLockCount.set(0);
+        this.totalWaitTime.set(0);
+        this.maxWaitTime.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileLockStatistics[shared=%d, exclusive=%d, totalWait=%.3fms, avgWait=%.3fms, maxWait=%.3fms]",
+                getSharedLockCount(), getExclusiveLockCount(), getTotalWaitTime(), getAverageWaitTime(), getMaxWaitTime());
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Membership;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * Memberships of the {@link FileBasedIdentityStore}, indexed by the keys of their user, group and role, and by the three of
+ * them together. Lookups by any combination of keys only visit the memberships of the most selective one. The keys of the
+ * three of them are kept in order, so all memberships can be paged through without sorting them.
+ * </p>
+ * <p>
+ * Changes are serialized by the lock of this instance, while lookups read the indexes without locking.
+ * </p>
+ */
+class FileMembershipIndex {
+
+    private final Set<FileMembership> all = new ConcurrentHashSet<FileMembership>();
+    private final Map<String, Set<FileMembership>> byUser = newIndex();
+    private final Map<String, Set<FileMembership>> byGroup = newIndex();
+    private final Map<String, Set<FileMembership>> byRole = newIndex();
+    private final ConcurrentSkipListMap<String, Set<FileMembership>> byTriple =
+            new ConcurrentSkipListMap<String, Set<FileMembership>>();
+
+    /**
+     * <p>
+     * Returns the key used to index the given role, which is its name as compared by {@link FileRole#equals(Object)}.
+     * </p>
+     *
+     * @param role
+     * @return
+     */
+    static String key(Role role) {
+        return role == null ? null : role.getName();
+    }
+
+    /**
+     * <p>
+     * Returns the key used to index the given user, which is its id as compared by {@link FileUser#equals(Object)}.
+     * </p>
+     *
+     * @param user
+     * @return
+     */
+    static String key(User user) {
+        return user == null ? null : user.getId();
+    }
+
+    /**
+     * <p>
+     * Returns the key used to index the given group. Groups of the file store have the same name and id, so groups
+     * referenced only by one of them are looked up by whichever is present.
+     * </p>
+     *
+     * @param group
+     * @return
+     */
+    static String key(Group group) {
+        if (group == null) {
+            return null;
+        }
+
+        return group.getName() != null ? group.getName() : group.getId();
+    }
+
+    /**
+     * <p>
+     * Returns the key identifying a membership by its role, user and group keys, any of which can be null.
+     * </p>
+     */
+    static String tripleKey(String roleKey, String userKey, String groupKey) {
+        return (roleKey == null ? "" : roleKey) + "\n" + (userKey == null ? "" : userKey) + "\n"
+                + (groupKey == null ? "" : groupKey);
+    }
+
+    static String tripleKey(Membership membership) {
+        return tripleKey(key(membership.getRole()), key(membership.getUser()), key(membership.getGroup()));
+    }
+
+    synchronized void add(FileMembership membership) {
+        if (!this.all.add(membership)) {
+            return;
+        }
+
+        index(this.byUser, key(membership.getUser()), membership);
+        index(this.byGroup, key(membership.getGroup()), membership);
+        index(this.byRole, key(membership.getRole()), membership);
+        index(this.byTriple, tripleKey(membership), membership);
+    }
+
+    synchronized boolean remove(FileMembership membership) {
+        if (!this.all.remove(membership)) {
+            return false;
+        }
+
+        unindex(this.byUser, key(membership.getUser()), membership);
+        unindex(this.byGroup, key(membership.getGroup()), membership);
+        unindex(this.byRole, key(membership.getRole()), membership);
+        unindex(this.byTriple, tripleKey(membership), membership);
+
+        return true;
+    }
+
+    /**
+     * <p>
+     * Returns the memberships with exactly the given role, user and group keys, null meaning the membership has no role,
+     * user or group.
+     * </p>
+     */
+    List<FileMembership> get(String roleKey, String userKey, String groupKey) {
+        return get(tripleKey(roleKey, userKey, groupKey));
+    }
+
+    /**
+     * <p>
+     * Returns the memberships with the given key, see {@link #tripleKey(String, String, String)}.
+     * </p>
+     */
+    List<FileMembership> get(String tripleKey) {
+        Set<FileMembership> memberships = this.byTriple.get(tripleKey);
+
+        if (memberships == null) {
+            return Collections.emptyList();
+        }
+
+        return new ArrayList<FileMembership>(memberships);
+    }
+
+    /**
+     * <p>
+     * Returns the memberships matching all the given keys, null keys matching any membership.
+     * </p>
+     */
+    List<FileMembership> find(String roleKey, String userKey, String groupKey) {
+        Collection<FileMembership> candidates = this.all;
+
+        candidates = narrow(candidates, this.byRole, roleKey);
+        candidates = narrow(candidates, this.byUser, userKey);
+        candidates = narrow(candidates, this.byGroup, groupKey);
+
+        List<FileMembership> result = new ArrayList<FileMembership>(candidates.size());
+
+        for (FileMembership membership : candidates) {
+            if (matches(roleKey, key(membership.getRole())) && matches(userKey, key(membership.getUser()))
+                    && matches(groupKey, key(membership.getGroup()))) {
+                result.add(membership);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>
+     * Returns all memberships.
+     * </p>
+     */
+    Collection<FileMembership> all() {
+        return Collections.unmodifiableSet(this.all);
+    }
+
+    int size() {
+        return this.all.size();
+    }
+
+    /**
+     * <p>
+     * Returns the keys of all memberships in ascending order, see {@link #tripleKey(String, String, String)}. The returned set
+     * must not be changed.
+     * </p>
+     */
+    NavigableSet<String> navigableKeySet() {
+        return this.byTriple.navigableKeySet();
+    }
+
+    private static Map<String, Set<FileMembership>> newIndex() {
+        return new ConcurrentHashMap<String, Set<FileMembership>>(16, 0.75f, 1);
+    }
+
+    private Collection<FileMembership> narrow(Collection<FileMembership> candidates, Map<String, Set<FileMembership>> index,
+            String key) {
+        if (key == null) {
+            return candidates;
+        }
+
+        Set<FileMembership> memberships = index.get(key);
+
+        if (memberships == null) {
+            return Collections.emptySet();
+        }
+
+        return memberships.size() < candidates.size() ? memberships : candidates;
+    }
+
+    private boolean matches(String expected, String actual) {
+        return expected == null || expected.equals(actual);
+    }
+
+    private void index(Map<String, Set<FileMembership>> index, String key, FileMembership membership) {
+        if (key == null) {
+            return;
+        }
+
+        Set<FileMembership> memberships = index.get(key);
+
+        if (memberships == null) {
+            memberships = new ConcurrentHashSet<FileMembership>(4);
+            index.put(key, memberships);
+        }
+
+        memberships.add(membership);
+    }
+
+    private void unindex(Map<String, Set<FileMembership>> index, String key, FileMembership membership) {
+        if (key == null) {
+            return;
+        }
+
+        Set<FileMembership> memberships = index.get(key);
+
+        if (memberships != null) {
+            memberships.remove(membership);
+
+            if (memberships.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
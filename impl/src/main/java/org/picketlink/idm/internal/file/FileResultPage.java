@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.picketlink.idm.query.Range;
+
+/**
+ * <p>
+ * Collects the results of a {@link FileBasedIdentityStore} query falling in a {@link Range}. Queries offer their matching
+ * entities in order and stop as soon as the page is full, so that a page only costs the entities up to its end instead of
+ * all the matching ones.
+ * </p>
+ */
+class FileResultPage<T> {
+
+    private final int offset;
+    private final int limit;
+    private final List<T> results;
+    private int skipped;
+
+    /**
+     * @param range the range of results to collect, or null to collect all of them. A negative limit means no limit.
+     */
+    FileResultPage(Range range) {
+        this.offset = range != null ? Math.max(0, range.getOffset()) : 0;
+        this.limit = range != null ? range.getLimit() : -1;
+        this.results = new ArrayList<T>(this.limit >= 0 ? Math.min(this.limit, 1024) : 16);
+    }
+
+    /**
+     * <p>
+     * Returns true if no more results are needed.
+     * </p>
+     */
+    boolean isFull() {
+        return this.limit >= 0 && this.results.size() >= this.limit;
+    }
+
+    /**
+     * <p>
+     * Adds the given result, unless it comes before the offset of the range.
+     * </p>
+     */
+    void offer(T result) {
+        if (this.skipped < this.offset) {
+            this.skipped++;
+        } else if (!isFull()) {
+            this.results.add(result);
+        }
+    }
+
+    List<T> getResults() {
+        return this.results;
+    }
+}
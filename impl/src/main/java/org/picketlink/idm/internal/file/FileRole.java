@@ -58,7 +58,9 @@ public class FileRole extends AbstractFileIdentityType implements Role {
 
     @Override
     protected void update() {
-        super.changeListener.updateRoles();
+        if (super.changeListener != null) {
+            super.changeListener.updateRole(this);
+        }
     }
 
     @Override
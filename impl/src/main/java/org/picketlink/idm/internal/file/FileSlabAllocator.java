@@ -0,0 +1,264 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Allocates variable length records in direct {@link ByteBuffer} slabs, outside of the Java heap. Each slab is carved into
+ * slots of a single size class, a power of two between {@link #MIN_SLOT_SIZE} and the slab size, and freed slots are reused by
+ * the next record of the same class, so the memory used never needs to be compacted. Records larger than a slab get a slab of
+ * their own, released when they are freed.
+ * </p>
+ * <p>
+ * A record is identified by its address, the index of its slab in the high 32 bits and its offset in the slab in the low 32
+ * bits. Each slot starts with the length of its record.
+ * </p>
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ */
+class FileSlabAllocator {
+
+    static final int MIN_SLOT_SIZE = 32;
+
+    private static final int HUGE = -1;
+
+    private final int slabSize;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private int[] slabClasses = new int[16];
+    private final List<Integer> releasedSlabs = new ArrayList<Integer>();
+
+    // per size class: the slab being carved, the offset of its next free slot, and the slots freed so far
+    private final int[] currentSlabs;
+    private final int[] nextOffsets;
+    private final long[][] freeSlots;
+    private final int[] freeCounts;
+
+    private long capacity;
+    private long used;
+
+    /**
+     * @param slabSize the size of the slabs, rounded up to a power of two.
+     */
+    FileSlabAllocator(int slabSize) {
+        this.slabSize = slotSize(sizeClass(Math.max(slabSize, MIN_SLOT_SIZE)));
+
+        int classes = sizeClass(this.slabSize) + 1;
+
+        this.currentSlabs = new int[classes];
+        this.nextOffsets = new int[classes];
+        this.freeSlots = new long[classes][];
+        this.freeCounts = new int[classes];
+
+        for (int i = 0; i < classes; i++) {
+            this.currentSlabs[i] = -1;
+            this.freeSlots[i] = new long[16];
+        }
+    }
+
+    /**
+     * <p>
+     * Copies the given record to a free slot and returns its address.
+     * </p>
+     */
+    long write(byte[] record) {
+        int size = record.length + 4;
+        long address;
+
+        if (size > this.slabSize) {
+            address = address(addSlab(size, HUGE), 0);
+        } else {
+            address = allocate(sizeClass(size));
+        }
+
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+
+        slab.putInt(offset, record.length);
+        slab.position(offset + 4);
+        slab.put(record);
+
+        this.used += record.length;
+
+        return address;
+    }
+
+    /**
+     * <p>
+     * Returns a copy of the record at the given address.
+     * </p>
+     */
+    byte[] read(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        byte[] record = new byte[slab.getInt(offset)];
+
+        slab.position(offset + 4);
+        slab.get(record);
+
+        return record;
+    }
+
+    /**
+     * <p>
+     * Frees the slot of the record at the given address.
+     * </p>
+     */
+    void free(long address) {
+        int slabIndex = (int) (address >>> 32);
+        int sizeClass = this.slabClasses[slabIndex];
+
+        this.used -= slab(address).getInt(offset(address));
+
+        if (sizeClass == HUGE) {
+            this.capacity -= this.slabs.get(slabIndex).capacity();
+            this.slabs.set(slabIndex, null);
+            this.releasedSlabs.add(Integer.valueOf(slabIndex));
+            return;
+        }
+
+        long[] free = this.freeSlots[sizeClass];
+
+        if (this.freeCounts[sizeClass] == free.length) {
+            long[] grown = new long[free.length * 2];
+
+            System.arraycopy(free, 0, grown, 0, free.length);
+            this.freeSlots[sizeClass] = free = grown;
+        }
+
+        free[this.freeCounts[sizeClass]++] = address;
+    }
+
+    /**
+     * <p>
+     * Frees all records and releases the slabs.
+     * </p>
+     */
+    void clear() {
+        this.slabs.clear();
+        this.releasedSlabs.clear();
+
+        for (int i = 0; i < this.currentSlabs.length; i++) {
+            this.currentSlabs[i] = -1;
+            this.freeCounts[i] = 0;
+        }
+
+        this.capacity = 0;
+        this.used = 0;
+    }
+
+    /**
+     * <p>
+     * Returns the bytes allocated outside of the heap for the slabs.
+     * </p>
+     */
+    long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * <p>
+     * Returns the bytes used by the records, without the slot headers and the unused ends of the slots.
+     * </p>
+     */
+    long getUsed() {
+        return this.used;
+    }
+
+    private long allocate(int sizeClass) {
+        if (this.freeCounts[sizeClass] > 0) {
+            return this.freeSlots[sizeClass][--this.freeCounts[sizeClass]];
+        }
+
+        int slotSize = slotSize(sizeClass);
+
+        if (this.currentSlabs[sizeClass] < 0 || this.nextOffsets[sizeClass] + slotSize > this.slabSize) {
+            this.currentSlabs[sizeClass] = addSlab(this.slabSize, sizeClass);
+            this.nextOffsets[sizeClass] = 0;
+        }
+
+        long address = address(this.currentSlabs[sizeClass], this.nextOffsets[sizeClass]);
+
+        this.nextOffsets[sizeClass] += slotSize;
+
+        return address;
+    }
+
+    private int addSlab(int size, int sizeClass) {
+        ByteBuffer slab = ByteBuffer.allocateDirect(size);
+        int index;
+
+        if (this.releasedSlabs.isEmpty()) {
+            index = this.slabs.size();
+            this.slabs.add(slab);
+        } else {
+            index = this.releasedSlabs.remove(this.releasedSlabs.size() - 1).intValue();
+            this.slabs.set(index, slab);
+        }
+
+        if (index == this.slabClasses.length) {
+            int[] grown = new int[index * 2];
+
+            System.arraycopy(this.slabClasses, 0, grown, 0, index);
+            this.slabClasses = grown;
+        }
+
+        this.slabClasses[index] = sizeClass;
+        this.capacity += size;
+
+        return index;
+    }
+
+    private ByteBuffer slab(long address) {
+        return this.slabs.get((int) (address >>> 32));
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) slab << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * <p>
+     * Returns the smallest size class whose slots hold the given number of bytes.
+     * </p>
+     */
+    static int sizeClass(int size) {
+        if (size <= MIN_SLOT_SIZE) {
+            return 0;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE);
+    }
+
+    static int slotSize(int sizeClass) {
+        return MIN_SLOT_SIZE << sizeClass;
+    }
+}
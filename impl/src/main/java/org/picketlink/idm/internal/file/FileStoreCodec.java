@@ -0,0 +1,1045 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.model.Membership;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * Binary format of the files written by the {@link FileBasedIdentityStore}.
+ * </p>
+ * <p>
+ * A snapshot starts with a header (magic number, format version and the kind of entity it holds), followed by a dictionary
+ * with the attribute names used by its entities and by the entities themselves, each one as a record prefixed by its length.
+ * Numbers are written as varints and strings as their UTF-8 bytes prefixed by their length, so a snapshot is a fraction of
+ * the size of the same entities written with Java serialization and is read without reflection.
+ * </p>
+ * <p>
+ * Users snapshots end with an index of the user ids and the offsets of their records, so that a single user can be read
+ * without reading the whole file. See {@link MappedUserMap}.
+ * </p>
+ * <p>
+ * The same record format is used for the entities written to the journals, with the attribute names written inline.
+ * </p>
+ * <p>
+ * Memberships and the parents of groups are written as references holding only the key of the role, user or group, which
+ * are read as placeholders without attributes. The {@link FileBasedIdentityStore} resolves them against the entities it
+ * loaded. Records written by previous versions, with whole entities in their place, are still read.
+ * </p>
+ * <p>
+ * Snapshots can be compressed in blocks of {@link #BLOCK_SIZE} bytes by a {@link FileBlockCodec}, see
+ * {@link #COMPRESSED_VERSION}. Their index is then only usable once decompressed, so memory-mapped users snapshots are never
+ * compressed.
+ * </p>
+ */
+public final class FileStoreCodec {
+
+    /**
+     * <p>
+     * First bytes of every file written with this format ("PLID").
+     * </p>
+     */
+    public static final int MAGIC = 0x504C4944;
+
+    public static final byte VERSION = 1;
+
+    /**
+     * <p>
+     * Version of the snapshots compressed by a {@link FileBlockCodec}. The header is followed by the id of the codec and by
+     * the compressed blocks of the content of a snapshot of {@link #VERSION}.
+     * </p>
+     */
+    public static final byte COMPRESSED_VERSION = 2;
+
+    static final int BLOCK_SIZE = 65536;
+
+    static final int HEADER_LENGTH = 6;
+    static final int INDEX_TRAILER_LENGTH = 12;
+
+    public static final byte USERS = 1;
+    public static final byte ROLES = 2;
+    public static final byte GROUPS = 3;
+    public static final byte MEMBERSHIPS = 4;
+
+    private static final byte NULL_TAG = 0;
+    private static final byte USER_TAG = 1;
+    private static final byte ROLE_TAG = 2;
+    private static final byte GROUP_TAG = 3;
+    private static final byte MEMBERSHIP_TAG = 4;
+    private static final byte USER_REFERENCE_TAG = 5;
+    private static final byte ROLE_REFERENCE_TAG = 6;
+    private static final byte GROUP_REFERENCE_TAG = 7;
+
+    private static final int ENABLED = 1;
+    private static final int CREATION_DATE = 2;
+    private static final int EXPIRATION_DATE = 4;
+
+    private static final String UTF_8 = "UTF-8";
+
+    private FileStoreCodec() {
+    }
+
+    /**
+     * <p>
+     * Writes a snapshot with the given entities.
+     * </p>
+     *
+     * @param out
+     * @param type one of {@link #USERS}, {@link #ROLES}, {@link #GROUPS} or {@link #MEMBERSHIPS}
+     * @param entities
+     * @throws IOException
+     */
+    public static void writeSnapshot(OutputStream out, byte type, Collection<?> entities) throws IOException {
+        writeSnapshot(out, type, entities, null);
+    }
+
+    /**
+     * <p>
+     * Writes a snapshot with the given entities, compressed by the given codec.
+     * </p>
+     *
+     * @param out
+     * @param type one of {@link #USERS}, {@link #ROLES}, {@link #GROUPS} or {@link #MEMBERSHIPS}
+     * @param entities
+     * @param codec the codec compressing the snapshot, or null to write it uncompressed
+     * @throws IOException
+     */
+    public static void writeSnapshot(OutputStream out, byte type, Collection<?> entities, FileBlockCodec codec)
+            throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+
+        header.writeInt(MAGIC);
+        header.writeByte(codec == null ? VERSION : COMPRESSED_VERSION);
+        header.writeByte(type);
+
+        if (codec == null) {
+            header.flush();
+            writeContent(out, type, entities);
+        } else {
+            header.writeByte(codec.getId());
+            header.flush();
+
+            BlockOutputStream blocks = new BlockOutputStream(out, codec);
+
+            writeContent(blocks, type, entities);
+            blocks.finish();
+        }
+    }
+
+    private static void writeContent(OutputStream out, byte type, Collection<?> entities) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        List<String> names = new ArrayList<String>();
+
+        for (Object entity : entities) {
+            collectAttributeNames(entity, dictionary, names);
+        }
+
+        Output buffer = new Output(256);
+
+        buffer.writeVarInt(names.size());
+
+        for (String name : names) {
+            buffer.writeString(name);
+        }
+
+        buffer.writeVarInt(entities.size());
+        buffer.writeTo(out);
+
+        long position = HEADER_LENGTH + buffer.size();
+        Output record = new Output(256);
+        boolean indexed = type == USERS;
+        List<String> keys = new ArrayList<String>(indexed ? entities.size() : 0);
+        long[] offsets = new long[indexed ? entities.size() : 0];
+
+        for (Object entity : entities) {
+            record.reset();
+            writeEntity(record, entity, dictionary);
+
+            if (indexed && ((User) entity).getId() != null) {
+                offsets[keys.size()] = position;
+                keys.add(((User) entity).getId());
+            }
+
+            buffer.reset();
+            buffer.writeVarInt(record.size());
+            buffer.writeTo(out);
+            record.writeTo(out);
+
+            position += buffer.size() + record.size();
+        }
+
+        if (indexed) {
+            writeIndex(out, keys, offsets, position);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * <p>
+     * Writes the index of a users snapshot: the user ids in ascending order with the offset of their records, followed by a
+     * trailer with the offset of the index and the magic number.
+     * </p>
+     */
+    private static void writeIndex(OutputStream out, final List<String> keys, long[] offsets, long position)
+            throws IOException {
+        Integer[] order = new Integer[keys.size()];
+
+        for (int i = 0; i < order.length; i++) {
+            order[i] = Integer.valueOf(i);
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return keys.get(o1.intValue()).compareTo(keys.get(o2.intValue()));
+            }
+        });
+
+        Output buffer = new Output(Math.max(256, order.length * 16));
+
+        buffer.writeVarInt(order.length);
+
+        for (Integer i : order) {
+            buffer.writeString(keys.get(i.intValue()));
+            buffer.writeVarLong(offsets[i.intValue()]);
+        }
+
+        buffer.writeTo(out);
+
+        DataOutputStream trailer = new DataOutputStream(out);
+
+        trailer.writeLong(position);
+        trailer.writeInt(MAGIC);
+        trailer.flush();
+    }
+
+    /**
+     * <p>
+     * Reads a snapshot written by {@link #writeSnapshot(OutputStream, byte, Collection)}.
+     * </p>
+     *
+     * @param in
+     * @param type the kind of entity expected in the snapshot
+     * @return
+     * @throws IOException if the snapshot is not in this format or holds another kind of entity
+     */
+    public static List<Object> readSnapshot(InputStream in, byte type) throws IOException {
+        return readSnapshot(in, type, null);
+    }
+
+    /**
+     * <p>
+     * Reads a snapshot written by {@link #writeSnapshot(OutputStream, byte, Collection, FileBlockCodec)}.
+     * </p>
+     *
+     * @param in
+     * @param type the kind of entity expected in the snapshot
+     * @param codec the configured codec, needed to read the snapshots it compressed unless it is one of the provided codecs
+     * @return
+     * @throws IOException if the snapshot is not in this format or holds another kind of entity
+     */
+    public static List<Object> readSnapshot(InputStream in, byte type, FileBlockCodec codec) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a snapshot file.");
+        }
+
+        byte version = data.readByte();
+
+        if (version != VERSION && version != COMPRESSED_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + ".");
+        }
+
+        byte actualType = data.readByte();
+
+        if (actualType != type) {
+            throw new IOException("Snapshot holds entities of type " + actualType + ", expected " + type + ".");
+        }
+
+        if (version == COMPRESSED_VERSION) {
+            data = new DataInputStream(new BlockInputStream(in, getBlockCodec(data.readByte(), codec)));
+        }
+
+        String[] names = new String[readVarInt(data)];
+
+        for (int i = 0; i < names.length; i++) {
+            byte[] bytes = new byte[readVarInt(data) - 1];
+
+            data.readFully(bytes);
+            names[i] = new String(bytes, UTF_8);
+        }
+
+        int count = readVarInt(data);
+        List<Object> entities = new ArrayList<Object>(count);
+        Input record = new Input(new byte[256], 0, 0, names);
+
+        for (int i = 0; i < count; i++) {
+            int length = readVarInt(data);
+
+            if (record.buffer.length < length) {
+                record.buffer = new byte[Math.max(length, record.buffer.length * 2)];
+            }
+
+            data.readFully(record.buffer, 0, length);
+            record.position = 0;
+            record.limit = length;
+
+            entities.add(readEntity(record));
+        }
+
+        return entities;
+    }
+
+    /**
+     * <p>
+     * Indicates if the given snapshot is compressed.
+     * </p>
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static boolean isCompressed(File file) throws IOException {
+        if (file.length() < HEADER_LENGTH) {
+            return false;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+        try {
+            return in.readInt() == MAGIC && in.readByte() == COMPRESSED_VERSION;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the codec with the given id: the configured one if it has this id, otherwise one of the provided codecs.
+     * </p>
+     */
+    static FileBlockCodec getBlockCodec(byte id, FileBlockCodec configured) throws IOException {
+        if (configured != null && configured.getId() == id) {
+            return configured;
+        }
+
+        if (id == DeflateBlockCodec.ID) {
+            return new DeflateBlockCodec();
+        }
+
+        throw new IOException("Unknown block codec " + id + ", the codec that wrote the file must be configured.");
+    }
+
+    /**
+     * <p>
+     * Encodes a single entity, writing its attribute names inline.
+     * </p>
+     *
+     * @param entity
+     * @return
+     * @throws IOException
+     */
+    public static byte[] encode(Object entity) throws IOException {
+        Output out = new Output(128);
+
+        writeEntity(out, entity, null);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * <p>
+     * Decodes an entity encoded by {@link #encode(Object)}.
+     * </p>
+     *
+     * @param bytes
+     * @return
+     * @throws IOException
+     */
+    public static Object decode(byte[] bytes) throws IOException {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * <p>
+     * Decodes an entity encoded by {@link #encode(Object)} from a region of the given array.
+     * </p>
+     *
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    public static Object decode(byte[] bytes, int offset, int length) throws IOException {
+        return decode(bytes, offset, length, null);
+    }
+
+    /**
+     * <p>
+     * Decodes a snapshot record, whose attribute names are indexes into the given dictionary.
+     * </p>
+     */
+    static Object decode(byte[] bytes, int offset, int length, String[] names) throws IOException {
+        return readEntity(new Input(bytes, offset, offset + length, names));
+    }
+
+    private static void collectAttributeNames(Object entity, Map<String, Integer> dictionary, List<String> names) {
+        if (entity instanceof IdentityType) {
+            Map<String, String[]> attributes = ((IdentityType) entity).getAttributes();
+
+            if (attributes != null) {
+                for (String name : attributes.keySet()) {
+                    if (!dictionary.containsKey(name)) {
+                        dictionary.put(name, Integer.valueOf(names.size()));
+                        names.add(name);
+                    }
+                }
+            }
+        }
+    }
+
+    static void writeEntity(Output out, Object entity, Map<String, Integer> dictionary) throws IOException {
+        if (entity == null) {
+            out.writeByte(NULL_TAG);
+        } else if (entity instanceof User) {
+            User user = (User) entity;
+
+            out.writeByte(USER_TAG);
+            out.writeString(user.getId());
+            out.writeString(user.getFirstName());
+            out.writeString(user.getLastName());
+            out.writeString(user.getEmail());
+            out.writeString(user.getFullName());
+            writeIdentityType(out, user, dictionary);
+        } else if (entity instanceof Role) {
+            Role role = (Role) entity;
+
+            out.writeByte(ROLE_TAG);
+            out.writeString(role.getName());
+            writeIdentityType(out, role, dictionary);
+        } else if (entity instanceof Group) {
+            Group group = (Group) entity;
+
+            out.writeByte(GROUP_TAG);
+            out.writeString(group.getName());
+            writeReference(out, group.getParentGroup());
+            writeIdentityType(out, group, dictionary);
+        } else if (entity instanceof Membership) {
+            Membership membership = (Membership) entity;
+
+            out.writeByte(MEMBERSHIP_TAG);
+            writeReference(out, membership.getRole());
+            writeReference(out, membership.getUser());
+            writeReference(out, membership.getGroup());
+        } else {
+            throw new IOException("Unsupported entity " + entity.getClass().getName() + ".");
+        }
+    }
+
+    /**
+     * <p>
+     * Writes a reference to the given role, user or group, which is only its key.
+     * </p>
+     */
+    private static void writeReference(Output out, Object entity) throws IOException {
+        if (entity == null) {
+            out.writeByte(NULL_TAG);
+        } else if (entity instanceof User) {
+            out.writeByte(USER_REFERENCE_TAG);
+            out.writeString(FileMembershipIndex.key((User) entity));
+        } else if (entity instanceof Role) {
+            out.writeByte(ROLE_REFERENCE_TAG);
+            out.writeString(FileMembershipIndex.key((Role) entity));
+        } else if (entity instanceof Group) {
+            out.writeByte(GROUP_REFERENCE_TAG);
+            out.writeString(FileMembershipIndex.key((Group) entity));
+        } else {
+            throw new IOException("Unsupported reference to " + entity.getClass().getName() + ".");
+        }
+    }
+
+    private static void writeIdentityType(Output out, IdentityType identityType, Map<String, Integer> dictionary)
+            throws IOException {
+        Date creationDate = identityType.getCreationDate();
+        Date expirationDate = identityType.getExpirationDate();
+        int flags = 0;
+
+        if (identityType.isEnabled()) {
+            flags |= ENABLED;
+        }
+
+        if (creationDate != null) {
+            flags |= CREATION_DATE;
+        }
+
+        if (expirationDate != null) {
+            flags |= EXPIRATION_DATE;
+        }
+
+        out.writeByte(flags);
+
+        if (creationDate != null) {
+            out.writeVarLong(creationDate.getTime());
+        }
+
+        if (expirationDate != null) {
+            out.writeVarLong(expirationDate.getTime());
+        }
+
+        Map<String, String[]> attributes = identityType.getAttributes();
+
+        if (attributes == null) {
+            out.writeVarInt(0);
+            return;
+        }
+
+        out.writeVarInt(attributes.size());
+
+        for (Entry<String, String[]> attribute : attributes.entrySet()) {
+            if (dictionary != null) {
+                out.writeVarInt(dictionary.get(attribute.getKey()).intValue());
+            } else {
+                out.writeString(attribute.getKey());
+            }
+
+            String[] values = attribute.getValue();
+
+            if (values == null) {
+                out.writeVarInt(0);
+            } else {
+                out.writeVarInt(values.length + 1);
+
+                for (String value : values) {
+                    out.writeString(value);
+                }
+            }
+        }
+    }
+
+    private static Object readEntity(Input in) throws IOException {
+        byte tag = in.readByte();
+
+        switch (tag) {
+            case NULL_TAG:
+                return null;
+            case USER_TAG:
+                FileUser user = new FileUser(in.readString());
+
+                user.setFirstName(in.readString());
+                user.setLastName(in.readString());
+                user.setEmail(in.readString());
+                user.setFullName(in.readString());
+                readIdentityType(in, user);
+
+                return user;
+            case ROLE_TAG:
+                FileRole role = new FileRole(in.readString());
+
+                readIdentityType(in, role);
+
+                return role;
+            case GROUP_TAG:
+                String name = in.readString();
+                FileGroup group = new FileGroup(name, (Group) readEntity(in));
+
+                readIdentityType(in, group);
+
+                return group;
+            case MEMBERSHIP_TAG:
+                Role membershipRole = (Role) readEntity(in);
+                User membershipUser = (User) readEntity(in);
+                Group membershipGroup = (Group) readEntity(in);
+
+                return new FileMembership(membershipRole, membershipUser, membershipGroup);
+            case USER_REFERENCE_TAG:
+                return new FileUser(in.readString());
+            case ROLE_REFERENCE_TAG:
+                return new FileRole(in.readString());
+            case GROUP_REFERENCE_TAG:
+                return new FileGroup(in.readString(), null);
+            default:
+                throw new IOException("Unknown entity tag " + tag + ".");
+        }
+    }
+
+    private static void readIdentityType(Input in, AbstractFileIdentityType identityType) throws IOException {
+        int flags = in.readByte();
+
+        identityType.setEnabled((flags & ENABLED) != 0);
+
+        if ((flags & CREATION_DATE) != 0) {
+            identityType.setCreationDate(new Date(in.readVarLong()));
+        }
+
+        if ((flags & EXPIRATION_DATE) != 0) {
+            identityType.setExpirationDate(new Date(in.readVarLong()));
+        }
+
+        int count = in.readVarInt();
+        Map<String, String[]> attributes = identityType.getAttributes();
+
+        for (int i = 0; i < count; i++) {
+            String name;
+
+            if (in.names != null) {
+                name = in.names[in.readVarInt()];
+            } else {
+                name = in.readString();
+            }
+
+            int length = in.readVarInt();
+            String[] values = null;
+
+            if (length > 0) {
+                values = new String[length - 1];
+
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = in.readString();
+                }
+            }
+
+            attributes.put(name, values);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the number of bytes used to write the given value as a varint.
+     * </p>
+     */
+    static int varIntLength(int value) {
+        int length = 1;
+
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+
+        return length;
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed varint.");
+    }
+
+    /**
+     * <p>
+     * Stream compressing what is written to it in blocks of {@link FileStoreCodec#BLOCK_SIZE} bytes. Each block is written
+     * as its length, the length of its compressed bytes and the compressed bytes, or zero and the block itself if compressing
+     * it does not make it smaller. {@link #flush()} does not end the current block, {@link #finish()} must be called instead.
+     * </p>
+     */
+    static final class BlockOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final FileBlockCodec codec;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int size;
+
+        BlockOutputStream(OutputStream out, FileBlockCodec codec) {
+            this.out = out;
+            this.codec = codec;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (this.size == this.block.length) {
+                writeBlock();
+            }
+
+            this.block[this.size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (this.size == this.block.length) {
+                    writeBlock();
+                }
+
+                int count = Math.min(length, this.block.length - this.size);
+
+                System.arraycopy(bytes, offset, this.block, this.size, count);
+
+                this.size += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        /**
+         * <p>
+         * Writes the current block and flushes the underlying stream.
+         * </p>
+         */
+        void finish() throws IOException {
+            writeBlock();
+            this.out.flush();
+        }
+
+        private void writeBlock() throws IOException {
+            if (this.size == 0) {
+                return;
+            }
+
+            byte[] compressed = this.codec.compress(this.block, 0, this.size);
+            Output header = new Output(10);
+
+            header.writeVarInt(this.size);
+
+            if (compressed.length < this.size) {
+                header.writeVarInt(compressed.length);
+                header.writeTo(this.out);
+                this.out.write(compressed);
+            } else {
+                header.writeVarInt(0);
+                header.writeTo(this.out);
+                this.out.write(this.block, 0, this.size);
+            }
+
+            this.size = 0;
+        }
+    }
+
+    /**
+     * <p>
+     * Stream decompressing the blocks written by {@link BlockOutputStream}.
+     * </p>
+     */
+    static final class BlockInputStream extends InputStream {
+
+        private final DataInputStream in;
+        private final FileBlockCodec codec;
+        private byte[] block = new byte[0];
+        private int position;
+
+        BlockInputStream(InputStream in, FileBlockCodec codec) {
+            this.in = new DataInputStream(in);
+            this.codec = codec;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+
+            return this.block[this.position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            if (!fill()) {
+                return -1;
+            }
+
+            int count = Math.min(length, this.block.length - this.position);
+
+            System.arraycopy(this.block, this.position, bytes, offset, count);
+            this.position += count;
+
+            return count;
+        }
+
+        private boolean fill() throws IOException {
+            while (this.position >= this.block.length) {
+                int first = this.in.read();
+
+                if (first < 0) {
+                    return false;
+                }
+
+                int rawLength = readRemainingVarInt(first, this.in);
+                int length = FileStoreCodec.readVarInt(this.in);
+                byte[] bytes = new byte[length == 0 ? rawLength : length];
+
+                this.in.readFully(bytes);
+
+                this.block = length == 0 ? bytes : this.codec.decompress(bytes, 0, length, rawLength);
+                this.position = 0;
+            }
+
+            return true;
+        }
+
+        private static int readRemainingVarInt(int first, DataInput in) throws IOException {
+            int value = first & 0x7F;
+            int b = first;
+
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                if (shift >= 32) {
+                    throw new IOException("Malformed varint.");
+                }
+
+                b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+            }
+
+            return value;
+        }
+    }
+
+    /**
+     * <p>
+     * Growable buffer the records are encoded into.
+     * </p>
+     */
+    static final class Output {
+
+        private byte[] buffer;
+        private int size;
+
+        Output(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            this.buffer[this.size++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+
+            while ((value & ~0x7F) != 0) {
+                this.buffer[this.size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            this.buffer[this.size++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+
+            long zigZag = (value << 1) ^ (value >> 63);
+
+            while ((zigZag & ~0x7FL) != 0) {
+                this.buffer[this.size++] = (byte) ((zigZag & 0x7F) | 0x80);
+                zigZag >>>= 7;
+            }
+
+            this.buffer[this.size++] = (byte) zigZag;
+        }
+
+        /**
+         * <p>
+         * Writes the length of the string plus one (zero for null) followed by its UTF-8 bytes.
+         * </p>
+         */
+        void writeString(String value) throws UnsupportedEncodingException {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+
+            int length = value.length();
+            boolean ascii = true;
+
+            for (int i = 0; i < length && ascii; i++) {
+                ascii = value.charAt(i) < 0x80;
+            }
+
+            if (ascii) {
+                writeVarInt(length + 1);
+                ensureCapacity(length);
+
+                for (int i = 0; i < length; i++) {
+                    this.buffer[this.size++] = (byte) value.charAt(i);
+                }
+            } else {
+                byte[] bytes = value.getBytes(UTF_8);
+
+                writeVarInt(bytes.length + 1);
+                ensureCapacity(bytes.length);
+                System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+                this.size += bytes.length;
+            }
+        }
+
+        void write(Output other) {
+            ensureCapacity(other.size);
+            System.arraycopy(other.buffer, 0, this.buffer, this.size, other.size);
+            this.size += other.size;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, this.buffer, this.size, length);
+            this.size += length;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        void reset() {
+            this.size = 0;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(this.buffer, 0, this.size);
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[this.size];
+
+            System.arraycopy(this.buffer, 0, bytes, 0, this.size);
+
+            return bytes;
+        }
+
+        private void ensureCapacity(int length) {
+            if (this.size + length > this.buffer.length) {
+                byte[] newBuffer = new byte[Math.max(this.buffer.length * 2, this.size + length)];
+
+                System.arraycopy(this.buffer, 0, newBuffer, 0, this.size);
+                this.buffer = newBuffer;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Reads the records encoded by {@link Output} from a region of an array.
+     * </p>
+     */
+    static final class Input {
+
+        private byte[] buffer;
+        private int position;
+        private int limit;
+        private final String[] names;
+
+        Input(byte[] buffer, int position, int limit, String[] names) {
+            this.buffer = buffer;
+            this.position = position;
+            this.limit = limit;
+            this.names = names;
+        }
+
+        int position() {
+            return this.position;
+        }
+
+        byte readByte() throws IOException {
+            if (this.position >= this.limit) {
+                throw new IOException("Truncated record.");
+            }
+
+            return this.buffer[this.position++];
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+
+                value |= (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IOException("Malformed varint.");
+        }
+
+        long readVarLong() throws IOException {
+            long zigZag = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+
+                zigZag |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return (zigZag >>> 1) ^ -(zigZag & 1);
+                }
+            }
+
+            throw new IOException("Malformed varint.");
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt() - 1;
+
+            if (length < 0) {
+                return null;
+            }
+
+            if (length > this.limit - this.position) {
+                throw new IOException("Truncated record.");
+            }
+
+            String value = new String(this.buffer, this.position, length, UTF_8);
+
+            this.position += length;
+
+            return value;
+        }
+    }
+}
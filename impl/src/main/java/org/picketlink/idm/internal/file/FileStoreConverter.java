@@ -0,0 +1,215 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Converts the data files written with Java serialization by previous versions of the {@link FileBasedIdentityStore} to the
+ * {@link FileStoreCodec} format.
+ * </p>
+ * <p>
+ * The store converts its files when it finds them at startup, so running the conversion beforehand is only needed to avoid
+ * paying for it then:
+ * </p>
+ * 
+ * <pre>
+ * java org.picketlink.idm.internal.file.FileStoreConverter /path/to/working/dir
+ * </pre>
+ */
+public final class FileStoreConverter {
+
+    private static final String[] FILE_NAMES = new String[] { "pl-idm-users.db", "pl-idm-roles.db", "pl-idm-groups.db",
+            "pl-idm-memberships.db" };
+
+    private static final byte[] TYPES = new byte[] { FileStoreCodec.USERS, FileStoreCodec.ROLES, FileStoreCodec.GROUPS,
+            FileStoreCodec.MEMBERSHIPS };
+
+    private FileStoreConverter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: FileStoreConverter <working dir>");
+            System.exit(1);
+        }
+
+        int converted = convertWorkingDir(new File(args[0]));
+
+        System.out.println("Converted " + converted + " file(s).");
+    }
+
+    /**
+     * <p>
+     * Converts all data files in the given working directory that are still in the previous format.
+     * </p>
+     *
+     * @param workingDir
+     * @return the number of converted files
+     * @throws IOException
+     */
+    public static int convertWorkingDir(File workingDir) throws IOException {
+        int converted = 0;
+
+        for (int i = 0; i < FILE_NAMES.length; i++) {
+            if (convert(new File(workingDir, FILE_NAMES[i]), TYPES[i])) {
+                converted++;
+            }
+        }
+
+        return converted;
+    }
+
+    /**
+     * <p>
+     * Converts the given data file, if it is still in the previous format.
+     * </p>
+     *
+     * @param file
+     * @param type the kind of entity in the file, one of the {@link FileStoreCodec} types
+     * @return true if the file was converted
+     * @throws IOException
+     */
+    public static boolean convert(File file, byte type) throws IOException {
+        if (!file.exists() || !isLegacyFile(file)) {
+            return false;
+        }
+
+        write(file, type, readLegacyFile(file));
+
+        return true;
+    }
+
+    /**
+     * <p>
+     * Rewrites the given snapshot uncompressed, if it was compressed by a {@link FileBlockCodec}.
+     * </p>
+     *
+     * @param file
+     * @param type the kind of entity in the file, one of the {@link FileStoreCodec} types
+     * @param codec the configured codec, needed if the snapshot was not compressed by one of the provided codecs
+     * @return true if the file was rewritten
+     * @throws IOException
+     */
+    public static boolean uncompress(File file, byte type, FileBlockCodec codec) throws IOException {
+        if (!file.exists() || !FileStoreCodec.isCompressed(file)) {
+            return false;
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+        List<Object> entities;
+
+        try {
+            entities = FileStoreCodec.readSnapshot(in, type, codec);
+        } finally {
+            in.close();
+        }
+
+        write(file, type, entities);
+
+        return true;
+    }
+
+    private static void write(File file, byte type, List<Object> entities) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        BufferedOutputStream out = new BufferedOutputStream(fos, 65536);
+
+        try {
+            FileStoreCodec.writeSnapshot(out, type, entities);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file + ".");
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Indicates if the given file was written with Java serialization.
+     * </p>
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static boolean isLegacyFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+
+        try {
+            return in.read() == 0xAC && in.read() == 0xED;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Reads the entities of a file written with Java serialization.
+     * </p>
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static List<Object> readLegacyFile(File file) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            Object content = ois.readObject();
+            Collection<?> entities;
+
+            if (content instanceof Map) {
+                entities = ((Map<?, ?>) content).values();
+            } else {
+                entities = (Collection<?>) content;
+            }
+
+            return new ArrayList<Object>(entities);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Error reading " + file + ": " + e.getMessage());
+        } finally {
+            ois.close();
+        }
+    }
+}
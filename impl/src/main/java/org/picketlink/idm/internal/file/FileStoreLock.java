@@ -0,0 +1,223 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ * Lock coordinating the processes sharing the files of a {@link FileJournal}, backed by a {@link FileLock} on a lock file
+ * next to them. Holders of the shared lock only read the files, the holder of the exclusive lock changes them.
+ * </p>
+ * <p>
+ * A JVM can hold a single lock on a file, so one instance is kept per lock file and shared by all the journals of the JVM
+ * using it. A read-write lock orders the threads of the JVM, and the file lock is held in shared mode as long as any thread
+ * holds the shared lock, or in exclusive mode while a thread holds the exclusive one. Both locks are reentrant, and the
+ * shared lock can be taken while holding the exclusive one, but not the other way around.
+ * </p>
+ */
+public class FileStoreLock {
+
+    private static final Map<File, FileStoreLock> LOCKS = new HashMap<File, FileStoreLock>();
+
+    private final File file;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int references;
+
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+    private int sharedHolders;
+
+    private FileStoreLock(File file) {
+        this.file = file;
+    }
+
+    /**
+     * <p>
+     * Returns the lock backed by the given file, to be released with {@link #release()} once no longer used.
+     * </p>
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static FileStoreLock acquire(File file) throws IOException {
+        File key = file.getCanonicalFile();
+
+        synchronized (LOCKS) {
+            FileStoreLock lock = LOCKS.get(key);
+
+            if (lock == null) {
+                lock = new FileStoreLock(key);
+                LOCKS.put(key, lock);
+            }
+
+            lock.references++;
+
+            return lock;
+        }
+    }
+
+    /**
+     * <p>
+     * Releases a reference to this lock, closing the lock file once none is left.
+     * </p>
+     */
+    public void release() {
+        synchronized (LOCKS) {
+            if (--this.references > 0) {
+                return;
+            }
+
+            LOCKS.remove(this.file);
+        }
+
+        synchronized (this) {
+            if (this.lockFile != null) {
+                try {
+                    this.lockFile.close();
+                } catch (IOException e) {
+                }
+
+                this.lockFile = null;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Takes the shared or the exclusive lock, waiting for the other threads and processes holding the other one.
+     * </p>
+     *
+     * @param shared
+     * @return the time waited, in nanoseconds
+     * @throws IOException
+     */
+    public long lock(boolean shared) throws IOException {
+        long start = System.nanoTime();
+        boolean locked = false;
+
+        if (shared) {
+            this.lock.readLock().lock();
+
+            try {
+                // the exclusive file lock of this thread covers the shared one
+                if (!this.lock.isWriteLockedByCurrentThread()) {
+                    synchronized (this) {
+                        if (this.sharedHolders == 0) {
+                            this.fileLock = getChannel().lock(0, Long.MAX_VALUE, true);
+                        }
+
+                        this.sharedHolders++;
+                    }
+                }
+
+                locked = true;
+            } finally {
+                if (!locked) {
+                    this.lock.readLock().unlock();
+                }
+            }
+        } else {
+            this.lock.writeLock().lock();
+
+            try {
+                if (this.lock.getWriteHoldCount() == 1) {
+                    synchronized (this) {
+                        this.fileLock = getChannel().lock(0, Long.MAX_VALUE, false);
+                    }
+                }
+
+                locked = true;
+            } finally {
+                if (!locked) {
+                    this.lock.writeLock().unlock();
+                }
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * <p>
+     * Releases the shared or the exclusive lock taken by {@link #lock(boolean)}.
+     * </p>
+     *
+     * @param shared
+     * @throws IOException
+     */
+    public void unlock(boolean shared) throws IOException {
+        try {
+            if (shared) {
+                if (!this.lock.isWriteLockedByCurrentThread()) {
+                    synchronized (this) {
+                        if (--this.sharedHolders == 0) {
+                            releaseFileLock();
+                        }
+                    }
+                }
+            } else if (this.lock.getWriteHoldCount() == 1) {
+                synchronized (this) {
+                    releaseFileLock();
+                }
+            }
+        } finally {
+            if (shared) {
+                this.lock.readLock().unlock();
+            } else {
+                this.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void releaseFileLock() throws IOException {
+        FileLock fileLock = this.fileLock;
+
+        this.fileLock = null;
+
+        if (fileLock != null && fileLock.isValid()) {
+            fileLock.release();
+        }
+    }
+
+    private FileChannel getChannel() throws IOException {
+        // the channel is closed if a thread is interrupted while waiting for the lock
+        if (this.lockFile == null || !this.lockFile.getChannel().isOpen()) {
+            this.lockFile = new RandomAccessFile(this.file, "rw");
+        }
+
+        return this.lockFile.getChannel();
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+}
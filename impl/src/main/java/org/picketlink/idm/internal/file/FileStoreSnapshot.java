@@ -0,0 +1,389 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * <p>
+ * Point-in-time copy of the files of a {@link FileBasedIdentityStore}, taken while it keeps running. See
+ * {@link FileBasedIdentityStore#snapshot(File, FileStoreSnapshot)}.
+ * </p>
+ * <p>
+ * The journals are append-only between compactions, so the state of the store at a point in time is the snapshot of each
+ * shard and its journal up to the length it had then. Those positions are taken while the locks of all journals are held,
+ * which only lasts for writing the buffered records and opening the files, and the files are copied afterwards without
+ * blocking the writers. Files open for the copy keep their content when a compaction replaces them meanwhile.
+ * </p>
+ * <p>
+ * A snapshot taken after another one only holds the records appended to each journal since then, unless the journal was
+ * compacted in between, in which case the snapshot and the journal of this shard are copied whole. A compaction is told by
+ * the id in the header of the journal, which each compaction writes anew. Restoring replays the
+ * snapshots in the order they were taken, see {@link #restore(File, File...)}.
+ * </p>
+ * <p>
+ * The positions of each journal are written last to <code>pl-idm-snapshot.properties</code>, so the directory of a snapshot
+ * interrupted by a crash holds no manifest and is not mistaken for a complete one.
+ * </p>
+ */
+public class FileStoreSnapshot {
+
+    static final String MANIFEST = "pl-idm-snapshot.properties";
+
+    private static final String SNAPSHOT = ".snapshot";
+    private static final String JOURNAL_ID = ".journalId";
+    private static final String START = ".start";
+    private static final String END = ".end";
+
+    private final File directory;
+    private final FileStoreSnapshot previous;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private final List<InputStream> sources = new ArrayList<InputStream>();
+
+    /**
+     * <p>
+     * Position and id of a journal, and the snapshot it was read with, when the snapshot was taken.
+     * </p>
+     */
+    private static class Entry {
+
+        private String snapshotName;
+        private long journalId;
+        private long start;
+        private long end;
+
+        private InputStream snapshotSource;
+        private InputStream journalSource;
+    }
+
+    FileStoreSnapshot(File directory, FileStoreSnapshot previous) {
+        this.directory = directory;
+        this.previous = previous;
+    }
+
+    /**
+     * <p>
+     * Reads the manifest of a snapshot written to the given directory, so that it can be passed as the previous one to the
+     * next snapshot.
+     * </p>
+     *
+     * @param directory
+     * @return
+     * @throws IOException if the directory holds no complete snapshot
+     */
+    public static FileStoreSnapshot read(File directory) throws IOException {
+        File manifestFile = new File(directory, MANIFEST);
+
+        if (!manifestFile.exists()) {
+            throw new IOException("No complete snapshot in " + directory + ".");
+        }
+
+        Properties manifest = new Properties();
+        InputStream in = new FileInputStream(manifestFile);
+
+        try {
+            manifest.load(in);
+        } finally {
+            in.close();
+        }
+
+        FileStoreSnapshot snapshot = new FileStoreSnapshot(directory, null);
+
+        for (Object key : manifest.keySet()) {
+            String name = (String) key;
+
+            if (!name.endsWith(END)) {
+                continue;
+            }
+
+            name = name.substring(0, name.length() - END.length());
+
+            Entry entry = new Entry();
+
+            entry.snapshotName = manifest.getProperty(name + SNAPSHOT);
+            entry.journalId = Long.parseLong(manifest.getProperty(name + JOURNAL_ID, "0"));
+            entry.start = Long.parseLong(manifest.getProperty(name + START));
+            entry.end = Long.parseLong(manifest.getProperty(name + END));
+
+            snapshot.entries.put(name, entry);
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * <p>
+     * Restores the given snapshots into the working directory of a store that is not running, in the order they were taken.
+     * The first one must be a full snapshot, and each of the others must have been taken right after the one before it.
+     * </p>
+     *
+     * @param workingDir
+     * @param directories
+     * @throws IOException if a snapshot is incomplete or does not follow the one before it
+     */
+    public static void restore(File workingDir, File... directories) throws IOException {
+        workingDir.mkdirs();
+
+        for (File directory : directories) {
+            FileStoreSnapshot snapshot = read(directory);
+
+            for (Map.Entry<String, Entry> e : snapshot.entries.entrySet()) {
+                Entry entry = e.getValue();
+                File journalFile = new File(workingDir, e.getKey());
+
+                if (entry.start == 0) {
+                    File snapshotFile = new File(workingDir, entry.snapshotName);
+                    File copy = new File(directory, entry.snapshotName);
+
+                    if (copy.exists()) {
+                        copy(copy, 0, snapshotFile, false);
+                    } else {
+                        snapshotFile.delete();
+                    }
+
+                    copy(new File(directory, e.getKey()), 0, journalFile, false);
+                } else {
+                    if (journalFile.length() != entry.start) {
+                        throw new IOException("Snapshot " + directory + " does not follow the one restored before it.");
+                    }
+
+                    copy(new File(directory, e.getKey()), 0, journalFile, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the buffered records of the given journal and opens its files as they are now. Callers must hold the lock of the
+     * journal, and keep holding it until the journals of all the other shards were captured as well.
+     * </p>
+     */
+    void capture(FileJournal journal) throws IOException {
+        journal.writePending();
+
+        Entry entry = new Entry();
+        File snapshotFile = journal.getSnapshotFile();
+        File journalFile = journal.getJournalFile();
+
+        // no other process is in the middle of an append while the shared lock is held
+        journal.lock(true);
+
+        try {
+            entry.snapshotName = snapshotFile.getName();
+            entry.journalId = FileJournal.readJournalId(journalFile);
+            entry.end = journalFile.length();
+
+            Entry previousEntry = this.previous != null ? this.previous.entries.get(journalFile.getName()) : null;
+
+            if (previousEntry != null && entry.journalId != 0 && previousEntry.journalId == entry.journalId
+                    && previousEntry.end <= entry.end) {
+                entry.start = previousEntry.end;
+            } else if (snapshotFile.exists()) {
+                entry.snapshotSource = open(snapshotFile);
+            }
+
+            entry.journalSource = open(journalFile);
+        } finally {
+            journal.unlock(true);
+        }
+
+        this.entries.put(journalFile.getName(), entry);
+    }
+
+    private InputStream open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+
+        this.sources.add(in);
+
+        return in;
+    }
+
+    /**
+     * <p>
+     * Copies the captured files to the directory of this snapshot, then writes its manifest.
+     * </p>
+     */
+    void write() throws IOException {
+        this.directory.mkdirs();
+
+        File manifestFile = new File(this.directory, MANIFEST);
+
+        manifestFile.delete();
+
+        Properties manifest = new Properties();
+
+        for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+            Entry entry = e.getValue();
+
+            if (entry.snapshotSource != null) {
+                copy(entry.snapshotSource, Long.MAX_VALUE, new File(this.directory, entry.snapshotName), false);
+            } else {
+                new File(this.directory, entry.snapshotName).delete();
+            }
+
+            skip(entry.journalSource, entry.start);
+            copy(entry.journalSource, entry.end - entry.start, new File(this.directory, e.getKey()), false);
+
+            manifest.setProperty(e.getKey() + SNAPSHOT, entry.snapshotName);
+            manifest.setProperty(e.getKey() + JOURNAL_ID, String.valueOf(entry.journalId));
+            manifest.setProperty(e.getKey() + START, String.valueOf(entry.start));
+            manifest.setProperty(e.getKey() + END, String.valueOf(entry.end));
+        }
+
+        File tmp = new File(this.directory, MANIFEST + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+
+        try {
+            manifest.store(out, "PicketLink IDM file store snapshot");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        FileJournal.replace(tmp, manifestFile);
+    }
+
+    /**
+     * <p>
+     * Closes the files opened by {@link #capture(FileJournal)}.
+     * </p>
+     */
+    void close() {
+        for (InputStream in : this.sources) {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+
+        this.sources.clear();
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+
+            count -= skipped;
+        }
+    }
+
+    private static void copy(File source, long position, File target, boolean append) throws IOException {
+        InputStream in = new FileInputStream(source);
+
+        try {
+            skip(in, position);
+            copy(in, Long.MAX_VALUE, target, append);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Copies up to <code>count</code> bytes of the given stream to the target file, and syncs it to disk.
+     * </p>
+     */
+    private static void copy(InputStream source, long count, File target, boolean append) throws IOException {
+        InputStream in = new BufferedInputStream(source, 65536);
+        FileOutputStream out = new FileOutputStream(target, append);
+
+        try {
+            byte[] buffer = new byte[65536];
+
+            while (count > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+
+                if (read < 0) {
+                    break;
+                }
+
+                out.write(buffer, 0, read);
+                count -= read;
+            }
+
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the directory this snapshot was written to.
+     * </p>
+     *
+     * @return
+     */
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * <p>
+     * Tells if this snapshot only holds the changes since a previous one for some of the shards.
+     * </p>
+     *
+     * @return
+     */
+    public boolean isIncremental() {
+        for (Entry entry : this.entries.values()) {
+            if (entry.start > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * <p>
+     * Returns the number of bytes of the journals held by this snapshot.
+     * </p>
+     *
+     * @return
+     */
+    public long getJournalLength() {
+        long length = 0;
+
+        for (Entry entry : this.entries.values()) {
+            length += entry.end - entry.start;
+        }
+
+        return length;
+    }
+}
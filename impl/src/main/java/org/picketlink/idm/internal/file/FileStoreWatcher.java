@@ -0,0 +1,125 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Applies the changes made by other processes sharing the working directory of a {@link FileBasedIdentityStore}, checking
+ * its files every <code>watchInterval</code> milliseconds on a background thread, see
+ * {@link FileBasedIdentityStore#refresh()}. A check reads the metadata of the files and the records appended since the
+ * previous one only.
+ * </p>
+ */
+public class FileStoreWatcher implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(FileStoreWatcher.class.getName());
+
+    private final FileBasedIdentityStore store;
+    private final long watchInterval;
+    private final Object lock = new Object();
+
+    private boolean closed;
+    private Thread thread;
+
+    public FileStoreWatcher(FileBasedIdentityStore store, long watchInterval) {
+        if (watchInterval <= 0) {
+            throw new IllegalArgumentException("The watch interval must be positive.");
+        }
+
+        this.store = store;
+        this.watchInterval = watchInterval;
+    }
+
+    /**
+     * <p>
+     * Starts checking the files in the background.
+     * </p>
+     */
+    public void start() {
+        synchronized (this.lock) {
+            if (this.thread != null || this.closed) {
+                return;
+            }
+
+            this.thread = new Thread(this, "picketlink-file-watcher");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this.lock) {
+                try {
+                    if (!this.closed) {
+                        this.lock.wait(this.watchInterval);
+                    }
+                } catch (InterruptedException e) {
+                    this.closed = true;
+                }
+
+                if (this.closed) {
+                    return;
+                }
+            }
+
+            try {
+                this.store.refresh();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error applying the changes made by other processes.", e);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Stops the background thread, waiting for a check in progress to finish.
+     * </p>
+     */
+    public void close() {
+        Thread thread;
+
+        synchronized (this.lock) {
+            this.closed = true;
+            this.lock.notifyAll();
+            thread = this.thread;
+        }
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -35,10 +35,10 @@ public class FileUser extends AbstractFileIdentityType implements User, Serializ
     private static final long serialVersionUID = 7828377893630773126L;
     
     private String id;
-    private String firstName;
-    private String lastName;
-    private String email;
-    private String fullName;
+    private volatile String firstName;
+    private volatile String lastName;
+    private volatile String email;
+    private volatile String fullName;
 
     public FileUser(String id) {
         this.id = id;
@@ -68,6 +68,7 @@ public class FileUser extends AbstractFileIdentityType implements User, Serializ
      */
     public void setFirstName(String firstName) {
         this.firstName = firstName;
+        update();
     }
 
     /**
@@ -120,7 +121,9 @@ public class FileUser extends AbstractFileIdentityType implements User, Serializ
      */
     @Override
     protected void update() {
-        super.changeListener.updateUsers();
+        if (super.changeListener != null) {
+            super.changeListener.updateUser(this);
+        }
     }
     
     @Override
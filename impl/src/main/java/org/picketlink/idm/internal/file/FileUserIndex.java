@@ -0,0 +1,283 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Secondary indexes of the {@link FileBasedIdentityStore} users by email, first name, last name and enabled state, mapping
+ * each value to the ids of the users having it.
+ * </p>
+ * <p>
+ * The indexes are built on the first query, so that a store with memory-mapped users does not decode all of them at startup,
+ * and are kept up to date afterwards by {@link #update(FileUser)} and {@link #remove(String)}.
+ * </p>
+ * <p>
+ * Changes are serialized by the lock of this instance, while queries read the indexes without locking.
+ * </p>
+ */
+class FileUserIndex {
+
+    private final Map<String, Set<String>> emails = new ConcurrentHashMap<String, Set<String>>(16, 0.75f, 1);
+    private final Map<String, Set<String>> firstNames = new ConcurrentHashMap<String, Set<String>>(16, 0.75f, 1);
+    private final Map<String, Set<String>> lastNames = new ConcurrentHashMap<String, Set<String>>(16, 0.75f, 1);
+    private final Set<String> enabled = new ConcurrentHashSet<String>();
+    private final Set<String> disabled = new ConcurrentHashSet<String>();
+
+    /**
+     * <p>
+     * Values indexed for each user, needed to unindex a user after it was changed in place.
+     * </p>
+     */
+    private final Map<String, IndexedUser> indexed = new HashMap<String, IndexedUser>();
+
+    private volatile boolean built;
+
+    boolean isBuilt() {
+        return this.built;
+    }
+
+    /**
+     * <p>
+     * Indexes all the given users, unless the indexes were already built.
+     * </p>
+     *
+     * @param users
+     */
+    synchronized void build(Collection<FileUser> users) {
+        if (this.built) {
+            return;
+        }
+
+        clear();
+
+        for (FileUser user : users) {
+            add(user);
+        }
+
+        this.built = true;
+    }
+
+    /**
+     * <p>
+     * Indexes the given user, replacing the values previously indexed for it.
+     * </p>
+     *
+     * @param user
+     */
+    synchronized void update(FileUser user) {
+        if (!this.built || user.getId() == null) {
+            return;
+        }
+
+        remove(user.getId());
+        add(user);
+    }
+
+    /**
+     * <p>
+     * Removes the user with the given id from the indexes.
+     * </p>
+     *
+     * @param id
+     */
+    synchronized void remove(String id) {
+        if (!this.built) {
+            return;
+        }
+
+        IndexedUser user = this.indexed.remove(id);
+
+        if (user == null) {
+            return;
+        }
+
+        unindex(this.emails, user.email, id);
+        unindex(this.firstNames, user.firstName, id);
+        unindex(this.lastNames, user.lastName, id);
+
+        if (user.enabled) {
+            this.enabled.remove(id);
+        } else {
+            this.disabled.remove(id);
+        }
+    }
+
+    synchronized void clear() {
+        this.emails.clear();
+        this.firstNames.clear();
+        this.lastNames.clear();
+        this.enabled.clear();
+        this.disabled.clear();
+        this.indexed.clear();
+        this.built = false;
+    }
+
+    /**
+     * <p>
+     * Returns the ids of the users matching all the given values, null values matching any user. The sets of the given
+     * values are intersected starting from the smallest one.
+     * </p>
+     *
+     * @param email
+     * @param firstName
+     * @param lastName
+     * @param enabled
+     * @return
+     */
+    Set<String> find(String email, String firstName, String lastName, boolean enabled) {
+        List<Set<String>> candidates = new ArrayList<Set<String>>(4);
+
+        if (!addCandidates(candidates, this.emails, email) || !addCandidates(candidates, this.firstNames, firstName)
+                || !addCandidates(candidates, this.lastNames, lastName)) {
+            return Collections.emptySet();
+        }
+
+        candidates.add(enabled ? this.enabled : this.disabled);
+
+        Set<String> smallest = candidates.get(0);
+
+        for (Set<String> candidate : candidates) {
+            if (candidate.size() < smallest.size()) {
+                smallest = candidate;
+            }
+        }
+
+        Set<String> result = new HashSet<String>();
+
+        for (String id : smallest) {
+            boolean match = true;
+
+            for (Set<String> candidate : candidates) {
+                if (candidate != smallest && !candidate.contains(id)) {
+                    match = false;
+                    break;
+                }
+            }
+
+            if (match) {
+                result.add(id);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>
+     * Adds the ids indexed for the given value, returning false if no user has it.
+     * </p>
+     */
+    private boolean addCandidates(List<Set<String>> candidates, Map<String, Set<String>> index, String value) {
+        if (value == null) {
+            return true;
+        }
+
+        Set<String> ids = index.get(value);
+
+        if (ids == null) {
+            return false;
+        }
+
+        candidates.add(ids);
+
+        return true;
+    }
+
+    private void add(FileUser user) {
+        String id = user.getId();
+
+        if (id == null) {
+            return;
+        }
+
+        IndexedUser indexedUser = new IndexedUser(user);
+
+        this.indexed.put(id, indexedUser);
+
+        index(this.emails, indexedUser.email, id);
+        index(this.firstNames, indexedUser.firstName, id);
+        index(this.lastNames, indexedUser.lastName, id);
+
+        if (indexedUser.enabled) {
+            this.enabled.add(id);
+        } else {
+            this.disabled.add(id);
+        }
+    }
+
+    private void index(Map<String, Set<String>> index, String value, String id) {
+        if (value == null) {
+            return;
+        }
+
+        Set<String> ids = index.get(value);
+
+        if (ids == null) {
+            ids = new ConcurrentHashSet<String>(4);
+            index.put(value, ids);
+        }
+
+        ids.add(id);
+    }
+
+    private void unindex(Map<String, Set<String>> index, String value, String id) {
+        if (value == null) {
+            return;
+        }
+
+        Set<String> ids = index.get(value);
+
+        if (ids != null) {
+            ids.remove(id);
+
+            if (ids.isEmpty()) {
+                index.remove(value);
+            }
+        }
+    }
+
+    private static class IndexedUser {
+
+        private final String email;
+        private final String firstName;
+        private final String lastName;
+        private final boolean enabled;
+
+        IndexedUser(FileUser user) {
+            this.email = user.getEmail();
+            this.firstName = user.getFirstName();
+            this.lastName = user.getLastName();
+            this.enabled = user.isEnabled();
+        }
+    }
+}
@@ -0,0 +1,777 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ * Users of a {@link FileBasedIdentityStore} read on demand from the users snapshot, which is accessed through
+ * {@link FileChannel#map(FileChannel.MapMode, long, long)}. Only the index of the snapshot (the user ids and the offsets of
+ * their records) is kept on the heap, along with the users changed since the snapshot was written and the most recently used
+ * users, up to the configured retention.
+ * </p>
+ * <p>
+ * Users that are not retained are decoded again on each lookup, so two lookups can return different instances for the same
+ * user. Changes should be made on the instance returned by the latest lookup.
+ * </p>
+ * <p>
+ * {@link #put(String, FileUser)} and {@link #remove(Object)} do not decode users to return the previous value, and return it
+ * only if it was already on the heap.
+ * </p>
+ */
+public class MappedUserMap extends AbstractMap<String, FileUser> {
+
+    private static final int CHUNK_SIZE = 1 << 30;
+
+    private final File file;
+    private final int retention;
+
+    private Snapshot snapshot;
+    private final Map<String, Change> changes = new HashMap<String, Change>();
+    private final LinkedHashMap<String, FileUser> retained;
+    private long sequence;
+    private int size;
+
+    public MappedUserMap(File file, int retention) throws IOException {
+        this.file = file;
+        this.retention = retention;
+        this.retained = new LinkedHashMap<String, FileUser>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileUser> eldest) {
+                return size() > MappedUserMap.this.retention;
+            }
+        };
+        this.snapshot = new Snapshot(file);
+        this.size = this.snapshot.keys.length;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public synchronized FileUser get(Object key) {
+        Change change = this.changes.get(key);
+
+        if (change != null) {
+            return change.user;
+        }
+
+        FileUser user = this.retained.get(key);
+
+        if (user == null) {
+            int index = this.snapshot.indexOf((String) key);
+
+            if (index >= 0) {
+                user = this.snapshot.read(index);
+
+                if (this.retention > 0) {
+                    this.retained.put((String) key, user);
+                }
+            }
+        }
+
+        return user;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        Change change = this.changes.get(key);
+
+        if (change != null) {
+            return change.user != null;
+        }
+
+        return key instanceof String && this.snapshot.indexOf((String) key) >= 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized FileUser put(String key, FileUser user) {
+        FileUser previous = peek(key);
+
+        if (!containsKey(key)) {
+            this.size++;
+        }
+
+        this.retained.remove(key);
+        this.changes.put(key, new Change(user, ++this.sequence));
+
+        return previous;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public synchronized FileUser remove(Object key) {
+        if (!containsKey(key)) {
+            return null;
+        }
+
+        FileUser previous = peek(key);
+
+        this.size--;
+        this.retained.remove(key);
+
+        if (this.snapshot.indexOf((String) key) >= 0) {
+            this.changes.put((String) key, new Change(null, ++this.sequence));
+        } else {
+            this.changes.remove(key);
+        }
+
+        return previous;
+    }
+
+    private FileUser peek(Object key) {
+        Change change = this.changes.get(key);
+
+        if (change != null) {
+            return change.user;
+        }
+
+        return this.retained.get(key);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public synchronized void clear() {
+        for (String key : this.snapshot.keys) {
+            this.changes.put(key, new Change(null, ++this.sequence));
+        }
+
+        for (Iterator<Change> iterator = this.changes.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().user != null) {
+                iterator.remove();
+            }
+        }
+
+        this.retained.clear();
+        this.size = 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#keySet()
+     */
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return keys().iterator();
+            }
+
+            @Override
+            public int size() {
+                return MappedUserMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Returns the ids of the current users, without decoding them.
+     * </p>
+     */
+    private synchronized List<String> keys() {
+        List<String> keys = new ArrayList<String>(this.size);
+
+        for (String key : this.snapshot.keys) {
+            if (!this.changes.containsKey(key)) {
+                keys.add(key);
+            }
+        }
+
+        for (Map.Entry<String, Change> entry : this.changes.entrySet()) {
+            if (entry.getValue().user != null) {
+                keys.add(entry.getKey());
+            }
+        }
+
+        return Collections.unmodifiableList(keys);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<String, FileUser>> entrySet() {
+        return new AbstractSet<Map.Entry<String, FileUser>>() {
+            @Override
+            public Iterator<Map.Entry<String, FileUser>> iterator() {
+                final Iterator<FileUser> users = view(true).iterator();
+
+                return new Iterator<Map.Entry<String, FileUser>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return users.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, FileUser> next() {
+                        FileUser user = users.next();
+
+                        return new UserEntry(user);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return MappedUserMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Returns a view of the current users that is not affected by later changes, to be written as the new snapshot. Users are
+     * decoded as the view is iterated.
+     * </p>
+     *
+     * @return
+     */
+    public synchronized Collection<FileUser> snapshot() {
+        return view(false);
+    }
+
+    private synchronized UserView view(boolean useRetained) {
+        return new UserView(this.snapshot, new HashMap<String, Change>(this.changes), this.size, this.sequence, useRetained);
+    }
+
+    /**
+     * <p>
+     * Maps the snapshot written from the given view, dropping the changes it already includes.
+     * </p>
+     *
+     * @param written
+     * @throws IOException
+     */
+    public synchronized void reload(Collection<FileUser> written) throws IOException {
+        long writtenSequence = ((UserView) written).sequence;
+
+        this.snapshot = new Snapshot(this.file);
+
+        for (Iterator<Map.Entry<String, Change>> iterator = this.changes.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry<String, Change> entry = iterator.next();
+            Change change = entry.getValue();
+
+            if (change.sequence <= writtenSequence) {
+                iterator.remove();
+
+                if (change.user != null && this.retention > 0) {
+                    this.retained.put(entry.getKey(), change.user);
+                }
+            }
+        }
+
+        this.size = this.snapshot.keys.length;
+
+        for (Map.Entry<String, Change> entry : this.changes.entrySet()) {
+            boolean inSnapshot = this.snapshot.indexOf(entry.getKey()) >= 0;
+
+            if (entry.getValue().user != null && !inSnapshot) {
+                this.size++;
+            } else if (entry.getValue().user == null && inSnapshot) {
+                this.size--;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the number of users changed since the snapshot was mapped, which are kept on the heap.
+     * </p>
+     *
+     * @return
+     */
+    public synchronized int getChangeCount() {
+        return this.changes.size();
+    }
+
+    /**
+     * <p>
+     * Returns the number of decoded users currently retained.
+     * </p>
+     *
+     * @return
+     */
+    public synchronized int getRetainedCount() {
+        return this.retained.size();
+    }
+
+    private synchronized FileUser getRetained(String key) {
+        return this.retained.get(key);
+    }
+
+    /**
+     * <p>
+     * Read-only entry returned by the iterator of {@link MappedUserMap#entrySet()}.
+     * </p>
+     */
+    private static class UserEntry implements Map.Entry<String, FileUser> {
+
+        private final FileUser user;
+
+        UserEntry(FileUser user) {
+            this.user = user;
+        }
+
+        @Override
+        public String getKey() {
+            return this.user.getId();
+        }
+
+        @Override
+        public FileUser getValue() {
+            return this.user;
+        }
+
+        @Override
+        public FileUser setValue(FileUser value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * <p>
+     * A change made after the snapshot was mapped. A null user means the user was removed.
+     * </p>
+     */
+    private static class Change {
+
+        private final FileUser user;
+        private final long sequence;
+
+        Change(FileUser user, long sequence) {
+            this.user = user;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * <p>
+     * Collection of the users at some point in time: the changed users first, followed by the unchanged users of the
+     * snapshot.
+     * </p>
+     */
+    private class UserView extends AbstractCollection<FileUser> {
+
+        private final Snapshot snapshot;
+        private final Map<String, Change> changes;
+        private final int size;
+        private final long sequence;
+        private final boolean useRetained;
+
+        UserView(Snapshot snapshot, Map<String, Change> changes, int size, long sequence, boolean useRetained) {
+            this.snapshot = snapshot;
+            this.changes = changes;
+            this.size = size;
+            this.sequence = sequence;
+            this.useRetained = useRetained;
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public Iterator<FileUser> iterator() {
+            final List<FileUser> changed = new ArrayList<FileUser>();
+
+            for (Change change : this.changes.values()) {
+                if (change.user != null) {
+                    changed.add(change.user);
+                }
+            }
+
+            return new Iterator<FileUser>() {
+
+                private int changedIndex;
+                private int snapshotIndex;
+                private FileUser next = advance();
+
+                private FileUser advance() {
+                    if (this.changedIndex < changed.size()) {
+                        return changed.get(this.changedIndex++);
+                    }
+
+                    while (this.snapshotIndex < snapshot.keys.length) {
+                        int index = this.snapshotIndex++;
+                        String key = snapshot.keys[index];
+
+                        if (changes.containsKey(key)) {
+                            continue;
+                        }
+
+                        FileUser user = useRetained ? getRetained(key) : null;
+
+                        return user != null ? user : snapshot.read(index);
+                    }
+
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return this.next != null;
+                }
+
+                @Override
+                public FileUser next() {
+                    if (this.next == null) {
+                        throw new NoSuchElementException();
+                    }
+
+                    FileUser current = this.next;
+
+                    this.next = advance();
+
+                    return current;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * <p>
+     * A mapped users snapshot and its index. Immutable once created, so it can be read by several threads.
+     * </p>
+     */
+    private static class Snapshot {
+
+        private String[] names = new String[0];
+        private String[] keys = new String[0];
+        private long[] offsets = new long[0];
+        private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+        private long length;
+
+        Snapshot(File file) throws IOException {
+            if (!file.exists() || file.length() == 0) {
+                return;
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+            try {
+                FileChannel channel = raf.getChannel();
+
+                this.length = channel.size();
+                this.chunks = new MappedByteBuffer[(int) ((this.length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+
+                for (int i = 0; i < this.chunks.length; i++) {
+                    long position = (long) i * CHUNK_SIZE;
+
+                    this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(CHUNK_SIZE, this.length - position));
+                }
+            } finally {
+                raf.close();
+            }
+
+            Reader reader = new Reader(0);
+
+            if (reader.readInt() != FileStoreCodec.MAGIC || reader.readByte() != FileStoreCodec.VERSION
+                    || reader.readByte() != FileStoreCodec.USERS) {
+                throw new IOException("Not a users snapshot: " + file + ".");
+            }
+
+            this.names = new String[reader.readVarInt()];
+
+            for (int i = 0; i < this.names.length; i++) {
+                this.names[i] = reader.readString();
+            }
+
+            int count = reader.readVarInt();
+
+            if (!readIndex()) {
+                scan(reader, count);
+            }
+        }
+
+        /**
+         * <p>
+         * Reads the index written at the end of the snapshot.
+         * </p>
+         */
+        private boolean readIndex() throws IOException {
+            if (this.length < FileStoreCodec.HEADER_LENGTH + FileStoreCodec.INDEX_TRAILER_LENGTH) {
+                return false;
+            }
+
+            Reader trailer = new Reader(this.length - FileStoreCodec.INDEX_TRAILER_LENGTH);
+            long position = trailer.readLong();
+
+            if (trailer.readInt() != FileStoreCodec.MAGIC || position < FileStoreCodec.HEADER_LENGTH
+                    || position >= this.length) {
+                return false;
+            }
+
+            Reader reader = new Reader(position);
+            int count = reader.readVarInt();
+
+            this.keys = new String[count];
+            this.offsets = new long[count];
+
+            for (int i = 0; i < count; i++) {
+                this.keys[i] = reader.readString();
+                this.offsets[i] = reader.readVarLong();
+            }
+
+            return true;
+        }
+
+        /**
+         * <p>
+         * Builds the index by reading the id of every record, for snapshots written without one.
+         * </p>
+         */
+        private void scan(Reader reader, int count) throws IOException {
+            final String[] keys = new String[count];
+            final long[] offsets = new long[count];
+            int found = 0;
+
+            for (int i = 0; i < count; i++) {
+                long offset = reader.position;
+                int length = reader.readVarInt();
+                long next = reader.position + length;
+
+                reader.readByte();
+
+                String key = reader.readString();
+
+                if (key != null) {
+                    keys[found] = key;
+                    offsets[found] = offset;
+                    found++;
+                }
+
+                reader.position = next;
+            }
+
+            Integer[] order = new Integer[found];
+
+            for (int i = 0; i < found; i++) {
+                order[i] = Integer.valueOf(i);
+            }
+
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return keys[o1.intValue()].compareTo(keys[o2.intValue()]);
+                }
+            });
+
+            this.keys = new String[found];
+            this.offsets = new long[found];
+
+            for (int i = 0; i < found; i++) {
+                this.keys[i] = keys[order[i].intValue()];
+                this.offsets[i] = offsets[order[i].intValue()];
+            }
+        }
+
+        int indexOf(String key) {
+            return key == null ? -1 : Arrays.binarySearch(this.keys, key);
+        }
+
+        FileUser read(int index) {
+            try {
+                Reader reader = new Reader(this.offsets[index]);
+                byte[] record = new byte[reader.readVarInt()];
+
+                reader.readFully(record);
+
+                return (FileUser) FileStoreCodec.decode(record, 0, record.length, this.names);
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading user " + this.keys[index] + ".", e);
+            }
+        }
+
+        /**
+         * <p>
+         * Sequential reader over the mapped chunks, using absolute reads so that several readers can share them.
+         * </p>
+         */
+        private class Reader {
+
+            private long position;
+
+            Reader(long position) {
+                this.position = position;
+            }
+
+            byte readByte() throws IOException {
+                if (this.position >= length) {
+                    throw new IOException("Unexpected end of snapshot.");
+                }
+
+                ByteBuffer chunk = chunks[(int) (this.position / CHUNK_SIZE)];
+                byte value = chunk.get((int) (this.position % CHUNK_SIZE));
+
+                this.position++;
+
+                return value;
+            }
+
+            int readInt() throws IOException {
+                return ((readByte() & 0xFF) << 24) | ((readByte() & 0xFF) << 16) | ((readByte() & 0xFF) << 8)
+                        | (readByte() & 0xFF);
+            }
+
+            long readLong() throws IOException {
+                return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+            }
+
+            int readVarInt() throws IOException {
+                int value = 0;
+
+                for (int shift = 0; shift < 32; shift += 7) {
+                    int b = readByte();
+
+                    value |= (b & 0x7F) << shift;
+
+                    if ((b & 0x80) == 0) {
+                        return value;
+                    }
+                }
+
+                throw new IOException("Malformed varint.");
+            }
+
+            long readVarLong() throws IOException {
+                long zigZag = 0;
+
+                for (int shift = 0; shift < 64; shift += 7) {
+                    int b = readByte();
+
+                    zigZag |= (long) (b & 0x7F) << shift;
+
+                    if ((b & 0x80) == 0) {
+                        return (zigZag >>> 1) ^ -(zigZag & 1);
+                    }
+                }
+
+                throw new IOException("Malformed varint.");
+            }
+
+            void readFully(byte[] bytes) throws IOException {
+                int offset = 0;
+
+                while (offset < bytes.length) {
+                    if (this.position >= length) {
+                        throw new IOException("Unexpected end of snapshot.");
+                    }
+
+                    ByteBuffer chunk = chunks[(int) (this.position / CHUNK_SIZE)].duplicate();
+                    int chunkOffset = (int) (this.position % CHUNK_SIZE);
+                    int count = Math.min(bytes.length - offset, chunk.limit() - chunkOffset);
+
+                    chunk.position(chunkOffset);
+                    chunk.get(bytes, offset, count);
+
+                    offset += count;
+                    this.position += count;
+                }
+            }
+
+            String readString() throws IOException {
+                int length = readVarInt() - 1;
+
+                if (length < 0) {
+                    return null;
+                }
+
+                byte[] bytes = new byte[length];
+
+                readFully(bytes);
+
+                return new String(bytes, "UTF-8");
+            }
+        }
+    }
+}
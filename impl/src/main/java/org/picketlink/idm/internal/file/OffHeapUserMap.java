@@ -0,0 +1,357 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ * Users of a {@link FileBasedIdentityStore} kept encoded outside of the Java heap, in the direct buffers of a
+ * {@link FileSlabAllocator}. Only the user ids and the addresses of their records are kept on the heap, so a large number of
+ * users neither fills the old generation nor lengthens the collections that scan it.
+ * </p>
+ * <p>
+ * Users are decoded on lookup into an instance only referenced by the callers, which is short-lived garbage unless they
+ * keep it. While an instance is still referenced, it is weakly tracked and returned by later lookups of the same user, so
+ * that changes made through any reference are made to the same instance and encoded together when it is put back. Once no
+ * longer referenced, the instance is collected and the next lookup decodes the user again.
+ * </p>
+ * <p>
+ * {@link #put(String, FileUser)} and {@link #remove(Object)} do not decode users to return the previous value, and always
+ * return null.
+ * </p>
+ */
+public class OffHeapUserMap extends AbstractMap<String, FileUser> {
+
+    private final FileSlabAllocator allocator;
+    private final Map<String, Long> addresses = new HashMap<String, Long>();
+    private final Map<String, UserReference> live = new HashMap<String, UserReference>();
+    private final ReferenceQueue<FileUser> collected = new ReferenceQueue<FileUser>();
+
+    /**
+     * <p>
+     * Weak reference to the instance of a user returned by a lookup or put, which clears once no caller references it.
+     * </p>
+     */
+    private static class UserReference extends WeakReference<FileUser> {
+
+        private final String key;
+
+        UserReference(String key, FileUser user, ReferenceQueue<FileUser> queue) {
+            super(user, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * @param slabSize the size of the direct buffers the records are allocated in.
+     */
+    public OffHeapUserMap(int slabSize) {
+        this.allocator = new FileSlabAllocator(slabSize);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public synchronized FileUser get(Object key) {
+        Long address = this.addresses.get(key);
+
+        if (address == null) {
+            return null;
+        }
+
+        expungeCollected();
+
+        UserReference reference = this.live.get(key);
+        FileUser user = reference != null ? reference.get() : null;
+
+        if (user != null) {
+            return user;
+        }
+
+        try {
+            user = (FileUser) FileStoreCodec.decode(this.allocator.read(address.longValue()));
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading user " + key + ".", e);
+        }
+
+        this.live.put((String) key, new UserReference((String) key, user, this.collected));
+
+        return user;
+    }
+
+    /**
+     * <p>
+     * Forgets the instances that are no longer referenced.
+     * </p>
+     */
+    private void expungeCollected() {
+        UserReference reference;
+
+        while ((reference = (UserReference) this.collected.poll()) != null) {
+            if (this.live.get(reference.key) == reference) {
+                this.live.remove(reference.key);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return this.addresses.containsKey(key);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public FileUser put(String key, FileUser user) {
+        byte[] record;
+
+        try {
+            record = FileStoreCodec.encode(user);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing user " + key + ".", e);
+        }
+
+        synchronized (this) {
+            Long previous = this.addresses.put(key, Long.valueOf(this.allocator.write(record)));
+
+            if (previous != null) {
+                this.allocator.free(previous.longValue());
+            }
+
+            expungeCollected();
+
+            // the instance put is the latest state, later lookups return it while it is referenced
+            this.live.put(key, new UserReference(key, user, this.collected));
+        }
+
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public synchronized FileUser remove(Object key) {
+        Long address = this.addresses.remove(key);
+
+        this.live.remove(key);
+
+        if (address != null) {
+            this.allocator.free(address.longValue());
+        }
+
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public synchronized int size() {
+        return this.addresses.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public synchronized void clear() {
+        this.addresses.clear();
+        this.live.clear();
+        this.allocator.clear();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#keySet()
+     */
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return keys().iterator();
+            }
+
+            @Override
+            public int size() {
+                return OffHeapUserMap.this.size();
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#values()
+     */
+    @Override
+    public Collection<FileUser> values() {
+        return new AbstractCollection<FileUser>() {
+            @Override
+            public Iterator<FileUser> iterator() {
+                final Iterator<String> keys = keys().iterator();
+
+                return new Iterator<FileUser>() {
+
+                    private FileUser next = advance();
+
+                    private FileUser advance() {
+                        while (keys.hasNext()) {
+                            // users removed since the keys were copied are skipped
+                            FileUser user = get(keys.next());
+
+                            if (user != null) {
+                                return user;
+                            }
+                        }
+
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.next != null;
+                    }
+
+                    @Override
+                    public FileUser next() {
+                        if (this.next == null) {
+                            throw new NoSuchElementException();
+                        }
+
+                        FileUser current = this.next;
+
+                        this.next = advance();
+
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return OffHeapUserMap.this.size();
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<String, FileUser>> entrySet() {
+        return new AbstractSet<Map.Entry<String, FileUser>>() {
+            @Override
+            public Iterator<Map.Entry<String, FileUser>> iterator() {
+                final Iterator<FileUser> users = values().iterator();
+
+                return new Iterator<Map.Entry<String, FileUser>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return users.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, FileUser> next() {
+                        FileUser user = users.next();
+
+                        return new SimpleImmutableEntry<String, FileUser>(user.getId(), user);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return OffHeapUserMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Returns the bytes allocated outside of the heap to store the users.
+     * </p>
+     */
+    public synchronized long getCapacity() {
+        return this.allocator.getCapacity();
+    }
+
+    /**
+     * <p>
+     * Returns the bytes of the encoded users.
+     * </p>
+     */
+    public synchronized long getUsed() {
+        return this.allocator.getUsed();
+    }
+
+    private synchronized List<String> keys() {
+        return Collections.unmodifiableList(new ArrayList<String>(this.addresses.keySet()));
+    }
+}
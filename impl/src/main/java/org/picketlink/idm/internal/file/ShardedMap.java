@@ -0,0 +1,286 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.idm.internal.file;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * <p>
+ * Map of the entities of one type of the {@link FileBasedIdentityStore}, partitioned into shards by the hash of their keys.
+ * Each shard is backed by its own map and persisted by its own {@link FileJournal}, so shards are loaded, written and
+ * compacted independently.
+ * </p>
+ * <p>
+ * The shard of a key only depends on {@link String#hashCode()}, which is the same on every JVM, and on the number of shards.
+ * </p>
+ * <p>
+ * The keys of all shards are also kept in order, see {@link #navigableKeySet()}.
+ * </p>
+ */
+class ShardedMap<V> extends AbstractMap<String, V> {
+
+    private final List<Map<String, V>> shards;
+    private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+
+    ShardedMap(List<Map<String, V>> shards) {
+        this.shards = shards;
+
+        for (Map<String, V> shard : shards) {
+            this.keys.addAll(shard.keySet());
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the shard of the given key, out of <code>count</code> shards.
+     * </p>
+     *
+     * @param key
+     * @param count
+     * @return
+     */
+    static int shard(String key, int count) {
+        if (count == 1 || key == null) {
+            return 0;
+        }
+
+        return (key.hashCode() & Integer.MAX_VALUE) % count;
+    }
+
+    int getShardCount() {
+        return this.shards.size();
+    }
+
+    Map<String, V> getShard(int index) {
+        return this.shards.get(index);
+    }
+
+    /**
+     * <p>
+     * Returns the keys of all shards in ascending order. The returned set is updated by the changes made through this map, and
+     * must not be changed.
+     * </p>
+     *
+     * @return
+     */
+    NavigableSet<String> navigableKeySet() {
+        return this.keys;
+    }
+
+    private Map<String, V> shardOf(Object key) {
+        return this.shards.get(shard((String) key, this.shards.size()));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+
+        return shardOf(key).get(key);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && shardOf(key).containsKey(key);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public V put(String key, V value) {
+        V previous = shardOf(key).put(key, value);
+
+        this.keys.add(key);
+
+        return previous;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+
+        V previous = shardOf(key).remove(key);
+
+        this.keys.remove(key);
+
+        return previous;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        int size = 0;
+
+        for (Map<String, V> shard : this.shards) {
+            size += shard.size();
+        }
+
+        return size;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        for (Map<String, V> shard : this.shards) {
+            shard.clear();
+        }
+
+        this.keys.clear();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#values()
+     */
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ShardIterator<V>() {
+                    @Override
+                    Iterator<V> iterator(Map<String, V> shard) {
+                        return shard.values().iterator();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ShardedMap.this.size();
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return new AbstractSet<Entry<String, V>>() {
+            @Override
+            public Iterator<Entry<String, V>> iterator() {
+                return new ShardIterator<Entry<String, V>>() {
+                    @Override
+                    Iterator<Entry<String, V>> iterator(Map<String, V> shard) {
+                        return shard.entrySet().iterator();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ShardedMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Iterates over the shards one after the other.
+     * </p>
+     */
+    private abstract class ShardIterator<T> implements Iterator<T> {
+
+        private int next;
+        private Iterator<T> current;
+        private Iterator<T> last;
+
+        abstract Iterator<T> iterator(Map<String, V> shard);
+
+        @Override
+        public boolean hasNext() {
+            while (this.current == null || !this.current.hasNext()) {
+                if (this.next >= shards.size()) {
+                    return false;
+                }
+
+                this.current = iterator(shards.get(this.next++));
+            }
+
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            this.last = this.current;
+
+            return this.current.next();
+        }
+
+        @Override
+        public void remove() {
+            if (this.last == null) {
+                throw new IllegalStateException();
+            }
+
+            this.last.remove();
+        }
+    }
+}
@@ -25,28 +25,56 @@ package org.picketlink.idm.internal.jpa;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.picketlink.idm.internal.util.IDMUtil;
 import org.picketlink.idm.query.Range;
 
 /**
+ * <p>
+ * Base class for queries. {@link #getImmutable()} returns a snapshot of the query that can not be changed any more and whose
+ * equals/hashCode are stable, so it can be used as a key to cache query results. Two queries are equal if they have the same
+ * type and filter on the same values.
+ * </p>
+ *
  * @author <a href="mailto:psilva@redhat.com">Pedro Silva</a>
  *
  */
-public class AbstractQuery<T> {
+public abstract class AbstractQuery<T> {
 
     private String name;
     private Map<String, String[]> attributeFilters = new HashMap<String, String[]>();
     private boolean enabled = true;
-    private boolean sortAscending;
+    private boolean sortAscending = true;
+    private Range range;
+    private boolean immutable;
 
     public T reset() {
         return (T) this;
     }
 
+    @SuppressWarnings("unchecked")
     public T getImmutable() {
-        return (T) this;
+        if (this.immutable) {
+            return (T) this;
+        }
+
+        AbstractQuery<T> copy = copy();
+
+        copy.name = this.name;
+        copy.attributeFilters = IDMUtil.copyAttributeFilters(this.attributeFilters);
+        copy.enabled = this.enabled;
+        copy.sortAscending = this.sortAscending;
+        copy.range = this.range != null ? Range.of(this.range.getOffset(), this.range.getLimit()) : null;
+        copy.immutable = true;
+
+        return (T) copy;
+    }
+
+    public boolean isImmutable() {
+        return this.immutable;
     }
 
     public T setName(String name) {
+        checkMutable();
         this.name = name;
         return (T) this;
     }
@@ -56,11 +84,13 @@ public class AbstractQuery<T> {
     }
 
     public T setAttributeFilter(String name, String[] values) {
+        checkMutable();
         this.attributeFilters.put(name, values);
         return (T) this;
     }
 
     public T setEnabled(boolean enabled) {
+        checkMutable();
         this.enabled = enabled;
         return (T) this;
     }
@@ -74,16 +104,84 @@ public class AbstractQuery<T> {
     }
 
     public void setRange(Range range) {
-
+        checkMutable();
+        this.range = range;
     }
 
     public Range getRange() {
-        return null;
+        return this.range;
     }
 
     public T sort(boolean ascending) {
+        checkMutable();
         this.sortAscending = ascending;
         return (T) this;
     }
 
+    public boolean isSortAscending() {
+        return this.sortAscending;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+
+        AbstractQuery<?> other = (AbstractQuery<?>) obj;
+
+        return IDMUtil.equal(this.name, other.name) && this.enabled == other.enabled
+                && this.sortAscending == other.sortAscending && getOffset(this.range) == getOffset(other.range)
+                && getLimit(this.range) == getLimit(other.range)
+                && IDMUtil.attributeFiltersEqual(this.attributeFilters, other.attributeFilters);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = getClass().getName().hashCode();
+
+        hash = 31 * hash + (this.name != null ? this.name.hashCode() : 0);
+        hash = 31 * hash + (this.enabled ? 1 : 0);
+        hash = 31 * hash + (this.sortAscending ? 1 : 0);
+        hash = 31 * hash + getOffset(this.range);
+        hash = 31 * hash + getLimit(this.range);
+        hash = 31 * hash + IDMUtil.attributeFiltersHashCode(this.attributeFilters);
+
+        return hash;
+    }
+
+    /**
+     * <p>
+     * Creates a new query of the same type, copying the fields declared by the subclass.
+     * </p>
+     *
+     * @return
+     */
+    protected abstract AbstractQuery<T> copy();
+
+    /**
+     * <p>
+     * Subclasses must call this method before changing any of their fields.
+     * </p>
+     *
+     * @throws IllegalStateException if this query is immutable.
+     */
+    protected void checkMutable() {
+        if (this.immutable) {
+            throw new IllegalStateException("Immutable queries can not be changed.");
+        }
+    }
+
+    private static int getOffset(Range range) {
+        return range != null ? range.getOffset() : 0;
+    }
+
+    private static int getLimit(Range range) {
+        return range != null ? range.getLimit() : -1;
+    }
+
 }
@@ -24,6 +24,7 @@ package org.picketlink.idm.internal.jpa;
 
 import java.util.List;
 
+import org.picketlink.idm.internal.util.IDMUtil;
 import org.picketlink.idm.model.Group;
 import org.picketlink.idm.model.Role;
 import org.picketlink.idm.model.SimpleGroup;
@@ -58,6 +59,7 @@ public class DefaultGroupQuery extends AbstractQuery<DefaultGroupQuery> implemen
 
     @Override
     public GroupQuery setId(String id) {
+        checkMutable();
         this.id = id;
         return this;
     }
@@ -71,12 +73,14 @@ public class DefaultGroupQuery extends AbstractQuery<DefaultGroupQuery> implemen
 
     @Override
     public GroupQuery setParentGroup(Group parentGroup) {
+        checkMutable();
         this.parentGroup = parentGroup;
         return this;
     }
 
     @Override
     public GroupQuery setParentGroup(String groupId) {
+        checkMutable();
         this.parentGroup = new SimpleGroup(groupId, null, null);
         return this;
     }
@@ -90,6 +94,7 @@ public class DefaultGroupQuery extends AbstractQuery<DefaultGroupQuery> implemen
 
     @Override
     public GroupQuery setRole(Role role) {
+        checkMutable();
         this.role = role;
         return this;
     }
@@ -103,6 +108,7 @@ public class DefaultGroupQuery extends AbstractQuery<DefaultGroupQuery> implemen
 
     @Override
     public GroupQuery setRelatedUser(User relatedUser) {
+        checkMutable();
         this.relatedUser = relatedUser;
         return this;
     }
@@ -129,14 +135,53 @@ public class DefaultGroupQuery extends AbstractQuery<DefaultGroupQuery> implemen
 
     @Override
     public GroupQuery setRole(String role) {
+        checkMutable();
         this.role = new SimpleRole(role);
         return this;
     }
 
     @Override
     public GroupQuery setRelatedUser(String user) {
+        checkMutable();
         this.relatedUser = new SimpleUser(user);
         return this;
     }
 
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+
+        DefaultGroupQuery other = (DefaultGroupQuery) obj;
+
+        return IDMUtil.equal(this.id, other.id)
+                && IDMUtil.equal(IDMUtil.identityKey(this.parentGroup), IDMUtil.identityKey(other.parentGroup))
+                && IDMUtil.equal(IDMUtil.identityKey(this.role), IDMUtil.identityKey(other.role))
+                && IDMUtil.equal(IDMUtil.identityKey(this.relatedUser), IDMUtil.identityKey(other.relatedUser));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = super.hashCode();
+
+        hash = 31 * hash + (this.id != null ? this.id.hashCode() : 0);
+        hash = 31 * hash + (this.parentGroup != null ? IDMUtil.identityKey(this.parentGroup).hashCode() : 0);
+        hash = 31 * hash + (this.role != null ? IDMUtil.identityKey(this.role).hashCode() : 0);
+        hash = 31 * hash + (this.relatedUser != null ? IDMUtil.identityKey(this.relatedUser).hashCode() : 0);
+
+        return hash;
+    }
+
+    @Override
+    protected DefaultGroupQuery copy() {
+        DefaultGroupQuery copy = new DefaultGroupQuery(this.store);
+
+        copy.id = this.id;
+        copy.parentGroup = this.parentGroup;
+        copy.role = this.role;
+        copy.relatedUser = this.relatedUser;
+
+        return copy;
+    }
 }
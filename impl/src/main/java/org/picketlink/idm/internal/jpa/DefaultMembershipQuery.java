@@ -24,6 +24,7 @@ package org.picketlink.idm.internal.jpa;
 
 import java.util.List;
 
+import org.picketlink.idm.internal.util.IDMUtil;
 import org.picketlink.idm.model.Group;
 import org.picketlink.idm.model.Membership;
 import org.picketlink.idm.model.Role;
@@ -56,6 +57,7 @@ public class DefaultMembershipQuery extends AbstractQuery<DefaultMembershipQuery
 
     @Override
     public MembershipQuery setGroup(Group group) {
+        checkMutable();
         this.group = group;
         return this;
     }
@@ -67,6 +69,7 @@ public class DefaultMembershipQuery extends AbstractQuery<DefaultMembershipQuery
 
     @Override
     public MembershipQuery setRole(Role role) {
+        checkMutable();
         this.role = role;
         return this;
     }
@@ -78,6 +81,7 @@ public class DefaultMembershipQuery extends AbstractQuery<DefaultMembershipQuery
 
     @Override
     public MembershipQuery setUser(User user) {
+        checkMutable();
         this.user = user;
         return this;
     }
@@ -94,18 +98,21 @@ public class DefaultMembershipQuery extends AbstractQuery<DefaultMembershipQuery
 
     @Override
     public MembershipQuery setUser(String user) {
+        checkMutable();
         this.user = new SimpleUser(user);
         return this;
     }
 
     @Override
     public MembershipQuery setGroup(String groupId) {
+        checkMutable();
         this.group = new SimpleGroup(groupId, null, null);
         return this;
     }
 
     @Override
     public MembershipQuery setRole(String role) {
+        checkMutable();
         this.role = new SimpleRole(role);
         return this;
     }
@@ -120,4 +127,38 @@ public class DefaultMembershipQuery extends AbstractQuery<DefaultMembershipQuery
         return this.store.executeQuery(this, null);
     }
 
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+
+        DefaultMembershipQuery other = (DefaultMembershipQuery) obj;
+
+        return IDMUtil.equal(IDMUtil.identityKey(this.group), IDMUtil.identityKey(other.group))
+                && IDMUtil.equal(IDMUtil.identityKey(this.role), IDMUtil.identityKey(other.role))
+                && IDMUtil.equal(IDMUtil.identityKey(this.user), IDMUtil.identityKey(other.user));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = super.hashCode();
+
+        hash = 31 * hash + (this.group != null ? IDMUtil.identityKey(this.group).hashCode() : 0);
+        hash = 31 * hash + (this.role != null ? IDMUtil.identityKey(this.role).hashCode() : 0);
+        hash = 31 * hash + (this.user != null ? IDMUtil.identityKey(this.user).hashCode() : 0);
+
+        return hash;
+    }
+
+    @Override
+    protected DefaultMembershipQuery copy() {
+        DefaultMembershipQuery copy = new DefaultMembershipQuery(this.store);
+
+        copy.group = this.group;
+        copy.role = this.role;
+        copy.user = this.user;
+
+        return copy;
+    }
 }
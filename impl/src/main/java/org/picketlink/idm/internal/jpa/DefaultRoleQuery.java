@@ -24,6 +24,7 @@ package org.picketlink.idm.internal.jpa;
 
 import java.util.List;
 
+import org.picketlink.idm.internal.util.IDMUtil;
 import org.picketlink.idm.model.Group;
 import org.picketlink.idm.model.IdentityType;
 import org.picketlink.idm.model.Role;
@@ -57,6 +58,7 @@ public class DefaultRoleQuery extends AbstractQuery<DefaultRoleQuery> implements
 
     @Override
     public RoleQuery setOwner(IdentityType owner) {
+        checkMutable();
         this.owner = owner;
         return this;
     }
@@ -68,6 +70,7 @@ public class DefaultRoleQuery extends AbstractQuery<DefaultRoleQuery> implements
 
     @Override
     public RoleQuery setGroup(Group group) {
+        checkMutable();
         this.group = group;
         return this;
     }
@@ -79,8 +82,40 @@ public class DefaultRoleQuery extends AbstractQuery<DefaultRoleQuery> implements
 
     @Override
     public RoleQuery setGroup(String groupId) {
+        checkMutable();
         this.group = new SimpleGroup(groupId, null, null);
         return this;
     }
 
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+
+        DefaultRoleQuery other = (DefaultRoleQuery) obj;
+
+        return IDMUtil.equal(IDMUtil.identityKey(this.group), IDMUtil.identityKey(other.group))
+                && IDMUtil.equal(IDMUtil.identityKey(this.owner), IDMUtil.identityKey(other.owner));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = super.hashCode();
+
+        hash = 31 * hash + (this.group != null ? IDMUtil.identityKey(this.group).hashCode() : 0);
+        hash = 31 * hash + (this.owner != null ? IDMUtil.identityKey(this.owner).hashCode() : 0);
+
+        return hash;
+    }
+
+    @Override
+    protected DefaultRoleQuery copy() {
+        DefaultRoleQuery copy = new DefaultRoleQuery(this.store);
+
+        copy.group = this.group;
+        copy.owner = this.owner;
+
+        return copy;
+    }
 }
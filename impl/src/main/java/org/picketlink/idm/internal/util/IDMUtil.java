@@ -21,6 +21,16 @@
  */
 package org.picketlink.idm.internal.util;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+
 /**
  * General purpose Util
  *
@@ -70,4 +80,94 @@ public class IDMUtil {
         return true;
     }
 
-}
\ No newline at end of file
+    /**
+     * Null safe equality check
+     *
+     * @param obj1
+     * @param obj2
+     * @return
+     */
+    public static boolean equal(Object obj1, Object obj2) {
+        return obj1 == null ? obj2 == null : obj1.equals(obj2);
+    }
+
+    /**
+     * Returns a string identifying the given identity type, built from its id, key and name. Unlike the equals/hashCode of the
+     * identity type implementations, the result is consistent across instances representing the same identity.
+     *
+     * @param identityType
+     * @return
+     */
+    public static String identityKey(IdentityType identityType) {
+        if (identityType == null) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder();
+
+        if (identityType instanceof User) {
+            key.append(User.KEY_PREFIX).append(((User) identityType).getId());
+        } else if (identityType instanceof Group) {
+            Group group = (Group) identityType;
+            key.append(Group.KEY_PREFIX).append(group.getId()).append('\n').append(group.getName());
+        } else if (identityType instanceof Role) {
+            key.append(Role.KEY_PREFIX).append(((Role) identityType).getName());
+        }
+
+        return key.append('\n').append(identityType.getKey()).toString();
+    }
+
+    /**
+     * Copy a map of attribute filters, including the values
+     *
+     * @param filters
+     * @return
+     */
+    public static Map<String, String[]> copyAttributeFilters(Map<String, String[]> filters) {
+        Map<String, String[]> copy = new HashMap<String, String[]>();
+
+        for (Entry<String, String[]> entry : filters.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue() != null ? entry.getValue().clone() : null);
+        }
+
+        return copy;
+    }
+
+    /**
+     * Match two maps of attribute filters for equality, comparing the values in order
+     *
+     * @param filters1
+     * @param filters2
+     * @return
+     */
+    public static boolean attributeFiltersEqual(Map<String, String[]> filters1, Map<String, String[]> filters2) {
+        if (filters1.size() != filters2.size()) {
+            return false;
+        }
+
+        for (Entry<String, String[]> entry : filters1.entrySet()) {
+            if (!filters2.containsKey(entry.getKey()) || !Arrays.equals(entry.getValue(), filters2.get(entry.getKey()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Hash code of a map of attribute filters, consistent with {@link #attributeFiltersEqual(Map, Map)}
+     *
+     * @param filters
+     * @return
+     */
+    public static int attributeFiltersHashCode(Map<String, String[]> filters) {
+        int hash = 0;
+
+        for (Entry<String, String[]> entry : filters.entrySet()) {
+            hash += entry.getKey().hashCode() ^ Arrays.hashCode(entry.getValue());
+        }
+
+        return hash;
+    }
+
+}
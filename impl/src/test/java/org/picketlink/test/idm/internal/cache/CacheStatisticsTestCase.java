@@ -0,0 +1,159 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.test.idm.internal.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.cache.CacheRegionStatistics;
+import org.picketlink.idm.internal.cache.CachingIdentityStore;
+import org.picketlink.idm.internal.cache.StripedCounter;
+import org.picketlink.idm.internal.config.CacheConfiguration;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+
+/**
+ * <p>
+ * Tests the statistics recorded by the {@link CachingIdentityStore}.
+ * </p>
+ */
+public class CacheStatisticsTestCase {
+
+    /**
+     * <p>
+     * Tests if hits, misses, loads and evictions are recorded for each region.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRegionStatistics() throws Exception {
+        CachingIdentityStore store = new CachingIdentityStore(new FileBasedIdentityStore(), new CacheConfiguration()
+                .setMaxEntries(2).setConcurrencyLevel(1));
+
+        store.createUser("asaldhana");
+        store.createUser("psilva");
+        store.createUser("sbryzak");
+
+        store.getUser("asaldhana");
+        store.getUser("asaldhana");
+        store.getUser("psilva");
+        store.getUser("sbryzak");
+
+        CacheRegionStatistics users = getStatistics(store, "users");
+
+        assertEquals(1, users.getHitCount());
+        assertEquals(3, users.getMissCount());
+        assertEquals(0.25, users.getHitRatio(), 0.001);
+        assertEquals(3, users.getLoadCount());
+        assertEquals(1, users.getEvictionCount());
+        assertEquals(2, users.getSize());
+        assertTrue(users.getAverageLoadTime() >= 0);
+
+        users.reset();
+
+        assertEquals(0, users.getMissCount());
+        assertEquals(0, users.getEvictionCount());
+        assertEquals(2, users.getSize());
+    }
+
+    /**
+     * <p>
+     * Tests if the statistics are exposed through JMX.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMBeans() throws Exception {
+        CachingIdentityStore store = new CachingIdentityStore(new FileBasedIdentityStore());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.picketlink.idm:type=IdentityCache,name=\"test\",region=users");
+
+        store.registerMBeans("test");
+        store.createUser("asaldhana");
+        store.getUser("asaldhana");
+        store.getUser("asaldhana");
+
+        assertEquals(1L, server.getAttribute(name, "HitCount"));
+        assertEquals(1L, server.getAttribute(name, "MissCount"));
+
+        store.close();
+
+        assertFalse(server.isRegistered(name));
+    }
+
+    /**
+     * <p>
+     * Tests if concurrent updates of a {@link StripedCounter} are not lost.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStripedCounter() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(80000, counter.sum());
+
+        counter.reset();
+
+        assertEquals(0, counter.sum());
+    }
+
+    private CacheRegionStatistics getStatistics(CachingIdentityStore store, String region) {
+        for (CacheRegionStatistics statistics : store.getStatistics()) {
+            if (statistics.getName().equals(region)) {
+                return statistics;
+            }
+        }
+
+        throw new IllegalArgumentException("No region " + region);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.test.idm.internal.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.cache.CacheWarmer;
+import org.picketlink.idm.internal.cache.CachingIdentityStore;
+import org.picketlink.idm.internal.config.CacheConfiguration;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.SimpleGroup;
+import org.picketlink.idm.model.SimpleRole;
+import org.picketlink.idm.model.SimpleUser;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.GroupQuery;
+import org.picketlink.idm.query.Range;
+import org.picketlink.idm.query.RoleQuery;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Tests the preloading of a {@link CachingIdentityStore} by a {@link CacheWarmer}.
+ * </p>
+ */
+public class CacheWarmerTestCase {
+
+    /**
+     * <p>
+     * Tests if lookups made after the warm up are served from the cache.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWarmUp() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+
+        User user = delegate.createUser("asaldhana");
+        delegate.createUser("psilva");
+        Role role = delegate.createRole("admin");
+        Group group = delegate.createGroup("staff", null);
+
+        delegate.createMembership(role, user, group);
+
+        CachingIdentityStore store = new CachingIdentityStore(delegate, new CacheConfiguration().setWarmUpParallelism(2));
+        CacheWarmer warmer = store.warmUp();
+
+        assertTrue(warmer.awaitReady(10, TimeUnit.SECONDS));
+        assertTrue(warmer.isReady());
+        assertTrue(warmer.getFailures().isEmpty());
+        assertEquals(5, warmer.getLoadedCount());
+
+        delegate.lookups = 0;
+
+        assertNotNull(store.getUser("asaldhana"));
+        assertNotNull(store.getUser("psilva"));
+        assertNotNull(store.getRole("admin"));
+        assertNotNull(store.getGroup("staff"));
+        assertNotNull(store.getMembership(role, user, group));
+
+        assertEquals(0, delegate.lookups);
+    }
+
+    /**
+     * <p>
+     * Tests if the warm up stops filling a region once it is full.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBoundedWarmUp() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+
+        for (int i = 0; i < 10; i++) {
+            delegate.createUser("user" + i);
+        }
+
+        CachingIdentityStore store = new CachingIdentityStore(delegate, new CacheConfiguration().setMaxEntries(4)
+                .setConcurrencyLevel(1));
+        CacheWarmer warmer = store.warmUp();
+
+        assertTrue(warmer.awaitReady(10, TimeUnit.SECONDS));
+        assertEquals(4, warmer.getLoadedCount());
+    }
+
+    /**
+     * <p>
+     * Tests if the warm up caches identities under the names they are looked up with, for a store whose identities have keys
+     * that differ from their ids and names.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWarmUpByName() throws Exception {
+        CountingIdentityStore delegate = new SimpleIdentityStore();
+
+        delegate.createUser("asaldhana");
+        delegate.createRole("admin");
+        delegate.createGroup("staff", null);
+
+        CachingIdentityStore store = new CachingIdentityStore(delegate);
+        CacheWarmer warmer = store.warmUp();
+
+        assertTrue(warmer.awaitReady(10, TimeUnit.SECONDS));
+        assertTrue(warmer.getFailures().isEmpty());
+
+        delegate.lookups = 0;
+
+        User user = store.getUser("asaldhana");
+
+        assertEquals(User.KEY_PREFIX + "asaldhana", user.getKey());
+        assertNotNull(store.getRole("admin"));
+        assertNotNull(store.getGroup("staff"));
+
+        assertEquals(0, delegate.lookups);
+    }
+
+    private static class CountingIdentityStore extends FileBasedIdentityStore {
+
+        private volatile int lookups;
+
+        @Override
+        public User getUser(String name) {
+            this.lookups++;
+            return super.getUser(name);
+        }
+
+        @Override
+        public Group getGroup(String name) {
+            this.lookups++;
+            return super.getGroup(name);
+        }
+
+        @Override
+        public Role getRole(String name) {
+            this.lookups++;
+            return super.getRole(name);
+        }
+    }
+
+    /**
+     * <p>
+     * Store whose queries return {@link SimpleUser}s, {@link SimpleGroup}s and {@link SimpleRole}s, whose keys are prefixed.
+     * </p>
+     */
+    private static class SimpleIdentityStore extends CountingIdentityStore {
+
+        @Override
+        public List<User> executeQuery(UserQuery query, Range range) {
+            List<User> users = new ArrayList<User>();
+
+            for (User user : super.executeQuery(query, range)) {
+                users.add(new SimpleUser(user.getId()));
+            }
+
+            return users;
+        }
+
+        @Override
+        public List<Group> executeQuery(GroupQuery query, Range range) {
+            List<Group> groups = new ArrayList<Group>();
+
+            for (Group group : super.executeQuery(query, range)) {
+                groups.add(new SimpleGroup(group.getId(), group.getName(), null));
+            }
+
+            return groups;
+        }
+
+        @Override
+        public List<Role> executeQuery(RoleQuery query, Range range) {
+            List<Role> roles = new ArrayList<Role>();
+
+            for (Role role : super.executeQuery(query, range)) {
+                roles.add(new SimpleRole(role.getName()));
+            }
+
+            return roles;
+        }
+    }
+}
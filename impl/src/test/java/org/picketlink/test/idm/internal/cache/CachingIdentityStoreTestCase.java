@@ -0,0 +1,325 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.test.idm.internal.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.cache.CachingIdentityStore;
+import org.picketlink.idm.internal.cache.EvictionPolicy;
+import org.picketlink.idm.internal.config.CacheConfiguration;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * Tests the {@link CachingIdentityStore} backed by a {@link FileBasedIdentityStore}.
+ * </p>
+ */
+public class CachingIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests if repeated lookups are served from the cache.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReadThrough() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate);
+
+        store.createUser("asaldhana");
+        store.createRole("admin");
+
+        User user = store.getUser("asaldhana");
+
+        assertNotNull(user);
+        assertSame(user, store.getUser("asaldhana"));
+        assertEquals(1, delegate.userLookups);
+
+        Role role = store.getRole("admin");
+
+        assertNotNull(role);
+        assertSame(role, store.getRole("admin"));
+        assertEquals(1, delegate.roleLookups);
+    }
+
+    /**
+     * <p>
+     * Tests if changes made through the cache invalidate the affected entries.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidationOnChange() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate);
+
+        store.createUser("asaldhana");
+
+        User user = store.getUser("asaldhana");
+
+        store.setAttribute(user, "someAttribute", new String[] { "1" });
+
+        int lookups = delegate.userLookups;
+
+        store.getUser("asaldhana");
+        store.getUser("asaldhana");
+
+        assertEquals(lookups + 1, delegate.userLookups);
+
+        store.updatePassword(user, "secret");
+
+        lookups = delegate.userLookups;
+
+        store.getUser("asaldhana");
+        store.getUser("asaldhana");
+
+        assertEquals(lookups + 1, delegate.userLookups);
+
+        store.removeUser(user);
+
+        assertNull(store.getUser("asaldhana"));
+    }
+
+    /**
+     * <p>
+     * Tests if the least recently used entry is evicted when the region is full.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLRUEviction() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate, new CacheConfiguration().setMaxEntries(2)
+                .setConcurrencyLevel(1));
+
+        store.createUser("user1");
+        store.createUser("user2");
+        store.createUser("user3");
+
+        store.getUser("user1");
+        store.getUser("user2");
+        store.getUser("user1");
+        store.getUser("user3");
+
+        assertEquals(3, delegate.userLookups);
+
+        store.getUser("user1");
+
+        assertEquals(3, delegate.userLookups);
+
+        store.getUser("user2");
+
+        assertEquals(4, delegate.userLookups);
+    }
+
+    /**
+     * <p>
+     * Tests if entries are not admitted when they are requested less often than the entry they would replace.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTinyLFUAdmission() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate, new CacheConfiguration().setMaxEntries(2)
+                .setConcurrencyLevel(1).setEvictionPolicy(EvictionPolicy.TINY_LFU));
+
+        store.createUser("user1");
+        store.createUser("user2");
+        store.createUser("scan");
+
+        for (int i = 0; i < 5; i++) {
+            store.getUser("user1");
+            store.getUser("user2");
+        }
+
+        store.getUser("scan");
+        store.getUser("user1");
+        store.getUser("user2");
+
+        assertEquals(3, delegate.userLookups);
+    }
+
+    /**
+     * <p>
+     * Tests if entries expire after the configured time to live.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTimeToLive() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate, new CacheConfiguration().setTimeToLive(50));
+
+        store.createUser("asaldhana");
+        store.getUser("asaldhana");
+
+        Thread.sleep(100);
+
+        store.getUser("asaldhana");
+
+        assertEquals(2, delegate.userLookups);
+    }
+
+    /**
+     * <p>
+     * Tests if a region bounded by weight evicts entries once the estimated size is exceeded.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWeightBoundedRegion() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate, new CacheConfiguration().setMaxWeight(4096)
+                .setConcurrencyLevel(1));
+
+        User user = store.createUser("asaldhana");
+
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < 4096; i++) {
+            value.append('x');
+        }
+
+        store.setAttribute(user, "large", new String[] { value.toString() });
+
+        int lookups = delegate.userLookups;
+
+        store.getUser("asaldhana");
+        store.getUser("asaldhana");
+
+        assertEquals(lookups + 2, delegate.userLookups);
+    }
+
+    /**
+     * <p>
+     * Tests if lookups for missing identities are remembered until the identity is created.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNegativeLookup() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate);
+
+        assertNull(store.getUser("asaldhana"));
+        assertNull(store.getUser("asaldhana"));
+
+        assertEquals(1, delegate.userLookups);
+
+        store.createUser("asaldhana");
+
+        assertNotNull(store.getUser("asaldhana"));
+    }
+
+    /**
+     * <p>
+     * Tests if a miss for a case variant of an existing key does not hide it, unless the keys are configured to ignore case.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNegativeLookupCase() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate);
+
+        delegate.createUser("asaldhana");
+
+        assertNull(store.getUser("ASaldhana"));
+        assertNotNull(store.getUser("asaldhana"));
+
+        delegate = new CountingIdentityStore();
+        store = new CachingIdentityStore(delegate, new CacheConfiguration().setCaseInsensitiveKeys(true));
+
+        assertNull(store.getUser("asaldhana"));
+        assertNull(store.getUser("ASaldhana"));
+
+        assertEquals(1, delegate.userLookups);
+    }
+
+    /**
+     * <p>
+     * Tests if, once the known keys are loaded, lookups for unknown keys are rejected without reaching the store.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testKnownKeysFilter() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate, new CacheConfiguration()
+                .setNegativeLookupTimeToLive(0));
+
+        store.createUser("asaldhana");
+        store.createRole("admin");
+
+        store.rebuildKnownKeys();
+
+        for (int i = 0; i < 100; i++) {
+            assertNull(store.getUser("unknown" + i));
+            assertNull(store.getRole("unknown" + i));
+        }
+
+        assertTrue(delegate.userLookups + delegate.roleLookups <= 5);
+
+        assertNotNull(store.getUser("asaldhana"));
+        assertNotNull(store.getRole("admin"));
+
+        store.createUser("psilva");
+
+        assertNotNull(store.getUser("psilva"));
+    }
+
+    private static class CountingIdentityStore extends FileBasedIdentityStore {
+
+        private int userLookups;
+        private int roleLookups;
+
+        @Override
+        public User getUser(String name) {
+            this.userLookups++;
+            return super.getUser(name);
+        }
+
+        @Override
+        public Role getRole(String role) {
+            this.roleLookups++;
+            return super.getRole(role);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.test.idm.internal.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.idm.internal.DefaultIdentityManager;
+import org.picketlink.idm.internal.cache.CachingIdentityStore;
+import org.picketlink.idm.internal.cache.EffectiveRoleIndex;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Membership;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.SimpleUser;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.MembershipQuery;
+import org.picketlink.idm.query.Range;
+
+/**
+ * <p>
+ * Tests the role checks answered by the {@link EffectiveRoleIndex}.
+ * </p>
+ */
+public class EffectiveRoleIndexTestCase {
+
+    /**
+     * <p>
+     * Tests if role checks for the same user only query the store once.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHasRole() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        IdentityManager identityManager = new DefaultIdentityManager(new CachingIdentityStore(delegate));
+
+        User user = identityManager.createUser("asaldhana");
+        Role admin = identityManager.createRole("admin");
+        Role manager = identityManager.createRole("manager");
+        Group staff = identityManager.createGroup("staff");
+        Group sales = identityManager.createGroup("sales");
+
+        identityManager.grantRole(admin, user, null);
+        identityManager.grantRole(manager, user, staff);
+
+        delegate.membershipQueries = 0;
+
+        assertTrue(identityManager.hasRole(admin, user, null));
+        assertTrue(identityManager.hasRole(manager, user, null));
+        assertTrue(identityManager.hasRole(manager, user, staff));
+        assertFalse(identityManager.hasRole(manager, user, sales));
+        assertFalse(identityManager.hasRole(admin, user, staff));
+
+        assertEquals(1, delegate.membershipQueries);
+
+        assertTrue(identityManager.hasRole(manager, staff, null));
+        assertFalse(identityManager.hasRole(admin, staff, null));
+
+        assertEquals(2, delegate.membershipQueries);
+
+        Collection<Role> roles = identityManager.getRoles(user, null);
+
+        assertEquals(2, roles.size());
+        assertEquals(1, identityManager.getRoles(user, staff).size());
+        assertEquals(2, delegate.membershipQueries);
+    }
+
+    /**
+     * <p>
+     * Tests if the index is updated when memberships are created and removed.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate);
+        IdentityManager identityManager = new DefaultIdentityManager(store);
+
+        User user = identityManager.createUser("asaldhana");
+        Role admin = identityManager.createRole("admin");
+        Group staff = identityManager.createGroup("staff");
+
+        assertFalse(identityManager.hasRole(admin, user, staff));
+
+        identityManager.grantRole(admin, user, staff);
+
+        assertTrue(identityManager.hasRole(admin, user, staff));
+        assertTrue(identityManager.hasRole(admin, user, null));
+        assertEquals(1, delegate.membershipQueries);
+
+        store.removeMembership(admin, user, staff);
+
+        assertFalse(identityManager.hasRole(admin, user, staff));
+        assertFalse(identityManager.hasRole(admin, user, null));
+        assertEquals(1, delegate.membershipQueries);
+
+        assertFalse(identityManager.hasRole(admin, staff, null));
+    }
+
+    /**
+     * <p>
+     * Tests if checking the roles of a group in a group gives the same answer with and without the index: a group only has
+     * roles in itself.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGroupInGroup() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore cache = new CachingIdentityStore(delegate);
+        DefaultIdentityManager uncached = new DefaultIdentityManager(delegate);
+        IdentityManager cached = new DefaultIdentityManager(cache);
+
+        User user = cached.createUser("asaldhana");
+        Role manager = cached.createRole("manager");
+        Group staff = cached.createGroup("staff");
+        Group sales = cached.createGroup("sales");
+
+        cached.grantRole(manager, user, staff);
+
+        for (IdentityManager identityManager : new IdentityManager[] { uncached, cached }) {
+            assertTrue(identityManager.hasRole(manager, staff, null));
+            assertTrue(identityManager.hasRole(manager, staff, staff));
+            assertFalse(identityManager.hasRole(manager, sales, staff));
+            assertFalse(identityManager.hasRole(manager, staff, sales));
+        }
+
+        assertTrue(cached.getRoles(staff, sales).isEmpty());
+        assertEquals(1, cached.getRoles(staff, staff).size());
+
+        // the index of a cache wrapped by other stores is used when set explicitly
+        uncached.setRoleIndex(cache);
+        delegate.membershipQueries = 0;
+
+        assertTrue(uncached.hasRole(manager, user, staff));
+        assertTrue(uncached.hasRole(manager, user, null));
+        assertEquals(1, delegate.membershipQueries);
+    }
+
+    /**
+     * <p>
+     * Tests if the index keys a user by its id, whatever the type of the instance the membership is granted or revoked with.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUserInstanceTypes() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate);
+        IdentityManager identityManager = new DefaultIdentityManager(store);
+
+        User user = identityManager.createUser("alice");
+        Role admin = identityManager.createRole("admin");
+        Group staff = identityManager.createGroup("staff");
+
+        identityManager.grantRole(admin, user, staff);
+
+        assertTrue(identityManager.hasRole(admin, user, staff));
+        assertTrue(identityManager.hasRole(admin, new SimpleUser("alice"), staff));
+
+        store.removeMembership(admin, new SimpleUser("alice"), staff);
+
+        assertNull(delegate.getMembership(admin, user, staff));
+        assertFalse(identityManager.hasRole(admin, user, staff));
+        assertFalse(identityManager.hasRole(admin, new SimpleUser("alice"), staff));
+
+        store.createMembership(admin, new SimpleUser("alice"), staff);
+
+        assertTrue(identityManager.hasRole(admin, user, staff));
+    }
+
+    private static class CountingIdentityStore extends FileBasedIdentityStore {
+
+        private int membershipQueries;
+
+        @Override
+        public List<Membership> executeQuery(MembershipQuery query, Range range) {
+            this.membershipQueries++;
+            return super.executeQuery(query, range);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.test.idm.internal.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.cache.CachingIdentityStore;
+import org.picketlink.idm.internal.cache.InvalidationBatcher;
+import org.picketlink.idm.internal.cache.InvalidationListener;
+import org.picketlink.idm.internal.cache.InvalidationMessage;
+import org.picketlink.idm.internal.cache.InvalidationMessage.Type;
+import org.picketlink.idm.internal.cache.InvalidationTransport;
+import org.picketlink.idm.internal.cache.LocalInvalidationBus;
+import org.picketlink.idm.internal.cache.LocalInvalidationTransport;
+import org.picketlink.idm.internal.cache.TcpInvalidationTransport;
+import org.picketlink.idm.internal.config.CacheConfiguration;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+
+/**
+ * <p>
+ * Tests the propagation of invalidations between {@link CachingIdentityStore}s sharing the same backend.
+ * </p>
+ */
+public class InvalidationTransportTestCase {
+
+    /**
+     * <p>
+     * Tests if a change made on one node evicts the entry cached by another node in the same JVM.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLocalTransport() throws Exception {
+        FileBasedIdentityStore backend = new FileBasedIdentityStore();
+        LocalInvalidationBus bus = new LocalInvalidationBus();
+        CachingIdentityStore node1 = new CachingIdentityStore(backend, new CacheConfiguration().setInvalidationTransport(
+                new LocalInvalidationTransport(bus)).setInvalidationMaxDelay(0));
+        CachingIdentityStore node2 = new CachingIdentityStore(backend, new CacheConfiguration().setInvalidationTransport(
+                new LocalInvalidationTransport(bus)).setInvalidationMaxDelay(0));
+
+        node1.createUser("asaldhana");
+
+        assertNotNull(node1.getUser("asaldhana"));
+
+        node2.removeUser(node2.getUser("asaldhana"));
+
+        assertNull(node1.getUser("asaldhana"));
+
+        node1.close();
+        node2.close();
+    }
+
+    /**
+     * <p>
+     * Tests if pending messages are coalesced before being published.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBatching() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        InvalidationBatcher batcher = new InvalidationBatcher(transport, 3, 60000);
+
+        batcher.add(new InvalidationMessage(Type.USER, "asaldhana"));
+        batcher.add(new InvalidationMessage(Type.USER, "asaldhana"));
+        batcher.add(new InvalidationMessage(Type.MEMBERSHIPS));
+        batcher.add(new InvalidationMessage(Type.MEMBERSHIPS));
+
+        assertEquals(0, transport.batches.size());
+
+        batcher.add(new InvalidationMessage(Type.ROLE, "admin"));
+
+        assertEquals(1, transport.batches.size());
+        assertEquals(3, transport.batches.get(0).size());
+
+        batcher.add(new InvalidationMessage(Type.USER, "psilva"));
+        batcher.add(new InvalidationMessage(Type.ALL));
+        batcher.add(new InvalidationMessage(Type.GROUP, "staff"));
+        batcher.flush();
+
+        assertEquals(2, transport.batches.size());
+        assertEquals(1, transport.batches.get(1).size());
+        assertEquals(Type.ALL, transport.batches.get(1).get(0).getType());
+
+        batcher.close();
+    }
+
+    /**
+     * <p>
+     * Tests if a change made on one node evicts the entry cached by another node connected through TCP.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTcpTransport() throws Exception {
+        FileBasedIdentityStore backend = new FileBasedIdentityStore();
+        TcpInvalidationTransport transport1 = new TcpInvalidationTransport(0);
+        TcpInvalidationTransport transport2 = new TcpInvalidationTransport(0);
+
+        transport1.setSharedSecret("s3cret");
+        transport2.setSharedSecret("s3cret");
+
+        CachingIdentityStore node1 = new CachingIdentityStore(backend,
+                new CacheConfiguration().setInvalidationTransport(transport1));
+        CachingIdentityStore node2 = new CachingIdentityStore(backend,
+                new CacheConfiguration().setInvalidationTransport(transport2));
+
+        transport1.addPeer(new InetSocketAddress("127.0.0.1", transport2.getLocalPort()));
+        transport2.addPeer(new InetSocketAddress("127.0.0.1", transport1.getLocalPort()));
+
+        node1.createUser("asaldhana");
+
+        assertNotNull(node1.getUser("asaldhana"));
+
+        node2.removeUser(node2.getUser("asaldhana"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (node1.getUser("asaldhana") != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertNull(node1.getUser("asaldhana"));
+
+        node1.close();
+        node2.close();
+    }
+
+    /**
+     * <p>
+     * Tests if frames are ignored when they come from a connection that did not answer the challenge with the shared
+     * secret.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTcpAuthentication() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        TcpInvalidationTransport transport = new TcpInvalidationTransport(0);
+
+        transport.setSharedSecret("s3cret");
+        transport.start(listener);
+
+        TcpInvalidationTransport intruder = new TcpInvalidationTransport(0);
+
+        intruder.setSharedSecret("guess");
+        intruder.addPeer(new InetSocketAddress("127.0.0.1", transport.getLocalPort()));
+        intruder.publish(Collections.singletonList(new InvalidationMessage(Type.ALL)));
+
+        Socket socket = new Socket("127.0.0.1", transport.getLocalPort());
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+
+        output.writeInt(0x504C4956);
+        output.writeInt(1);
+        output.writeByte(Type.ALL.ordinal());
+        output.writeShort(0);
+        output.flush();
+
+        TcpInvalidationTransport peer = new TcpInvalidationTransport(0);
+
+        peer.setSharedSecret("s3cret");
+        peer.addPeer(new InetSocketAddress("127.0.0.1", transport.getLocalPort()));
+        peer.publish(Collections.singletonList(new InvalidationMessage(Type.USER, "asaldhana")));
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (listener.messages.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Thread.sleep(100);
+
+        assertEquals(1, listener.messages.size());
+        assertEquals(Type.USER, listener.messages.get(0).getType());
+
+        socket.close();
+        intruder.stop();
+        peer.stop();
+        transport.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if connections beyond the limit are closed, and if a transport listening on all addresses needs a secret.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTcpConnectionLimit() throws Exception {
+        TcpInvalidationTransport transport = new TcpInvalidationTransport(0);
+
+        transport.setMaxConnections(1);
+        transport.start(new RecordingListener());
+
+        Socket first = new Socket("127.0.0.1", transport.getLocalPort());
+        Socket second = new Socket("127.0.0.1", transport.getLocalPort());
+        InputStream input = second.getInputStream();
+
+        second.setSoTimeout(5000);
+
+        assertEquals(-1, input.read());
+
+        first.close();
+        second.close();
+        transport.stop();
+
+        try {
+            new TcpInvalidationTransport(new InetSocketAddress(0)).start(new RecordingListener());
+            fail("Expected a shared secret to be required.");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    private static class RecordingListener implements InvalidationListener {
+
+        private final List<InvalidationMessage> messages = new CopyOnWriteArrayList<InvalidationMessage>();
+
+        @Override
+        public void onInvalidation(List<InvalidationMessage> messages) {
+            this.messages.addAll(messages);
+        }
+    }
+
+    private static class RecordingTransport implements InvalidationTransport {
+
+        private final List<List<InvalidationMessage>> batches = new ArrayList<List<InvalidationMessage>>();
+
+        @Override
+        public void start(InvalidationListener listener) {
+        }
+
+        @Override
+        public void publish(List<InvalidationMessage> messages) {
+            this.batches.add(messages);
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+}
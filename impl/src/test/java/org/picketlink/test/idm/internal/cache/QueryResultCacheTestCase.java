@@ -0,0 +1,174 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.test.idm.internal.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.idm.internal.DefaultIdentityManager;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.cache.CachingIdentityStore;
+import org.picketlink.idm.internal.cache.QueryResultCache;
+import org.picketlink.idm.internal.config.CacheConfiguration;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.jpa.DefaultRoleQuery;
+import org.picketlink.idm.model.SimpleGroup;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.Range;
+import org.picketlink.idm.query.RoleQuery;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Tests the immutable query snapshots and the {@link QueryResultCache}.
+ * </p>
+ */
+public class QueryResultCacheTestCase {
+
+    /**
+     * <p>
+     * Tests if immutable snapshots are equal when they filter on the same values and can not be changed.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testImmutableQuery() throws Exception {
+        UserQuery query = new DefaultUserQuery(null).setFirstName("Anil").setRelatedGroup(new SimpleGroup("1", "staff", null))
+                .setAttributeFilter("city", new String[] { "Chicago" });
+        UserQuery snapshot = query.getImmutable();
+
+        assertNotSame(query, snapshot);
+        assertEquals(snapshot, new DefaultUserQuery(null).setFirstName("Anil")
+                .setRelatedGroup(new SimpleGroup("1", "staff", null)).setAttributeFilter("city", new String[] { "Chicago" })
+                .getImmutable());
+        assertEquals(snapshot.hashCode(), query.getImmutable().hashCode());
+
+        query.setFirstName("Pedro");
+
+        assertEquals("Anil", snapshot.getFirstName());
+        assertFalse(snapshot.equals(query.getImmutable()));
+
+        try {
+            snapshot.setFirstName("Pedro");
+            fail("Immutable queries can not be changed.");
+        } catch (IllegalStateException ise) {
+        }
+
+        RoleQuery roleQuery = new DefaultRoleQuery(null).setGroup("staff").getImmutable();
+
+        assertEquals(roleQuery, new DefaultRoleQuery(null).setGroup("staff").getImmutable());
+        assertFalse(roleQuery.equals(new DefaultRoleQuery(null).setGroup("sales").getImmutable()));
+    }
+
+    /**
+     * <p>
+     * Tests if query results are cached until a change of a type they depend on is made.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testResultInvalidation() throws Exception {
+        CountingIdentityStore delegate = new CountingIdentityStore();
+        CachingIdentityStore store = new CachingIdentityStore(delegate, new CacheConfiguration().setQueryResultMaxEntries(1000));
+        IdentityManager identityManager = new DefaultIdentityManager(store);
+
+        identityManager.createUser("asaldhana");
+        identityManager.createUser("psilva");
+
+        assertEquals(2, identityManager.createUserQuery().executeQuery().size());
+        assertEquals(2, identityManager.createUserQuery().executeQuery().size());
+        assertEquals(1, delegate.userQueries);
+
+        List<User> result = identityManager.createUserQuery().executeQuery();
+
+        result.clear();
+
+        assertEquals(2, identityManager.createUserQuery().executeQuery().size());
+
+        identityManager.createRole("admin");
+
+        assertEquals(2, identityManager.createUserQuery().executeQuery().size());
+        assertEquals(1, delegate.userQueries);
+
+        identityManager.createUser("sbryzak");
+
+        assertEquals(3, identityManager.createUserQuery().executeQuery().size());
+        assertEquals(2, delegate.userQueries);
+
+        store.invalidate(identityManager.getUser("sbryzak"));
+
+        assertEquals(3, identityManager.createUserQuery().executeQuery().size());
+        assertEquals(3, delegate.userQueries);
+    }
+
+    /**
+     * <p>
+     * Tests if a change made through the setter of a user is seen by the next query: query results are not cached by
+     * default, and once enabled they are refreshed by invalidating the changed user.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testModelSetter() throws Exception {
+        IdentityManager identityManager = new DefaultIdentityManager(new CachingIdentityStore(new FileBasedIdentityStore()));
+        User user = identityManager.createUser("asaldhana");
+
+        assertEquals(0, identityManager.createUserQuery().setEmail("a@x").executeQuery().size());
+
+        user.setEmail("a@x");
+
+        assertEquals(1, identityManager.createUserQuery().setEmail("a@x").executeQuery().size());
+
+        CachingIdentityStore store = new CachingIdentityStore(new FileBasedIdentityStore(),
+                new CacheConfiguration().setQueryResultMaxEntries(1000));
+
+        identityManager = new DefaultIdentityManager(store);
+        user = identityManager.createUser("asaldhana");
+
+        assertEquals(0, identityManager.createUserQuery().setEmail("a@x").executeQuery().size());
+
+        user.setEmail("a@x");
+        store.invalidate(user);
+
+        assertEquals(1, identityManager.createUserQuery().setEmail("a@x").executeQuery().size());
+    }
+
+    private static class CountingIdentityStore extends FileBasedIdentityStore {
+
+        private int userQueries;
+
+        @Override
+        public List<User> executeQuery(UserQuery query, Range range) {
+            this.userQueries++;
+            return super.executeQuery(query, range);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.test.idm.internal.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.cache.CachingIdentityStore;
+import org.picketlink.idm.internal.cache.RequestCoalescer;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * Tests the sharing of store calls by the {@link RequestCoalescer}.
+ * </p>
+ */
+public class RequestCoalescerTestCase {
+
+    private static final int THREADS = 8;
+
+    /**
+     * <p>
+     * Tests if concurrent lookups of the same user result in a single store call.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final BlockingIdentityStore delegate = new BlockingIdentityStore();
+        final CachingIdentityStore store = new CachingIdentityStore(delegate);
+
+        store.createUser("asaldhana");
+
+        delegate.lookups.set(0);
+        delegate.blocked = true;
+
+        final User[] results = new User[THREADS];
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < THREADS; i++) {
+            final int index = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    results[index] = store.getUser("asaldhana");
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        delegate.entered.await();
+
+        for (Thread thread : threads) {
+            while (thread.isAlive() && thread.getState() != Thread.State.WAITING) {
+                Thread.sleep(5);
+            }
+        }
+
+        delegate.release.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, delegate.lookups.get());
+
+        for (User user : results) {
+            assertSame(results[0], user);
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if a failure of the shared call is seen by the caller.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testFailure() throws Exception {
+        new RequestCoalescer().execute("getUser", new Callable<User>() {
+            @Override
+            public User call() {
+                throw new IllegalArgumentException();
+            }
+        });
+    }
+
+    private static class BlockingIdentityStore extends FileBasedIdentityStore {
+
+        private final AtomicInteger lookups = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean blocked;
+
+        @Override
+        public User getUser(String name) {
+            this.lookups.incrementAndGet();
+
+            if (this.blocked) {
+                this.entered.countDown();
+
+                try {
+                    this.release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            return super.getUser(name);
+        }
+    }
+}
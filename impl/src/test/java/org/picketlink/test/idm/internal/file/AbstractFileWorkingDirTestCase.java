@@ -0,0 +1,88 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.picketlink.idm.internal.config.FileStoreConfiguration;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+
+/**
+ * <p>
+ * Base class for the tests that run a {@link FileBasedIdentityStore} in a temporary working directory, created before each
+ * test and deleted after it.
+ * </p>
+ */
+public abstract class AbstractFileWorkingDirTestCase {
+
+    private File workingDir;
+
+    @Before
+    public void createWorkingDir() throws Exception {
+        this.workingDir = File.createTempFile("pl-idm-", "");
+        this.workingDir.delete();
+        this.workingDir.mkdirs();
+    }
+
+    @After
+    public void deleteWorkingDir() {
+        delete(this.workingDir);
+    }
+
+    protected File getWorkingDir() {
+        return this.workingDir;
+    }
+
+    /**
+     * <p>
+     * Returns the configuration of a store in the working directory.
+     * </p>
+     *
+     * @param alwaysCreateFiles
+     * @return
+     */
+    protected FileStoreConfiguration createConfiguration(boolean alwaysCreateFiles) {
+        return new FileStoreConfiguration().setWorkingDir(this.workingDir.getPath()).setAlwaysCreateFiles(alwaysCreateFiles);
+    }
+
+    /**
+     * <p>
+     * Deletes the given file, or the given directory and everything in it.
+     * </p>
+     *
+     * @param file
+     */
+    protected static void delete(File file) {
+        File[] files = file.listFiles();
+
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.jpa.DefaultGroupQuery;
+import org.picketlink.idm.internal.jpa.DefaultRoleQuery;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.GroupQuery;
+import org.picketlink.idm.query.RoleQuery;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Tests if the attribute-filtered queries of the {@link FileBasedIdentityStore} follow the changes made to the attributes.
+ * </p>
+ */
+public class FileAttributeIndexTestCase {
+
+    private FileBasedIdentityStore store;
+
+    @Before
+    public void onSetup() throws Exception {
+        this.store = new FileBasedIdentityStore();
+
+        for (int i = 0; i < 10; i++) {
+            User user = this.store.createUser("user" + i);
+
+            user.setAttribute("department", i % 2 == 0 ? "Sales" : "Engineering");
+            user.setAttribute("location", new String[] { "Office" + (i % 3), "Remote" });
+        }
+    }
+
+    /**
+     * <p>
+     * Tests queries combining several attributes and several values of the same attribute.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFindByAttributes() throws Exception {
+        assertEquals(5, queryUsers("department", "Sales").size());
+        assertEquals(10, queryUsers("location", "Remote").size());
+        assertEquals(7, queryUsers("location", "Office0", "Office1").size());
+
+        UserQuery query = new DefaultUserQuery(this.store);
+
+        query.setAttributeFilter("department", new String[] { "Sales" });
+        query.setAttributeFilter("location", new String[] { "Office0" });
+
+        // user0 and user6
+        assertEquals(2, this.store.executeQuery(query, null).size());
+
+        assertTrue(queryUsers("department", "Marketing").isEmpty());
+        assertTrue(queryUsers("unknown", "Sales").isEmpty());
+    }
+
+    /**
+     * <p>
+     * Tests if changes made after the index was built are reflected by the queries.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testChanges() throws Exception {
+        assertEquals(5, queryUsers("department", "Sales").size());
+
+        User user = this.store.getUser("user0");
+
+        user.setAttribute("department", "Marketing");
+
+        assertEquals(4, queryUsers("department", "Sales").size());
+        assertEquals("user0", queryUsers("department", "Marketing").get(0).getId());
+
+        user.removeAttribute("location");
+
+        assertEquals(9, queryUsers("location", "Remote").size());
+
+        this.store.removeUser(this.store.getUser("user1"));
+
+        assertEquals(8, queryUsers("location", "Remote").size());
+
+        this.store.createUser("user10").setAttribute("location", "Remote");
+
+        assertEquals(9, queryUsers("location", "Remote").size());
+    }
+
+    /**
+     * <p>
+     * Tests attribute-filtered group and role queries.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGroupsAndRoles() throws Exception {
+        Group administrators = this.store.createGroup("Administrators", null);
+        Group managers = this.store.createGroup("Managers", null);
+
+        administrators.setAttribute("level", "1");
+        managers.setAttribute("level", "2");
+
+        GroupQuery groupQuery = new DefaultGroupQuery(this.store);
+
+        groupQuery.addAttributeFilter("level", new String[] { "2" });
+
+        List<Group> groups = this.store.executeQuery(groupQuery, null);
+
+        assertEquals(1, groups.size());
+        assertEquals("Managers", groups.get(0).getName());
+
+        Role admin = this.store.createRole("admin");
+
+        this.store.createRole("manager");
+
+        admin.setAttribute("privileged", "true");
+
+        RoleQuery roleQuery = new DefaultRoleQuery(this.store);
+
+        roleQuery.setAttributeFilter("privileged", new String[] { "true" });
+
+        List<Role> roles = this.store.executeQuery(roleQuery, null);
+
+        assertEquals(1, roles.size());
+        assertEquals("admin", roles.get(0).getName());
+
+        admin.removeAttribute("privileged");
+
+        assertTrue(this.store.executeQuery(roleQuery, null).isEmpty());
+    }
+
+    private List<User> queryUsers(String name, String... values) {
+        UserQuery query = new DefaultUserQuery(this.store);
+
+        query.setAttributeFilter(name, values);
+
+        return this.store.executeQuery(query, null);
+    }
+}
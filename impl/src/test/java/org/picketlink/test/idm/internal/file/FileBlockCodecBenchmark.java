@@ -0,0 +1,157 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.test.idm.internal.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.picketlink.idm.internal.config.FileStoreConfiguration;
+import org.picketlink.idm.internal.file.DeflateBlockCodec;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.file.FileBlockCodec;
+import org.picketlink.idm.internal.file.FileStoreCodec;
+import org.picketlink.idm.internal.file.FileUser;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * Compares the size and the time to write and read a users snapshot without compression and with a
+ * {@link DeflateBlockCodec} at different levels, and the time to load and flush a store keeping its journals with each of
+ * them. Not run by the test suite:
+ * </p>
+ * 
+ * <pre>
+ * java -cp ... org.picketlink.test.idm.internal.file.FileBlockCodecBenchmark [users]
+ * </pre>
+ */
+public class FileBlockCodecBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        List<FileUser> users = new ArrayList<FileUser>();
+
+        for (int i = 0; i < count; i++) {
+            FileUser user = new FileUser("user" + i);
+
+            user.setFirstName("First" + i);
+            user.setLastName("Last" + i);
+            user.setEmail("user" + i + "@example.com");
+            user.setAttribute("userPassword", "password" + i);
+            user.setAttribute("department", "department" + (i % 100));
+
+            users.add(user);
+        }
+
+        String[] names = new String[] { "none", "deflate-1", "deflate-6", "deflate-9" };
+        FileBlockCodec[] codecs = new FileBlockCodec[] { null, new DeflateBlockCodec(Deflater.BEST_SPEED),
+                new DeflateBlockCodec(Deflater.DEFAULT_COMPRESSION), new DeflateBlockCodec(Deflater.BEST_COMPRESSION) };
+        File file = File.createTempFile("pl-idm-benchmark", ".db");
+
+        file.deleteOnExit();
+
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + round + ", " + count + " users:");
+
+            for (int i = 0; i < codecs.length; i++) {
+                long start = System.nanoTime();
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+
+                FileStoreCodec.writeSnapshot(out, FileStoreCodec.USERS, users, codecs[i]);
+                out.close();
+
+                long write = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+
+                FileStoreCodec.readSnapshot(in, FileStoreCodec.USERS);
+                in.close();
+
+                long read = System.nanoTime() - start;
+
+                System.out.println(String.format("  snapshot %-10s write %6d ms, read %6d ms, %10d bytes", names[i],
+                        write / 1000000, read / 1000000, file.length()));
+            }
+        }
+
+        System.out.println("Store, " + count / 10 + " users:");
+
+        for (int i = 0; i < codecs.length; i++) {
+            runStore(names[i], codecs[i], count / 10);
+        }
+    }
+
+    private static void runStore(String name, FileBlockCodec codec, int count) throws Exception {
+        File workingDir = File.createTempFile("pl-idm-benchmark", "");
+
+        workingDir.delete();
+        workingDir.mkdirs();
+
+        FileBasedIdentityStore store = new FileBasedIdentityStore(new FileStoreConfiguration()
+                .setWorkingDir(workingDir.getPath()).setAlwaysCreateFiles(true).setBlockCodec(codec));
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < count; i++) {
+            User user = store.createUser("user" + i);
+
+            user.setFirstName("First" + i);
+            user.setLastName("Last" + i);
+            user.setEmail("user" + i + "@example.com");
+            user.setAttribute("department", "department" + (i % 100));
+        }
+
+        store.sync().get();
+
+        long flush = System.nanoTime() - start;
+        long journal = new File(workingDir, "pl-idm-users.journal").length();
+
+        store.close();
+
+        long snapshot = new File(workingDir, "pl-idm-users.db").length();
+
+        start = System.nanoTime();
+        store = new FileBasedIdentityStore(new FileStoreConfiguration().setWorkingDir(workingDir.getPath())
+                .setAlwaysCreateFiles(false).setBlockCodec(codec));
+
+        long load = System.nanoTime() - start;
+
+        store.close();
+
+        for (File child : workingDir.listFiles()) {
+            child.delete();
+        }
+
+        workingDir.delete();
+
+        System.out.println(String.format("  store    %-10s flush %6d ms, load %6d ms, %10d journal bytes, %10d snapshot bytes",
+                name, flush / 1000000, load / 1000000, journal, snapshot));
+    }
+}
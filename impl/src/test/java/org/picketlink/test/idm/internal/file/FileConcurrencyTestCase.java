@@ -0,0 +1,215 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.config.FileStoreConfiguration;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.jpa.DefaultMembershipQuery;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Stress test running writers and readers of the {@link FileBasedIdentityStore} on several threads, with a low compaction
+ * threshold so that journals are compacted while they are written.
+ * </p>
+ */
+public class FileConcurrencyTestCase extends AbstractFileWorkingDirTestCase {
+
+    private static final int WRITERS = 8;
+    private static final int READERS = 4;
+    private static final int USERS_PER_WRITER = 250;
+
+    private FileBasedIdentityStore store;
+
+    @Before
+    public void onSetup() throws Exception {
+        this.store = new FileBasedIdentityStore(createConfiguration(true));
+    }
+
+    @After
+    public void onFinish() {
+        this.store.close();
+    }
+
+    /**
+     * <p>
+     * Tests if concurrent writes and reads leave the store, its indexes and its journals consistent.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentWritesAndReads() throws Exception {
+        final Role[] roles = new Role[4];
+        final Group[] groups = new Group[2];
+
+        for (int i = 0; i < roles.length; i++) {
+            roles[i] = this.store.createRole("role" + i);
+        }
+
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = this.store.createGroup("group" + i, null);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<Void>> writers = new ArrayList<Future<Void>>();
+        List<Future<Void>> readers = new ArrayList<Future<Void>>();
+
+        for (int i = 0; i < WRITERS; i++) {
+            final int writer = i;
+
+            writers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+
+                    for (int j = 0; j < USERS_PER_WRITER; j++) {
+                        User user = store.createUser("writer" + writer + "-" + j);
+
+                        user.setEmail(user.getId() + "@redhat.com");
+                        user.setAttribute("writer", String.valueOf(writer));
+
+                        store.createMembership(roles[j % roles.length], user, groups[writer % groups.length]);
+
+                        // every fifth user is removed with its membership
+                        if (j % 5 == 4) {
+                            store.removeMembership(roles[j % roles.length], user, groups[writer % groups.length]);
+                            store.removeUser(user);
+                        }
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        for (int i = 0; i < READERS; i++) {
+            final Random random = new Random(i);
+
+            readers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+
+                    while (writing.get()) {
+                        store.getUser("writer" + random.nextInt(WRITERS) + "-" + random.nextInt(USERS_PER_WRITER));
+
+                        UserQuery query = new DefaultUserQuery(store);
+
+                        query.setRole(roles[random.nextInt(roles.length)]);
+                        query.setAttributeFilter("writer", new String[] { String.valueOf(random.nextInt(WRITERS)) });
+
+                        store.executeQuery(query, null);
+
+                        query = new DefaultUserQuery(store);
+
+                        query.setEmail("writer0-" + random.nextInt(USERS_PER_WRITER) + "@redhat.com");
+
+                        store.executeQuery(query, null);
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        start.countDown();
+
+        for (Future<Void> future : writers) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+
+        writing.set(false);
+
+        for (Future<Void> future : readers) {
+            future.get(1, TimeUnit.MINUTES);
+        }
+
+        executor.shutdown();
+
+        assertState(this.store);
+
+        this.store.close();
+        this.store = new FileBasedIdentityStore(createConfiguration(false));
+
+        assertState(this.store);
+    }
+
+    private void assertState(FileBasedIdentityStore store) {
+        int expected = WRITERS * USERS_PER_WRITER * 4 / 5;
+
+        assertEquals(expected, store.executeQuery(new DefaultUserQuery(store), null).size());
+        assertEquals(expected, store.executeQuery(new DefaultMembershipQuery(store), null).size());
+
+        for (int i = 0; i < WRITERS; i++) {
+            UserQuery query = new DefaultUserQuery(store);
+
+            query.setAttributeFilter("writer", new String[] { String.valueOf(i) });
+
+            assertEquals(USERS_PER_WRITER * 4 / 5, store.executeQuery(query, null).size());
+        }
+
+        int withRole0 = 0;
+
+        for (int j = 0; j < USERS_PER_WRITER; j++) {
+            if (j % 4 == 0 && j % 5 != 4) {
+                withRole0++;
+            }
+        }
+
+        UserQuery query = new DefaultUserQuery(store);
+
+        query.setRole("role0");
+
+        assertEquals(WRITERS * withRole0, store.executeQuery(query, null).size());
+        assertNotNull(store.getUser("writer0-0"));
+    }
+
+    @Override
+    protected FileStoreConfiguration createConfiguration(boolean alwaysCreateFiles) {
+        return super.createConfiguration(alwaysCreateFiles).setCompactionThreshold(100);
+    }
+}
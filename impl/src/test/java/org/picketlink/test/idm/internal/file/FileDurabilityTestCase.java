@@ -0,0 +1,201 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.file.FileDurability;
+import org.picketlink.idm.internal.file.FileJournalFlusher;
+
+/**
+ * <p>
+ * Tests the {@link FileDurability} modes of the {@link FileBasedIdentityStore} and its {@link FileJournalFlusher}.
+ * </p>
+ */
+public class FileDurabilityTestCase extends AbstractFileWorkingDirTestCase {
+
+    private FileBasedIdentityStore store;
+
+    @Before
+    public void onSetup() throws Exception {
+        this.store = new FileBasedIdentityStore(getWorkingDir().getPath(), true);
+    }
+
+    @After
+    public void onFinish() {
+        this.store.close();
+    }
+
+    /**
+     * <p>
+     * Tests if changes are on disk when the call making them returns.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSync() throws Exception {
+        this.store.setDurability(FileDurability.SYNC);
+
+        long empty = getUsersJournal().length();
+
+        this.store.createUser("asaldhana");
+
+        assertTrue(getUsersJournal().length() > empty);
+        assertTrue(this.store.sync().isDone());
+    }
+
+    /**
+     * <p>
+     * Tests if changes are buffered until the commit latency expires or a sync is requested.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+        this.store.setDurability(FileDurability.GROUP_COMMIT);
+        this.store.setCommitLatency(60000);
+
+        long empty = getUsersJournal().length();
+
+        this.store.createUser("asaldhana");
+        this.store.createUser("psilva");
+
+        assertEquals(empty, getUsersJournal().length());
+
+        this.store.sync().get(10, TimeUnit.SECONDS);
+
+        long length = getUsersJournal().length();
+
+        assertTrue(length > empty);
+
+        this.store.setCommitLatency(10);
+        this.store.createUser("sbryzak");
+
+        waitForLength(length);
+    }
+
+    /**
+     * <p>
+     * Tests if changes are written in the background in the async mode.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAsync() throws Exception {
+        this.store.setDurability(FileDurability.ASYNC);
+        this.store.setCommitLatency(10);
+        this.store.setSyncInterval(60000);
+
+        long empty = getUsersJournal().length();
+
+        this.store.createUser("asaldhana");
+
+        waitForLength(empty);
+
+        this.store.sync().get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * <p>
+     * Tests if concurrent callers waiting for their changes are all served.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentSync() throws Exception {
+        this.store.setDurability(FileDurability.GROUP_COMMIT);
+        this.store.setCommitLatency(60000);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+
+        try {
+            for (int i = 0; i < 4; i++) {
+                final String name = "user" + i;
+
+                results.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int j = 0; j < 25; j++) {
+                            synchronized (store) {
+                                store.createUser(name + "-" + j);
+                            }
+
+                            store.sync().get(10, TimeUnit.SECONDS);
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Object> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        this.store.close();
+        this.store = new FileBasedIdentityStore(getWorkingDir().getPath(), false);
+
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 25; j++) {
+                assertNotNull(this.store.getUser("user" + i + "-" + j));
+            }
+        }
+    }
+
+    private File getUsersJournal() {
+        return new File(getWorkingDir(), "pl-idm-users.journal");
+    }
+
+    private void waitForLength(long length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (getUsersJournal().length() <= length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(getUsersJournal().length() > length);
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.file.DeflateBlockCodec;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.file.FileDurability;
+import org.picketlink.idm.internal.file.FileJournal;
+import org.picketlink.idm.internal.file.FileStoreCodec;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * Tests the persistence of the {@link FileBasedIdentityStore} through its {@link FileJournal}s.
+ * </p>
+ */
+public class FileJournalTestCase extends AbstractFileWorkingDirTestCase {
+
+    /**
+     * <p>
+     * Tests if the changes made to a store are restored from the journals when it is created again.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReplay() throws Exception {
+        FileBasedIdentityStore store = createStore(true);
+
+        User user = store.createUser("asaldhana");
+        Role role = store.createRole("admin");
+        Group group = store.createGroup("staff", null);
+
+        user.setEmail("asaldhana@redhat.com");
+        store.setAttribute(user, "QuestionTotal", new String[] { "2" });
+        store.setAttribute(user, "Question1", new String[] { "Favorite Dessert" });
+        store.removeAttribute(user, "Question1");
+        store.setAttribute(group, "location", new String[] { "Raleigh" });
+        store.createMembership(role, user, group);
+
+        store.createUser("psilva");
+        store.removeUser(store.getUser("psilva"));
+
+        store.close();
+
+        store = createStore(false);
+
+        User restored = store.getUser("asaldhana");
+
+        assertNotNull(restored);
+        assertEquals("asaldhana@redhat.com", restored.getEmail());
+        assertEquals("2", restored.getAttribute("QuestionTotal"));
+        assertNull(restored.getAttribute("Question1"));
+        assertNull(store.getUser("psilva"));
+        assertNotNull(store.getRole("admin"));
+        assertEquals("Raleigh", store.getGroup("staff").getAttribute("location"));
+        assertNotNull(store.getMembership(role, user, group));
+
+        store.close();
+    }
+
+    /**
+     * <p>
+     * Tests if compacting the journals keeps all changes and truncates the journals.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        FileBasedIdentityStore store = createStore(true);
+
+        store.setCompactionThreshold(0);
+
+        File journal = new File(getWorkingDir(), "pl-idm-users.journal");
+        long empty = journal.length();
+
+        for (int i = 0; i < 50; i++) {
+            store.createUser("user" + i).setEmail("user" + i + "@redhat.com");
+        }
+
+        store.sync().get();
+
+        assertTrue(journal.length() > empty);
+
+        store.compact();
+
+        assertEquals(empty, journal.length());
+        assertTrue(new File(getWorkingDir(), "pl-idm-users.db").length() > 0);
+
+        store.removeUser(store.getUser("user0"));
+        store.close();
+
+        store = createStore(false);
+
+        assertNull(store.getUser("user0"));
+
+        for (int i = 1; i < 50; i++) {
+            assertEquals("user" + i + "@redhat.com", store.getUser("user" + i).getEmail());
+        }
+
+        store.close();
+    }
+
+    /**
+     * <p>
+     * Tests if the journals are compacted in the background once they reach the threshold.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        FileBasedIdentityStore store = createStore(true);
+
+        store.setCompactionThreshold(10);
+
+        for (int i = 0; i < 100; i++) {
+            store.createUser("user" + i);
+        }
+
+        store.close();
+
+        assertTrue(new File(getWorkingDir(), "pl-idm-users.db").length() > 0);
+
+        store = createStore(false);
+
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(store.getUser("user" + i));
+        }
+
+        store.close();
+    }
+
+    /**
+     * <p>
+     * Tests if a record partially written when the process stopped is ignored.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPartialRecord() throws Exception {
+        FileBasedIdentityStore store = createStore(true);
+
+        store.createUser("asaldhana");
+        store.close();
+
+        FileOutputStream fos = new FileOutputStream(new File(getWorkingDir(), "pl-idm-users.journal"), true);
+
+        fos.write(new byte[] { 20, 1, 7, 'p', 's' });
+        fos.close();
+
+        store = createStore(false);
+
+        assertNotNull(store.getUser("asaldhana"));
+
+        store.createUser("psilva");
+        store.close();
+
+        store = createStore(false);
+
+        assertNotNull(store.getUser("asaldhana"));
+        assertNotNull(store.getUser("psilva"));
+
+        store.close();
+    }
+
+    /**
+     * <p>
+     * Tests if bytes left at the end of the journal by a process that stopped while writing are dropped: zeros, a record
+     * whose checksum does not match and a length going past the end of the file.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGarbageAtEnd() throws Exception {
+        byte[][] garbage = new byte[][] { new byte[64], new byte[] { 3, 1, 7, 'p', 0, 0, 0, 0 },
+                new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 1, 2, 3 },
+                new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF } };
+
+        for (int i = 0; i < garbage.length; i++) {
+            FileBasedIdentityStore store = createStore(true);
+
+            store.createUser("asaldhana");
+            store.close();
+
+            File journal = new File(getWorkingDir(), "pl-idm-users.journal");
+            long length = journal.length();
+            FileOutputStream fos = new FileOutputStream(journal, true);
+
+            fos.write(garbage[i]);
+            fos.close();
+
+            store = createStore(false);
+
+            assertNotNull(store.getUser("asaldhana"));
+            assertEquals(length, journal.length());
+
+            store.createUser("psilva");
+            store.close();
+
+            store = createStore(false);
+
+            assertNotNull(store.getUser("asaldhana"));
+            assertNotNull(store.getUser("psilva"));
+
+            store.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if journals written with the header of {@link FileStoreCodec#VERSION}, which has no id, or of
+     * {@link FileJournal#UNCHECKED_VERSION}, whose records have no checksum, are replayed and then rewritten in
+     * {@link FileJournal#VERSION}.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLegacyHeader() throws Exception {
+        for (byte version : new byte[] { FileStoreCodec.VERSION, FileJournal.UNCHECKED_VERSION }) {
+            FileBasedIdentityStore store = createStore(true);
+
+            store.createUser("asaldhana");
+            store.close();
+
+            File journalFile = new File(getWorkingDir(), "pl-idm-users.journal");
+            RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+
+            try {
+                // a single record, with a length written in one byte, followed by its checksum
+                journal.seek(14);
+
+                byte[] record = new byte[journal.readByte()];
+
+                journal.readFully(record);
+                assertEquals(journal.length(), journal.getFilePointer() + 4);
+
+                journal.seek(4);
+                journal.writeByte(version);
+                journal.skipBytes(version == FileStoreCodec.VERSION ? 1 : 9);
+                journal.writeByte(record.length);
+                journal.write(record);
+                journal.setLength(journal.getFilePointer());
+            } finally {
+                journal.close();
+            }
+
+            store = createStore(false);
+
+            assertNotNull(store.getUser("asaldhana"));
+
+            store.createUser("psilva");
+            store.close();
+
+            journal = new RandomAccessFile(journalFile, "r");
+
+            try {
+                journal.seek(4);
+                assertEquals(FileJournal.VERSION, journal.readByte());
+            } finally {
+                journal.close();
+            }
+
+            store = createStore(false);
+
+            assertNotNull(store.getUser("asaldhana"));
+            assertNotNull(store.getUser("psilva"));
+
+            store.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the changes made to an entity before they are written are coalesced into a single record.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCoalescedChanges() throws Exception {
+        FileBasedIdentityStore store = createStore(true);
+
+        store.setDurability(FileDurability.GROUP_COMMIT);
+        store.setCommitLatency(60000);
+
+        User user = store.createUser("psilva");
+
+        user.setEmail("psilva@redhat.com");
+        user.setFirstName("Pedro");
+        user.setLastName("Silva");
+        user.setAttribute("department", "Security");
+
+        store.removeUser(store.createUser("asaldhana"));
+        store.sync().get(10, TimeUnit.SECONDS);
+        store.close();
+
+        final List<String> records = new ArrayList<String>();
+        FileJournal journal = new FileJournal(new File(getWorkingDir(), "pl-idm-users.db"), new File(getWorkingDir(),
+                "pl-idm-users.journal"), FileStoreCodec.USERS);
+
+        journal.open(new FileJournal.Replayer() {
+            @Override
+            public void put(String key, Object value) {
+                records.add("put " + key + " " + ((User) value).getLastName() + " " + ((User) value).getAttribute("department"));
+            }
+
+            @Override
+            public void remove(String key) {
+                records.add("remove " + key);
+            }
+        });
+
+        journal.close();
+
+        assertEquals(2, records.size());
+        assertEquals("put psilva Silva Security", records.get(0));
+        assertEquals("remove asaldhana", records.get(1));
+    }
+
+    /**
+     * <p>
+     * Tests if compressed snapshots and journal writes are read back, also once the codec is no longer configured or users
+     * are memory-mapped.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCompression() throws Exception {
+        FileBasedIdentityStore store = new FileBasedIdentityStore(createConfiguration(true).setBlockCodec(
+                new DeflateBlockCodec()));
+
+        for (int i = 0; i < 200; i++) {
+            User user = store.createUser("user" + i);
+
+            user.setEmail("user" + i + "@redhat.com");
+            user.setAttribute("department", "Identity and Access Management");
+            user.setAttribute("location", "Building " + (i % 10));
+        }
+
+        store.sync().get(10, TimeUnit.SECONDS);
+
+        long journalLength = new File(getWorkingDir(), "pl-idm-users.journal").length();
+
+        store.close();
+
+        FileBasedIdentityStore uncompressed = new FileBasedIdentityStore(createConfiguration(true));
+
+        for (int i = 0; i < 200; i++) {
+            User user = uncompressed.createUser("user" + i);
+
+            user.setEmail("user" + i + "@redhat.com");
+            user.setAttribute("department", "Identity and Access Management");
+            user.setAttribute("location", "Building " + (i % 10));
+        }
+
+        uncompressed.close();
+
+        assertTrue(journalLength * 2 < new File(getWorkingDir(), "pl-idm-users.journal").length());
+
+        store = new FileBasedIdentityStore(createConfiguration(true).setBlockCodec(new DeflateBlockCodec()));
+
+        for (int i = 0; i < 200; i++) {
+            store.createUser("user" + i).setAttribute("department", "Identity and Access Management");
+        }
+
+        store.sync().get(10, TimeUnit.SECONDS);
+        store.getUser("user7").setEmail("changed@redhat.com");
+        store.compact();
+        store.removeUser(store.getUser("user8"));
+        store.close();
+
+        assertTrue(FileStoreCodec.isCompressed(new File(getWorkingDir(), "pl-idm-users.db")));
+
+        store = new FileBasedIdentityStore(createConfiguration(false));
+
+        assertCompressedState(store);
+
+        store.close();
+
+        store = new FileBasedIdentityStore(createConfiguration(false).setMappedUsers(true).setBlockCodec(
+                new DeflateBlockCodec()));
+
+        assertCompressedState(store);
+
+        store.close();
+
+        assertFalse(FileStoreCodec.isCompressed(new File(getWorkingDir(), "pl-idm-users.db")));
+    }
+
+    private void assertCompressedState(FileBasedIdentityStore store) {
+        assertEquals("changed@redhat.com", store.getUser("user7").getEmail());
+        assertEquals("Identity and Access Management", store.getUser("user199").getAttribute("department"));
+        assertNull(store.getUser("user8"));
+    }
+
+
+    private FileBasedIdentityStore createStore(boolean alwaysCreateFiles) {
+        return new FileBasedIdentityStore(getWorkingDir().getPath(), alwaysCreateFiles);
+    }
+}
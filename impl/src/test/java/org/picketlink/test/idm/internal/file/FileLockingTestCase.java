@@ -0,0 +1,309 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.file.FileStoreLock;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * Tests the coordination of the threads and processes sharing the files of a {@link FileBasedIdentityStore} through
+ * {@link FileStoreLock}s.
+ * </p>
+ */
+public class FileLockingTestCase extends AbstractFileWorkingDirTestCase {
+
+    /**
+     * <p>
+     * Tests if the exclusive lock excludes the other threads, while shared locks do not exclude each other.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSharedAndExclusive() throws Exception {
+        final FileStoreLock lock = FileStoreLock.acquire(new File(getWorkingDir(), "test.lock"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            lock.lock(true);
+
+            // shared locks do not wait for each other
+            assertTrue(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long waitTime = lock.lock(true);
+
+                    lock.unlock(true);
+
+                    return waitTime;
+                }
+            }).get(10, TimeUnit.SECONDS) < TimeUnit.SECONDS.toNanos(1));
+
+            lock.unlock(true);
+            lock.lock(false);
+
+            // the shared lock can be taken while holding the exclusive one
+            lock.lock(true);
+            lock.unlock(true);
+
+            Future<Long> shared = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long waitTime = lock.lock(true);
+
+                    lock.unlock(true);
+
+                    return waitTime;
+                }
+            });
+
+            Thread.sleep(200);
+
+            assertFalse(shared.isDone());
+
+            lock.unlock(false);
+
+            assertTrue(shared.get(10, TimeUnit.SECONDS) >= TimeUnit.MILLISECONDS.toNanos(150));
+        } finally {
+            executor.shutdownNow();
+            lock.release();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if a store waits for another process holding the lock of its files, and records the wait.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOtherProcess() throws Exception {
+        FileBasedIdentityStore store = new FileBasedIdentityStore(createConfiguration(false));
+
+        try {
+            File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+            Process process = new ProcessBuilder(java.getPath(), "-cp", System.getProperty("java.class.path"),
+                    LockHolder.class.getName(), new File(getWorkingDir(), "pl-idm-users.lock").getPath(), "500")
+                    .redirectErrorStream(true).start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+            try {
+                assertEquals("locked", reader.readLine());
+
+                long start = System.nanoTime();
+
+                store.createUser("asaldhana");
+                store.sync().get(10, TimeUnit.SECONDS);
+
+                assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+                assertTrue(store.getLockStatistics().getMaxWaitTime() >= 300);
+                assertTrue(store.getLockStatistics().getExclusiveLockCount() > 0);
+            } finally {
+                process.waitFor();
+                reader.close();
+            }
+        } finally {
+            store.close();
+        }
+
+        store = new FileBasedIdentityStore(createConfiguration(false));
+
+        try {
+            assertNotNull(store.getUser("asaldhana"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if another store can use the working directory once the store that created the files is closed, with its
+     * flusher and watcher running until then.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReopenAfterClose() throws Exception {
+        FileBasedIdentityStore store = new FileBasedIdentityStore(createConfiguration(true).setWatchInterval(10));
+
+        store.createUser("asaldhana");
+        store.close();
+
+        store = new FileBasedIdentityStore(createConfiguration(false).setWatchInterval(10));
+
+        try {
+            assertNotNull(store.getUser("asaldhana"));
+
+            store.createUser("psilva");
+        } finally {
+            store.close();
+        }
+
+        store = new FileBasedIdentityStore(createConfiguration(false));
+
+        try {
+            assertNotNull(store.getUser("asaldhana"));
+            assertNotNull(store.getUser("psilva"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if two stores writing and compacting the same files concurrently lose no changes, and end up with the same state
+     * as a store loading the files afterwards.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final int threads = 4;
+        final int users = 100;
+
+        new FileBasedIdentityStore(createConfiguration(true)).close();
+
+        final FileBasedIdentityStore[] stores = new FileBasedIdentityStore[] {
+                new FileBasedIdentityStore(createConfiguration(false).setCompactionThreshold(50)),
+                new FileBasedIdentityStore(createConfiguration(false).setCompactionThreshold(50)) };
+        ExecutorService executor = Executors.newFixedThreadPool(threads * stores.length);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        try {
+            for (int i = 0; i < stores.length; i++) {
+                for (int j = 0; j < threads; j++) {
+                    final FileBasedIdentityStore store = stores[i];
+                    final String writer = i + "-" + j;
+
+                    results.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            start.await();
+
+                            for (int k = 0; k < users; k++) {
+                                store.createUser("user" + writer + "-" + k);
+
+                                User shared = store.getUser("shared" + k % 10);
+
+                                if (shared == null) {
+                                    shared = store.createUser("shared" + k % 10);
+                                }
+
+                                shared.setAttribute("writer", writer);
+                            }
+
+                            return null;
+                        }
+                    }));
+                }
+            }
+
+            start.countDown();
+
+            for (Future<Void> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+
+            for (FileBasedIdentityStore store : stores) {
+                store.sync().get(10, TimeUnit.SECONDS);
+            }
+
+            for (FileBasedIdentityStore store : stores) {
+                store.refresh();
+            }
+
+            FileBasedIdentityStore loaded = new FileBasedIdentityStore(createConfiguration(false));
+
+            try {
+                int expected = stores.length * threads * users + 10;
+
+                assertEquals(expected, loaded.executeQuery(new DefaultUserQuery(loaded), null).size());
+
+                for (FileBasedIdentityStore store : stores) {
+                    assertEquals(expected, store.executeQuery(new DefaultUserQuery(store), null).size());
+
+                    for (int k = 0; k < 10; k++) {
+                        assertEquals(loaded.getUser("shared" + k).getAttribute("writer"),
+                                store.getUser("shared" + k).getAttribute("writer"));
+                    }
+                }
+            } finally {
+                loaded.close();
+            }
+        } finally {
+            executor.shutdownNow();
+
+            for (FileBasedIdentityStore store : stores) {
+                store.close();
+            }
+        }
+    }
+
+
+    /**
+     * <p>
+     * Holds the exclusive lock of the given file for the given number of milliseconds, as another process would.
+     * </p>
+     */
+    public static class LockHolder {
+
+        public static void main(String[] args) throws Exception {
+            FileStoreLock lock = FileStoreLock.acquire(new File(args[0]));
+
+            lock.lock(false);
+
+            System.out.println("locked");
+            System.out.flush();
+
+            Thread.sleep(Long.parseLong(args[1]));
+
+            lock.unlock(false);
+            lock.release();
+        }
+    }
+}
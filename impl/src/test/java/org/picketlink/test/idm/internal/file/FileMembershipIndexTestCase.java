@@ -0,0 +1,205 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.jpa.DefaultGroupQuery;
+import org.picketlink.idm.internal.jpa.DefaultMembershipQuery;
+import org.picketlink.idm.internal.jpa.DefaultRoleQuery;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Membership;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.GroupQuery;
+import org.picketlink.idm.query.MembershipQuery;
+import org.picketlink.idm.query.RoleQuery;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Tests the lookups of the {@link FileBasedIdentityStore} backed by its membership indexes.
+ * </p>
+ */
+public class FileMembershipIndexTestCase {
+
+    private FileBasedIdentityStore store;
+    private Role admin;
+    private Role manager;
+    private Group administrators;
+    private Group managers;
+
+    @Before
+    public void onSetup() throws Exception {
+        this.store = new FileBasedIdentityStore();
+
+        this.admin = this.store.createRole("admin");
+        this.manager = this.store.createRole("manager");
+        this.administrators = this.store.createGroup("Administrators", null);
+        this.managers = this.store.createGroup("Managers", null);
+
+        for (int i = 0; i < 10; i++) {
+            User user = this.store.createUser("user" + i);
+
+            this.store.createMembership(i % 2 == 0 ? this.admin : this.manager, user, i < 5 ? this.administrators
+                    : this.managers);
+        }
+
+        this.store.createMembership(null, this.store.getUser("user0"), this.managers);
+    }
+
+    /**
+     * <p>
+     * Tests if memberships are looked up by their exact role, user and group.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGetMembership() throws Exception {
+        User user0 = this.store.getUser("user0");
+
+        Membership membership = this.store.getMembership(this.admin, user0, this.administrators);
+
+        assertNotNull(membership);
+        assertEquals("user0", membership.getUser().getId());
+
+        assertNotNull(this.store.getMembership(null, user0, this.managers));
+        assertNull(this.store.getMembership(this.manager, user0, this.administrators));
+        assertNull(this.store.getMembership(null, user0, this.administrators));
+    }
+
+    /**
+     * <p>
+     * Tests if removing a membership leaves the others untouched.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRemoveMembership() throws Exception {
+        User user0 = this.store.getUser("user0");
+
+        this.store.removeMembership(this.admin, user0, this.administrators);
+
+        assertNull(this.store.getMembership(this.admin, user0, this.administrators));
+        assertNotNull(this.store.getMembership(null, user0, this.managers));
+        assertEquals(10, queryMemberships(null, null, null).size());
+        assertEquals(4, queryMemberships(this.admin, null, null).size());
+    }
+
+    /**
+     * <p>
+     * Tests membership queries combining a role, a user and a group.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMembershipQuery() throws Exception {
+        User user0 = this.store.getUser("user0");
+
+        assertEquals(11, queryMemberships(null, null, null).size());
+        assertEquals(5, queryMemberships(this.admin, null, null).size());
+        assertEquals(2, queryMemberships(null, user0, null).size());
+        assertEquals(6, queryMemberships(null, null, this.managers).size());
+        assertEquals(2, queryMemberships(this.manager, null, this.administrators).size());
+        assertEquals(1, queryMemberships(this.admin, user0, this.administrators).size());
+        assertTrue(queryMemberships(this.manager, user0, null).isEmpty());
+    }
+
+    /**
+     * <p>
+     * Tests user, group and role queries filtered by memberships.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRelatedQueries() throws Exception {
+        UserQuery userQuery = new DefaultUserQuery(this.store);
+
+        userQuery.setRole(this.admin);
+
+        assertEquals(5, this.store.executeQuery(userQuery, null).size());
+
+        userQuery = new DefaultUserQuery(this.store);
+
+        userQuery.setRole("manager");
+        userQuery.setRelatedGroup(this.administrators);
+
+        List<User> users = this.store.executeQuery(userQuery, null);
+
+        assertEquals(2, users.size());
+
+        userQuery = new DefaultUserQuery(this.store);
+
+        userQuery.setRelatedGroup("Managers");
+
+        assertEquals(6, this.store.executeQuery(userQuery, null).size());
+
+        GroupQuery groupQuery = new DefaultGroupQuery(this.store);
+
+        groupQuery.setRelatedUser(this.store.getUser("user0"));
+
+        assertEquals(2, this.store.executeQuery(groupQuery, null).size());
+
+        groupQuery = new DefaultGroupQuery(this.store);
+
+        groupQuery.setRole("manager");
+        groupQuery.setRelatedUser("user7");
+
+        List<Group> groups = this.store.executeQuery(groupQuery, null);
+
+        assertEquals(1, groups.size());
+        assertEquals("Managers", groups.get(0).getName());
+
+        RoleQuery roleQuery = new DefaultRoleQuery(this.store);
+
+        roleQuery.setOwner(this.store.getUser("user3"));
+
+        List<Role> roles = this.store.executeQuery(roleQuery, null);
+
+        assertEquals(1, roles.size());
+        assertEquals("manager", roles.get(0).getName());
+    }
+
+    private List<Membership> queryMemberships(Role role, User user, Group group) {
+        MembershipQuery query = new DefaultMembershipQuery(this.store);
+
+        query.setRole(role);
+        query.setUser(user);
+        query.setGroup(group);
+
+        return this.store.executeQuery(query, null);
+    }
+}
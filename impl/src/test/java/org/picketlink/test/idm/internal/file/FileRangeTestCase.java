@@ -0,0 +1,186 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.jpa.DefaultGroupQuery;
+import org.picketlink.idm.internal.jpa.DefaultMembershipQuery;
+import org.picketlink.idm.internal.jpa.DefaultRoleQuery;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Membership;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.GroupQuery;
+import org.picketlink.idm.query.Range;
+import org.picketlink.idm.query.RoleQuery;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Tests the paging and sorting of the {@link FileBasedIdentityStore} query results.
+ * </p>
+ */
+public class FileRangeTestCase extends AbstractFileWorkingDirTestCase {
+
+    private static final int COUNT = 50;
+
+    private FileBasedIdentityStore store;
+    private Role role;
+
+    @Before
+    public void onSetup() throws Exception {
+        this.store = new FileBasedIdentityStore(createConfiguration(true).setShards(3));
+
+        this.role = this.store.createRole("admin");
+
+        Group group = this.store.createGroup("staff", null);
+
+        // created in reverse order, so that results are not in creation order by chance
+        for (int i = COUNT - 1; i >= 0; i--) {
+            User user = this.store.createUser(name("user", i));
+
+            user.setAttribute("parity", String.valueOf(i % 2));
+
+            this.store.createGroup(name("group", i), group);
+            this.store.createRole(name("role", i));
+            this.store.createMembership(this.role, user, group);
+        }
+    }
+
+    @After
+    public void onFinish() {
+        this.store.close();
+    }
+
+    /**
+     * <p>
+     * Tests if users are paged in ascending and descending order of their ids.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUserPages() throws Exception {
+        UserQuery query = new DefaultUserQuery(this.store);
+
+        List<User> users = this.store.executeQuery(query, Range.of(10, 5));
+
+        assertEquals(5, users.size());
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(name("user", 10 + i), users.get(i).getId());
+        }
+
+        query.sort(false);
+
+        users = this.store.executeQuery(query, Range.of(0, 3));
+
+        assertEquals(name("user", COUNT - 1), users.get(0).getId());
+        assertEquals(name("user", COUNT - 3), users.get(2).getId());
+
+        users = this.store.executeQuery(query, Range.of(COUNT - 2, 10));
+
+        assertEquals(2, users.size());
+        assertEquals(name("user", 0), users.get(1).getId());
+
+        assertTrue(this.store.executeQuery(query, Range.of(COUNT, 10)).isEmpty());
+        assertEquals(COUNT, this.store.executeQuery(query, null).size());
+    }
+
+    /**
+     * <p>
+     * Tests if the range is applied after the filters of the query.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFilteredUserPages() throws Exception {
+        UserQuery query = new DefaultUserQuery(this.store);
+
+        query.setAttributeFilter("parity", new String[] { "1" });
+
+        List<User> users = this.store.executeQuery(query, Range.of(2, 3));
+
+        assertEquals(3, users.size());
+        assertEquals(name("user", 5), users.get(0).getId());
+        assertEquals(name("user", 9), users.get(2).getId());
+
+        query = new DefaultUserQuery(this.store);
+
+        query.setRole(this.role);
+        query.setRange(Range.of(0, 4));
+        query.sort(false);
+
+        users = this.store.executeQuery(query, null);
+
+        assertEquals(4, users.size());
+        assertEquals(name("user", COUNT - 1), users.get(0).getId());
+    }
+
+    /**
+     * <p>
+     * Tests if groups, roles and memberships are paged.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOtherPages() throws Exception {
+        GroupQuery groupQuery = new DefaultGroupQuery(this.store);
+
+        groupQuery.setParentGroup(this.store.getGroup("staff"));
+
+        List<Group> groups = this.store.executeQuery(groupQuery, Range.of(0, 2));
+
+        assertEquals(2, groups.size());
+        assertEquals(name("group", 0), groups.get(0).getName());
+
+        RoleQuery roleQuery = new DefaultRoleQuery(this.store);
+
+        roleQuery.sort(false);
+
+        List<Role> roles = this.store.executeQuery(roleQuery, Range.of(1, 2));
+
+        assertEquals(2, roles.size());
+        assertEquals(name("role", COUNT - 3), roles.get(1).getName());
+
+        List<Membership> memberships = this.store.executeQuery(new DefaultMembershipQuery(this.store), Range.of(5, 10));
+
+        assertEquals(10, memberships.size());
+        assertEquals(name("user", 5), memberships.get(0).getUser().getId());
+    }
+
+    private String name(String prefix, int index) {
+        return prefix + (index < 10 ? "0" : "") + index;
+    }
+}
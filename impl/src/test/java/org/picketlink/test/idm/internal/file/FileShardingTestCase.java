@@ -0,0 +1,210 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.config.FileStoreConfiguration;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.jpa.DefaultMembershipQuery;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Tests the partitioning of the {@link FileBasedIdentityStore} into several shards.
+ * </p>
+ */
+public class FileShardingTestCase extends AbstractFileWorkingDirTestCase {
+
+    private static final int USERS = 200;
+
+    private FileBasedIdentityStore store;
+
+    @After
+    public void onFinish() {
+        if (this.store != null) {
+            this.store.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the entities are written to one file per shard and loaded back from them.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testShardedStore() throws Exception {
+        this.store = new FileBasedIdentityStore(createConfiguration(4, true));
+
+        populate();
+
+        assertTrue(new File(getWorkingDir(), "pl-idm-users-3.db").exists());
+        assertTrue(new File(getWorkingDir(), "pl-idm-memberships-3.journal").exists());
+        assertFalse(new File(getWorkingDir(), "pl-idm-users.db").exists());
+
+        assertState();
+
+        reopen(createConfiguration(4, false));
+
+        assertState();
+
+        this.store.compact();
+
+        reopen(createConfiguration(4, false));
+
+        assertState();
+    }
+
+    /**
+     * <p>
+     * Tests if changing the number of shards moves the entities to the new shards and deletes the previous files.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReshard() throws Exception {
+        this.store = new FileBasedIdentityStore(createConfiguration(1, true));
+
+        populate();
+
+        reopen(createConfiguration(4, false));
+
+        assertState();
+        assertFalse(new File(getWorkingDir(), "pl-idm-users.db").exists());
+        assertFalse(new File(getWorkingDir(), "pl-idm-memberships.journal").exists());
+
+        reopen(createConfiguration(3, false));
+
+        assertState();
+        assertFalse(new File(getWorkingDir(), "pl-idm-users-3.db").exists());
+
+        reopen(createConfiguration(1, false));
+
+        assertState();
+        assertFalse(new File(getWorkingDir(), "pl-idm-groups-0.db").exists());
+
+        reopen(createConfiguration(1, false));
+
+        assertState();
+    }
+
+    /**
+     * <p>
+     * Tests sharding with memory-mapped users.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMappedUsers() throws Exception {
+        this.store = new FileBasedIdentityStore(createConfiguration(4, true).setMappedUsers(true).setUserRetention(10));
+
+        populate();
+
+        assertState();
+
+        this.store.compact();
+
+        assertState();
+
+        reopen(createConfiguration(2, false).setMappedUsers(true).setUserRetention(10));
+
+        assertState();
+    }
+
+    private void populate() {
+        Role role = this.store.createRole("admin");
+        Group group = this.store.createGroup("staff", null);
+
+        for (int i = 0; i < USERS; i++) {
+            User user = this.store.createUser("user" + i);
+
+            user.setEmail("user" + i + "@redhat.com");
+            user.setAttribute("parity", String.valueOf(i % 2));
+
+            if (i % 4 == 0) {
+                this.store.createMembership(role, user, group);
+            }
+        }
+
+        for (int i = 0; i < 10; i++) {
+            this.store.createGroup("group" + i, group);
+            this.store.createRole("role" + i);
+        }
+    }
+
+    private void assertState() {
+        assertEquals(USERS, this.store.executeQuery(new DefaultUserQuery(this.store), null).size());
+        assertEquals(USERS / 4, this.store.executeQuery(new DefaultMembershipQuery(this.store), null).size());
+
+        for (int i = 0; i < USERS; i++) {
+            assertNotNull(this.store.getUser("user" + i));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("staff", this.store.getGroup("group" + i).getParentGroup().getName());
+            assertNotNull(this.store.getRole("role" + i));
+        }
+
+        UserQuery query = new DefaultUserQuery(this.store);
+
+        query.setAttributeFilter("parity", new String[] { "1" });
+
+        assertEquals(USERS / 2, this.store.executeQuery(query, null).size());
+
+        query = new DefaultUserQuery(this.store);
+
+        query.setEmail("user7@redhat.com");
+
+        assertEquals(1, this.store.executeQuery(query, null).size());
+
+        query = new DefaultUserQuery(this.store);
+
+        query.setRole("admin");
+
+        assertEquals(USERS / 4, this.store.executeQuery(query, null).size());
+    }
+
+    private void reopen(FileStoreConfiguration configuration) {
+        this.store.close();
+        this.store = new FileBasedIdentityStore(configuration);
+    }
+
+    private FileStoreConfiguration createConfiguration(int shards, boolean alwaysCreateFiles) {
+        return createConfiguration(alwaysCreateFiles).setShards(shards).setIoThreads(2);
+    }
+}
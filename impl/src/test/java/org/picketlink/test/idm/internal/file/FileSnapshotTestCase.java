@@ -0,0 +1,303 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.config.FileStoreConfiguration;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.file.FileStoreSnapshot;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * Tests the full and incremental snapshots of a running {@link FileBasedIdentityStore}.
+ * </p>
+ */
+public class FileSnapshotTestCase extends AbstractFileWorkingDirTestCase {
+
+    /**
+     * <p>
+     * Tests if an incremental snapshot only holds the changes since the previous one, and if restoring the snapshots gives
+     * the state of the store when each of them was taken.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIncremental() throws Exception {
+        FileBasedIdentityStore store = new FileBasedIdentityStore(createConfiguration(new File(getWorkingDir(), "store"), true));
+
+        try {
+            Role role = store.createRole("admin");
+            Group group = store.createGroup("staff", null);
+
+            for (int i = 0; i < 100; i++) {
+                store.createMembership(role, store.createUser("user" + i), group);
+            }
+
+            FileStoreSnapshot full = store.snapshot(new File(getWorkingDir(), "backup0"));
+
+            assertFalse(full.isIncremental());
+
+            store.removeUser(store.getUser("user0"));
+            store.createUser("user100").setFirstName("Anil");
+
+            FileStoreSnapshot incremental = store.snapshot(new File(getWorkingDir(), "backup1"), full);
+
+            assertTrue(incremental.isIncremental());
+            assertTrue(incremental.getJournalLength() < full.getJournalLength() / 10);
+
+            // the previous snapshot can be read back from its directory as well
+            incremental = store.snapshot(new File(getWorkingDir(), "backup2"),
+                    FileStoreSnapshot.read(new File(getWorkingDir(), "backup1")));
+
+            assertTrue(incremental.isIncremental());
+            assertEquals(0, incremental.getJournalLength());
+        } finally {
+            store.close();
+        }
+
+        File restored = new File(getWorkingDir(), "restored");
+
+        FileStoreSnapshot.restore(restored, new File(getWorkingDir(), "backup0"));
+
+        store = new FileBasedIdentityStore(createConfiguration(restored, false));
+
+        try {
+            assertEquals(100, countUsers(store));
+            assertNotNull(store.getUser("user0"));
+            assertNotNull(store.getMembership(store.getRole("admin"), store.getUser("user99"), store.getGroup("staff")));
+        } finally {
+            store.close();
+        }
+
+        delete(restored);
+
+        FileStoreSnapshot.restore(restored, new File(getWorkingDir(), "backup0"), new File(getWorkingDir(), "backup1"),
+                new File(getWorkingDir(), "backup2"));
+
+        store = new FileBasedIdentityStore(createConfiguration(restored, false));
+
+        try {
+            assertEquals(100, countUsers(store));
+            assertNull(store.getUser("user0"));
+            assertEquals("Anil", store.getUser("user100").getFirstName());
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the shards compacted since the previous snapshot are copied whole, and if a snapshot that does not follow the
+     * last one restored is refused.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCompacted() throws Exception {
+        FileBasedIdentityStore store = new FileBasedIdentityStore(createConfiguration(new File(getWorkingDir(), "store"), true));
+
+        try {
+            store.createUser("asaldhana");
+
+            FileStoreSnapshot full = store.snapshot(new File(getWorkingDir(), "backup0"));
+
+            store.createUser("psilva");
+            store.compact();
+            store.createUser("sbryzak");
+
+            FileStoreSnapshot next = store.snapshot(new File(getWorkingDir(), "backup1"), full);
+
+            assertFalse(next.isIncremental());
+
+            store.createUser("anil");
+            store.snapshot(new File(getWorkingDir(), "backup2"), next);
+        } finally {
+            store.close();
+        }
+
+        File restored = new File(getWorkingDir(), "restored");
+
+        FileStoreSnapshot.restore(restored, new File(getWorkingDir(), "backup0"), new File(getWorkingDir(), "backup1"),
+                new File(getWorkingDir(), "backup2"));
+
+        store = new FileBasedIdentityStore(createConfiguration(restored, false));
+
+        try {
+            assertEquals(4, countUsers(store));
+        } finally {
+            store.close();
+        }
+
+        try {
+            FileStoreSnapshot.restore(restored, new File(getWorkingDir(), "backup2"));
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if a compaction is seen even when it gives the files the same length and modification time they had when the
+     * previous snapshot was taken.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCompactedToSameLength() throws Exception {
+        File storeDir = new File(getWorkingDir(), "store");
+        FileBasedIdentityStore store = new FileBasedIdentityStore(createConfiguration(storeDir, true));
+
+        try {
+            store.createUser("asaldhana");
+            store.compact();
+
+            FileStoreSnapshot full = store.snapshot(new File(getWorkingDir(), "backup0"));
+            Map<File, long[]> stamps = new HashMap<File, long[]>();
+
+            for (File file : storeDir.listFiles()) {
+                stamps.put(file, new long[] { file.lastModified(), file.length() });
+            }
+
+            store.compact();
+
+            for (File file : storeDir.listFiles()) {
+                assertEquals(stamps.get(file)[1], file.length());
+                file.setLastModified(stamps.get(file)[0]);
+            }
+
+            FileStoreSnapshot next = store.snapshot(new File(getWorkingDir(), "backup1"), full);
+
+            assertFalse(next.isIncremental());
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if snapshots taken while users are being created hold the same point in time across the shards: the users
+     * created in sequence by a single thread are restored up to one of them, without gaps.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConsistentWhileWriting() throws Exception {
+        final FileBasedIdentityStore store = new FileBasedIdentityStore(createConfiguration(
+                new File(getWorkingDir(), "store"), true).setCompactionThreshold(200));
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final List<Exception> errors = new ArrayList<Exception>();
+        List<File> backups = new ArrayList<File>();
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; !stopped.get(); i++) {
+                        store.createUser("user" + i);
+                    }
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+
+        writer.start();
+
+        try {
+            FileStoreSnapshot previous = null;
+
+            for (int i = 0; i < 5; i++) {
+                Thread.sleep(50);
+
+                File backup = new File(getWorkingDir(), "backup" + i);
+
+                previous = store.snapshot(backup, previous);
+                backups.add(backup);
+            }
+        } finally {
+            stopped.set(true);
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+            store.close();
+        }
+
+        assertTrue(errors.isEmpty());
+
+        int previousCount = 0;
+
+        for (int i = 1; i <= backups.size(); i++) {
+            File restored = new File(getWorkingDir(), "restored" + i);
+
+            FileStoreSnapshot.restore(restored, backups.subList(0, i).toArray(new File[i]));
+
+            FileBasedIdentityStore restoredStore = new FileBasedIdentityStore(createConfiguration(restored, false));
+
+            try {
+                int count = countUsers(restoredStore);
+
+                assertTrue(count >= previousCount);
+
+                for (int j = 0; j < count; j++) {
+                    assertNotNull(restoredStore.getUser("user" + j));
+                }
+
+                previousCount = count;
+            } finally {
+                restoredStore.close();
+            }
+        }
+    }
+
+    private int countUsers(FileBasedIdentityStore store) {
+        List<User> users = store.executeQuery(new DefaultUserQuery(store), null);
+
+        return users.size();
+    }
+
+    private FileStoreConfiguration createConfiguration(File dir, boolean alwaysCreateFiles) {
+        return new FileStoreConfiguration().setWorkingDir(dir.getPath()).setAlwaysCreateFiles(alwaysCreateFiles).setShards(4);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.picketlink.idm.internal.file.FileStoreCodec;
+import org.picketlink.idm.internal.file.FileUser;
+
+/**
+ * <p>
+ * Compares the time to write and read a users snapshot with Java serialization and with the {@link FileStoreCodec}. Not
+ * run by the test suite:
+ * </p>
+ * 
+ * <pre>
+ * java -cp ... org.picketlink.test.idm.internal.file.FileStoreCodecBenchmark [users]
+ * </pre>
+ */
+public class FileStoreCodecBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Map<String, FileUser> users = new HashMap<String, FileUser>();
+
+        for (int i = 0; i < count; i++) {
+            FileUser user = new FileUser("user" + i);
+
+            user.setFirstName("First" + i);
+            user.setLastName("Last" + i);
+            user.setEmail("user" + i + "@example.com");
+            user.setAttribute("userPassword", "password" + i);
+            user.setAttribute("department", "department" + (i % 100));
+
+            users.put(user.getId(), user);
+        }
+
+        File file = File.createTempFile("pl-idm-benchmark", ".db");
+
+        file.deleteOnExit();
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+
+            oos.writeObject(users);
+            oos.close();
+
+            long serializedWrite = System.nanoTime() - start;
+            long serializedSize = file.length();
+
+            start = System.nanoTime();
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+
+            ois.readObject();
+            ois.close();
+
+            long serializedRead = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+            FileStoreCodec.writeSnapshot(out, FileStoreCodec.USERS, users.values());
+            out.close();
+
+            long codecWrite = System.nanoTime() - start;
+            long codecSize = file.length();
+
+            start = System.nanoTime();
+            InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+
+            FileStoreCodec.readSnapshot(in, FileStoreCodec.USERS);
+            in.close();
+
+            long codecRead = System.nanoTime() - start;
+
+            System.out.println("Round " + round + ", " + count + " users:");
+            System.out.println(String.format("  serialization: write %6d ms, read %6d ms, %10d bytes", serializedWrite / 1000000,
+                    serializedRead / 1000000, serializedSize));
+            System.out.println(String.format("  codec:         write %6d ms, read %6d ms, %10d bytes", codecWrite / 1000000,
+                    codecRead / 1000000, codecSize));
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.file.DeflateBlockCodec;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.file.FileGroup;
+import org.picketlink.idm.internal.file.FileMembership;
+import org.picketlink.idm.internal.file.FileRole;
+import org.picketlink.idm.internal.file.FileStoreCodec;
+import org.picketlink.idm.internal.file.FileStoreConverter;
+import org.picketlink.idm.internal.file.FileUser;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Membership;
+import org.picketlink.idm.model.User;
+
+/**
+ * <p>
+ * Tests the {@link FileStoreCodec} and the conversion of data files written with Java serialization.
+ * </p>
+ */
+public class FileStoreCodecTestCase extends AbstractFileWorkingDirTestCase {
+
+    /**
+     * <p>
+     * Tests if all the properties of an user survive encoding.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUser() throws Exception {
+        FileUser user = createUser("asaldhana");
+
+        User decoded = (User) FileStoreCodec.decode(FileStoreCodec.encode(user));
+
+        assertUser(user, decoded);
+    }
+
+    /**
+     * <p>
+     * Tests if groups are encoded with a reference to their parents and memberships with references to their role, user and
+     * group, which only hold their keys.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMembership() throws Exception {
+        FileGroup parent = new FileGroup("jboss", null);
+        FileGroup group = new FileGroup("picketlink", parent);
+        FileRole role = new FileRole("admin");
+
+        role.setAttribute("description", "Administrators");
+
+        Membership decoded = (Membership) FileStoreCodec.decode(FileStoreCodec.encode(new FileMembership(role, null, group)));
+
+        assertEquals("admin", decoded.getRole().getName());
+        assertTrue(decoded.getRole().getAttributes().isEmpty());
+        assertNull(decoded.getUser());
+        assertEquals("picketlink", decoded.getGroup().getName());
+        assertNull(decoded.getGroup().getParentGroup());
+
+        parent.setAttribute("description", "JBoss");
+
+        Group decodedGroup = (Group) FileStoreCodec.decode(FileStoreCodec.encode(group));
+
+        assertEquals("jboss", decodedGroup.getParentGroup().getName());
+        assertTrue(decodedGroup.getParentGroup().getAttributes().isEmpty());
+        assertNull(decodedGroup.getParentGroup().getParentGroup());
+    }
+
+    /**
+     * <p>
+     * Tests if the references of memberships and groups are resolved to the loaded entities, whether users are kept on the heap
+     * or not.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReferences() throws Exception {
+        FileBasedIdentityStore store = new FileBasedIdentityStore(getWorkingDir().getPath(), true);
+        User user = store.createUser("asaldhana");
+
+        user.setFirstName("Anil");
+        store.createRole("admin").setAttribute("description", "Administrators");
+        store.createMembership(store.getRole("admin"), user,
+                store.createGroup("picketlink", store.createGroup("jboss", null)));
+        store.close();
+
+        for (boolean offHeapUsers : new boolean[] { false, true }) {
+            store = new FileBasedIdentityStore(createConfiguration(false).setOffHeapUsers(offHeapUsers));
+
+            try {
+                Group group = store.getGroup("picketlink");
+                Membership membership = store.getMembership(store.getRole("admin"), store.getUser("asaldhana"), group);
+
+                assertNotNull(membership);
+                assertSame(store.getRole("admin"), membership.getRole());
+                assertEquals("Administrators", membership.getRole().getAttribute("description"));
+                assertEquals("Anil", membership.getUser().getFirstName());
+                assertSame(group, membership.getGroup());
+                assertSame(store.getGroup("jboss"), group.getParentGroup());
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Tests writing and reading a snapshot, which shares the attribute names between its entities.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSnapshot() throws Exception {
+        List<FileUser> users = new ArrayList<FileUser>();
+
+        for (int i = 0; i < 100; i++) {
+            users.add(createUser("user" + i));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        FileStoreCodec.writeSnapshot(out, FileStoreCodec.USERS, users);
+
+        List<Object> decoded = FileStoreCodec.readSnapshot(new ByteArrayInputStream(out.toByteArray()), FileStoreCodec.USERS);
+
+        assertEquals(users.size(), decoded.size());
+
+        for (int i = 0; i < users.size(); i++) {
+            assertUser(users.get(i), (User) decoded.get(i));
+        }
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(serialized);
+
+        oos.writeObject(users);
+        oos.close();
+
+        assertTrue(out.size() < serialized.size());
+
+        try {
+            FileStoreCodec.readSnapshot(new ByteArrayInputStream(out.toByteArray()), FileStoreCodec.GROUPS);
+            assertTrue("Expected the snapshot type to be checked.", false);
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * <p>
+     * Tests writing and reading a snapshot compressed in blocks, larger than a block.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCompressedSnapshot() throws Exception {
+        List<FileUser> users = new ArrayList<FileUser>();
+
+        for (int i = 0; i < 2000; i++) {
+            users.add(createUser("user" + i));
+        }
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        FileStoreCodec.writeSnapshot(plain, FileStoreCodec.USERS, users);
+        FileStoreCodec.writeSnapshot(compressed, FileStoreCodec.USERS, users, new DeflateBlockCodec());
+
+        assertTrue(plain.size() > 65536);
+        assertTrue(compressed.size() < plain.size() / 2);
+
+        // the codec is found by the id written in the snapshot
+        List<Object> decoded = FileStoreCodec.readSnapshot(new ByteArrayInputStream(compressed.toByteArray()),
+                FileStoreCodec.USERS);
+
+        assertEquals(users.size(), decoded.size());
+
+        for (int i = 0; i < users.size(); i++) {
+            assertUser(users.get(i), (User) decoded.get(i));
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if a store created over files written with Java serialization reads them and rewrites them in the new format.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLegacyFiles() throws Exception {
+        Map<String, FileUser> users = new HashMap<String, FileUser>();
+        Map<String, FileGroup> groups = new HashMap<String, FileGroup>();
+        List<FileMembership> memberships = new ArrayList<FileMembership>();
+
+        FileUser user = createUser("asaldhana");
+        FileGroup group = new FileGroup("staff", null);
+
+        users.put(user.getId(), user);
+        groups.put(group.getName(), group);
+        memberships.add(new FileMembership(null, user, group));
+
+        writeLegacyFile("pl-idm-users.db", users);
+        writeLegacyFile("pl-idm-groups.db", groups);
+        writeLegacyFile("pl-idm-memberships.db", memberships);
+
+        File usersFile = new File(getWorkingDir(), "pl-idm-users.db");
+
+        assertTrue(FileStoreConverter.isLegacyFile(usersFile));
+
+        FileBasedIdentityStore store = new FileBasedIdentityStore(getWorkingDir().getPath(), false);
+
+        assertFalse(FileStoreConverter.isLegacyFile(usersFile));
+        assertUser(user, store.getUser("asaldhana"));
+
+        Group storedGroup = store.getGroup("staff");
+
+        assertNotNull(storedGroup);
+        assertNotNull(store.getMembership(null, user, storedGroup));
+
+        store.close();
+
+        store = new FileBasedIdentityStore(getWorkingDir().getPath(), false);
+
+        assertUser(user, store.getUser("asaldhana"));
+
+        store.close();
+    }
+
+    /**
+     * <p>
+     * Tests converting the files of a working directory offline.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConverter() throws Exception {
+        Map<String, FileUser> users = new HashMap<String, FileUser>();
+
+        users.put("asaldhana", createUser("asaldhana"));
+
+        writeLegacyFile("pl-idm-users.db", users);
+
+        assertEquals(1, FileStoreConverter.convertWorkingDir(getWorkingDir()));
+        assertEquals(0, FileStoreConverter.convertWorkingDir(getWorkingDir()));
+
+        FileBasedIdentityStore store = new FileBasedIdentityStore(getWorkingDir().getPath(), false);
+
+        assertUser(users.get("asaldhana"), store.getUser("asaldhana"));
+
+        store.close();
+    }
+
+    private FileUser createUser(String name) {
+        FileUser user = new FileUser(name);
+
+        user.setFirstName("Anil");
+        user.setLastName("Saldhãna");
+        user.setEmail(name + "@redhat.com");
+        user.setEnabled(false);
+        user.setCreationDate(new Date(1340000000000L));
+        user.setExpirationDate(new Date(-1000L));
+        user.setAttribute("QuestionTotal", "2");
+        user.setAttribute("Question1", new String[] { "Favorite Dessert", null });
+        user.setAttribute("Empty", (String[]) null);
+
+        return user;
+    }
+
+    private void assertUser(User expected, User actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getFirstName(), actual.getFirstName());
+        assertEquals(expected.getLastName(), actual.getLastName());
+        assertEquals(expected.getEmail(), actual.getEmail());
+        assertEquals(expected.isEnabled(), actual.isEnabled());
+        assertEquals(expected.getCreationDate(), actual.getCreationDate());
+        assertEquals(expected.getExpirationDate(), actual.getExpirationDate());
+        assertEquals(expected.getAttributes().keySet(), actual.getAttributes().keySet());
+
+        for (String name : expected.getAttributes().keySet()) {
+            assertArrayEquals(expected.getAttributeValues(name), actual.getAttributeValues(name));
+        }
+
+        assertTrue(Arrays.asList(actual.getAttributeValues("Question1")).contains(null));
+    }
+
+    private void writeLegacyFile(String name, Object content) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(new File(getWorkingDir(), name)));
+
+        oos.writeObject(content);
+        oos.close();
+    }
+}
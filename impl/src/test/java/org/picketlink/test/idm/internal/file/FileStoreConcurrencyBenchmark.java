@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.config.FileStoreConfiguration;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Measures the throughput of the {@link FileBasedIdentityStore} under a mix of lookups, indexed queries and attribute
+ * changes, with an increasing number of threads. Not run by the test suite:
+ * </p>
+ * 
+ * <pre>
+ * java -cp ... org.picketlink.test.idm.internal.file.FileStoreConcurrencyBenchmark [users] [seconds] [write percentage]
+ * </pre>
+ */
+public class FileStoreConcurrencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final long duration = TimeUnit.SECONDS.toNanos(args.length > 1 ? Integer.parseInt(args[1]) : 5);
+        final int writes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        File workingDir = File.createTempFile("pl-idm-benchmark", "");
+
+        workingDir.delete();
+        workingDir.mkdirs();
+
+        final FileBasedIdentityStore store = new FileBasedIdentityStore(new FileStoreConfiguration().setWorkingDir(
+                workingDir.getPath()).setCompactionThreshold(100000));
+
+        for (int i = 0; i < count; i++) {
+            User user = store.createUser("user" + i);
+
+            user.setEmail("user" + i + "@example.com");
+            user.setAttribute("department", "department" + (i % 100));
+        }
+
+        store.sync().get();
+
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        for (int threads = 1; threads <= processors * 2; threads *= 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            final long end = System.nanoTime() + duration;
+
+            for (int i = 0; i < threads; i++) {
+                final Random random = new Random(i);
+
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        long operations = 0;
+
+                        while (System.nanoTime() < end) {
+                            int user = random.nextInt(count);
+                            int operation = random.nextInt(100);
+
+                            if (operation < writes) {
+                                store.getUser("user" + user).setAttribute("department", "department" + random.nextInt(100));
+                            } else if (operation < 2 * writes) {
+                                UserQuery query = new DefaultUserQuery(store);
+
+                                query.setEmail("user" + user + "@example.com");
+
+                                store.executeQuery(query, null);
+                            } else {
+                                store.getUser("user" + user);
+                            }
+
+                            operations++;
+                        }
+
+                        return operations;
+                    }
+                }));
+            }
+
+            long operations = 0;
+
+            for (Future<Long> result : results) {
+                operations += result.get();
+            }
+
+            executor.shutdown();
+
+            System.out.println(String.format("%3d threads: %12d ops/s", threads, operations * 1000000000L / duration));
+        }
+
+        store.close();
+
+        File[] files = workingDir.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        workingDir.delete();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.file.FileUser;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Tests if the user queries of the {@link FileBasedIdentityStore} follow the changes made to the indexed properties.
+ * </p>
+ */
+public class FileUserIndexTestCase {
+
+    private FileBasedIdentityStore store;
+
+    @Before
+    public void onSetup() throws Exception {
+        this.store = new FileBasedIdentityStore();
+
+        for (int i = 0; i < 20; i++) {
+            User user = this.store.createUser("user" + i);
+
+            user.setEmail("user" + i + "@redhat.com");
+            user.setFirstName(i % 2 == 0 ? "Even" : "Odd");
+            user.setLastName("Last" + (i % 5));
+        }
+    }
+
+    /**
+     * <p>
+     * Tests queries combining several indexed properties.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIntersection() throws Exception {
+        assertEquals(1, query("user3@redhat.com", null, null, true).size());
+        assertEquals(10, query(null, "Even", null, true).size());
+        assertEquals(4, query(null, null, "Last1", true).size());
+        assertEquals(2, query(null, "Odd", "Last1", true).size());
+        assertEquals(1, query("user11@redhat.com", "Odd", "Last1", true).size());
+        assertTrue(query("user11@redhat.com", "Even", null, true).isEmpty());
+        assertTrue(query("unknown@redhat.com", null, null, true).isEmpty());
+        assertEquals(20, query(null, null, null, true).size());
+    }
+
+    /**
+     * <p>
+     * Tests if changes made after the indexes were built are reflected by the queries.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testChanges() throws Exception {
+        assertEquals(1, query("user3@redhat.com", null, null, true).size());
+
+        User user = this.store.getUser("user3");
+
+        user.setEmail("changed@redhat.com");
+
+        assertTrue(query("user3@redhat.com", null, null, true).isEmpty());
+        assertEquals("user3", query("changed@redhat.com", null, null, true).get(0).getKey());
+
+        ((FileUser) user).setEnabled(false);
+
+        assertTrue(query("changed@redhat.com", null, null, true).isEmpty());
+        assertEquals(1, query("changed@redhat.com", null, null, false).size());
+        assertEquals(19, query(null, null, null, true).size());
+
+        this.store.removeUser(this.store.getUser("user5"));
+
+        assertTrue(query("user5@redhat.com", null, null, true).isEmpty());
+        assertEquals(18, query(null, null, null, true).size());
+
+        User created = this.store.createUser("user20");
+
+        created.setEmail("user20@redhat.com");
+
+        assertEquals(1, query("user20@redhat.com", null, null, true).size());
+        assertEquals(19, query(null, null, null, true).size());
+    }
+
+    private List<User> query(String email, String firstName, String lastName, boolean enabled) {
+        UserQuery query = new DefaultUserQuery(this.store);
+
+        query.setEmail(email);
+        query.setFirstName(firstName);
+        query.setLastName(lastName);
+        query.setEnabled(enabled);
+
+        return this.store.executeQuery(query, null);
+    }
+}
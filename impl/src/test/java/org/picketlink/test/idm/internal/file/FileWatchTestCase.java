@@ -0,0 +1,244 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.jpa.DefaultMembershipQuery;
+import org.picketlink.idm.model.Group;
+import org.picketlink.idm.model.Role;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Tests if a {@link FileBasedIdentityStore} applies the changes made by another store sharing its working directory, as
+ * another process would.
+ * </p>
+ */
+public class FileWatchTestCase extends AbstractFileWorkingDirTestCase {
+
+    private FileBasedIdentityStore writer;
+    private FileBasedIdentityStore reader;
+
+    @Before
+    public void onSetup() throws Exception {
+        this.writer = new FileBasedIdentityStore(createConfiguration(true));
+    }
+
+    @After
+    public void onFinish() {
+        if (this.reader != null) {
+            this.reader.close();
+        }
+
+        this.writer.close();
+    }
+
+    /**
+     * <p>
+     * Tests if the changes appended to the journals are applied, including to the indexes.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRefresh() throws Exception {
+        this.reader = new FileBasedIdentityStore(createConfiguration(false));
+
+        assertEquals(0, findByEmail(this.reader, "asaldhana@redhat.com").size());
+
+        Role role = this.writer.createRole("admin");
+        Group group = this.writer.createGroup("staff", null);
+        User user = this.writer.createUser("asaldhana");
+
+        user.setEmail("asaldhana@redhat.com");
+        user.setAttribute("department", "security");
+        this.writer.createMembership(role, user, group);
+
+        this.writer.sync().get(10, TimeUnit.SECONDS);
+
+        assertNull(this.reader.getUser("asaldhana"));
+
+        this.reader.refresh();
+
+        assertNotNull(this.reader.getUser("asaldhana"));
+        assertNotNull(this.reader.getRole("admin"));
+        assertNotNull(this.reader.getGroup("staff"));
+        assertEquals(1, findByEmail(this.reader, "asaldhana@redhat.com").size());
+        assertEquals(1, findByRole(this.reader, "admin").size());
+
+        user.setEmail("anil@redhat.com");
+        this.writer.removeMembership(role, user, group);
+        this.writer.removeRole(role);
+
+        this.writer.sync().get(10, TimeUnit.SECONDS);
+        this.reader.refresh();
+
+        assertEquals(0, findByEmail(this.reader, "asaldhana@redhat.com").size());
+        assertEquals(1, findByEmail(this.reader, "anil@redhat.com").size());
+        assertEquals(0, findByRole(this.reader, "admin").size());
+        assertNull(this.reader.getRole("admin"));
+        assertEquals(0, this.reader.executeQuery(new DefaultMembershipQuery(this.reader), null).size());
+
+        // the changes made by the reader are not read back as external changes, and are seen by the writer
+        this.reader.getUser("asaldhana").setFirstName("Anil");
+        this.reader.sync().get(10, TimeUnit.SECONDS);
+        this.reader.refresh();
+        this.writer.refresh();
+
+        assertEquals("Anil", this.writer.getUser("asaldhana").getFirstName());
+        assertEquals("anil@redhat.com", this.writer.getUser("asaldhana").getEmail());
+    }
+
+    /**
+     * <p>
+     * Tests if changes not written yet are kept over older changes made by another process.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLocalChangesTakePrecedence() throws Exception {
+        this.writer.createUser("asaldhana");
+        this.writer.sync().get(10, TimeUnit.SECONDS);
+
+        this.reader = new FileBasedIdentityStore(createConfiguration(false).setCommitLatency(60000));
+
+        this.reader.getUser("asaldhana").setEmail("reader@redhat.com");
+        this.writer.getUser("asaldhana").setEmail("writer@redhat.com");
+        this.writer.sync().get(10, TimeUnit.SECONDS);
+
+        this.reader.refresh();
+
+        assertEquals("reader@redhat.com", this.reader.getUser("asaldhana").getEmail());
+
+        this.reader.sync().get(10, TimeUnit.SECONDS);
+        this.writer.refresh();
+
+        assertEquals("reader@redhat.com", this.writer.getUser("asaldhana").getEmail());
+    }
+
+    /**
+     * <p>
+     * Tests if the files compacted by another process are read again, and appended to afterwards.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCompactedByOtherProcess() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            this.writer.createUser("user" + i).setEmail("user" + i + "@redhat.com");
+        }
+
+        this.writer.sync().get(10, TimeUnit.SECONDS);
+
+        this.reader = new FileBasedIdentityStore(createConfiguration(false));
+
+        this.writer.getUser("user1").setEmail("changed@redhat.com");
+        this.writer.removeUser(this.writer.getUser("user2"));
+        this.writer.createUser("user10");
+        this.writer.compact();
+
+        this.reader.refresh();
+
+        assertEquals(1, findByEmail(this.reader, "changed@redhat.com").size());
+        assertEquals(0, findByEmail(this.reader, "user1@redhat.com").size());
+        assertNull(this.reader.getUser("user2"));
+        assertNotNull(this.reader.getUser("user10"));
+
+        this.writer.createUser("user11");
+        this.reader.createUser("user12");
+        this.writer.sync().get(10, TimeUnit.SECONDS);
+        this.reader.sync().get(10, TimeUnit.SECONDS);
+        this.reader.refresh();
+        this.writer.refresh();
+
+        assertNotNull(this.reader.getUser("user11"));
+        assertNotNull(this.writer.getUser("user12"));
+        assertEquals(12, this.reader.executeQuery(new DefaultUserQuery(this.reader), null).size());
+        assertEquals(12, this.writer.executeQuery(new DefaultUserQuery(this.writer), null).size());
+    }
+
+    /**
+     * <p>
+     * Tests if the changes are applied in the background with a watch interval.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWatchInterval() throws Exception {
+        this.reader = new FileBasedIdentityStore(createConfiguration(false).setWatchInterval(10));
+
+        this.writer.createUser("asaldhana");
+        this.writer.sync().get(10, TimeUnit.SECONDS);
+
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (this.reader.getUser("asaldhana") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertNotNull(this.reader.getUser("asaldhana"));
+
+        this.writer.compact();
+        this.writer.removeUser(this.writer.getUser("asaldhana"));
+        this.writer.sync().get(10, TimeUnit.SECONDS);
+
+        while (this.reader.getUser("asaldhana") != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertNull(this.reader.getUser("asaldhana"));
+        assertTrue(System.currentTimeMillis() < deadline);
+    }
+
+    private List<User> findByEmail(FileBasedIdentityStore store, String email) {
+        UserQuery query = new DefaultUserQuery(store);
+
+        query.setEmail(email);
+
+        return store.executeQuery(query, null);
+    }
+
+    private List<User> findByRole(FileBasedIdentityStore store, String role) {
+        UserQuery query = new DefaultUserQuery(store);
+
+        query.setRole(role);
+
+        return store.executeQuery(query, null);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.file.MappedUserMap;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Tests the {@link FileBasedIdentityStore} with users read on demand through a {@link MappedUserMap}.
+ * </p>
+ */
+public class MappedUserMapTestCase extends AbstractFileWorkingDirTestCase {
+
+    /**
+     * <p>
+     * Tests if users written to the snapshot are read back on demand, including the changes made after it was written.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLookup() throws Exception {
+        FileBasedIdentityStore store = createStore(true, 0);
+
+        for (int i = 0; i < 100; i++) {
+            User user = store.createUser("user" + i);
+
+            user.setEmail("user" + i + "@redhat.com");
+            user.setAttribute("index", String.valueOf(i));
+        }
+
+        store.compact();
+        store.close();
+
+        store = createStore(false, 0);
+
+        assertEquals("user42@redhat.com", store.getUser("user42").getEmail());
+        assertEquals("42", store.getUser("user42").getAttribute("index"));
+        assertNull(store.getUser("unknown"));
+
+        store.getUser("user1").setEmail("changed@redhat.com");
+        store.removeUser(store.getUser("user2"));
+        store.createUser("user100");
+
+        assertEquals("changed@redhat.com", store.getUser("user1").getEmail());
+        assertNull(store.getUser("user2"));
+        assertNotNull(store.getUser("user100"));
+
+        store.close();
+
+        store = createStore(false, 0);
+
+        assertEquals("changed@redhat.com", store.getUser("user1").getEmail());
+        assertNull(store.getUser("user2"));
+        assertNotNull(store.getUser("user100"));
+
+        store.compact();
+
+        assertEquals("changed@redhat.com", store.getUser("user1").getEmail());
+        assertNull(store.getUser("user2"));
+        assertNotNull(store.getUser("user100"));
+
+        store.close();
+    }
+
+    /**
+     * <p>
+     * Tests if the most recently used users are kept decoded.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRetention() throws Exception {
+        FileBasedIdentityStore store = createStore(true, 2);
+
+        store.createUser("asaldhana");
+        store.createUser("psilva");
+        store.createUser("sbryzak");
+        store.compact();
+        store.close();
+
+        store = createStore(false, 2);
+
+        User user = store.getUser("asaldhana");
+
+        assertSame(user, store.getUser("asaldhana"));
+
+        store.getUser("psilva");
+        store.getUser("sbryzak");
+
+        assertNotSame(user, store.getUser("asaldhana"));
+
+        store.close();
+
+        store = createStore(false, 0);
+
+        assertNotSame(store.getUser("asaldhana"), store.getUser("asaldhana"));
+
+        store.close();
+    }
+
+    /**
+     * <p>
+     * Tests if queries see both the mapped and the changed users.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testQuery() throws Exception {
+        FileBasedIdentityStore store = createStore(true, 10);
+
+        for (int i = 0; i < 10; i++) {
+            store.createUser("user" + i).setEmail("user" + i + "@redhat.com");
+        }
+
+        store.compact();
+        store.close();
+
+        store = createStore(false, 10);
+
+        store.createUser("user10");
+        store.removeUser(store.getUser("user0"));
+
+        UserQuery query = new DefaultUserQuery(store);
+
+        query.setEnabled(true);
+
+        List<User> users = store.executeQuery(query, null);
+        Set<String> names = new HashSet<String>();
+
+        for (User user : users) {
+            names.add(user.getKey());
+        }
+
+        assertEquals(10, names.size());
+        assertTrue(names.contains("user10"));
+        assertTrue(!names.contains("user0"));
+
+        query = new DefaultUserQuery(store);
+        query.setEmail("user5@redhat.com");
+        query.setEnabled(true);
+
+        assertEquals(1, store.executeQuery(query, null).size());
+
+        store.close();
+    }
+
+    private FileBasedIdentityStore createStore(boolean alwaysCreateFiles, int retention) {
+        return new FileBasedIdentityStore(createConfiguration(alwaysCreateFiles).setMappedUsers(true).setUserRetention(retention));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.picketlink.idm.internal.file.FileUser;
+import org.picketlink.idm.internal.file.OffHeapUserMap;
+
+/**
+ * <p>
+ * Compares the heap used by users kept as heap objects and by users kept in an {@link OffHeapUserMap}, and the time spent
+ * collecting garbage while they are read and changed. Not run by the test suite. Each layout is best measured in its own
+ * JVM, with the same heap size:
+ * </p>
+ * 
+ * <pre>
+ * java -Xmx1g -cp ... org.picketlink.test.idm.internal.file.OffHeapUserMapBenchmark [users] [heap|offheap]
+ * </pre>
+ */
+public class OffHeapUserMapBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        String layout = args.length > 1 ? args[1] : null;
+
+        if (layout == null || "heap".equals(layout)) {
+            run("heap", new HashMap<String, FileUser>(), count);
+        }
+
+        if (layout == null || "offheap".equals(layout)) {
+            run("offheap", new OffHeapUserMap(1 << 20), count);
+        }
+    }
+
+    private static void run(String layout, Map<String, FileUser> users, int count) {
+        long baseline = usedHeap();
+
+        for (int i = 0; i < count; i++) {
+            FileUser user = new FileUser("user" + i);
+
+            user.setFirstName("First" + i);
+            user.setLastName("Last" + i);
+            user.setEmail("user" + i + "@example.com");
+            user.setAttribute("userPassword", "password" + i);
+            user.setAttribute("department", "department" + (i % 100));
+
+            users.put(user.getId(), user);
+        }
+
+        long heap = usedHeap() - baseline;
+        long start = System.nanoTime();
+
+        System.gc();
+
+        long fullCollection = System.nanoTime() - start;
+        long collections = collectionCount();
+        long collectionTime = collectionTime();
+        Random random = new Random(0);
+
+        start = System.nanoTime();
+
+        // reads and changes random users, as a login workload would
+        for (int i = 0; i < count * 5; i++) {
+            String id = "user" + random.nextInt(count);
+            FileUser user = users.get(id);
+
+            if (i % 10 == 0) {
+                user.setAttribute("lastLogin", String.valueOf(i));
+                users.put(id, user);
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        collections = collectionCount() - collections;
+        collectionTime = collectionTime() - collectionTime;
+
+        System.out.println(layout + ", " + count + " users:");
+        System.out.println(String.format("  heap used:        %10d KiB", heap / 1024));
+
+        if (users instanceof OffHeapUserMap) {
+            System.out.println(String.format("  off-heap used:    %10d KiB", ((OffHeapUserMap) users).getCapacity() / 1024));
+        }
+
+        System.out.println(String.format("  full collection:  %10d ms", fullCollection / 1000000));
+        System.out.println(String.format("  workload:         %10d ms, %d collections, %d ms collecting", elapsed / 1000000,
+                collections, collectionTime));
+
+        users.clear();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+
+        return count;
+    }
+
+    private static long collectionTime() {
+        long time = 0;
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+
+        return time;
+    }
+}
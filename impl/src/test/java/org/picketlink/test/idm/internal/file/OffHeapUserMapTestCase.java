@@ -0,0 +1,209 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.test.idm.internal.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.picketlink.idm.internal.DefaultUserQuery;
+import org.picketlink.idm.internal.file.FileBasedIdentityStore;
+import org.picketlink.idm.internal.file.FileUser;
+import org.picketlink.idm.internal.file.OffHeapUserMap;
+import org.picketlink.idm.model.User;
+import org.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Tests the {@link OffHeapUserMap} and the {@link FileBasedIdentityStore} with users kept outside of the heap.
+ * </p>
+ */
+public class OffHeapUserMapTestCase extends AbstractFileWorkingDirTestCase {
+
+    /**
+     * <p>
+     * Tests if users are decoded on lookup into an instance shared while it is referenced, and if the slots of changed and
+     * removed users are reused.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMap() throws Exception {
+        OffHeapUserMap users = new OffHeapUserMap(4096);
+
+        for (int i = 0; i < 100; i++) {
+            FileUser user = new FileUser("user" + i);
+
+            user.setEmail("user" + i + "@redhat.com");
+            user.setAttribute("index", String.valueOf(i));
+
+            users.put(user.getId(), user);
+        }
+
+        assertEquals(100, users.size());
+        assertEquals("user42@redhat.com", users.get("user42").getEmail());
+        assertEquals("42", users.get("user42").getAttribute("index"));
+        assertSame(users.get("user42"), users.get("user42"));
+        assertNull(users.get("unknown"));
+
+        long capacity = users.getCapacity();
+
+        for (int i = 0; i < 100; i++) {
+            FileUser user = users.get("user" + i);
+
+            user.setEmail("changed" + i + "@redhat.com");
+
+            users.put(user.getId(), user);
+        }
+
+        assertEquals(capacity, users.getCapacity());
+        assertEquals("changed7@redhat.com", users.get("user7").getEmail());
+
+        // a record larger than a slab gets its own buffer
+        FileUser large = users.get("user0");
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < 1000; i++) {
+            value.append("0123456789");
+        }
+
+        large.setAttribute("large", value.toString());
+        users.put(large.getId(), large);
+
+        assertEquals(value.toString(), users.get("user0").getAttribute("large"));
+
+        users.remove("user0");
+        users.remove("user1");
+
+        assertFalse(users.containsKey("user1"));
+        assertEquals(capacity, users.getCapacity());
+        assertEquals(98, users.size());
+
+        Set<String> ids = new HashSet<String>();
+
+        for (FileUser user : users.values()) {
+            ids.add(user.getId());
+        }
+
+        assertEquals(users.keySet(), ids);
+
+        users.clear();
+
+        assertEquals(0, users.size());
+        assertEquals(0, users.getCapacity());
+    }
+
+    /**
+     * <p>
+     * Tests if the store keeps users outside of the heap, including changes made through the returned instances.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStore() throws Exception {
+        FileBasedIdentityStore store = createStore(true);
+
+        for (int i = 0; i < 100; i++) {
+            User user = store.createUser("user" + i);
+
+            user.setEmail("user" + i + "@redhat.com");
+            user.setAttribute("parity", String.valueOf(i % 2));
+        }
+
+        store.getUser("user1").setEmail("changed@redhat.com");
+        store.removeUser(store.getUser("user2"));
+
+        assertState(store);
+
+        store.compact();
+        store.close();
+
+        store = createStore(false);
+
+        assertState(store);
+
+        store.close();
+    }
+
+    /**
+     * <p>
+     * Tests if changes made through two references to the same user are both kept.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTwoReferences() throws Exception {
+        FileBasedIdentityStore store = createStore(true);
+
+        store.createUser("bob");
+
+        User first = store.getUser("bob");
+        User second = store.getUser("bob");
+
+        first.setAttribute("a", "1");
+        second.setAttribute("b", "2");
+
+        assertEquals("1", store.getUser("bob").getAttribute("a"));
+        assertEquals("2", store.getUser("bob").getAttribute("b"));
+
+        store.close();
+
+        store = createStore(false);
+
+        assertEquals("1", store.getUser("bob").getAttribute("a"));
+        assertEquals("2", store.getUser("bob").getAttribute("b"));
+
+        store.close();
+    }
+
+    private void assertState(FileBasedIdentityStore store) {
+        assertEquals("changed@redhat.com", store.getUser("user1").getEmail());
+        assertNull(store.getUser("user2"));
+        assertNotNull(store.getUser("user99"));
+
+        UserQuery query = new DefaultUserQuery(store);
+
+        query.setAttributeFilter("parity", new String[] { "0" });
+
+        assertEquals(49, store.executeQuery(query, null).size());
+
+        query = new DefaultUserQuery(store);
+
+        query.setEmail("changed@redhat.com");
+
+        assertEquals(1, store.executeQuery(query, null).size());
+    }
+
+    private FileBasedIdentityStore createStore(boolean alwaysCreateFiles) {
+        return new FileBasedIdentityStore(createConfiguration(alwaysCreateFiles).setOffHeapUsers(true).setSlabSize(4096));
+    }
+}